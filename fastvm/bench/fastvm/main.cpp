@@ -1,11 +1,40 @@
-#include <ctime>
-#include <stddef.h>
-#include <stdint.h>
-#include <stdio.h>
-#include <inttypes.h>
+// Per-opcode microbenchmarks of the code generated by the FastVM JIT.
+//
+// Every benchmark is a loop whose body repeats a short, stack-neutral unit of bytecode that
+// contains the measured instruction. The same loop with an empty body, which shares the setup and
+// the loop counter, is timed alongside it, and its time and energy are subtracted, so that the
+// reported figures only cover the units.
+//
+// Usage: ./bench [--iterations N] [--unroll K] [--repeat R] [--filter TEXT]
+//                [--json FILE] [--compare BASELINE] [--threshold PERCENT]
+//
+// With --compare, the results are checked against a file previously written with --json, and the
+// exit code is 1 if any benchmark got slower per operation by more than the threshold.
+
+#include <algorithm>
+#include <chrono>
+#include <cinttypes>
+#include <cmath>
+#include <cstdio>
+#include <cstdlib>
+#include <cstring>
+#include <fstream>
+#include <functional>
+#include <map>
+#include <string>
+#include <vector>
 
 #include <evm.h>
 #include <evmjit.h>
+#include <Instruction.h>
+
+namespace dev {
+namespace evmjit {
+void keccak(uint8_t const *_data, uint64_t _size, uint8_t *o_hash);
+}
+}
+
+using dev::evmjit::Instruction;
 
 static int account_exists(
         struct evm_context* context,
@@ -19,6 +48,7 @@ static void get_balance(
         struct evm_context* context,
         const struct evm_address* addr)
 {
+    memset(result, 0, sizeof(*result));
 }
 
 static size_t get_code(
@@ -35,6 +65,7 @@ static void get_storage(
         const struct evm_address* address,
         const struct evm_word* key)
 {
+    memset(result, 0, sizeof(*result));
 }
 
 static void set_storage(
@@ -57,12 +88,15 @@ static void call(
         struct evm_context* context,
         const struct evm_message* msg)
 {
+    memset(result, 0, sizeof(*result));
+    result->status_code = EVM_FAILURE;
 }
 
 static void get_tx_context(
         struct evm_tx_context* result,
         struct evm_context* context)
 {
+    memset(result, 0, sizeof(*result));
 }
 
 static void get_block_hash(
@@ -70,6 +104,7 @@ static void get_block_hash(
         struct evm_context* context,
         int64_t number)
 {
+    memset(result, 0, sizeof(*result));
 }
 
 static void log(
@@ -95,102 +130,545 @@ static const struct evm_context_fn_table ctx_fn_table = {
         log
 };
 
-int main(int argc, char **argv) {
-    // create a vm instance
-    struct evm_instance* instance = evmjit_create();
+// The call data of every benchmark: 16-byte words that the setup code loads onto the stack, so
+// that the JIT cannot fold the measured instructions into constants.
+static const uint8_t WORD_SIZE = 16;
+static const uint8_t W_ACC = 0 * WORD_SIZE;      // the accumulator, a 128-bit value
+static const uint8_t W_B64 = 1 * WORD_SIZE;      // an operand that fits in 64 bits
+static const uint8_t W_B128 = 2 * WORD_SIZE;     // a full 128-bit operand
+static const uint8_t W_MODULUS = 3 * WORD_SIZE;  // a ~100-bit modulus
+static const uint8_t W_EXP1 = 4 * WORD_SIZE;     // a 1-byte exponent
+static const uint8_t W_EXP16 = 5 * WORD_SIZE;    // a 16-byte exponent
+static const uint8_t W_ZERO = 6 * WORD_SIZE;
+static const uint8_t W_ONE = 7 * WORD_SIZE;
 
-    // prepare the code (compiled by the provided compiler)
-    uint8_t const code[] = {
-            0x60, 0x00, // push i
-
-            0x5b,
-            0x80, // copy i
-            0x61, 0x04, 0x00, // push 1024
-            0x10, // 1024 < i
-            0x60, 0x19, 0x57, // jump if true
-
-            0x80, // copy i
-            0x60, 0xE0, 0x51, // mload sum
-            0x01, // sum += i
-            0x60, 0xE0, 0x52, // mstore sum
-            0x60, 0x01, // push 1
-            0x01, // i += 1
-            0x60, 0x02, 0x56, // jump
-
-            0x5b,
-            0x60, 0x10, 0x60, 0xE0, 0xF3 // RETURN
-    };
-    const size_t code_size = sizeof(code);
-    struct evm_hash code_hash = {
-            1, 2, 3, 4, 5, 6, 7, 8, 1, 2, 3, 4, 5, 6, 7, 8,
-            1, 2, 3, 4, 5, 6, 7, 8, 1, 2, 3, 4, 5, 6, 7, 8
-    };
+static const uint8_t input[] = {
+        0xf1, 0xe2, 0xd3, 0xc4, 0xb5, 0xa6, 0x97, 0x88, 0x79, 0x6a, 0x5b, 0x4c, 0x3d, 0x2e, 0x1f, 0x01,
+        0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x9e, 0x37, 0x79, 0xb9, 0x7f, 0x4a, 0x7c, 0x15,
+        0xc2, 0xb2, 0xae, 0x3d, 0x27, 0xd4, 0xeb, 0x4f, 0x16, 0x56, 0x67, 0xb1, 0x9e, 0x37, 0x79, 0xf9,
+        0x00, 0x00, 0x00, 0x0f, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xc5,
+        0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0xfb,
+        0x80, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x0b,
+        0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00,
+        0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x01,
+};
+
+// Memory below this offset holds the loop counter.
+static const uint8_t COUNTER = 0;
 
-    // prepare the input, value, and gas
-    uint8_t const input[] = {};
-    struct evm_word value = { };
-    int64_t gas = 5000000;
+// The energy of every execution, far more than any benchmark uses.
+static const int64_t ENERGY = INT64_C(1000000000000);
 
-    // prepare the context and message
-    struct evm_context ctx = { &ctx_fn_table };
-    struct evm_address address = {
-            1, 2, 3, 4, 5, 6, 7, 8, 1, 2, 3, 4, 5, 6, 7, 8,
-            1, 2, 3, 4, 5, 6, 7, 8, 1, 2, 3, 4, 5, 6, 7, 8
+/// Bytecode under construction.
+class Code {
+public:
+    Code& op(Instruction instruction) {
+        bytes.push_back(static_cast<uint8_t>(instruction));
+        return *this;
+    }
+
+    /// Appends the smallest PUSH of the given value.
+    Code& push(uint64_t value) {
+        uint8_t width = 1;
+        while (width < 8 && (value >> (8 * width)) != 0) {
+            width++;
+        }
+        return push(value, width);
+    }
+
+    /// Appends a PUSH of exactly the given number of bytes.
+    Code& push(uint64_t value, uint8_t width) {
+        op(static_cast<Instruction>(static_cast<uint8_t>(Instruction::PUSH1) + width - 1));
+        for (int i = width - 1; i >= 0; i--) {
+            bytes.push_back(i < 8 ? static_cast<uint8_t>(value >> (8 * i)) : 0);
+        }
+        return *this;
+    }
+
+    /// Appends the loading of a word of the call data onto the stack.
+    Code& load(uint8_t word) {
+        return push(word).op(Instruction::CALLDATALOAD);
+    }
+
+    size_t size() const {
+        return bytes.size();
+    }
+
+    std::vector<uint8_t> bytes;
+};
+
+/// A benchmark.
+struct Benchmark {
+    std::string name;
+    std::string tier;
+
+    /// Prepares the stack and memory for the units; runs once.
+    std::function<void(Code&)> setup;
+
+    /// Appends one unit. A unit leaves the stack as it found it and contains one measured
+    /// instruction, plus whatever is needed to keep its result alive.
+    std::function<void(Code&)> unit;
+};
+
+/// The results of a benchmark.
+struct Result {
+    std::string name;
+    std::string tier;
+    uint64_t ops;
+    double nsPerOp;
+    double gasPerOp;
+    double gasPerSecond;
+};
+
+static void prepare_memory(Code& code, uint16_t size) {
+    code.push(0).push(size - WORD_SIZE, 2).op(Instruction::MSTORE);
+}
+
+/// Returns a benchmark of an instruction that pops the given number of operands and pushes one
+/// result, with the accumulator on top of the stack and the other operands below it.
+///
+/// Each unit copies the operands, runs the instruction and folds the result back into the
+/// accumulator with the combining instruction. The cheapest instructions are therefore measured
+/// together with that combining instruction, which is needed to stop the optimizer from removing
+/// or merging them.
+static Benchmark operator_benchmark(const std::string& name, Instruction instruction,
+        std::vector<uint8_t> operands, Instruction combine = Instruction::XOR) {
+    Benchmark benchmark;
+    benchmark.name = name;
+    benchmark.tier = "arithmetic";
+    benchmark.setup = [operands](Code& code) {
+        for (auto word : operands) {
+            code.load(word);
+        }
+        code.load(W_ACC);
+    };
+    benchmark.unit = [operands, instruction, combine](Code& code) {
+        auto arity = static_cast<uint8_t>(operands.size() + 1);
+        auto dup = static_cast<Instruction>(static_cast<uint8_t>(Instruction::DUP1) + arity - 1);
+        for (uint8_t i = 0; i < arity; i++) {
+            code.op(dup);
+        }
+        code.op(instruction).op(combine);
     };
-    struct evm_address caller = {
-            1, 2, 3, 4, 5, 6, 7, 8, 1, 2, 3, 4, 5, 6, 7, 8,
-            1, 2, 3, 4, 5, 6, 7, 8, 1, 2, 3, 4, 5, 6, 7, 8
+    return benchmark;
+}
+
+/// Returns a benchmark of an instruction that takes a constant index and the accumulator.
+static Benchmark indexed_benchmark(const std::string& name, Instruction instruction, uint8_t index) {
+    Benchmark benchmark;
+    benchmark.name = name;
+    benchmark.tier = "arithmetic";
+    benchmark.setup = [](Code& code) {
+        code.load(W_ACC);
     };
-    struct evm_message msg = {
-            address,
-            caller,
-            value,
-            input,
-            sizeof(input),
-            code_hash,
-            gas,
-            0
+    benchmark.unit = [instruction, index](Code& code) {
+        code.op(Instruction::DUP1).push(index).op(instruction).op(Instruction::XOR);
     };
+    return benchmark;
+}
+
+static Benchmark make_benchmark(const std::string& name, const std::string& tier,
+        std::function<void(Code&)> setup, std::function<void(Code&)> unit) {
+    Benchmark benchmark;
+    benchmark.name = name;
+    benchmark.tier = tier;
+    benchmark.setup = setup;
+    benchmark.unit = unit;
+    return benchmark;
+}
+
+static std::vector<Benchmark> all_benchmarks() {
+    std::vector<Benchmark> benchmarks;
 
-    // compile once
-    struct evm_result result = instance->execute(instance, &ctx, EVM_AION, &msg, code, code_size);
-    printf("Energy used: %" PRId64 "\n", gas - result.gas_left);
-    printf("Energy left: %" PRId64 "\n", result.gas_left);
-    printf("Output size: %zd\n", result.output_size);
-    printf("Output: ");
-    size_t i = 0;
-    for (i = 0; i < result.output_size; i++) {
-        printf("%02x ", result.output_data[i]);
+    // arithmetic, including the 128-bit division, modulo and exponentiation of Arith128
+    benchmarks.push_back(operator_benchmark("ADD", Instruction::ADD, {W_B128}));
+    benchmarks.push_back(operator_benchmark("SUB", Instruction::SUB, {W_B128}));
+    benchmarks.push_back(operator_benchmark("MUL", Instruction::MUL, {W_B128}));
+    benchmarks.push_back(operator_benchmark("DIV/128by64", Instruction::DIV, {W_B64}));
+    benchmarks.push_back(operator_benchmark("DIV/128by128", Instruction::DIV, {W_B128}));
+    benchmarks.push_back(operator_benchmark("SDIV/128by64", Instruction::SDIV, {W_B64}));
+    benchmarks.push_back(operator_benchmark("MOD/128by64", Instruction::MOD, {W_B64}));
+    benchmarks.push_back(operator_benchmark("MOD/128by128", Instruction::MOD, {W_B128}));
+    benchmarks.push_back(operator_benchmark("SMOD/128by64", Instruction::SMOD, {W_B64}));
+    benchmarks.push_back(operator_benchmark("ADDMOD", Instruction::ADDMOD, {W_MODULUS, W_B128}));
+    benchmarks.push_back(operator_benchmark("MULMOD", Instruction::MULMOD, {W_MODULUS, W_B128}));
+    benchmarks.push_back(operator_benchmark("EXP/1byte", Instruction::EXP, {W_EXP1}));
+    benchmarks.push_back(operator_benchmark("EXP/16bytes", Instruction::EXP, {W_EXP16}));
+    benchmarks.push_back(indexed_benchmark("SIGNEXTEND", Instruction::SIGNEXTEND, 7));
+    benchmarks.push_back(operator_benchmark("LT", Instruction::LT, {W_B128}));
+    benchmarks.push_back(operator_benchmark("SLT", Instruction::SLT, {W_B128}));
+    benchmarks.push_back(operator_benchmark("EQ", Instruction::EQ, {W_B128}));
+    benchmarks.push_back(operator_benchmark("ISZERO", Instruction::ISZERO, {}));
+    benchmarks.push_back(operator_benchmark("AND", Instruction::AND, {W_B128}));
+    benchmarks.push_back(operator_benchmark("XOR", Instruction::XOR, {W_B128}, Instruction::ADD));
+    benchmarks.push_back(indexed_benchmark("BYTE", Instruction::BYTE, 5));
+
+    // memory
+    benchmarks.push_back(make_benchmark("MLOAD", "memory",
+            [](Code& code) {
+                // a word that holds its own offset, so that each load feeds the next one
+                code.push(32).op(Instruction::DUP1).op(Instruction::MSTORE).push(32);
+            },
+            [](Code& code) {
+                code.op(Instruction::MLOAD);
+            }));
+    benchmarks.push_back(make_benchmark("MSTORE", "memory",
+            [](Code& code) {
+                prepare_memory(code, 128);
+                code.load(W_ACC).push(64);
+            },
+            [](Code& code) {
+                code.op(Instruction::DUP2).op(Instruction::DUP2).op(Instruction::MSTORE);
+            }));
+    benchmarks.push_back(make_benchmark("MSTORE8", "memory",
+            [](Code& code) {
+                prepare_memory(code, 128);
+                code.load(W_ACC).push(64);
+            },
+            [](Code& code) {
+                code.op(Instruction::DUP2).op(Instruction::DUP2).op(Instruction::MSTORE8);
+            }));
+    benchmarks.push_back(make_benchmark("CALLDATACOPY/64bytes", "memory",
+            [](Code& code) {
+                prepare_memory(code, 128);
+            },
+            [](Code& code) {
+                code.push(64).push(0).push(64).op(Instruction::CALLDATACOPY);
+            }));
+
+    // SHA3, which pushes the two words of the hash
+    for (uint16_t size : {32, 256}) {
+        benchmarks.push_back(make_benchmark("SHA3/" + std::to_string(size) + "bytes", "sha3",
+                [size](Code& code) {
+                    prepare_memory(code, 32 + size);
+                },
+                [size](Code& code) {
+                    code.push(size, 2).push(32).op(Instruction::SHA3).op(Instruction::POP).op(Instruction::POP);
+                }));
     }
-    printf("\n");
-    if (result.release) {
-        result.release(&result);
+
+    // jumps; every unit is a basic block of its own
+    benchmarks.push_back(make_benchmark("JUMPDEST", "jumps",
+            [](Code&) {},
+            [](Code& code) {
+                code.op(Instruction::JUMPDEST);
+            }));
+    benchmarks.push_back(make_benchmark("JUMP/static", "jumps",
+            [](Code&) {},
+            [](Code& code) {
+                auto dest = code.size() + 4;
+                code.push(dest, 2).op(Instruction::JUMP).op(Instruction::JUMPDEST);
+            }));
+    benchmarks.push_back(make_benchmark("JUMPI/static", "jumps",
+            [](Code& code) {
+                code.load(W_ONE);
+            },
+            [](Code& code) {
+                auto dest = code.size() + 5;
+                code.op(Instruction::DUP1).push(dest, 2).op(Instruction::JUMPI).op(Instruction::JUMPDEST);
+            }));
+    benchmarks.push_back(make_benchmark("JUMP/dynamic", "jumps",
+            [](Code& code) {
+                // a zero the JIT cannot see, so that the destination is only known at runtime
+                code.load(W_ZERO);
+            },
+            [](Code& code) {
+                auto dest = code.size() + 6;
+                code.op(Instruction::DUP1).push(dest, 2).op(Instruction::XOR).op(Instruction::JUMP).op(Instruction::JUMPDEST);
+            }));
+
+    // stack; within a basic block these are resolved while compiling, so they show what the
+    // energy they are charged buys
+    for (uint8_t width : {1, 16}) {
+        benchmarks.push_back(make_benchmark("PUSH" + std::to_string(width), "stack",
+                [](Code&) {},
+                [width](Code& code) {
+                    code.push(0x5a, width).op(Instruction::POP);
+                }));
+    }
+    for (uint8_t depth : {1, 16, 32}) {
+        auto dup = static_cast<Instruction>((depth <= 16)
+                ? static_cast<uint8_t>(Instruction::DUP1) + depth - 1
+                : static_cast<uint8_t>(Instruction::DUP17) + depth - 17);
+        auto swap = static_cast<Instruction>((depth <= 16)
+                ? static_cast<uint8_t>(Instruction::SWAP1) + depth - 1
+                : static_cast<uint8_t>(Instruction::SWAP17) + depth - 17);
+        auto fill = [depth](Code& code) {
+            for (uint8_t i = 0; i <= depth; i++) {
+                code.load(W_ACC);
+            }
+        };
+        benchmarks.push_back(make_benchmark("DUP" + std::to_string(depth), "stack", fill,
+                [dup](Code& code) {
+                    code.op(dup).op(Instruction::POP);
+                }));
+        benchmarks.push_back(make_benchmark("SWAP" + std::to_string(depth), "stack", fill,
+                [swap](Code& code) {
+                    code.op(swap);
+                }));
     }
 
-    // benchmark
-    int repeat = 1000;
-    clock_t begin = clock();
-    for (int i = 0; i < repeat; i++) {
-        // run the vm
-        result = instance->execute(
-                instance,
-                &ctx,
-                EVM_AION,
-                &msg,
-                code,
-                code_size
-        );
-
-        // release resources
+    return benchmarks;
+}
+
+/// Returns the bytecode of the benchmark loop, with the given number of units in its body.
+static std::vector<uint8_t> loop_code(const Benchmark& benchmark, uint32_t iterations, uint32_t units) {
+    Code code;
+    benchmark.setup(code);
+    code.push(iterations, 4).push(COUNTER).op(Instruction::MSTORE);
+
+    auto loop = code.size();
+    code.op(Instruction::JUMPDEST);
+    for (uint32_t i = 0; i < units; i++) {
+        benchmark.unit(code);
+    }
+
+    // counter = counter - 1; if (counter != 0) goto loop
+    code.push(1).push(COUNTER).op(Instruction::MLOAD).op(Instruction::SUB);
+    code.op(Instruction::DUP1).push(COUNTER).op(Instruction::MSTORE);
+    code.push(loop, 2).op(Instruction::JUMPI);
+    code.op(Instruction::STOP);
+    return code.bytes;
+}
+
+/// A compiled program, with its message.
+class Program {
+public:
+    Program(struct evm_instance* instance, std::vector<uint8_t> code)
+            : instance(instance), code(std::move(code)), context{&ctx_fn_table} {
+        memset(&msg, 0, sizeof(msg));
+        memset(msg.address.bytes, 0x11, sizeof(msg.address.bytes));
+        memset(msg.caller.bytes, 0x22, sizeof(msg.caller.bytes));
+        msg.input = input;
+        msg.input_size = sizeof(input);
+        msg.gas = ENERGY;
+        msg.kind = EVM_CALL;
+
+        // the JIT caches the compiled code by its hash
+        dev::evmjit::keccak(this->code.data(), this->code.size(), msg.code_hash.bytes);
+    }
+
+    /// Runs the program and returns its duration in nanoseconds, or a negative value on failure.
+    double run(int64_t& energyUsed) {
+        auto begin = std::chrono::steady_clock::now();
+        struct evm_result result = instance->execute(instance, &context, EVM_AION_V1, &msg, code.data(), code.size());
+        auto end = std::chrono::steady_clock::now();
+
+        bool success = (result.status_code == EVM_SUCCESS);
+        energyUsed = ENERGY - result.gas_left;
         if (result.release) {
             result.release(&result);
         }
+        return success ? std::chrono::duration<double, std::nano>(end - begin).count() : -1;
+    }
+
+private:
+    struct evm_instance* instance;
+    std::vector<uint8_t> code;
+    struct evm_context context;
+    struct evm_message msg;
+};
+
+static double median(std::vector<double> values) {
+    std::sort(values.begin(), values.end());
+    auto n = values.size();
+    return (n % 2 == 1) ? values[n / 2] : (values[n / 2 - 1] + values[n / 2]) / 2;
+}
+
+/// Runs one benchmark, and returns false if any of its executions failed.
+static bool run_benchmark(struct evm_instance* instance, const Benchmark& benchmark,
+        uint32_t iterations, uint32_t unroll, int repeat, Result& result) {
+    Program full(instance, loop_code(benchmark, iterations, unroll));
+    Program empty(instance, loop_code(benchmark, iterations, 0));
+
+    // the first runs compile the code
+    int64_t fullEnergy, emptyEnergy;
+    if (full.run(fullEnergy) < 0 || empty.run(emptyEnergy) < 0) {
+        return false;
+    }
+
+    std::vector<double> fullTimes, emptyTimes;
+    for (int i = 0; i < repeat; i++) {
+        double fullTime = full.run(fullEnergy);
+        double emptyTime = empty.run(emptyEnergy);
+        if (fullTime < 0 || emptyTime < 0) {
+            return false;
+        }
+        fullTimes.push_back(fullTime);
+        emptyTimes.push_back(emptyTime);
+    }
+
+    result.name = benchmark.name;
+    result.tier = benchmark.tier;
+    result.ops = static_cast<uint64_t>(iterations) * unroll;
+
+    // noise may make the cheapest instructions look free, but never faster than free
+    double ns = std::max(0.0, median(fullTimes) - median(emptyTimes));
+    double gas = static_cast<double>(fullEnergy - emptyEnergy);
+    result.nsPerOp = ns / result.ops;
+    result.gasPerOp = gas / result.ops;
+    result.gasPerSecond = (ns > 0) ? gas * 1e9 / ns : 0;
+    return true;
+}
+
+static void write_json(const char* path, const std::vector<Result>& results, uint32_t iterations, uint32_t unroll) {
+    FILE* file = fopen(path, "w");
+    if (file == nullptr) {
+        fprintf(stderr, "Cannot write %s\n", path);
+        exit(2);
+    }
+
+    // one benchmark per line, which is what compare mode reads
+    fprintf(file, "{\n  \"iterations\": %u,\n  \"unroll\": %u,\n  \"benchmarks\": [\n", iterations, unroll);
+    for (size_t i = 0; i < results.size(); i++) {
+        auto& r = results[i];
+        fprintf(file, "    {\"name\": \"%s\", \"tier\": \"%s\", \"ops\": %" PRIu64 ", \"ns_per_op\": %.4f, "
+                "\"gas_per_op\": %.4f, \"gas_per_second\": %.0f}%s\n",
+                r.name.c_str(), r.tier.c_str(), r.ops, r.nsPerOp, r.gasPerOp, r.gasPerSecond,
+                (i + 1 < results.size()) ? "," : "");
+    }
+    fprintf(file, "  ]\n}\n");
+    fclose(file);
+}
+
+static bool read_field(const std::string& line, const std::string& field, std::string& value) {
+    auto key = "\"" + field + "\": ";
+    auto begin = line.find(key);
+    if (begin == std::string::npos) {
+        return false;
+    }
+    begin += key.size();
+    if (line[begin] == '"') {
+        auto end = line.find('"', begin + 1);
+        value = line.substr(begin + 1, end - begin - 1);
+    } else {
+        auto end = line.find_first_of(",}", begin);
+        value = line.substr(begin, end - begin);
+    }
+    return true;
+}
+
+/// Reads the results in a file written by write_json().
+static std::map<std::string, Result> read_json(const char* path) {
+    std::ifstream file(path);
+    if (!file) {
+        fprintf(stderr, "Cannot read %s\n", path);
+        exit(2);
+    }
+
+    std::map<std::string, Result> results;
+    std::string line, name, ns, gas;
+    while (std::getline(file, line)) {
+        if (read_field(line, "name", name) && read_field(line, "ns_per_op", ns) && read_field(line, "gas_per_op", gas)) {
+            Result result = {};
+            result.name = name;
+            result.nsPerOp = strtod(ns.c_str(), nullptr);
+            result.gasPerOp = strtod(gas.c_str(), nullptr);
+            results[name] = result;
+        }
+    }
+    return results;
+}
+
+/// Compares the results against a baseline and returns the number of regressions.
+static int compare(const std::vector<Result>& results, const char* baselinePath, double threshold) {
+    // differences below this are timer noise, however large they are relative to a tiny time
+    const double minDeltaNs = 0.1;
+
+    auto baseline = read_json(baselinePath);
+    int regressions = 0;
+    printf("\n%-24s %12s %12s %9s\n", "benchmark", "base ns/op", "ns/op", "change");
+    for (auto& r : results) {
+        auto it = baseline.find(r.name);
+        if (it == baseline.end()) {
+            printf("%-24s %12s %12.3f %9s\n", r.name.c_str(), "-", r.nsPerOp, "new");
+            continue;
+        }
+
+        auto& base = it->second;
+        double change = (base.nsPerOp > 0) ? (r.nsPerOp - base.nsPerOp) * 100 / base.nsPerOp : 0;
+        bool regressed = change > threshold && r.nsPerOp - base.nsPerOp > minDeltaNs;
+        regressions += regressed ? 1 : 0;
+        printf("%-24s %12.3f %12.3f %+8.1f%%%s", r.name.c_str(), base.nsPerOp, r.nsPerOp, change,
+                regressed ? "  REGRESSED" : "");
+        if (std::fabs(r.gasPerOp - base.gasPerOp) > 0.01) {
+            printf("  (energy %.2f -> %.2f)", base.gasPerOp, r.gasPerOp);
+        }
+        printf("\n");
+    }
+    printf("%d benchmark(s) regressed by more than %.1f%%.\n", regressions, threshold);
+    return regressions;
+}
+
+static void usage(const char* program) {
+    fprintf(stderr, "Usage: %s [--iterations N] [--unroll K] [--repeat R] [--filter TEXT]\n"
+            "          [--json FILE] [--compare BASELINE] [--threshold PERCENT]\n", program);
+    exit(2);
+}
+
+int main(int argc, char **argv) {
+    uint32_t iterations = 10000;
+    uint32_t unroll = 64;
+    int repeat = 20;
+    double threshold = 10;
+    const char* filter = nullptr;
+    const char* jsonPath = nullptr;
+    const char* baselinePath = nullptr;
+
+    for (int i = 1; i < argc; i++) {
+        std::string arg = argv[i];
+        if (i + 1 >= argc) {
+            usage(argv[0]);
+        } else if (arg == "--iterations") {
+            iterations = static_cast<uint32_t>(strtoul(argv[++i], nullptr, 10));
+        } else if (arg == "--unroll") {
+            unroll = static_cast<uint32_t>(strtoul(argv[++i], nullptr, 10));
+        } else if (arg == "--repeat") {
+            repeat = atoi(argv[++i]);
+        } else if (arg == "--filter") {
+            filter = argv[++i];
+        } else if (arg == "--json") {
+            jsonPath = argv[++i];
+        } else if (arg == "--compare") {
+            baselinePath = argv[++i];
+        } else if (arg == "--threshold") {
+            threshold = strtod(argv[++i], nullptr);
+        } else {
+            usage(argv[0]);
+        }
+    }
+    if (iterations == 0 || unroll == 0 || repeat <= 0) {
+        usage(argv[0]);
+    }
+
+    // create a vm instance
+    struct evm_instance* instance = evmjit_create();
+
+    std::vector<Result> results;
+    int failures = 0;
+    printf("%-24s %-10s %12s %10s %14s\n", "benchmark", "tier", "ns/op", "energy/op", "Menergy/s");
+    for (auto& benchmark : all_benchmarks()) {
+        if (filter != nullptr && benchmark.name.find(filter) == std::string::npos && benchmark.tier != filter) {
+            continue;
+        }
+
+        Result result;
+        if (!run_benchmark(instance, benchmark, iterations, unroll, repeat, result)) {
+            printf("%-24s %-10s %12s\n", benchmark.name.c_str(), benchmark.tier.c_str(), "FAILED");
+            failures++;
+            continue;
+        }
+        printf("%-24s %-10s %12.3f %10.2f %14.1f\n", result.name.c_str(), result.tier.c_str(),
+                result.nsPerOp, result.gasPerOp, result.gasPerSecond / 1e6);
+        results.push_back(result);
     }
-    clock_t end = clock();
-    printf("Time elapsed: %zd μs per execution\n", 1000000 * (end - begin) / repeat / CLOCKS_PER_SEC);
 
     // destroy the vm
     instance->destroy(instance);
 
-    return 0;
+    if (jsonPath != nullptr) {
+        write_json(jsonPath, results, iterations, unroll);
+    }
+    int regressions = (baselinePath != nullptr) ? compare(results, baselinePath, threshold) : 0;
+    return (failures == 0 && regressions == 0) ? 0 : 1;
 }
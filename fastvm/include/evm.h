@@ -67,7 +67,8 @@ enum evm_call_kind {
 
 /// The flags for ::evm_message.
 enum evm_flags {
-    EVM_STATIC = 1        ///< Static call mode.
+    EVM_STATIC = 1,       ///< Static call mode.
+    EVM_DEADLINE = 2      ///< The execution may be cancelled, see evmjit_set_cancel_flag().
 };
 
 /// The message describing an EVM call,
@@ -155,6 +156,9 @@ enum evm_status_code {
     /// Tried to execute an operation which is restricted in static mode.
     EVM_STATIC_MODE_ERROR = 8,
 
+    /// The execution was cancelled, because it ran past its deadline.
+    EVM_DEADLINE_EXCEEDED = 12,
+
     /// The EVM rejected the execution of the given code or message.
     ///
     /// This error SHOULD be used to signal that the EVM is not able to or
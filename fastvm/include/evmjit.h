@@ -22,6 +22,92 @@ extern "C" {
 /// @return  The EVMJIT instance.
 EXPORT struct evm_instance* evmjit_create(void);
 
+/// Set the cancellation flag of the executions on the calling thread.
+///
+/// Code executed with the ::EVM_DEADLINE flag checks this flag before every block of
+/// instructions and aborts with ::EVM_DEADLINE_EXCEEDED once it is non-zero. The flag may be
+/// set from any thread.
+///
+/// @param flag  The flag, or NULL to remove it.
+EXPORT void evmjit_set_cancel_flag(uint8_t const volatile* flag);
+
+/// The number of compile records kept per thread, see evmjit_drain_compile_records().
+#define EVMJIT_COMPILE_RECORDS 64
+
+/// How an execution on the calling thread obtained its compiled code.
+struct evmjit_compile_record
+{
+    struct evm_hash code_hash;  ///< The hash of the code.
+    int32_t depth;              ///< The call depth of the execution.
+    int32_t cache_hit;          ///< Whether the code was already compiled.
+    int64_t compile_nanos;      ///< The time spent compiling, 0 on a cache hit.
+    uint64_t code_size;         ///< The size of the code in bytes.
+};
+
+/// Move the compile records of the calling thread into the given buffer, oldest first.
+///
+/// Every execution leaves a record. Only the most recent ::EVMJIT_COMPILE_RECORDS records are
+/// kept, so a caller that wants all of them polls after every execution.
+///
+/// @param records  The buffer.
+/// @param max      The size of the buffer.
+/// @return         The number of records moved. The remaining records are discarded.
+EXPORT size_t evmjit_drain_compile_records(struct evmjit_compile_record* records, size_t max);
+
+/// Statistics of the JIT engine, see evmjit_get_stats().
+struct evmjit_stats
+{
+    uint64_t compiled_modules;    ///< The modules compiled since the library was loaded.
+    uint64_t live_modules;        ///< The compiled modules held by the current engine.
+    uint64_t code_map_hits;       ///< The executions that found their code compiled.
+    uint64_t code_map_misses;     ///< The executions that did not.
+    uint64_t memory_size;         ///< The memory allocated by the current engine in bytes.
+    uint64_t cache_load_nanos;    ///< The time spent loading modules from the object cache.
+    uint64_t compilation_nanos;   ///< The time spent translating EVM code to LLVM IR.
+    uint64_t optimization_nanos;  ///< The time spent optimizing and lowering the IR.
+    uint64_t codegen_nanos;       ///< The time spent generating machine code.
+    uint64_t resets;              ///< The times the engine was reset.
+    uint64_t evicted_modules;     ///< The compiled modules dropped by those resets.
+};
+
+/// Get the statistics of the JIT engine. All the counts and times are cumulative since the
+/// library was loaded, except for live_modules and memory_size.
+///
+/// @param stats  The statistics to fill in.
+EXPORT void evmjit_get_stats(struct evmjit_stats* stats);
+
+/// Enable or disable basic block profiling of the executions on all threads.
+///
+/// While enabled, code is compiled into a separate profiling variant, which counts how many
+/// times each of its basic blocks is entered and how much gas each consumes. A block that runs
+/// out of gas is counted, but not its gas. The variants without profiling are left as they are
+/// and run again once profiling is disabled. The counts are kept per code hash until
+/// evmjit_reset_block_profiles() is called.
+///
+/// @param enabled  Non-zero to enable profiling.
+EXPORT void evmjit_set_profiling(int enabled);
+
+/// A visitor of the profile of one code, see evmjit_visit_block_profiles().
+///
+/// @param context     The context given to evmjit_visit_block_profiles().
+/// @param code_hash   The hash of the code.
+/// @param code        The code.
+/// @param code_size   The size of the code.
+/// @param blocks      The number of basic blocks of the code.
+/// @param offsets     The offset of the first instruction of every block.
+/// @param counts      The number of times every block was entered.
+/// @param gas         The gas consumed by every block.
+typedef void (*evmjit_block_profile_visitor)(void* context, struct evm_hash const* code_hash,
+    uint8_t const* code, size_t code_size, size_t blocks, uint32_t const* offsets,
+    int64_t const* counts, int64_t const* gas);
+
+/// Call the visitor with the profile of every code that was run with profiling since the last
+/// reset. The arrays are only valid during the call.
+EXPORT void evmjit_visit_block_profiles(evmjit_block_profile_visitor visitor, void* context);
+
+/// Reset the counts of all the profiles.
+EXPORT void evmjit_reset_block_profiles(void);
+
 #if __cplusplus
 }
 #endif
@@ -1,6 +1,7 @@
 #include <cstdlib>
 #include <cstring>
 #include <algorithm>
+#include <vector>
 
 #include "org_aion_fastvm_FastVM.h"
 #include "evmjit.h"
@@ -13,8 +14,9 @@ void keccak(uint8_t const *_data, uint64_t _size, uint8_t *o_hash);
 }
 }
 
-// cb_env is updated every JNI call, as it's thread-specific
-JNIEnv *cb_env;
+// cb_env is updated every JNI call, as it's thread-specific. Like all the other per-execution
+// state below, it is thread-local so that transactions may run on several threads at once.
+thread_local JNIEnv *cb_env;
 
 // global references
 jclass cb_cls;
@@ -29,7 +31,39 @@ jmethodID cb_log;
 jmethodID cb_call;
 
 // do you need a stack for recursive call?
-struct evm_tx_context ctx;
+thread_local struct evm_tx_context ctx;
+
+/**
+ * Ring buffer of the 256 most recent block hashes, so that BLOCKHASH does not need a JNI upcall
+ * once a hash has been fetched.
+ *
+ * Entries are filled lazily and tagged with their block number. All the ancestors of a block are
+ * determined by its parent, so the cache is validated against the parent hash of the current
+ * block, and dropped if the parent differs (a new chain or a reorg). The validation is done once
+ * per top-level execution, the first time it uses BLOCKHASH, so that no reorg can go unnoticed
+ * whatever the block context. Only hashes of the 256 blocks before the current one are cached,
+ * and a hash the world state does not know (null or all zeros) is never cached nor used to
+ * validate the cache.
+ *
+ * The cache of a new thread starts zeroed, with a zero parent hash that no validation accepts, so
+ * it is cleared before its first use.
+ */
+#define BLOCK_HASH_CACHE_SIZE 256
+
+struct block_hash_entry {
+    int64_t number;
+    struct evm_hash hash;
+};
+
+struct block_hash_cache {
+    struct block_hash_entry entries[BLOCK_HASH_CACHE_SIZE];
+    int64_t parent_number;      // the parent of the block the cache was validated for, or -1
+    struct evm_hash parent_hash;
+    bool verified;              // whether the cache was validated for the current top-level execution
+    bool bypassed;              // whether every BLOCKHASH of the current transaction calls into Java
+};
+
+thread_local struct block_hash_cache block_hashes;
 
 /* forward declaration */
 jbyteArray encode_message(JNIEnv *env, const struct evm_message *msg);
@@ -37,6 +71,16 @@ jbyteArray encode_message(JNIEnv *env, const struct evm_message *msg);
 jbyteArray encode_result(JNIEnv *env, const struct evm_result *result);
 void parse_result(struct evm_result *result, jbyte *p);
 
+/**
+ * Whether an upcall threw. The exception is left pending, and FastVM.run throws it once the jit
+ * has unwound. Until then no further upcall calls into Java, as JNI forbids it, and each one
+ * answers with zeros, so that the jit finishes the frame without reading uninitialized data.
+ */
+bool upcall_failed()
+{
+    return cb_env->ExceptionCheck() == JNI_TRUE;
+}
+
 /**
  * allocate and copy memory of the given length
  */
@@ -61,13 +105,17 @@ void release_result(const struct evm_result *result)
 int account_exists(struct evm_context* context,
                    const struct evm_address* address)
 {
+    if (upcall_failed()) {
+        return 0;
+    }
+
     jbyteArray addr = cb_env->NewByteArray(sizeof(evm_address));
     cb_env->SetByteArrayRegion(addr, 0, sizeof(evm_address), (const jbyte *)address->bytes);
 
     jboolean exists = cb_env->CallStaticBooleanMethod(cb_cls, cb_exists, addr);
 
     cb_env->DeleteLocalRef(addr);
-    return exists;
+    return upcall_failed() ? 0 : exists;
 }
 
 /**
@@ -77,10 +125,19 @@ void get_balance(struct evm_word* result,
                  struct evm_context* context,
                  const struct evm_address* address)
 {
+    memset(result->bytes, 0, sizeof(evm_word));
+    if (upcall_failed()) {
+        return;
+    }
+
     jbyteArray addr = cb_env->NewByteArray(sizeof(evm_address));
     cb_env->SetByteArrayRegion(addr, 0, sizeof(evm_address), (const jbyte *)address->bytes);
 
     jbyteArray balance = (jbyteArray)cb_env->CallStaticObjectMethod(cb_cls, cb_get_balance, addr);
+    if (upcall_failed() || balance == NULL) {
+        cb_env->DeleteLocalRef(addr);
+        return;
+    }
 
     jbyte *balance_ptr = cb_env->GetByteArrayElements(balance, NULL);
     memcpy(result->bytes, balance_ptr, sizeof(evm_word));
@@ -98,17 +155,28 @@ size_t get_code(const uint8_t** result_code,
                 struct evm_context* context,
                 const struct evm_address* address)
 {
+    if (result_code) {
+        *result_code = nullptr;
+    }
+    if (upcall_failed()) {
+        return 0;
+    }
+
     jbyteArray addr = cb_env->NewByteArray(sizeof(evm_address));
     cb_env->SetByteArrayRegion(addr, 0, sizeof(evm_address), (const jbyte *)address->bytes);
 
     // code_buf are consumed immediately and only used for once.
-    static uint8_t *code_buf = nullptr;
+    static thread_local uint8_t *code_buf = nullptr;
     if (code_buf) {
         free(code_buf);
         code_buf = nullptr;
     }
 
     jbyteArray code = (jbyteArray)cb_env->CallStaticObjectMethod(cb_cls, cb_get_code, addr);
+    if (upcall_failed() || code == NULL) {
+        cb_env->DeleteLocalRef(addr);
+        return 0;
+    }
     jsize code_size = cb_env->GetArrayLength(code);
 
     if (result_code) {
@@ -132,11 +200,21 @@ void get_storage(struct evm_word* result,
                  const struct evm_address* address,
                  const struct evm_word* key)
 {
+    memset(result->bytes, 0, sizeof(evm_word));
+    if (upcall_failed()) {
+        return;
+    }
+
     jbyteArray addr = cb_env->NewByteArray(sizeof(evm_address));
     cb_env->SetByteArrayRegion(addr, 0, sizeof(evm_address), (const jbyte *)address->bytes);
     jbyteArray k = cb_env->NewByteArray(sizeof(evm_word));
     cb_env->SetByteArrayRegion(k, 0, sizeof(evm_word), (const jbyte *)key->bytes);
     jbyteArray v = (jbyteArray)cb_env->CallStaticObjectMethod(cb_cls, cb_get_storage, addr, k);
+    if (upcall_failed() || v == NULL) {
+        cb_env->DeleteLocalRef(addr);
+        cb_env->DeleteLocalRef(k);
+        return;
+    }
 
     jbyte *v_ptr = cb_env->GetByteArrayElements(v, NULL);
     memcpy(result->bytes, v_ptr, sizeof(evm_word));
@@ -155,6 +233,10 @@ void set_storage(struct evm_context* context,
                  const struct evm_word* key,
                  const struct evm_word* value)
 {
+    if (upcall_failed()) {
+        return;
+    }
+
     jbyteArray addr = cb_env->NewByteArray(sizeof(evm_address));
     cb_env->SetByteArrayRegion(addr, 0, sizeof(evm_address), (const jbyte *)address->bytes);
     jbyteArray k = cb_env->NewByteArray(sizeof(evm_word));
@@ -178,6 +260,70 @@ void get_tx_context(struct evm_tx_context* result,
     memcpy(result, &ctx, sizeof(evm_tx_context));
 }
 
+/**
+ * Clears every cached block hash
+ */
+void clear_block_hashes()
+{
+    for (int i = 0; i < BLOCK_HASH_CACHE_SIZE; i++) {
+        block_hashes.entries[i].number = -1;
+    }
+    block_hashes.parent_number = -1;
+    block_hashes.verified = false;
+}
+
+/**
+ * Fetches a block hash via the callback, and returns whether the world state knew it, that is
+ * answered with a hash that is not all zeros
+ */
+bool fetch_block_hash(struct evm_hash* result, int64_t number)
+{
+    memset(result->bytes, 0, sizeof(evm_hash));
+    if (upcall_failed()) {
+        return false;
+    }
+
+    jbyteArray block_hash = (jbyteArray)cb_env->CallStaticObjectMethod(cb_cls, cb_get_block_hash, number);
+    if (upcall_failed() || block_hash == NULL) {
+        return false;
+    }
+
+    // a world state may answer with a hash of another length
+    jsize size = std::min((jsize) sizeof(evm_hash), cb_env->GetArrayLength(block_hash));
+    cb_env->GetByteArrayRegion(block_hash, 0, size, (jbyte *)result->bytes);
+
+    cb_env->DeleteLocalRef(block_hash);
+
+    static const struct evm_hash zero_hash = {};
+    return memcmp(result->bytes, zero_hash.bytes, sizeof(evm_hash)) != 0;
+}
+
+/**
+ * Makes sure the cached block hashes belong to the chain of the current block
+ */
+void verify_block_hashes()
+{
+    int64_t parent_number = ctx.block_number - 1;
+    struct evm_hash parent_hash;
+    if (!fetch_block_hash(&parent_hash, parent_number)) {
+        return;
+    }
+
+    if (block_hashes.parent_number != parent_number
+            || memcmp(block_hashes.parent_hash.bytes, parent_hash.bytes, sizeof(evm_hash)) != 0) {
+        clear_block_hashes();
+        block_hashes.parent_number = parent_number;
+        memcpy(&block_hashes.parent_hash, &parent_hash, sizeof(evm_hash));
+
+        if (parent_number >= 0) {
+            struct block_hash_entry *entry = &block_hashes.entries[parent_number % BLOCK_HASH_CACHE_SIZE];
+            entry->number = parent_number;
+            memcpy(&entry->hash, &parent_hash, sizeof(evm_hash));
+        }
+    }
+    block_hashes.verified = true;
+}
+
 /**
  * evm_get_block_hash_fn
  */
@@ -185,13 +331,31 @@ void get_block_hash(struct evm_hash* result,
                     struct evm_context* context,
                     int64_t number)
 {
-    jbyteArray block_hash = (jbyteArray)cb_env->CallStaticObjectMethod(cb_cls, cb_get_block_hash, number);
+    // only the 256 ancestors of the current block can be cached
+    if (block_hashes.bypassed || number < 0 || number >= ctx.block_number || number < ctx.block_number - BLOCK_HASH_CACHE_SIZE) {
+        fetch_block_hash(result, number);
+        return;
+    }
 
-    jbyte *block_hash_ptr = cb_env->GetByteArrayElements(block_hash, NULL);
-    memcpy(result->bytes, block_hash_ptr, sizeof(evm_hash));
-    cb_env->ReleaseByteArrayElements(block_hash, block_hash_ptr, JNI_ABORT);
+    if (!block_hashes.verified) {
+        verify_block_hashes();
 
-    cb_env->DeleteLocalRef(block_hash);
+        // without a known parent, the cache cannot be trusted for this execution
+        if (!block_hashes.verified) {
+            fetch_block_hash(result, number);
+            return;
+        }
+    }
+
+    struct block_hash_entry *entry = &block_hashes.entries[number % BLOCK_HASH_CACHE_SIZE];
+    if (entry->number != number) {
+        if (fetch_block_hash(result, number)) {
+            memcpy(&entry->hash, result, sizeof(evm_hash));
+            entry->number = number;
+        }
+        return;
+    }
+    memcpy(result, &entry->hash, sizeof(evm_hash));
 }
 
 /**
@@ -201,6 +365,10 @@ void selfdestruct(struct evm_context* context,
                   const struct evm_address* address,
                   const struct evm_address* beneficiary)
 {
+    if (upcall_failed()) {
+        return;
+    }
+
     jbyteArray addr = cb_env->NewByteArray(sizeof(evm_address));
     cb_env->SetByteArrayRegion(addr, 0, sizeof(evm_address), (const jbyte *)address->bytes);
     jbyteArray bene = cb_env->NewByteArray(sizeof(evm_address));
@@ -222,6 +390,10 @@ void log(struct evm_context* context,
          const struct evm_word topics[],
          size_t topics_count)
 {
+    if (upcall_failed()) {
+        return;
+    }
+
     jbyteArray addr = cb_env->NewByteArray(sizeof(evm_address));
     cb_env->SetByteArrayRegion(addr, 0, sizeof(evm_address), (const jbyte *)address->bytes);
     jbyteArray t = cb_env->NewByteArray(sizeof(evm_word) * topics_count);
@@ -243,9 +415,19 @@ void call(struct evm_result* result,
           struct evm_context* context,
           const struct evm_message* msg)
 {
+    memset(result, 0, sizeof(evm_result));
+    result->status_code = EVM_FAILURE;
+    if (upcall_failed()) {
+        return;
+    }
+
     jbyteArray m = encode_message(cb_env, msg);
 
     jbyteArray r = (jbyteArray)cb_env->CallStaticObjectMethod(cb_cls, cb_call, m);
+    if (upcall_failed() || r == NULL) {
+        cb_env->DeleteLocalRef(m);
+        return;
+    }
     jbyte *r_ptr = cb_env->GetByteArrayElements(r, NULL);
     parse_result(result, r_ptr);
     cb_env->ReleaseByteArrayElements(r, r_ptr, JNI_ABORT);
@@ -421,6 +603,8 @@ JNIEXPORT void JNICALL Java_org_aion_fastvm_FastVM_init
     cb_call = env->GetStaticMethodID(cb_cls, "call", "([B)[B");
 
     env->DeleteLocalRef(cb_cls_local);
+
+    clear_block_hashes();
 }
 
 JNIEXPORT jlong JNICALL Java_org_aion_fastvm_FastVM_create
@@ -447,12 +631,17 @@ JNIEXPORT jbyteArray JNICALL Java_org_aion_fastvm_FastVM_run
     parse_context(env, context_ptr, &msg, &ctx);
     dev::evmjit::keccak((const uint8_t*) code_ptr, code_size, msg.code_hash.bytes);
 
+    // every transaction may run on another chain, so the cache is validated again
+    if (msg.depth == 0) {
+        block_hashes.verified = false;
+    }
+
     // execute
     struct evm_result result = inst->execute(inst, &vm_context, static_cast<evm_revision>(revision), &msg,
             (uint8_t *)code_ptr, code_size);
 
-    // encode execution result
-    jbyteArray ret = encode_result(env, &result);
+    // encode execution result, unless an upcall threw, in which case FastVM.run throws that
+    jbyteArray ret = upcall_failed() ? NULL : encode_result(env, &result);
 
     // release
     if (result.release) {
@@ -472,3 +661,124 @@ JNIEXPORT void JNICALL Java_org_aion_fastvm_FastVM_destroy
     struct evm_instance *instance = (struct evm_instance *)handler;
     instance->destroy(instance);
 }
+
+JNIEXPORT void JNICALL Java_org_aion_fastvm_FastVM_setBlockHashCaching
+  (JNIEnv *env, jclass cls, jboolean enabled)
+{
+    block_hashes.bypassed = (enabled != JNI_TRUE);
+}
+
+JNIEXPORT void JNICALL Java_org_aion_fastvm_FastVM_setCancelFlag
+  (JNIEnv *env, jclass cls, jobject flag)
+{
+    // the buffer is kept alive by the Java caller until the flag is removed again
+    uint8_t *flag_ptr = flag ? (uint8_t *)env->GetDirectBufferAddress(flag) : NULL;
+    evmjit_set_cancel_flag(flag_ptr);
+}
+
+JNIEXPORT jbyteArray JNICALL Java_org_aion_fastvm_FastVM_drainCompileRecords
+  (JNIEnv *env, jclass cls)
+{
+    struct evmjit_compile_record records[EVMJIT_COMPILE_RECORDS];
+    size_t count = evmjit_drain_compile_records(records, EVMJIT_COMPILE_RECORDS);
+
+    // code hash, depth, cache hit, compile time, code size
+    const unsigned record_size = 32 + 4 + 4 + 8 + 8;
+    jbyteArray ret = env->NewByteArray(count * record_size);
+
+    jbyte buf[record_size];
+    for (size_t i = 0; i < count; i++) {
+        unsigned offset = 0;
+        memcpy(buf + offset, records[i].code_hash.bytes, 32); offset += 32;
+        write_int(buf + offset, records[i].depth); offset += 4;
+        write_int(buf + offset, records[i].cache_hit); offset += 4;
+        write_long(buf + offset, records[i].compile_nanos); offset += 8;
+        write_long(buf + offset, records[i].code_size); offset += 8;
+        env->SetByteArrayRegion(ret, i * record_size, record_size, buf);
+    }
+    return ret;
+}
+
+JNIEXPORT jlongArray JNICALL Java_org_aion_fastvm_FastVM_getStats
+  (JNIEnv *env, jclass cls)
+{
+    struct evmjit_stats stats;
+    evmjit_get_stats(&stats);
+
+    // in the order of the fields of FastVmStats
+    jlong values[] = {
+        (jlong) stats.compiled_modules,
+        (jlong) stats.live_modules,
+        (jlong) stats.code_map_hits,
+        (jlong) stats.code_map_misses,
+        (jlong) stats.memory_size,
+        (jlong) stats.cache_load_nanos,
+        (jlong) stats.compilation_nanos,
+        (jlong) stats.optimization_nanos,
+        (jlong) stats.codegen_nanos,
+        (jlong) stats.resets,
+        (jlong) stats.evicted_modules
+    };
+    jsize length = sizeof(values) / sizeof(values[0]);
+
+    jlongArray ret = env->NewLongArray(length);
+    env->SetLongArrayRegion(ret, 0, length, values);
+    return ret;
+}
+
+JNIEXPORT void JNICALL Java_org_aion_fastvm_FastVM_setProfiling
+  (JNIEnv *env, jclass cls, jboolean enabled)
+{
+    evmjit_set_profiling(enabled == JNI_TRUE);
+}
+
+JNIEXPORT void JNICALL Java_org_aion_fastvm_FastVM_resetBlockProfiles
+  (JNIEnv *env, jclass cls)
+{
+    evmjit_reset_block_profiles();
+}
+
+/**
+ * The block profiles encoded so far, see encode_block_profile().
+ */
+struct block_profiles {
+    std::vector<jbyte> buf;
+    uint32_t count;
+};
+
+/**
+ * Appends the profile of one code to the block profiles given as the context.
+ */
+void encode_block_profile(void *context, const struct evm_hash *code_hash, const uint8_t *code,
+                          size_t code_size, size_t blocks, const uint32_t *offsets,
+                          const int64_t *counts, const int64_t *gas)
+{
+    struct block_profiles *profiles = (struct block_profiles *)context;
+    size_t offset = profiles->buf.size();
+    profiles->buf.resize(offset + 32 + 4 + code_size + 4 + blocks * (4 + 8 + 8));
+    profiles->count++;
+
+    jbyte *p = profiles->buf.data();
+    memcpy(p + offset, code_hash->bytes, 32); offset += 32; // code hash
+    write_int(p + offset, code_size); offset += 4; // code size
+    memcpy(p + offset, code, code_size); offset += code_size; // code
+    write_int(p + offset, blocks); offset += 4; // number of blocks
+    for (size_t i = 0; i < blocks; i++) {
+        write_int(p + offset, offsets[i]); offset += 4; // offset of the block
+        write_long(p + offset, counts[i]); offset += 8; // execution count
+        write_long(p + offset, gas[i]); offset += 8; // gas consumed
+    }
+}
+
+JNIEXPORT jbyteArray JNICALL Java_org_aion_fastvm_FastVM_getBlockProfiles
+  (JNIEnv *env, jclass cls)
+{
+    // the number of profiles comes first, and is filled in once they are all encoded
+    struct block_profiles profiles = { std::vector<jbyte>(4), 0 };
+    evmjit_visit_block_profiles(encode_block_profile, &profiles);
+    write_int(profiles.buf.data(), profiles.count);
+
+    jbyteArray ret = env->NewByteArray(profiles.buf.size());
+    env->SetByteArrayRegion(ret, 0, profiles.buf.size(), profiles.buf.data());
+    return ret;
+}
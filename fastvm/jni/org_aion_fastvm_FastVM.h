@@ -39,6 +39,62 @@ JNIEXPORT jbyteArray JNICALL Java_org_aion_fastvm_FastVM_run
 JNIEXPORT void JNICALL Java_org_aion_fastvm_FastVM_destroy
   (JNIEnv *, jclass, jlong);
 
+/*
+ * Class:     org_aion_fastvm_FastVM
+ * Method:    setBlockHashCaching
+ * Signature: (Z)V
+ */
+JNIEXPORT void JNICALL Java_org_aion_fastvm_FastVM_setBlockHashCaching
+  (JNIEnv *, jclass, jboolean);
+
+/*
+ * Class:     org_aion_fastvm_FastVM
+ * Method:    setCancelFlag
+ * Signature: (Ljava/nio/ByteBuffer;)V
+ */
+JNIEXPORT void JNICALL Java_org_aion_fastvm_FastVM_setCancelFlag
+  (JNIEnv *, jclass, jobject);
+
+/*
+ * Class:     org_aion_fastvm_FastVM
+ * Method:    drainCompileRecords
+ * Signature: ()[B
+ */
+JNIEXPORT jbyteArray JNICALL Java_org_aion_fastvm_FastVM_drainCompileRecords
+  (JNIEnv *, jclass);
+
+/*
+ * Class:     org_aion_fastvm_FastVM
+ * Method:    getStats
+ * Signature: ()[J
+ */
+JNIEXPORT jlongArray JNICALL Java_org_aion_fastvm_FastVM_getStats
+  (JNIEnv *, jclass);
+
+/*
+ * Class:     org_aion_fastvm_FastVM
+ * Method:    setProfiling
+ * Signature: (Z)V
+ */
+JNIEXPORT void JNICALL Java_org_aion_fastvm_FastVM_setProfiling
+  (JNIEnv *, jclass, jboolean);
+
+/*
+ * Class:     org_aion_fastvm_FastVM
+ * Method:    resetBlockProfiles
+ * Signature: ()V
+ */
+JNIEXPORT void JNICALL Java_org_aion_fastvm_FastVM_resetBlockProfiles
+  (JNIEnv *, jclass);
+
+/*
+ * Class:     org_aion_fastvm_FastVM
+ * Method:    getBlockProfiles
+ * Signature: ()[B
+ */
+JNIEXPORT jbyteArray JNICALL Java_org_aion_fastvm_FastVM_getBlockProfiles
+  (JNIEnv *, jclass);
+
 #ifdef __cplusplus
 }
 #endif
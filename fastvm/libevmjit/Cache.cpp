@@ -25,7 +25,7 @@ namespace
 	/// The ABI version of jitted codes. It reflects how a generated code
 	/// communicates with outside world. When this communication changes old
 	/// cached code must be invalidated.
-	const auto c_internalABIVersion = 4;
+	const auto c_internalABIVersion = 5;
 
 	using Guard = std::lock_guard<std::mutex>;
 	std::mutex x_cacheMutex;
@@ -44,10 +44,13 @@ namespace jit
 
 static const auto c_destIdxLabel = "destIdx";
 
-Compiler::Compiler(Options const& _options, evm_revision _rev, bool _staticCall, llvm::LLVMContext& _llvmContext):
+Compiler::Compiler(Options const& _options, evm_revision _rev, bool _staticCall, llvm::LLVMContext& _llvmContext, bool _checkDeadline,
+	evm_hash const* _profileCodeHash):
 	m_options(_options),
 	m_rev(_rev),
 	m_staticCall(_staticCall),
+	m_checkDeadline(_checkDeadline),
+	m_profileCodeHash(_profileCodeHash),
 	m_builder(_llvmContext)
 {
 	Type::init(m_builder.getContext());
@@ -177,6 +180,14 @@ std::unique_ptr<llvm::Module> Compiler::compile(code_iterator _begin, code_itera
 
 	auto blocks = createBasicBlocks(_begin, _end);
 
+	if (m_profileCodeHash)
+	{
+		std::vector<uint32_t> offsets;
+		for (auto& block: blocks)
+			offsets.push_back(static_cast<uint32_t>(block.firstInstrIdx()));
+		m_profile = evmjit::getCodeProfile(*m_profileCodeHash, _begin, _end - _begin, offsets);
+	}
+
  	// Special "Stop" block. Guarantees that there exists a next block after the code blocks (also when there are no code blocks).
 	auto stopBB = llvm::BasicBlock::Create(m_mainFunc->getContext(), "Stop", m_mainFunc);
 	m_jumpTableBB = llvm::BasicBlock::Create(m_mainFunc->getContext(), "JumpTable", m_mainFunc);
@@ -191,11 +202,14 @@ std::unique_ptr<llvm::Module> Compiler::compile(code_iterator _begin, code_itera
 
 	// Init runtime structures.
 	RuntimeManager runtimeManager(m_builder, _begin, _end);
-	GasMeter gasMeter(m_builder, runtimeManager, m_rev);
+	GasMeter gasMeter(m_builder, runtimeManager, m_rev, m_checkDeadline);
 	Memory memory(runtimeManager, gasMeter, m_rev);
 	Ext ext(runtimeManager, memory);
 	Arith128 arith(m_builder);
 
+	if (m_profile)
+		m_profileEntryGas = m_builder.CreateAlloca(Type::Gas, nullptr, "profile.entryGas");
+
 	auto jmpBufWords = m_builder.CreateAlloca(Type::BytePtr, m_builder.getInt64(3), "jmpBuf.words");
 	auto frameaddress = llvm::Intrinsic::getDeclaration(module.get(), llvm::Intrinsic::frameaddress);
 	auto fp = m_builder.CreateCall(frameaddress, m_builder.getInt32(0), "fp");
@@ -211,8 +225,15 @@ std::unique_ptr<llvm::Module> Compiler::compile(code_iterator _begin, code_itera
 	runtimeManager.setJmpBuf(jmpBuf);
 	m_builder.CreateCondBr(normalFlow, entryBB->getNextNode(), abortBB, Type::expectTrue);
 
-	for (auto& block: blocks)
-		compileBasicBlock(block, runtimeManager, arith, memory, ext, gasMeter);
+	for (size_t i = 0; i < blocks.size(); ++i)
+	{
+		if (m_profile)
+		{
+			m_builder.SetInsertPoint(blocks[i].llvm());
+			profileBlockEntry(i, runtimeManager);
+		}
+		compileBasicBlock(blocks[i], runtimeManager, arith, memory, ext, gasMeter);
+	}
 
 	// Code for special blocks:
 	m_builder.SetInsertPoint(stopBB);
@@ -223,9 +244,41 @@ std::unique_ptr<llvm::Module> Compiler::compile(code_iterator _begin, code_itera
 
 	resolveJumps();
 
+	// Every block ends with a terminator now. A block that runs out of gas never gets there, so
+	// its gas is not counted.
+	if (m_profile)
+	{
+		for (size_t i = 0; i < blocks.size(); ++i)
+		{
+			m_builder.SetInsertPoint(blocks[i].llvm()->getTerminator());
+			profileBlockExit(i, runtimeManager);
+		}
+	}
+
 	return module;
 }
 
+void Compiler::profileBlockEntry(size_t _block, RuntimeManager& _runtimeManager)
+{
+	auto count = m_builder.CreateIntToPtr(m_builder.getInt64(reinterpret_cast<uint64_t>(m_profile->count(_block))),
+		Type::Gas->getPointerTo(), "profile.count");
+	m_builder.CreateAtomicRMW(llvm::AtomicRMWInst::Add, count, m_builder.getInt64(1), llvm::AtomicOrdering::Monotonic);
+
+	auto gas = m_builder.CreateLoad(_runtimeManager.getGasPtr(), "profile.gas");
+	m_builder.CreateStore(gas, m_profileEntryGas);
+}
+
+void Compiler::profileBlockExit(size_t _block, RuntimeManager& _runtimeManager)
+{
+	auto entryGas = m_builder.CreateLoad(m_profileEntryGas, "profile.entryGas");
+	auto gas = m_builder.CreateLoad(_runtimeManager.getGasPtr(), "profile.gas");
+	auto used = m_builder.CreateSub(entryGas, gas, "profile.gasUsed");
+
+	auto total = m_builder.CreateIntToPtr(m_builder.getInt64(reinterpret_cast<uint64_t>(m_profile->gas(_block))),
+		Type::Gas->getPointerTo(), "profile.totalGas");
+	m_builder.CreateAtomicRMW(llvm::AtomicRMWInst::Add, total, used, llvm::AtomicOrdering::Monotonic);
+}
+
 /**
  * Push any LLVM IntegerType in the range (i128, i256] into the stack, as two items.
  */
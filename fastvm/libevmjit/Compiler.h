@@ -2,6 +2,7 @@
 
 #include "JIT.h"
 #include "BasicBlock.h"
+#include "Profiler.h"
 
 namespace dev
 {
@@ -23,7 +24,10 @@ public:
 		bool dumpCFG = false;
 	};
 
-	Compiler(Options const& _options, evm_revision _rev, bool _staticCall, llvm::LLVMContext& _llvmContext);
+	/// With a code hash to profile, the code counts the executions and the gas of its basic blocks
+	/// in the profile of that code.
+	Compiler(Options const& _options, evm_revision _rev, bool _staticCall, llvm::LLVMContext& _llvmContext, bool _checkDeadline = false,
+		evm_hash const* _profileCodeHash = nullptr);
 
 	std::unique_ptr<llvm::Module> compile(code_iterator _begin, code_iterator _end, std::string const& _id);
 
@@ -35,6 +39,12 @@ private:
 
 	void resolveJumps();
 
+	/// Generate code that counts an entry into the given block and notes the gas left.
+	void profileBlockEntry(size_t _block, class RuntimeManager& _runtimeManager);
+
+	/// Generate code that adds the gas consumed since the entry into the given block.
+	void profileBlockExit(size_t _block, class RuntimeManager& _runtimeManager);
+
 	void pushWord256(LocalStack& stack, llvm::Value *hash);
 	llvm::Value * popWord256(LocalStack& stack);
 
@@ -46,6 +56,18 @@ private:
 
 	bool const m_staticCall = false;
 
+	/// Whether the compiled code checks the cancel flag (EVM_DEADLINE).
+	bool const m_checkDeadline = false;
+
+	/// The hash of the code if it is profiled, see profileBlockEntry().
+	evm_hash const* const m_profileCodeHash = nullptr;
+
+	/// The profile the compiled code counts into, or null.
+	evmjit::CodeProfile* m_profile = nullptr;
+
+	/// The gas left when the current block was entered, if the code is profiled.
+	llvm::Value* m_profileEntryGas = nullptr;
+
 	/// Helper class for generating IR
 	IRBuilder m_builder;
 
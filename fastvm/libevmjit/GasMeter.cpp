@@ -15,30 +15,51 @@ namespace eth
 namespace jit
 {
 
-GasMeter::GasMeter(IRBuilder& _builder, RuntimeManager& _runtimeManager, evm_revision rev):
+GasMeter::GasMeter(IRBuilder& _builder, RuntimeManager& _runtimeManager, evm_revision rev, bool _checkDeadline):
 	CompilerHelper(_builder),
 	m_runtimeManager(_runtimeManager),
-    m_rev(rev)
+    m_rev(rev),
+	m_checkDeadline(_checkDeadline)
 {
-	llvm::Type* gasCheckArgs[] = {Type::Gas->getPointerTo(), Type::Gas, Type::BytePtr};
-	m_gasCheckFunc = llvm::Function::Create(llvm::FunctionType::get(Type::Void, gasCheckArgs, false), llvm::Function::PrivateLinkage, "gas.check", getModule());
-	m_gasCheckFunc->setDoesNotThrow();
-	m_gasCheckFunc->addAttribute(1, llvm::Attribute::NoCapture);
-
-	auto checkBB = llvm::BasicBlock::Create(_builder.getContext(), "Check", m_gasCheckFunc);
-	auto updateBB = llvm::BasicBlock::Create(_builder.getContext(), "Update", m_gasCheckFunc);
-	auto outOfGasBB = llvm::BasicBlock::Create(_builder.getContext(), "OutOfGas", m_gasCheckFunc);
+	m_gasCheckFunc = createGasCheckFunc("gas.check", false);
+	m_blockCheckFunc = _checkDeadline ? createGasCheckFunc("gas.check.deadline", true) : m_gasCheckFunc;
+}
 
-	auto iter = m_gasCheckFunc->arg_begin();
+llvm::Function* GasMeter::createGasCheckFunc(char const* _name, bool _checkDeadline)
+{
+	std::vector<llvm::Type*> gasCheckArgs = {Type::Gas->getPointerTo(), Type::Gas, Type::BytePtr};
+	if (_checkDeadline)
+		gasCheckArgs.push_back(Type::BytePtr);
+	auto func = llvm::Function::Create(llvm::FunctionType::get(Type::Void, gasCheckArgs, false), llvm::Function::PrivateLinkage, _name, getModule());
+	func->setDoesNotThrow();
+	func->addAttribute(1, llvm::Attribute::NoCapture);
+
+	auto checkBB = llvm::BasicBlock::Create(m_builder.getContext(), "Check", func);
+	auto gasBB = _checkDeadline ? llvm::BasicBlock::Create(m_builder.getContext(), "Gas", func) : checkBB;
+	auto updateBB = llvm::BasicBlock::Create(m_builder.getContext(), "Update", func);
+	auto outOfGasBB = llvm::BasicBlock::Create(m_builder.getContext(), "OutOfGas", func);
+
+	auto iter = func->arg_begin();
 	llvm::Argument* gasPtr = &(*iter++);
 	gasPtr->setName("gasPtr");
 	llvm::Argument* cost = &(*iter++);
 	cost->setName("cost");
-	llvm::Argument* jmpBuf = &(*iter);
+	llvm::Argument* jmpBuf = &(*iter++);
 	jmpBuf->setName("jmpBuf");
 
 	InsertPointGuard guard(m_builder);
 	m_builder.SetInsertPoint(checkBB);
+	if (_checkDeadline)
+	{
+		// A cancelled execution aborts as if it ran out of gas, the caller tells the two apart by
+		// the cancel flag.
+		llvm::Argument* cancelFlag = &(*iter);
+		cancelFlag->setName("cancelFlag");
+		auto flag = m_builder.CreateLoad(cancelFlag, true, "cancelled");
+		auto notCancelled = m_builder.CreateICmpEQ(flag, m_builder.getInt8(0), "notCancelled");
+		m_builder.CreateCondBr(notCancelled, gasBB, outOfGasBB, Type::expectTrue);
+		m_builder.SetInsertPoint(gasBB);
+	}
 	auto gas = m_builder.CreateLoad(gasPtr, "gas");
 	auto gasUpdated = m_builder.CreateNSWSub(gas, cost, "gasUpdated");
 	auto gasOk = m_builder.CreateICmpSGE(gasUpdated, m_builder.getInt64(0), "gasOk"); // gas >= 0, with gas == 0 we can still do 0 cost instructions
@@ -51,6 +72,7 @@ GasMeter::GasMeter(IRBuilder& _builder, RuntimeManager& _runtimeManager, evm_rev
 	m_builder.SetInsertPoint(outOfGasBB);
 	m_runtimeManager.abort(jmpBuf);
 	m_builder.CreateUnreachable();
+	return func;
 }
 
 void GasMeter::count(Instruction _inst)
@@ -58,7 +80,10 @@ void GasMeter::count(Instruction _inst)
 	if (!m_checkCall)
 	{
 		// Create gas check call with mocked block cost at begining of current cost-block
-		m_checkCall = m_builder.CreateCall(m_gasCheckFunc, {m_runtimeManager.getGasPtr(), llvm::UndefValue::get(Type::Gas), m_runtimeManager.getJmpBuf()});
+		if (m_checkDeadline)
+			m_checkCall = m_builder.CreateCall(m_blockCheckFunc, {m_runtimeManager.getGasPtr(), llvm::UndefValue::get(Type::Gas), m_runtimeManager.getJmpBuf(), m_runtimeManager.getCancelFlag()});
+		else
+			m_checkCall = m_builder.CreateCall(m_gasCheckFunc, {m_runtimeManager.getGasPtr(), llvm::UndefValue::get(Type::Gas), m_runtimeManager.getJmpBuf()});
 	}
 
 	m_blockCost += getStepCost(_inst);
@@ -16,7 +16,7 @@ using namespace evmjit;
 class GasMeter : public CompilerHelper // TODO: Use RuntimeHelper
 {
 public:
-	GasMeter(IRBuilder& _builder, RuntimeManager& _runtimeManager, evm_revision rev);
+	GasMeter(IRBuilder& _builder, RuntimeManager& _runtimeManager, evm_revision rev, bool _checkDeadline = false);
 
 	/// Count step cost of instruction
 	void count(Instruction _inst);
@@ -36,7 +36,8 @@ public:
 	/// Count gas cost of SHA3 data
 	void countSha3Data(llvm::Value* _dataLength);
 
-	/// Finalize cost-block by checking gas needed for the block before the block
+	/// Finalize cost-block by checking gas needed for the block before the block.
+	/// With deadline checks enabled, the check also aborts once the cancel flag is set.
 	void commitCostBlock();
 
 	/// Give back an amount of gas not used by a call
@@ -51,6 +52,8 @@ public:
 private:
 	int64_t getStepCost(Instruction inst) const;
 
+	llvm::Function* createGasCheckFunc(char const* _name, bool _checkDeadline);
+
 	/// Cumulative gas cost of a block of instructions
 	/// @TODO Handle overflow
 	int64_t m_blockCost = 0;
@@ -58,10 +61,16 @@ private:
 	llvm::CallInst* m_checkCall = nullptr;
 	llvm::Function* m_gasCheckFunc = nullptr;
 
+	/// The gas check of cost-blocks, which is m_gasCheckFunc unless deadlines are checked
+	llvm::Function* m_blockCheckFunc = nullptr;
+
 	RuntimeManager& m_runtimeManager;
 
 	/// EVM revision.
 	evm_revision m_rev;
+
+	/// Whether cost-blocks also check the cancel flag (EVM_DEADLINE).
+	bool m_checkDeadline = false;
 };
 
 }
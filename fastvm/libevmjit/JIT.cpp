@@ -1,7 +1,11 @@
 #include "JIT.h"
 
 #include <cstddef>
+#include <algorithm>
+#include <atomic>
+#include <chrono>
 #include <mutex>
+#include <shared_mutex>
 
 #include "preprocessor/llvm_includes_start.h"
 #include <llvm/IR/Module.h>
@@ -19,6 +23,7 @@
 #include "Optimizer.h"
 #include "Cache.h"
 #include "ExecStats.h"
+#include "Profiler.h"
 #include "Utils.h"
 #include "BuildInfo.gen.h"
 
@@ -71,7 +76,7 @@ char toChar(evm_revision rev)
 }
 
 /// Combine code hash and EVM revision into a printable code identifier.
-std::string makeCodeId(evm_hash codeHash, evm_revision rev, uint32_t flags)
+std::string makeCodeId(evm_hash codeHash, evm_revision rev, uint32_t flags, bool profile)
 {
 	static const auto hexChars = "0123456789abcdef";
 	std::string str;
@@ -84,6 +89,10 @@ std::string makeCodeId(evm_hash codeHash, evm_revision rev, uint32_t flags)
 	str.push_back(toChar(rev));
 	if (flags & EVM_STATIC)
 		str.push_back('S');
+	if (flags & EVM_DEADLINE)
+		str.push_back('D');
+	if (profile)
+		str.push_back('P');
 	return str;
 }
 
@@ -129,6 +138,27 @@ class JITImpl: public evm_instance
 	mutable std::mutex x_codeMap;
 	std::unordered_map<std::string, CodeMapEntry> m_codeMap;
 
+	// Transactions may run concurrently on several threads (e.g. read-only queries next to block
+	// import). Each thread holds x_engine shared for the whole of its top-level frame, so the
+	// engine, and all the code it compiled, is only reset under the exclusive lock between
+	// top-level frames. Compilation itself is not thread-safe and is serialized by x_compile.
+	std::shared_timed_mutex x_engine;
+	std::mutex x_compile;
+	std::atomic<bool> m_resetPending{false};
+
+	// The object cache of the engine, which profiled code bypasses, see compile().
+	ObjectCache* m_objectCache = nullptr;
+
+	// Statistics, see evmjit_get_stats(). The code map counts are guarded by x_codeMap, the
+	// others by x_compile.
+	uint64_t m_codeMapHits = 0;
+	uint64_t m_codeMapMisses = 0;
+	uint64_t m_liveModules = 0;
+	uint64_t m_compiledModules = 0;
+	ExecStats::duration m_phaseTime[(int)ExecState::Finished] = {};
+	uint64_t m_resets = 0;
+	uint64_t m_evictedModules = 0;
+
 	static llvm::LLVMContext& getLLVMContext()
 	{
 		// TODO: This probably should be thread_local, but for now that causes
@@ -152,21 +182,51 @@ public:
 
 	void checkMemorySize();
 
+	std::shared_lock<std::shared_timed_mutex> lockEngine();
+
 	llvm::ExecutionEngine& engine() { return *m_engine; }
 
 	CodeMapEntry getExecFunc(std::string const& _codeIdentifier);
 	void mapExecFunc(std::string const& _codeIdentifier, ExecFunc _funcAddr);
 
-	ExecFunc compile(evm_revision _rev, bool _staticCall, byte const* _code, uint64_t _codeSize, std::string const& _codeIdentifier);
+	ExecFunc compile(evm_revision _rev, bool _staticCall, bool _checkDeadline, byte const* _code, uint64_t _codeSize, std::string const& _codeIdentifier,
+		evm_hash const* _profileCodeHash);
 
-	evm_context_fn_table const* host = nullptr;
+	void getStats(evmjit_stats& _stats);
 
-	evm_message const* currentMsg = nullptr;
-	std::vector<uint8_t> returnBuffer;
+	evm_context_fn_table const* host = nullptr;
 
 	size_t hitThreshold = 0;
 };
 
+// The message of the frame currently running on this thread.
+thread_local evm_message const* currentMsg = nullptr;
+
+// The RETURNDATA buffer of the frame currently running on this thread.
+thread_local std::vector<uint8_t> returnBuffer;
+
+// The cancel flag of the executions on this thread, see evmjit_set_cancel_flag().
+thread_local uint8_t const volatile* cancelFlag = nullptr;
+const uint8_t notCancelled = 0;
+
+// Whether code is compiled and run with basic block profiling, see evmjit_set_profiling().
+std::atomic<bool> profiling{false};
+
+// The compile records of the executions on this thread, see evmjit_drain_compile_records().
+// compileRecordCount counts the records since the last drain; they wrap around the ring.
+thread_local evmjit_compile_record compileRecords[EVMJIT_COMPILE_RECORDS];
+thread_local size_t compileRecordCount = 0;
+
+void recordCompile(evm_message const* _msg, size_t _codeSize, bool _cacheHit, int64_t _compileNanos)
+{
+	auto& record = compileRecords[compileRecordCount++ % EVMJIT_COMPILE_RECORDS];
+	record.code_hash = _msg->code_hash;
+	record.depth = _msg->depth;
+	record.cache_hit = _cacheHit;
+	record.compile_nanos = _compileNanos;
+	record.code_size = _codeSize;
+}
+
 int64_t call_v2(
 	evm_context* _ctx,
 	int _kind,
@@ -186,13 +246,13 @@ int64_t call_v2(
 
 	evm_message msg;
 	msg.address = *_address;
-	msg.caller = _kind != EVM_DELEGATECALL ? jit.currentMsg->address : jit.currentMsg->caller;
-	msg.value = _kind != EVM_DELEGATECALL ? *_value : jit.currentMsg->value;
+	msg.caller = _kind != EVM_DELEGATECALL ? currentMsg->address : currentMsg->caller;
+	msg.value = _kind != EVM_DELEGATECALL ? *_value : currentMsg->value;
 	msg.input = _inputData;
 	msg.input_size = _inputSize;
 	msg.gas = _gas;
-	msg.depth = jit.currentMsg->depth + 1;
-	msg.flags = jit.currentMsg->flags;
+	msg.depth = currentMsg->depth + 1;
+	msg.flags = currentMsg->flags;
 	
 	if (_kind == EVM_STATICCALL)
 	{
@@ -214,9 +274,9 @@ int64_t call_v2(
 
 	// Update RETURNDATA buffer.
 	// The buffer is already cleared.
-	jit.returnBuffer = {result.output_data, result.output_data + result.output_size};
-	*o_bufData = jit.returnBuffer.data();
-	*o_bufSize = jit.returnBuffer.size();
+	returnBuffer = {result.output_data, result.output_data + result.output_size};
+	*o_bufData = returnBuffer.data();
+	*o_bufSize = returnBuffer.size();
 
 	if (_kind == EVM_CREATE && result.status_code == EVM_SUCCESS)
 		std::copy_n(result.output_data, sizeof(evm_address), _outputData);
@@ -309,37 +369,60 @@ CodeMapEntry JITImpl::getExecFunc(std::string const& _codeIdentifier)
     std::lock_guard<std::mutex> lock{x_codeMap};
     auto& entry = m_codeMap[_codeIdentifier];
     ++entry.hits;
+    if (entry.func)
+        ++m_codeMapHits;
+    else
+        ++m_codeMapMisses;
     return entry;
 }
 
 void JITImpl::mapExecFunc(std::string const& _codeIdentifier, ExecFunc _funcAddr)
 {
     std::lock_guard<std::mutex> lock{x_codeMap};
-    m_codeMap[_codeIdentifier].func = _funcAddr;
+    auto& entry = m_codeMap[_codeIdentifier];
+    if (!entry.func)
+        ++m_liveModules;
+    entry.func = _funcAddr;
 }
 
-ExecFunc JITImpl::compile(evm_revision _rev, bool _staticCall, byte const* _code, uint64_t _codeSize,
-	std::string const& _codeIdentifier)
+ExecFunc JITImpl::compile(evm_revision _rev, bool _staticCall, bool _checkDeadline, byte const* _code, uint64_t _codeSize,
+	std::string const& _codeIdentifier, evm_hash const* _profileCodeHash)
 {
 	// reset engine.
+	// Compiled code may still be running on other threads, so the reset is deferred until the
+	// next top-level frame.
 	static std::atomic<long> cnt(0);
 	if (++cnt % 20000L == 0) {
-		resetEngine();
+		m_resetPending = true;
+	}
+
+	std::lock_guard<std::mutex> compileLock{x_compile};
+	{
+		// Another thread may have compiled this code while we were waiting.
+		std::lock_guard<std::mutex> lock{x_codeMap};
+		auto it = m_codeMap.find(_codeIdentifier);
+		if (it != m_codeMap.end() && it->second.func)
+			return it->second.func;
 	}
 
+	// The listener is local to this compilation, as other threads may compile concurrently.
+	ExecStats listener;
+	listener.stateChanged(ExecState::Started);
+	listener.stateChanged(ExecState::CacheLoad);
+
 	clock_t t1 = clock();
-	auto module = Cache::getObject(_codeIdentifier, getLLVMContext());
+	// Profiled code refers to the counters of this process, so it is never cached.
+	auto module = _profileCodeHash ? nullptr : Cache::getObject(_codeIdentifier, getLLVMContext());
 	if (!module)
 	{
-		// TODO: Listener support must be redesigned. These should be a feature of JITImpl
-		//listener->stateChanged(ExecState::Compilation);
+		listener.stateChanged(ExecState::Compilation);
 		assert(_code || !_codeSize);
 		//TODO: Can the Compiler be stateless?
-		module = Compiler({}, _rev, _staticCall, getLLVMContext()).compile(_code, _code + _codeSize, _codeIdentifier);
+		module = Compiler({}, _rev, _staticCall, getLLVMContext(), _checkDeadline, _profileCodeHash).compile(_code, _code + _codeSize, _codeIdentifier);
 
+		listener.stateChanged(ExecState::Optimization);
 		if (g_optimize)
 		{
-			//listener->stateChanged(ExecState::Optimization);
 			optimize(*module);
 		}
 
@@ -355,14 +438,23 @@ ExecFunc JITImpl::compile(evm_revision _rev, bool _staticCall, byte const* _code
 
 	llvm::Module *m = module.get();
 
+	listener.stateChanged(ExecState::CodeGen);
+	if (_profileCodeHash)
+		m_engine->setObjectCache(nullptr);
 	m_engine->addModule(std::move(module));
-	//listener->stateChanged(ExecState::CodeGen);
 	ExecFunc func = (ExecFunc)m_engine->getFunctionAddress(_codeIdentifier);
 	m_engine->removeModule(m);
+	if (_profileCodeHash)
+		m_engine->setObjectCache(m_objectCache);
 
 	clock_t t3 = clock();
 	DLOG(jit) << "compile: " << t2 - t1 << " " << t3 - t2 << std::endl;
 
+	listener.stateChanged(ExecState::Finished);
+	for (int state = 0; state < (int)ExecState::Finished; ++state)
+		m_phaseTime[state] += listener.time[state];
+	++m_compiledModules;
+
 	delete m;
 	return func;
 }
@@ -401,6 +493,57 @@ EXPORT evm_instance* evmjit_create()
 	return &JITImpl::instance();
 }
 
+EXPORT void evmjit_set_cancel_flag(uint8_t const volatile* flag)
+{
+	cancelFlag = flag;
+}
+
+EXPORT void evmjit_get_stats(evmjit_stats* stats)
+{
+	JITImpl::instance().getStats(*stats);
+}
+
+EXPORT void evmjit_set_profiling(int enabled)
+{
+	profiling = enabled != 0;
+}
+
+EXPORT void evmjit_visit_block_profiles(evmjit_block_profile_visitor visitor, void* context)
+{
+	std::vector<int64_t> counts;
+	std::vector<int64_t> gas;
+	visitCodeProfiles([&](CodeProfile const& _profile)
+	{
+		auto blocks = _profile.offsets().size();
+		counts.resize(blocks);
+		gas.resize(blocks);
+		bool executed = false;
+		for (size_t block = 0; block < blocks; ++block)
+		{
+			counts[block] = _profile.count(block);
+			gas[block] = _profile.gas(block);
+			executed |= counts[block] != 0;
+		}
+		if (executed)
+			visitor(context, &_profile.codeHash(), _profile.code().data(), _profile.code().size(), blocks,
+				_profile.offsets().data(), counts.data(), gas.data());
+	});
+}
+
+EXPORT void evmjit_reset_block_profiles()
+{
+	resetCodeProfiles();
+}
+
+EXPORT size_t evmjit_drain_compile_records(evmjit_compile_record* records, size_t max)
+{
+	size_t count = std::min({compileRecordCount, size_t{EVMJIT_COMPILE_RECORDS}, max});
+	for (size_t i = 0; i < count; ++i)
+		records[i] = compileRecords[(compileRecordCount - count + i) % EVMJIT_COMPILE_RECORDS];
+	compileRecordCount = 0;
+	return count;
+}
+
 static void destroy(evm_instance* instance)
 {
 	(void)instance;
@@ -412,16 +555,18 @@ static evm_result execute(evm_instance* instance, evm_context* context, evm_revi
 {
 	auto& jit = *reinterpret_cast<JITImpl*>(instance);
 
+	// Nested frames run under the engine lock taken by their top-level frame.
+	std::shared_lock<std::shared_timed_mutex> engineLock;
 	if (msg->depth == 0)
-		jit.checkMemorySize();
+		engineLock = jit.lockEngine();
 
 	if (!jit.host)
 		jit.host = context->fn_table;
 	assert(jit.host == context->fn_table);  // Require the fn_table not to change.
 
 	// TODO: Temporary keep track of the current message.
-	evm_message const* prevMsg = jit.currentMsg;
-	jit.currentMsg = msg;
+	evm_message const* prevMsg = currentMsg;
+	currentMsg = msg;
 
 	RuntimeData rt;
 	rt.code = code;
@@ -433,6 +578,7 @@ static evm_result execute(evm_instance* instance, evm_context* context, evm_revi
 	std::memcpy(&rt.address, &msg->address, sizeof(msg->address));
 	std::memcpy(&rt.caller, &msg->caller, sizeof(msg->caller));
 	rt.depth = msg->depth;
+	rt.cancelFlag = cancelFlag ? cancelFlag : &notCancelled;
 
 	ExecutionContext ctx{rt, context};
 
@@ -443,13 +589,13 @@ static evm_result execute(evm_instance* instance, evm_context* context, evm_revi
 	result.output_size = 0;
 	result.release = nullptr;
 
-    auto codeIdentifier = makeCodeId(msg->code_hash, rev, msg->flags);
+    const bool profile = profiling.load(std::memory_order_relaxed);
+    auto codeIdentifier = makeCodeId(msg->code_hash, rev, msg->flags, profile);
     auto codeEntry = jit.getExecFunc(codeIdentifier);
     auto func = codeEntry.func;
+    int64_t compileNanos = 0;
     if (!func)
     {
-        //FIXME: We have a race condition here!
-
         if (codeEntry.hits <= jit.hitThreshold)
         {
             result.status_code = EVM_REJECTED;
@@ -460,7 +606,12 @@ static evm_result execute(evm_instance* instance, evm_context* context, evm_revi
             std::cerr << "EVMJIT Compile " << codeIdentifier << " (" << codeEntry.hits << ")\n";
 
         const bool staticCall = (msg->flags & EVM_STATIC) != 0;
-        func = jit.compile(rev, staticCall, ctx.code(), ctx.codeSize(), codeIdentifier);
+        const bool checkDeadline = (msg->flags & EVM_DEADLINE) != 0;
+        auto compileStart = std::chrono::steady_clock::now();
+        func = jit.compile(rev, staticCall, checkDeadline, ctx.code(), ctx.codeSize(), codeIdentifier,
+            profile ? &msg->code_hash : nullptr);
+        compileNanos = std::chrono::duration_cast<std::chrono::nanoseconds>(
+            std::chrono::steady_clock::now() - compileStart).count();
         if (!func)
         {
             result.status_code = EVM_INTERNAL_ERROR;
@@ -468,6 +619,7 @@ static evm_result execute(evm_instance* instance, evm_context* context, evm_revi
         }
         jit.mapExecFunc(codeIdentifier, func);
     }
+    recordCompile(msg, code_size, codeEntry.func != nullptr, compileNanos);
 
     auto returnCode = func(&ctx);
 
@@ -476,6 +628,11 @@ static evm_result execute(evm_instance* instance, evm_context* context, evm_revi
 		result.status_code = EVM_REVERT;
 		result.gas_left = rt.gas;
 	}
+	else if (returnCode == ReturnCode::OutOfGas && (msg->flags & EVM_DEADLINE) && *rt.cancelFlag != 0)
+	{
+		result.status_code = EVM_DEADLINE_EXCEEDED;
+		result.gas_left = 0;
+	}
 	else if (returnCode == ReturnCode::OutOfGas)
 	{
 		result.status_code = EVM_OUT_OF_GAS;
@@ -508,7 +665,7 @@ static evm_result execute(evm_instance* instance, evm_context* context, evm_revi
 		ctx.m_memData = nullptr;
 	}
 
-	jit.currentMsg = prevMsg;
+	currentMsg = prevMsg;
 	return result;
 }
 
@@ -535,6 +692,12 @@ static int set_option(evm_instance* instance, const char* name, const char* valu
 void JITImpl::resetEngine()
 {
 	std::lock_guard<std::mutex> lock{x_codeMap};
+	if (m_engine)
+	{
+		++m_resets;
+		m_evictedModules += m_liveModules;
+	}
+	m_liveModules = 0;
 	m_codeMap.clear();
 	m_engine.reset();
 
@@ -559,7 +722,8 @@ void JITImpl::resetEngine()
 	m_engine.reset(builder.create());
 
 	// TODO: Update cache listener
-	m_engine->setObjectCache(Cache::init(g_cache, nullptr));
+	m_objectCache = Cache::init(g_cache, nullptr);
+	m_engine->setObjectCache(m_objectCache);
 
 	// FIXME: Disabled during API changes
 	//if (preloadCache)
@@ -585,14 +749,57 @@ void JITImpl::checkMemorySize()
 {
 	constexpr size_t memoryLimit = 1000 * 1024 * 1024;
 
-	if (m_memoryMgr->totalMemorySize() > memoryLimit)
+	bool reset;
 	{
-		if (g_stats)
-			std::cerr << "EVMJIT reset!\n";
+		std::lock_guard<std::mutex> compileLock{x_compile};
+		reset = m_resetPending || m_memoryMgr->totalMemorySize() > memoryLimit;
+	}
+	if (reset)
+	{
+		std::unique_lock<std::shared_timed_mutex> exclusive{x_engine};
+		std::lock_guard<std::mutex> compileLock{x_compile};
+
+		// Check again, another thread may have reset the engine while we were waiting.
+		if (m_resetPending || m_memoryMgr->totalMemorySize() > memoryLimit)
+		{
+			if (g_stats)
+				std::cerr << "EVMJIT reset!\n";
 
-		resetEngine();
+			resetEngine();
+			m_resetPending = false;
+		}
 	}
 }
 
+void JITImpl::getStats(evmjit_stats& _stats)
+{
+	using nanoseconds = std::chrono::nanoseconds;
+	auto nanos = [this](ExecState _state)
+	{
+		return static_cast<uint64_t>(std::chrono::duration_cast<nanoseconds>(m_phaseTime[(int)_state]).count());
+	};
+
+	std::lock_guard<std::mutex> compileLock{x_compile};
+	_stats.compiled_modules = m_compiledModules;
+	_stats.memory_size = m_memoryMgr->totalMemorySize();
+	_stats.cache_load_nanos = nanos(ExecState::CacheLoad);
+	_stats.compilation_nanos = nanos(ExecState::Compilation);
+	_stats.optimization_nanos = nanos(ExecState::Optimization);
+	_stats.codegen_nanos = nanos(ExecState::CodeGen);
+	_stats.resets = m_resets;
+	_stats.evicted_modules = m_evictedModules;
+
+	std::lock_guard<std::mutex> lock{x_codeMap};
+	_stats.live_modules = m_liveModules;
+	_stats.code_map_hits = m_codeMapHits;
+	_stats.code_map_misses = m_codeMapMisses;
+}
+
+std::shared_lock<std::shared_timed_mutex> JITImpl::lockEngine()
+{
+	checkMemorySize();
+	return std::shared_lock<std::shared_timed_mutex>{x_engine};
+}
+
 }
 }
@@ -1,5 +1,6 @@
 #pragma once
 
+#include <cstddef>
 #include <cstdint>
 #include <cstring>
 #include <functional>
@@ -30,12 +31,13 @@ struct RuntimeData
 		Address,
 		Caller,
 		Depth,
+		CancelFlag,
 
 		ReturnData 		   = CallData,		///< Return data pointer (set only in case of RETURN)
 		ReturnDataSize 	   = CallDataSize,	///< Return data size (set only in case of RETURN)
 	};
 
-	static size_t const numElements = Depth + 1;
+	static size_t const numElements = CancelFlag + 1;
 
 	int64_t 	gas = 0;
 	int64_t 	gasPrice = 0;
@@ -47,8 +49,13 @@ struct RuntimeData
 	byte        address[32];
 	byte        caller[32];
 	int64_t     depth;
+	uint8_t const volatile* cancelFlag = nullptr;	///< Checked by code compiled with EVM_DEADLINE
 };
 
+// The cancel flag is appended, so that the fields older code reads keep their offsets.
+static_assert(offsetof(RuntimeData, cancelFlag) == offsetof(RuntimeData, depth) + sizeof(int64_t),
+	"RuntimeData fields must keep their offsets");
+
 struct JITSchedule
 {
 	// TODO: Move to constexpr once all our target compilers support it.
@@ -0,0 +1,68 @@
+#include "Profiler.h"
+
+#include <mutex>
+#include <string>
+#include <unordered_map>
+
+namespace dev
+{
+namespace evmjit
+{
+
+namespace
+{
+
+std::mutex x_profiles;
+std::unordered_map<std::string, std::unique_ptr<CodeProfile>> profiles;
+
+}
+
+CodeProfile::CodeProfile(evm_hash const& _codeHash, uint8_t const* _code, size_t _codeSize, std::vector<uint32_t> _offsets):
+	m_codeHash(_codeHash),
+	m_code(_code, _code + _codeSize),
+	m_offsets(std::move(_offsets)),
+	m_counts(new std::atomic<int64_t>[m_offsets.size()]),
+	m_gas(new std::atomic<int64_t>[m_offsets.size()])
+{
+	reset();
+}
+
+void CodeProfile::reset()
+{
+	for (size_t block = 0; block < m_offsets.size(); ++block)
+	{
+		m_counts[block].store(0, std::memory_order_relaxed);
+		m_gas[block].store(0, std::memory_order_relaxed);
+	}
+}
+
+CodeProfile* getCodeProfile(evm_hash const& _codeHash, uint8_t const* _code, size_t _codeSize,
+	std::vector<uint32_t> const& _offsets)
+{
+	std::string key{reinterpret_cast<char const*>(_codeHash.bytes), sizeof(_codeHash.bytes)};
+
+	std::lock_guard<std::mutex> lock{x_profiles};
+	auto& profile = profiles[key];
+	if (!profile)
+		profile.reset(new CodeProfile{_codeHash, _code, _codeSize, _offsets});
+	else if (profile->offsets() != _offsets)
+		return nullptr;
+	return profile.get();
+}
+
+void visitCodeProfiles(std::function<void(CodeProfile const&)> const& _visitor)
+{
+	std::lock_guard<std::mutex> lock{x_profiles};
+	for (auto const& profile: profiles)
+		_visitor(*profile.second);
+}
+
+void resetCodeProfiles()
+{
+	std::lock_guard<std::mutex> lock{x_profiles};
+	for (auto& profile: profiles)
+		profile.second->reset();
+}
+
+}
+}
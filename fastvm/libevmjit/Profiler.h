@@ -0,0 +1,69 @@
+#pragma once
+
+#include <atomic>
+#include <functional>
+#include <memory>
+#include <vector>
+
+#include <evm.h>
+
+namespace dev
+{
+namespace evmjit
+{
+
+/// The execution counts and the gas of the basic blocks of one code, as counted by the code
+/// compiled with profiling, see evmjit_set_profiling().
+///
+/// Compiled code updates the counters directly, so a profile is never destroyed or moved.
+/// The counters are std::atomic<int64_t>, which compiled code updates as plain i64 with an atomic
+/// add, so they must be lock-free and laid out like int64_t.
+static_assert(sizeof(std::atomic<int64_t>) == sizeof(int64_t), "Profile counters must be laid out like int64_t");
+static_assert(ATOMIC_LLONG_LOCK_FREE == 2, "Profile counters must be lock-free");
+
+class CodeProfile
+{
+public:
+	CodeProfile(evm_hash const& _codeHash, uint8_t const* _code, size_t _codeSize, std::vector<uint32_t> _offsets);
+
+	CodeProfile(CodeProfile const&) = delete;
+	CodeProfile& operator=(CodeProfile const&) = delete;
+
+	evm_hash const& codeHash() const { return m_codeHash; }
+	std::vector<uint8_t> const& code() const { return m_code; }
+	std::vector<uint32_t> const& offsets() const { return m_offsets; }
+
+	/// The number of times the given block was entered.
+	std::atomic<int64_t>* count(size_t _block) { return &m_counts[_block]; }
+
+	/// The gas consumed by the given block, except when it ran out of gas.
+	std::atomic<int64_t>* gas(size_t _block) { return &m_gas[_block]; }
+
+	int64_t count(size_t _block) const { return m_counts[_block].load(std::memory_order_relaxed); }
+	int64_t gas(size_t _block) const { return m_gas[_block].load(std::memory_order_relaxed); }
+
+	void reset();
+
+private:
+	evm_hash const m_codeHash;
+	std::vector<uint8_t> const m_code;
+	std::vector<uint32_t> const m_offsets;
+	std::unique_ptr<std::atomic<int64_t>[]> m_counts;
+	std::unique_ptr<std::atomic<int64_t>[]> m_gas;
+};
+
+/// Returns the profile of the given code, whose basic blocks start at the given offsets, and
+/// creates it if there is none yet. Every variant of the code shares the same profile. Returns
+/// null if the existing profile has other blocks, so that no code is compiled to update counters
+/// that do not exist.
+CodeProfile* getCodeProfile(evm_hash const& _codeHash, uint8_t const* _code, size_t _codeSize,
+	std::vector<uint32_t> const& _offsets);
+
+/// Calls the visitor with every profile, in no particular order.
+void visitCodeProfiles(std::function<void(CodeProfile const&)> const& _visitor);
+
+/// Resets the counters of every profile.
+void resetCodeProfiles();
+
+}
+}
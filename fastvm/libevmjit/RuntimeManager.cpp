@@ -32,6 +32,7 @@ llvm::StructType* RuntimeManager::getRuntimeDataType()
 			Type::Word256,  // adddress
 			Type::Word256,  // caller
 			Type::Size,     // depth
+			Type::BytePtr,  // cancelFlag
 		};
 		type = llvm::StructType::create(elems, "RuntimeData");
 	}
@@ -98,6 +99,7 @@ llvm::Twine getName(RuntimeData::Index _index)
 	case RuntimeData::Address:		return "msg.address";
 	case RuntimeData::Caller:		return "msg.caller";
 	case RuntimeData::Depth:		return "msg.depth";
+	case RuntimeData::CancelFlag:	return "cancel.flag";
 	}
 }
 }
@@ -236,6 +238,11 @@ llvm::Value* RuntimeManager::getDepth()
 	return m_dataElts[RuntimeData::Depth];
 }
 
+llvm::Value* RuntimeManager::getCancelFlag()
+{
+	return m_dataElts[RuntimeData::CancelFlag];
+}
+
 void RuntimeManager::set(RuntimeData::Index _index, llvm::Value* _value)
 {
 	auto ptr = getPtr(_index);
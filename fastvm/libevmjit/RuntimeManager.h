@@ -33,6 +33,7 @@ public:
 	llvm::Value* getCodeSize();
 	llvm::Value* getCallDataSize();
 	llvm::Value* getDepth();
+	llvm::Value* getCancelFlag();
 	llvm::Value* getJmpBuf() { return m_jmpBuf; }
 	void setGas(llvm::Value* _gas);
 
@@ -0,0 +1,79 @@
+package org.aion.fastvm;
+
+import java.util.concurrent.TimeUnit;
+import org.aion.types.AionAddress;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the overhead of access lists: recording the accesses of a transaction, turning them
+ * into an {@link AccessList}, and reading every entry of it back.
+ *
+ * <p>Each transaction reads the balance and nonce of the given number of accounts, and reads and
+ * writes as many storage slots of each of them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class AccessListBenchmark {
+    @Param({"1", "8", "32"})
+    public int accounts;
+
+    private AionAddress[] addresses;
+    private FvmDataWord[] keys;
+    private AccessList accessList;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        this.addresses = new AionAddress[this.accounts];
+        this.keys = new FvmDataWord[this.accounts];
+        for (int i = 0; i < this.accounts; i++) {
+            this.addresses[i] = BenchmarkContracts.randomAddress();
+            this.keys[i] = FvmDataWord.fromInt(i);
+        }
+        this.accessList = record().toAccessList();
+    }
+
+    @Benchmark
+    public AccessList recordAndBuild() {
+        return record().toAccessList();
+    }
+
+    @Benchmark
+    public int readEveryEntry() {
+        int hash = 0;
+        for (AccessList.StorageSlot slot : this.accessList.storageRead()) {
+            hash += slot.hashCode();
+        }
+        for (AionAddress address : this.accessList.touchedAccounts()) {
+            hash += address.hashCode();
+        }
+        return hash;
+    }
+
+    private AccessListRecorder record() {
+        AccessListRecorder recorder = new AccessListRecorder();
+        for (AionAddress address : this.addresses) {
+            recorder.balanceRead(address);
+            recorder.nonceRead(address);
+            for (FvmDataWord key : this.keys) {
+                recorder.storageRead(address, key);
+                recorder.storageWritten(address, key);
+            }
+        }
+        return recorder;
+    }
+}
@@ -0,0 +1,98 @@
+package org.aion.fastvm;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Compares the JSON results of a JMH run against a stored baseline and fails if any benchmark
+ * regressed by more than a threshold.
+ *
+ * <p>Every benchmark in this source set reports the average time per operation, so a higher
+ * score is a regression. The normalized allocation rate reported by JMH's GC profiler ({@code
+ * -prof gc}) is compared in the same way, when both runs have it.
+ *
+ * <p>Usage: {@code BenchmarkBaseline <baseline.json> <results.json> [threshold percent]}
+ */
+public final class BenchmarkBaseline {
+    private static final String ALLOCATION_METRIC = "\u00b7gc.alloc.rate.norm";
+    private static final double DEFAULT_THRESHOLD_PERCENT = 10.0;
+
+    private BenchmarkBaseline() {}
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: BenchmarkBaseline <baseline.json> <results.json> [threshold percent]");
+            System.exit(2);
+        }
+        double threshold = (args.length > 2) ? Double.parseDouble(args[2]) : DEFAULT_THRESHOLD_PERCENT;
+
+        Map<String, JSONObject> baseline = load(args[0]);
+        Map<String, JSONObject> results = load(args[1]);
+
+        int regressions = 0;
+        for (Map.Entry<String, JSONObject> result : results.entrySet()) {
+            JSONObject base = baseline.get(result.getKey());
+            if (base == null) {
+                System.out.println(String.format("%-70s %s", result.getKey(), "new, no baseline"));
+                continue;
+            }
+
+            JSONObject metric = result.getValue().getJSONObject("primaryMetric");
+            double score = metric.getDouble("score");
+            double baseScore = base.getJSONObject("primaryMetric").getDouble("score");
+            boolean regressed = report(result.getKey(), metric.getString("scoreUnit"), baseScore, score, threshold);
+
+            Double allocation = allocationOf(result.getValue());
+            Double baseAllocation = allocationOf(base);
+            if (allocation != null && baseAllocation != null) {
+                regressed |= report(result.getKey() + " (alloc)", "B/op", baseAllocation, allocation, threshold);
+            }
+            regressions += regressed ? 1 : 0;
+        }
+
+        System.out.println(regressions + " benchmark(s) regressed by more than " + threshold + "%.");
+        System.exit((regressions == 0) ? 0 : 1);
+    }
+
+    /** Prints the comparison of one score and returns {@code true} only if it regressed. */
+    private static boolean report(String name, String unit, double base, double score, double threshold) {
+        double change = (base == 0) ? 0 : (score - base) * 100.0 / base;
+        boolean regressed = change > threshold;
+        System.out.println(String.format("%-70s %12.3f -> %12.3f %-8s %+7.2f%%%s", name, base, score, unit, change, regressed ? "  REGRESSED" : ""));
+        return regressed;
+    }
+
+    private static Double allocationOf(JSONObject result) {
+        JSONObject secondary = result.optJSONObject("secondaryMetrics");
+        if (secondary == null || !secondary.has(ALLOCATION_METRIC)) {
+            return null;
+        }
+        return secondary.getJSONObject(ALLOCATION_METRIC).getDouble("score");
+    }
+
+    /** Returns the results in the given JMH JSON file, keyed by benchmark name and parameters. */
+    private static Map<String, JSONObject> load(String path) throws IOException {
+        JSONArray array = new JSONArray(new String(Files.readAllBytes(Paths.get(path)), StandardCharsets.UTF_8));
+        Map<String, JSONObject> results = new LinkedHashMap<>();
+        for (int i = 0; i < array.length(); i++) {
+            JSONObject result = array.getJSONObject(i);
+            StringBuilder key = new StringBuilder(result.getString("benchmark"));
+            JSONObject params = result.optJSONObject("params");
+            if (params != null) {
+                // Sorted, so that the key does not depend on the order of the parameters.
+                for (Map.Entry<String, Object> param : new TreeMap<>(params.toMap()).entrySet()) {
+                    key.append(':').append(param.getKey()).append('=').append(param.getValue());
+                }
+            }
+            results.put(key.toString(), result);
+        }
+        return results;
+    }
+}
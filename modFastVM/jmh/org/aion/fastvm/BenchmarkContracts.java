@@ -0,0 +1,107 @@
+package org.aion.fastvm;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import org.aion.ExternalCapabilitiesForTesting;
+import org.aion.ExternalStateForTesting;
+import org.aion.contract.ContractUtils;
+import org.aion.fastvm.util.HexUtil;
+import org.aion.repository.BlockchainForTesting;
+import org.aion.repository.RepositoryForTesting;
+import org.aion.solidity.Abi;
+import org.aion.solidity.CompilationResult;
+import org.aion.solidity.Compiler;
+import org.aion.solidity.Compiler.Options;
+import org.aion.types.AionAddress;
+import org.apache.commons.lang3.RandomUtils;
+
+/** Compiles and deploys the test contracts that the benchmarks run. */
+final class BenchmarkContracts {
+    static final IExternalCapabilities CAPABILITIES = new ExternalCapabilitiesForTesting();
+    static final long BLOCK_ENERGY_LIMIT = 15_000_000L;
+    static final FvmDataWord BLOCK_DIFFICULTY = FvmDataWord.fromLong(0x100000000L);
+    static final AionAddress MINER = randomAddress();
+
+    /** A contract deployed into a repository. */
+    static final class Deployed {
+        final AionAddress address;
+        final byte[] code;
+        final Abi abi;
+
+        private Deployed(AionAddress address, byte[] code, Abi abi) {
+            this.address = address;
+            this.code = code;
+            this.abi = abi;
+        }
+
+        /** Returns the call data of the named function with the given arguments. */
+        byte[] callData(String function, Object... args) {
+            return this.abi.findFunction(f -> f.name.equals(function)).encode(args);
+        }
+    }
+
+    private BenchmarkContracts() {}
+
+    /**
+     * Compiles the given contract and runs its deployer, as the given owner, into the repository.
+     *
+     * @param repository The repository to deploy into.
+     * @param owner The account deploying the contract.
+     * @param fileName The solidity source file, relative to {@link ContractUtils}.
+     * @param contractName The contract to deploy.
+     * @return the deployed contract.
+     */
+    static Deployed deploy(RepositoryForTesting repository, AionAddress owner, String fileName, String contractName) throws IOException {
+        Compiler.Result compiled = Compiler.getInstance().compile(ContractUtils.readContract(fileName), Options.ABI, Options.BIN);
+        CompilationResult.Contract contract = CompilationResult.parse(compiled.output).contracts.get(contractName);
+        byte[] deployer = HexUtil.decode(contract.bin);
+
+        AionAddress address = randomAddress();
+        ExecutionContext context = newContext(owner, address, new byte[0], 5_000_000L, TransactionKind.CREATE);
+        FastVmTransactionResult result = new FastVM().runPost040Fork(deployer, context, newState(repository));
+        if (!result.getResultCode().isSuccess()) {
+            throw new IllegalStateException("Failed to deploy " + contractName + ": " + result);
+        }
+        repository.saveCode(address, result.getReturnData());
+        return new Deployed(address, result.getReturnData(), Abi.fromJSON(contract.abi, CAPABILITIES));
+    }
+
+    /** Returns a funded account. */
+    static AionAddress newAccount(RepositoryForTesting repository) {
+        AionAddress account = randomAddress();
+        repository.addBalance(account, BigInteger.TEN.pow(30));
+        return account;
+    }
+
+    /** Returns a world state over the given repository, with the 0.4.0 fork enabled. */
+    static ExternalStateForTesting newState(RepositoryForTesting repository) {
+        return new ExternalStateForTesting(repository, new BlockchainForTesting(), MINER, BLOCK_DIFFICULTY, false, true, true, 1L, 0L, BLOCK_ENERGY_LIMIT);
+    }
+
+    /** Returns the context of a top-level frame sent by the given sender. */
+    static ExecutionContext newContext(AionAddress sender, AionAddress destination, byte[] data, long energy, TransactionKind kind) {
+        return ExecutionContext.from(
+                new byte[32],
+                destination,
+                sender,
+                sender,
+                1L,
+                energy,
+                BigInteger.ZERO,
+                data,
+                0,
+                kind,
+                0,
+                MINER,
+                1L,
+                0L,
+                BLOCK_ENERGY_LIMIT,
+                BLOCK_DIFFICULTY);
+    }
+
+    static AionAddress randomAddress() {
+        byte[] bytes = RandomUtils.nextBytes(AionAddress.LENGTH);
+        bytes[0] = (byte) 0xa0;
+        return new AionAddress(bytes);
+    }
+}
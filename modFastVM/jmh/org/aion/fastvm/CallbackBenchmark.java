@@ -0,0 +1,157 @@
+package org.aion.fastvm;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+import org.aion.repository.RepositoryForTesting;
+import org.aion.types.AionAddress;
+import org.apache.commons.lang3.RandomUtils;
+import org.apache.commons.lang3.tuple.Pair;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Calls each of the {@link Callback} upcalls in isolation, the way the JIT calls them, from
+ * inside a frame whose context has been pushed.
+ *
+ * <p>The upcalls that record side effects ({@code log}, {@code selfDestruct} and {@code call}) run
+ * in a nested frame that is pushed for each invocation, so that their records do not accumulate;
+ * their scores include the cost of that frame's context.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class CallbackBenchmark {
+    private RepositoryForTesting repository;
+    private AionAddress sender;
+    private byte[] account;
+    private byte[] contract;
+    private byte[] key;
+    private byte[] value;
+    private byte[] topics;
+    private byte[] data;
+    private byte[] callMessage;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        CapabilitiesProvider.installExternalCapabilities(BenchmarkContracts.CAPABILITIES);
+        this.repository = RepositoryForTesting.newRepository();
+        this.sender = BenchmarkContracts.newAccount(this.repository);
+        this.account = BenchmarkContracts.newAccount(this.repository).toByteArray();
+
+        AionAddress contract = BenchmarkContracts.randomAddress();
+        this.repository.saveCode(contract, RandomUtils.nextBytes(1024));
+        this.key = RandomUtils.nextBytes(FvmDataWord.SIZE);
+        this.value = RandomUtils.nextBytes(FvmDataWord.SIZE);
+        this.repository.addToStorage(contract, FvmDataWord.fromBytes(this.key), FvmDataWord.fromBytes(this.value));
+        this.contract = contract.toByteArray();
+
+        this.topics = RandomUtils.nextBytes(2 * 32);
+        this.data = RandomUtils.nextBytes(64);
+        this.callMessage = newCallMessage(BenchmarkContracts.randomAddress(), contract, RandomUtils.nextBytes(36));
+
+        ExecutionContext context = BenchmarkContracts.newContext(this.sender, contract, new byte[0], 1_000_000L, TransactionKind.CALL);
+        Callback.push(Pair.of(context, BenchmarkContracts.newState(this.repository)));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Callback.pop();
+        CapabilitiesProvider.removeExternalCapabilities();
+    }
+
+    @Benchmark
+    public byte[] getBlockHash() {
+        return Callback.getBlockHash(0);
+    }
+
+    @Benchmark
+    public byte[] getCode() {
+        return Callback.getCode(this.contract);
+    }
+
+    @Benchmark
+    public byte[] getBalance() {
+        return Callback.getBalance(this.account);
+    }
+
+    @Benchmark
+    public boolean exists() {
+        return Callback.exists(this.account);
+    }
+
+    @Benchmark
+    public byte[] getStorage() {
+        return Callback.getStorage(this.contract, this.key);
+    }
+
+    @Benchmark
+    public void putStorage() {
+        Callback.putStorage(this.contract, this.key, this.value);
+    }
+
+    @Benchmark
+    public void log() {
+        pushFrame(this.repository);
+        try {
+            Callback.log(this.contract, this.topics, this.data);
+        } finally {
+            Callback.pop();
+        }
+    }
+
+    @Benchmark
+    public void selfDestruct() {
+        // The balance moves on every call, so it moves within a child that is thrown away.
+        pushFrame(this.repository.newChildRepository());
+        try {
+            Callback.selfDestruct(this.contract, this.account);
+        } finally {
+            Callback.pop();
+        }
+    }
+
+    @Benchmark
+    public byte[] call() {
+        pushFrame(this.repository);
+        try {
+            return Callback.call(this.callMessage);
+        } finally {
+            Callback.pop();
+        }
+    }
+
+    private void pushFrame(RepositoryForTesting repository) {
+        ExecutionContext context = BenchmarkContracts.newContext(this.sender, new AionAddress(this.contract), new byte[0], 1_000_000L, TransactionKind.CALL);
+        Callback.push(Pair.of(context, BenchmarkContracts.newState(repository)));
+    }
+
+    /** Returns the message of a call, from the contract, to an account without code. */
+    private static byte[] newCallMessage(AionAddress destination, AionAddress sender, byte[] data) {
+        ByteBuffer buffer = ByteBuffer.allocate(AionAddress.LENGTH * 2 + 8 + 16 + 4 + data.length + 12);
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        buffer.put(destination.toByteArray());
+        buffer.put(sender.toByteArray());
+        buffer.putLong(100_000L);
+        buffer.put(new byte[16]);
+        buffer.putInt(data.length);
+        buffer.put(data);
+        buffer.putInt(1);
+        buffer.putInt(TransactionKind.CALL.intValue);
+        buffer.putInt(0);
+        return buffer.array();
+    }
+}
@@ -0,0 +1,446 @@
+package org.aion.fastvm;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+import org.aion.repository.RepositoryForTesting;
+import org.aion.types.AionAddress;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Measures how much wall time the FastVM spends per unit of energy in worst-case contracts, to
+ * find the instructions that are underpriced.
+ *
+ * <p>Every pattern is a contract that loops forever over a unit of bytecode built around one
+ * instruction, and is run with the whole block energy limit until it runs out of energy. Most
+ * instructions are generated from {@link Instruction}: their results are folded into an
+ * accumulator so that the JIT cannot remove them, and their operands come from the call data so
+ * that it cannot fold them into constants. The jumps, the stack instructions and the instructions
+ * that call back into the world state have patterns of their own; the latter touch a different
+ * key or account on every iteration.
+ *
+ * <p>The report gives the time per million energy of each pattern, which is also the time of a
+ * block that is full of it, and flags the patterns that are slower than the median by more than
+ * a factor. The world state is in memory, so the times of the state patterns are a lower bound
+ * for a node backed by a database.
+ *
+ * <p>Usage: {@code EnergyCalibration [--energy N] [--repeat R] [--outlier FACTOR] [--json FILE]}
+ */
+public final class EnergyCalibration {
+    private static final int UNROLL = 32;
+
+    // The words of the call data, 16 bytes each.
+    private static final int ACCUMULATOR = 0;
+    private static final int OPERAND = 16;
+    private static final int ZERO = 32;
+    private static final int OFFSET = 48;
+    private static final int ONE = 64;
+    private static final byte[] CALL_DATA = new byte[80];
+
+    static {
+        byte[] accumulator = {
+            (byte) 0xf1, (byte) 0xe2, (byte) 0xd3, (byte) 0xc4, (byte) 0xb5, (byte) 0xa6, (byte) 0x97, (byte) 0x88,
+            0x79, 0x6a, 0x5b, 0x4c, 0x3d, 0x2e, 0x1f, 0x01
+        };
+        System.arraycopy(accumulator, 0, CALL_DATA, ACCUMULATOR, 16);
+        long operand = 0x9e3779b97f4a7c15L;
+        for (int i = 0; i < 8; i++) {
+            CALL_DATA[OPERAND + 15 - i] = (byte) (operand >>> (8 * i));
+        }
+        CALL_DATA[OFFSET + 15] = 32;
+        CALL_DATA[ONE + 15] = 1;
+    }
+
+    /** The instructions that have patterns of their own, or none at all. */
+    private static final Set<Instruction> NOT_GENERATED =
+            EnumSet.of(
+                    Instruction.STOP,
+                    Instruction.RETURN,
+                    Instruction.REVERT,
+                    Instruction.SELFDESTRUCT,
+                    Instruction.JUMP,
+                    Instruction.JUMPI,
+                    Instruction.POP,
+                    Instruction.CREATE,
+                    Instruction.CALL,
+                    Instruction.CALLCODE,
+                    Instruction.DELEGATECALL,
+                    Instruction.STATICCALL,
+                    Instruction.SLOAD,
+                    Instruction.SSTORE,
+                    Instruction.BALANCE,
+                    Instruction.EXTCODESIZE,
+                    Instruction.EXTCODECOPY,
+                    Instruction.BLOCKHASH,
+                    Instruction.RETURNDATACOPY,
+                    Instruction.LOG0,
+                    Instruction.LOG1,
+                    Instruction.LOG2,
+                    Instruction.LOG3,
+                    Instruction.LOG4);
+
+    /** The instructions whose operands are memory or call data offsets and sizes. */
+    private static final Set<Instruction> TAKES_OFFSETS =
+            EnumSet.of(
+                    Instruction.CALLDATALOAD,
+                    Instruction.CALLDATACOPY,
+                    Instruction.CODECOPY,
+                    Instruction.MLOAD,
+                    Instruction.MSTORE,
+                    Instruction.MSTORE8,
+                    Instruction.SHA3);
+
+    /** A contract that burns energy with one instruction. */
+    static final class Pattern {
+        final String name;
+        final String group;
+        final byte[] code;
+
+        Pattern(String name, String group, Consumer<Code> setup, Consumer<Code> unit) {
+            this.name = name;
+            this.group = group;
+
+            Code code = new Code();
+            setup.accept(code);
+            int loop = code.size();
+            code.op(Instruction.JUMPDEST);
+            for (int i = 0; i < UNROLL; i++) {
+                unit.accept(code);
+            }
+            code.push(loop, 2).op(Instruction.JUMP);
+            this.code = code.toBytes();
+        }
+    }
+
+    /** The timing of a pattern. */
+    static final class Measurement {
+        final Pattern pattern;
+        final long energyUsed;
+        final long nanos;
+        final FastVmResultCode resultCode;
+
+        Measurement(Pattern pattern, long energyUsed, long nanos, FastVmResultCode resultCode) {
+            this.pattern = pattern;
+            this.energyUsed = energyUsed;
+            this.nanos = nanos;
+            this.resultCode = resultCode;
+        }
+
+        /** A pattern runs until it is out of energy; any other result means it is broken. */
+        boolean isValid() {
+            return this.resultCode == FastVmResultCode.OUT_OF_NRG && this.energyUsed > 0;
+        }
+
+        double millisPerMillionEnergy() {
+            return (this.nanos / 1e6) / (this.energyUsed / 1e6);
+        }
+    }
+
+    /** Bytecode under construction. */
+    static final class Code {
+        private final List<Byte> bytes = new ArrayList<>();
+
+        Code op(Instruction instruction) {
+            this.bytes.add(instruction.code());
+            return this;
+        }
+
+        /** Appends a PUSH of the value in the given number of bytes. */
+        Code push(long value, int width) {
+            op(Instruction.of(Instruction.PUSH1.code() + width - 1));
+            for (int i = width - 1; i >= 0; i--) {
+                this.bytes.add((i < 8) ? (byte) (value >>> (8 * i)) : 0);
+            }
+            return this;
+        }
+
+        Code push(long value) {
+            int width = 1;
+            while (width < 8 && (value >>> (8 * width)) != 0) {
+                width++;
+            }
+            return push(value, width);
+        }
+
+        /** Appends the loading of a word of the call data onto the stack. */
+        Code load(int word) {
+            return push(word).op(Instruction.CALLDATALOAD);
+        }
+
+        int size() {
+            return this.bytes.size();
+        }
+
+        byte[] toBytes() {
+            byte[] code = new byte[this.bytes.size()];
+            for (int i = 0; i < code.length; i++) {
+                code[i] = this.bytes.get(i);
+            }
+            return code;
+        }
+    }
+
+    private EnergyCalibration() {}
+
+    public static void main(String[] args) throws IOException {
+        long energy = BenchmarkContracts.BLOCK_ENERGY_LIMIT;
+        int repeat = 3;
+        double outlierFactor = 3.0;
+        String jsonPath = null;
+        for (int i = 0; i < args.length; i++) {
+            if (i + 1 == args.length) {
+                usage();
+            }
+            switch (args[i]) {
+                case "--energy":
+                    energy = Long.parseLong(args[++i]);
+                    break;
+                case "--repeat":
+                    repeat = Integer.parseInt(args[++i]);
+                    break;
+                case "--outlier":
+                    outlierFactor = Double.parseDouble(args[++i]);
+                    break;
+                case "--json":
+                    jsonPath = args[++i];
+                    break;
+                default:
+                    usage();
+            }
+        }
+
+        CapabilitiesProvider.installExternalCapabilities(BenchmarkContracts.CAPABILITIES);
+        RepositoryForTesting repository = RepositoryForTesting.newRepository();
+        AionAddress sender = BenchmarkContracts.newAccount(repository);
+
+        List<Measurement> measurements = new ArrayList<>();
+        for (Pattern pattern : patterns()) {
+            measurements.add(measure(repository, sender, pattern, energy, repeat));
+        }
+        CapabilitiesProvider.removeExternalCapabilities();
+
+        report(measurements, energy, outlierFactor, jsonPath);
+    }
+
+    private static void usage() {
+        System.err.println("Usage: EnergyCalibration [--energy N] [--repeat R] [--outlier FACTOR] [--json FILE]");
+        System.exit(2);
+    }
+
+    /** Returns every pattern. */
+    static List<Pattern> patterns() {
+        List<Pattern> patterns = new ArrayList<>();
+        for (Instruction instruction : Instruction.values()) {
+            if (NOT_GENERATED.contains(instruction) || isStackInstruction(instruction)) {
+                continue;
+            }
+            patterns.add(generated(instruction));
+        }
+        patterns.addAll(stackPatterns());
+        patterns.addAll(jumpPatterns());
+        patterns.addAll(statePatterns());
+        return patterns;
+    }
+
+    private static boolean isStackInstruction(Instruction instruction) {
+        return instruction.name().startsWith("PUSH")
+                || instruction.name().startsWith("DUP")
+                || instruction.name().startsWith("SWAP");
+    }
+
+    /**
+     * Returns the pattern of an instruction with the accumulator on top of the stack and its other
+     * operands below it. Every unit copies them, runs the instruction and XORs its results into the
+     * accumulator. The results of SHA3 are popped instead, since they would turn the offset in the
+     * accumulator into a huge one.
+     */
+    private static Pattern generated(Instruction instruction) {
+        boolean offsets = TAKES_OFFSETS.contains(instruction);
+        int operands = instruction.req();
+        Instruction dup = (operands > 0) ? Instruction.of(Instruction.DUP1.code() + operands - 1) : null;
+
+        Consumer<Code> setup = code -> {
+            for (int i = 1; i < operands; i++) {
+                code.load(offsets ? OFFSET : OPERAND);
+            }
+            // an offset of 32 in the accumulator reads zeros from memory and call data, so it stays
+            code.load(offsets ? OFFSET : ACCUMULATOR);
+        };
+        Consumer<Code> unit = code -> {
+            for (int i = 0; i < operands; i++) {
+                code.op(dup);
+            }
+            code.op(instruction);
+            Instruction fold = (instruction == Instruction.SHA3) ? Instruction.POP : Instruction.XOR;
+            for (int i = 0; i < instruction.ret(); i++) {
+                code.op(fold);
+            }
+        };
+        return new Pattern(instruction.name(), instruction.tier().name(), setup, unit);
+    }
+
+    /** Returns the patterns of the stack instructions, which the JIT resolves while compiling. */
+    private static List<Pattern> stackPatterns() {
+        Consumer<Code> fill = code -> {
+            for (int i = 0; i < 17; i++) {
+                code.load(ACCUMULATOR);
+            }
+        };
+        List<Pattern> patterns = new ArrayList<>();
+        patterns.add(new Pattern("POP", "stack", fill, code -> code.op(Instruction.DUP1).op(Instruction.POP)));
+        for (int width : new int[] {1, 16, 32}) {
+            Instruction push = Instruction.of(Instruction.PUSH1.code() + width - 1);
+            patterns.add(new Pattern(push.name(), "stack", fill, code -> {
+                code.push(0x5a, width);
+                for (int i = 0; i < push.ret(); i++) {
+                    code.op(Instruction.POP);
+                }
+            }));
+        }
+        for (int depth : new int[] {1, 16}) {
+            Instruction dup = Instruction.of(Instruction.DUP1.code() + depth - 1);
+            Instruction swap = Instruction.of(Instruction.SWAP1.code() + depth - 1);
+            patterns.add(new Pattern(dup.name(), "stack", fill, code -> code.op(dup).op(Instruction.POP)));
+            patterns.add(new Pattern(swap.name(), "stack", fill, code -> code.op(swap)));
+        }
+        return patterns;
+    }
+
+    /** Returns the patterns of the jumps; every unit is a basic block of its own. */
+    private static List<Pattern> jumpPatterns() {
+        Consumer<Code> none = code -> {};
+        return Arrays.asList(
+                new Pattern("JUMP/static", "jumps", none, code -> {
+                    int destination = code.size() + 4;
+                    code.push(destination, 2).op(Instruction.JUMP).op(Instruction.JUMPDEST);
+                }),
+                new Pattern("JUMPI/static", "jumps", code -> code.load(ONE), code -> {
+                    int destination = code.size() + 5;
+                    code.op(Instruction.DUP1).push(destination, 2).op(Instruction.JUMPI).op(Instruction.JUMPDEST);
+                }),
+                // XOR with a zero from the call data, so that the destination is only known at runtime
+                new Pattern("JUMP/dynamic", "jumps", code -> code.load(ZERO), code -> {
+                    int destination = code.size() + 6;
+                    code.op(Instruction.DUP1).push(destination, 2).op(Instruction.XOR).op(Instruction.JUMP).op(Instruction.JUMPDEST);
+                }));
+    }
+
+    /**
+     * Returns the patterns that call back into the world state, with a counter on top of the stack
+     * that gives every unit a different key or account.
+     */
+    private static List<Pattern> statePatterns() {
+        Consumer<Code> counter = code -> code.push(0x10000000L, 4);
+
+        List<Pattern> patterns = new ArrayList<>();
+        patterns.add(new Pattern("SLOAD", "state", counter, code -> {
+            code.op(Instruction.DUP1).op(Instruction.SLOAD).op(Instruction.POP);
+            increment(code);
+        }));
+        patterns.add(new Pattern("SSTORE/insert", "state", counter, code -> {
+            code.op(Instruction.DUP1).op(Instruction.DUP1).op(Instruction.SSTORE);
+            increment(code);
+        }));
+        patterns.add(new Pattern("SSTORE/overwrite", "state", counter, code ->
+                code.op(Instruction.DUP1).op(Instruction.DUP1).op(Instruction.SSTORE)));
+        // the addresses are the counter, below a zero high half
+        patterns.add(new Pattern("BALANCE", "state", counter, code -> {
+            code.op(Instruction.DUP1).push(0).op(Instruction.BALANCE).op(Instruction.POP);
+            increment(code);
+        }));
+        patterns.add(new Pattern("EXTCODESIZE", "state", counter, code -> {
+            code.op(Instruction.DUP1).push(0).op(Instruction.EXTCODESIZE).op(Instruction.POP);
+            increment(code);
+        }));
+        patterns.add(new Pattern("BLOCKHASH", "state", counter, code ->
+                code.push(0).op(Instruction.BLOCKHASH).op(Instruction.POP).op(Instruction.POP)));
+        patterns.add(new Pattern("LOG1", "state", counter, code ->
+                code.op(Instruction.DUP1).op(Instruction.DUP1).push(32).push(32).op(Instruction.LOG1)));
+        // a call without energy or value to an account without code
+        patterns.add(new Pattern("CALL", "state", counter, code -> {
+            code.push(0).push(0).push(0).push(0).push(0);
+            code.op(Instruction.DUP6).push(0).push(0).op(Instruction.CALL).op(Instruction.POP);
+            increment(code);
+        }));
+        return patterns;
+    }
+
+    private static void increment(Code code) {
+        code.push(1).op(Instruction.ADD);
+    }
+
+    /** Runs the pattern once to compile it, then returns the median of the given number of runs. */
+    private static Measurement measure(RepositoryForTesting repository, AionAddress sender, Pattern pattern, long energy, int repeat) {
+        AionAddress contract = BenchmarkContracts.randomAddress();
+        repository.saveCode(contract, pattern.code);
+
+        run(repository, sender, contract, pattern, energy);
+        List<Measurement> runs = new ArrayList<>();
+        for (int i = 0; i < repeat; i++) {
+            runs.add(run(repository, sender, contract, pattern, energy));
+        }
+        runs.sort((a, b) -> Long.compare(a.nanos, b.nanos));
+        return runs.get(runs.size() / 2);
+    }
+
+    private static Measurement run(RepositoryForTesting repository, AionAddress sender, AionAddress contract, Pattern pattern, long energy) {
+        // every run writes into a fresh child, so that the state patterns start from the same state
+        ExecutionContext context = BenchmarkContracts.newContext(sender, contract, CALL_DATA, energy, TransactionKind.CALL);
+        IExternalStateForFvm state = BenchmarkContracts.newState(repository.newChildRepository());
+
+        long start = System.nanoTime();
+        FastVmTransactionResult result = new FastVM().runPost040Fork(pattern.code, context, state);
+        long nanos = System.nanoTime() - start;
+        return new Measurement(pattern, energy - result.getEnergyRemaining(), nanos, result.getResultCode());
+    }
+
+    private static void report(List<Measurement> measurements, long energy, double outlierFactor, String jsonPath) throws IOException {
+        double[] valid = measurements.stream().filter(Measurement::isValid).mapToDouble(Measurement::millisPerMillionEnergy).sorted().toArray();
+        double median = (valid.length == 0) ? 0 : valid[valid.length / 2];
+
+        JSONArray results = new JSONArray();
+        Measurement worst = null;
+        int outliers = 0;
+        System.out.println(String.format("%-20s %-10s %14s %14s", "pattern", "group", "ms/Menergy", "block ms"));
+        for (Measurement measurement : measurements) {
+            if (!measurement.isValid()) {
+                System.out.println(String.format("%-20s %-10s %14s", measurement.pattern.name, measurement.pattern.group, "FAILED " + measurement.resultCode));
+                continue;
+            }
+
+            double perMillion = measurement.millisPerMillionEnergy();
+            boolean outlier = perMillion > median * outlierFactor;
+            outliers += outlier ? 1 : 0;
+            if (worst == null || perMillion > worst.millisPerMillionEnergy()) {
+                worst = measurement;
+            }
+            System.out.println(String.format("%-20s %-10s %14.3f %14.1f%s", measurement.pattern.name, measurement.pattern.group, perMillion, perMillion * energy / 1e6, outlier ? "  UNDERPRICED?" : ""));
+
+            results.put(new JSONObject()
+                    .put("name", measurement.pattern.name)
+                    .put("group", measurement.pattern.group)
+                    .put("energyUsed", measurement.energyUsed)
+                    .put("nanos", measurement.nanos)
+                    .put("msPerMillionEnergy", perMillion)
+                    .put("outlier", outlier));
+        }
+
+        System.out.println(String.format("%nMedian: %.3f ms per million energy. %d pattern(s) slower than %.1fx the median.", median, outliers, outlierFactor));
+        if (worst != null) {
+            System.out.println(String.format("Worst-case block of %d energy: %.1f ms (%s).", energy, worst.millisPerMillionEnergy() * energy / 1e6, worst.pattern.name));
+        }
+
+        if (jsonPath != null) {
+            JSONObject json = new JSONObject().put("blockEnergy", energy).put("medianMsPerMillionEnergy", median).put("patterns", results);
+            Files.write(Paths.get(jsonPath), json.toString(2).getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
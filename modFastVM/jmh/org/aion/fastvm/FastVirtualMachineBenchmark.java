@@ -0,0 +1,72 @@
+package org.aion.fastvm;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.concurrent.TimeUnit;
+import org.aion.ExternalStateForTesting;
+import org.aion.fastvm.BenchmarkContracts.Deployed;
+import org.aion.repository.RepositoryForTesting;
+import org.aion.types.AionAddress;
+import org.aion.types.Transaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Runs token transfers through {@link FastVirtualMachine#run}, including the rejection checks,
+ * the energy charge, the state decorators and the construction of the wrapped result.
+ *
+ * <p>The token is deployed into a repository that also holds a configurable number of other
+ * funded accounts and token holders, so that state lookups are not made against a near-empty
+ * repository. Every invocation runs against a fresh child of that repository.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class FastVirtualMachineBenchmark {
+    private static final long ENERGY_LIMIT = 2_000_000L;
+
+    @Param({"1000"})
+    public int holders;
+
+    private RepositoryForTesting repository;
+    private Transaction transfer;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        CapabilitiesProvider.installExternalCapabilities(BenchmarkContracts.CAPABILITIES);
+        this.repository = RepositoryForTesting.newRepository();
+        AionAddress owner = BenchmarkContracts.newAccount(this.repository);
+        Deployed token = BenchmarkContracts.deploy(this.repository, owner, "BenchmarkERC20.sol", "FixedSupplyToken");
+
+        // Spread the token over the other holders, committing every transfer.
+        for (int i = 0; i < this.holders; i++) {
+            AionAddress holder = BenchmarkContracts.newAccount(this.repository);
+            byte[] data = token.callData("transfer", holder.toByteArray(), BigInteger.ONE);
+            Transaction transaction = Transaction.contractCallTransaction(owner, token.address, new byte[32], this.repository.getNonce(owner), BigInteger.ZERO, data, ENERGY_LIMIT, 1L);
+            FastVirtualMachine.run(BenchmarkContracts.newState(this.repository), BenchmarkContracts.CAPABILITIES, transaction, true);
+        }
+        CapabilitiesProvider.removeExternalCapabilities();
+
+        byte[] data = token.callData("transfer", BenchmarkContracts.randomAddress().toByteArray(), BigInteger.ONE);
+        this.transfer = Transaction.contractCallTransaction(owner, token.address, new byte[32], this.repository.getNonce(owner), BigInteger.ZERO, data, ENERGY_LIMIT, 1L);
+    }
+
+    @Benchmark
+    public FvmWrappedTransactionResult run() {
+        ExternalStateForTesting state = BenchmarkContracts.newState(this.repository.newChildRepository());
+        return FastVirtualMachine.run(state, BenchmarkContracts.CAPABILITIES, this.transfer, true);
+    }
+}
@@ -0,0 +1,85 @@
+package org.aion.fastvm;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.concurrent.TimeUnit;
+import org.aion.fastvm.BenchmarkContracts.Deployed;
+import org.aion.repository.RepositoryForTesting;
+import org.aion.types.AionAddress;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Runs the test contracts directly through {@link FastVM#runPost040Fork}, which measures the JIT
+ * and the JNI upcalls without the transaction handling of {@link FastVirtualMachine}.
+ *
+ * <p>Every invocation runs against a fresh child of the deployed repository, so its writes never
+ * accumulate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class FastVmContractBenchmark {
+    private static final long ENERGY = 2_000_000L;
+
+    @Param({"BenchmarkERC20", "Fibonacci", "Recursive", "ByteArrayMap"})
+    public String contract;
+
+    private RepositoryForTesting repository;
+    private AionAddress sender;
+    private Deployed deployed;
+    private byte[] callData;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        CapabilitiesProvider.installExternalCapabilities(BenchmarkContracts.CAPABILITIES);
+        this.repository = RepositoryForTesting.newRepository();
+        this.sender = BenchmarkContracts.newAccount(this.repository);
+
+        switch (this.contract) {
+            case "BenchmarkERC20":
+                this.deployed = BenchmarkContracts.deploy(this.repository, this.sender, "BenchmarkERC20.sol", "FixedSupplyToken");
+                this.callData = this.deployed.callData("transfer", BenchmarkContracts.randomAddress().toByteArray(), BigInteger.ONE);
+                break;
+            case "Fibonacci":
+                this.deployed = BenchmarkContracts.deploy(this.repository, this.sender, "Fibonacci.sol", "Fibonacci");
+                this.callData = this.deployed.callData("fibonacci", BigInteger.valueOf(64));
+                break;
+            case "Recursive":
+                this.deployed = BenchmarkContracts.deploy(this.repository, this.sender, "Recursive.sol", "Recursive");
+                this.callData = this.deployed.callData("f", this.deployed.address.toByteArray(), BigInteger.valueOf(16));
+                break;
+            case "ByteArrayMap":
+                this.deployed = BenchmarkContracts.deploy(this.repository, this.sender, "ByteArrayMap.sol", "ByteArrayMap");
+                this.callData = this.deployed.callData("f");
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown contract: " + this.contract);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        CapabilitiesProvider.removeExternalCapabilities();
+    }
+
+    @Benchmark
+    public FastVmTransactionResult runPost040Fork() {
+        ExecutionContext context = BenchmarkContracts.newContext(this.sender, this.deployed.address, this.callData, ENERGY, TransactionKind.CALL);
+        return new FastVM().runPost040Fork(this.deployed.code, context, BenchmarkContracts.newState(this.repository.newChildRepository()));
+    }
+}
@@ -0,0 +1,65 @@
+package org.aion.fastvm;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.concurrent.TimeUnit;
+import org.aion.fastvm.BenchmarkContracts.Deployed;
+import org.aion.repository.RepositoryForTesting;
+import org.aion.types.AionAddress;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Runs a call-heavy transaction, a contract that recursively calls itself and logs at every level,
+ * under each {@link SideEffectsRecordingLevel}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class SideEffectsRecordingBenchmark {
+    private static final long ENERGY = 10_000_000L;
+    private static final int DEPTH = 128;
+
+    @Param({"FULL", "LOGS_ONLY", "CONSENSUS_MINIMUM"})
+    public SideEffectsRecordingLevel level;
+
+    private RepositoryForTesting repository;
+    private AionAddress sender;
+    private Deployed deployed;
+    private byte[] callData;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        CapabilitiesProvider.installExternalCapabilities(BenchmarkContracts.CAPABILITIES);
+        this.repository = RepositoryForTesting.newRepository();
+        this.sender = BenchmarkContracts.newAccount(this.repository);
+        this.deployed = BenchmarkContracts.deploy(this.repository, this.sender, "Recursive.sol", "Recursive");
+        this.callData = this.deployed.callData("f", this.deployed.address.toByteArray(), BigInteger.valueOf(DEPTH));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        CapabilitiesProvider.removeExternalCapabilities();
+    }
+
+    @Benchmark
+    public FastVmTransactionResult recursiveCall() {
+        ExecutionContext context = BenchmarkContracts.newContext(this.sender, this.deployed.address, this.callData, ENERGY, TransactionKind.CALL);
+        context.getSideEffects().setRecordingLevel(this.level);
+        return new FastVM().runPost040Fork(this.deployed.code, context, BenchmarkContracts.newState(this.repository.newChildRepository()));
+    }
+}
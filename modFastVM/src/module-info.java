@@ -4,6 +4,8 @@ module aion.fastvm {
     requires commons.collections4;
     requires org.json;
     requires aion.types;
+    requires java.management;
+    requires jdk.jfr;
 
     exports org.aion.solidity;
     exports org.aion.fastvm;
@@ -0,0 +1,258 @@
+package org.aion.fastvm;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.RandomAccess;
+import java.util.Set;
+import org.aion.types.AionAddress;
+
+/**
+ * The set of state that a transaction read and wrote during its execution, including the state
+ * touched by its nested calls and creates and the precompiled contracts it called.
+ *
+ * <p>Every list is sorted (addresses by their unsigned bytes, storage slots by address and then by
+ * key) and holds no duplicates. Reads and writes made by frames that were later rolled back are
+ * included, so an access list is a superset of the state the transaction's outcome depends on.
+ *
+ * <p>A precompiled contract's own state is not visible to the fvm, so a precompiled contract call
+ * is recorded as a read and a write of the precompiled contract's account.
+ *
+ * <p>Every list is held as a single sorted byte array of its packed entries, since an access list
+ * is kept for every transaction of a block, and the lists are unmodifiable views over those
+ * arrays that decode an entry each time it is read.
+ */
+public final class AccessList {
+    private static final int SLOT_SIZE = AionAddress.LENGTH + FvmDataWord.SIZE;
+
+    private final List<AionAddress> accountsRead;
+    private final List<AionAddress> accountsWritten;
+    private final List<AionAddress> balancesRead;
+    private final List<AionAddress> balancesWritten;
+    private final List<AionAddress> noncesRead;
+    private final List<AionAddress> noncesWritten;
+    private final List<AionAddress> codeRead;
+    private final List<AionAddress> codeWritten;
+    private final List<StorageSlot> storageRead;
+    private final List<StorageSlot> storageWritten;
+    private final List<AionAddress> touchedAccounts;
+
+    AccessList(
+            Collection<AionAddress> accountsRead,
+            Collection<AionAddress> accountsWritten,
+            Collection<AionAddress> balancesRead,
+            Collection<AionAddress> balancesWritten,
+            Collection<AionAddress> noncesRead,
+            Collection<AionAddress> noncesWritten,
+            Collection<AionAddress> codeRead,
+            Collection<AionAddress> codeWritten,
+            Map<AionAddress, Set<FvmDataWord>> storageRead,
+            Map<AionAddress, Set<FvmDataWord>> storageWritten) {
+
+        this.accountsRead = sortedAddresses(accountsRead);
+        this.accountsWritten = sortedAddresses(accountsWritten);
+        this.balancesRead = sortedAddresses(balancesRead);
+        this.balancesWritten = sortedAddresses(balancesWritten);
+        this.noncesRead = sortedAddresses(noncesRead);
+        this.noncesWritten = sortedAddresses(noncesWritten);
+        this.codeRead = sortedAddresses(codeRead);
+        this.codeWritten = sortedAddresses(codeWritten);
+        this.storageRead = sortedSlots(storageRead);
+        this.storageWritten = sortedSlots(storageWritten);
+
+        Set<AionAddress> touched = new HashSet<>();
+        touched.addAll(accountsRead);
+        touched.addAll(accountsWritten);
+        touched.addAll(balancesRead);
+        touched.addAll(balancesWritten);
+        touched.addAll(noncesRead);
+        touched.addAll(noncesWritten);
+        touched.addAll(codeRead);
+        touched.addAll(codeWritten);
+        touched.addAll(storageRead.keySet());
+        touched.addAll(storageWritten.keySet());
+        this.touchedAccounts = sortedAddresses(touched);
+    }
+
+    /** Returns the accounts whose existence, storage emptiness or vm type was queried. */
+    public List<AionAddress> accountsRead() {
+        return this.accountsRead;
+    }
+
+    /** Returns the accounts that were created or had their vm type set. */
+    public List<AionAddress> accountsWritten() {
+        return this.accountsWritten;
+    }
+
+    /** Returns the accounts whose balance was read. */
+    public List<AionAddress> balancesRead() {
+        return this.balancesRead;
+    }
+
+    /** Returns the accounts whose balance was changed. */
+    public List<AionAddress> balancesWritten() {
+        return this.balancesWritten;
+    }
+
+    /** Returns the accounts whose nonce was read. */
+    public List<AionAddress> noncesRead() {
+        return this.noncesRead;
+    }
+
+    /** Returns the accounts whose nonce was changed. */
+    public List<AionAddress> noncesWritten() {
+        return this.noncesWritten;
+    }
+
+    /** Returns the accounts whose code was read. */
+    public List<AionAddress> codeRead() {
+        return this.codeRead;
+    }
+
+    /** Returns the accounts whose code was saved. */
+    public List<AionAddress> codeWritten() {
+        return this.codeWritten;
+    }
+
+    /** Returns the storage slots that were read. */
+    public List<StorageSlot> storageRead() {
+        return this.storageRead;
+    }
+
+    /** Returns the storage slots that were written or removed. */
+    public List<StorageSlot> storageWritten() {
+        return this.storageWritten;
+    }
+
+    /** Returns every account that appears anywhere in this access list. */
+    public List<AionAddress> touchedAccounts() {
+        return this.touchedAccounts;
+    }
+
+    @Override
+    public String toString() {
+        return "AccessList { touched accounts = " + this.touchedAccounts.size()
+                + ", storage slots read = " + this.storageRead.size()
+                + ", storage slots written = " + this.storageWritten.size() + " }";
+    }
+
+    private static List<AionAddress> sortedAddresses(Collection<AionAddress> addresses) {
+        byte[][] entries = new byte[addresses.size()][];
+        int index = 0;
+        for (AionAddress address : addresses) {
+            entries[index++] = address.toByteArray();
+        }
+        return new Addresses(pack(entries, AionAddress.LENGTH));
+    }
+
+    private static List<StorageSlot> sortedSlots(Map<AionAddress, Set<FvmDataWord>> storage) {
+        int size = 0;
+        for (Set<FvmDataWord> keys : storage.values()) {
+            size += keys.size();
+        }
+
+        // An entry is the address followed by the key, so that entries sort by address, then by key.
+        byte[][] entries = new byte[size][];
+        int index = 0;
+        for (Map.Entry<AionAddress, Set<FvmDataWord>> entry : storage.entrySet()) {
+            byte[] address = entry.getKey().toByteArray();
+            for (FvmDataWord key : entry.getValue()) {
+                byte[] slot = Arrays.copyOf(address, SLOT_SIZE);
+                System.arraycopy(key.copyOfData(), 0, slot, AionAddress.LENGTH, FvmDataWord.SIZE);
+                entries[index++] = slot;
+            }
+        }
+        return new StorageSlots(pack(entries, SLOT_SIZE));
+    }
+
+    /** Sorts the given entries by their unsigned bytes and concatenates them. */
+    private static byte[] pack(byte[][] entries, int entrySize) {
+        Arrays.sort(entries, Arrays::compareUnsigned);
+        byte[] packed = new byte[entries.length * entrySize];
+        for (int i = 0; i < entries.length; i++) {
+            System.arraycopy(entries[i], 0, packed, i * entrySize, entrySize);
+        }
+        return packed;
+    }
+
+    /** An unmodifiable view of packed addresses. */
+    private static final class Addresses extends AbstractList<AionAddress> implements RandomAccess {
+        private final byte[] packed;
+
+        private Addresses(byte[] packed) {
+            this.packed = packed;
+        }
+
+        @Override
+        public AionAddress get(int index) {
+            Objects.checkIndex(index, size());
+            int from = index * AionAddress.LENGTH;
+            return new AionAddress(Arrays.copyOfRange(this.packed, from, from + AionAddress.LENGTH));
+        }
+
+        @Override
+        public int size() {
+            return this.packed.length / AionAddress.LENGTH;
+        }
+    }
+
+    /** An unmodifiable view of packed storage slots. */
+    private static final class StorageSlots extends AbstractList<StorageSlot> implements RandomAccess {
+        private final byte[] packed;
+
+        private StorageSlots(byte[] packed) {
+            this.packed = packed;
+        }
+
+        @Override
+        public StorageSlot get(int index) {
+            Objects.checkIndex(index, size());
+            int from = index * SLOT_SIZE;
+            AionAddress address = new AionAddress(Arrays.copyOfRange(this.packed, from, from + AionAddress.LENGTH));
+            FvmDataWord key = FvmDataWord.fromBytes(Arrays.copyOfRange(this.packed, from + AionAddress.LENGTH, from + SLOT_SIZE));
+            return new StorageSlot(address, key);
+        }
+
+        @Override
+        public int size() {
+            return this.packed.length / SLOT_SIZE;
+        }
+    }
+
+    /** A single storage key of a single account. */
+    public static final class StorageSlot {
+        public final AionAddress address;
+        public final FvmDataWord key;
+
+        StorageSlot(AionAddress address, FvmDataWord key) {
+            this.address = address;
+            this.key = key;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof StorageSlot)) {
+                return false;
+            } else if (other == this) {
+                return true;
+            }
+
+            StorageSlot otherSlot = (StorageSlot) other;
+            return this.address.equals(otherSlot.address) && this.key.equals(otherSlot.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * this.address.hashCode() + this.key.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return "StorageSlot { address = " + this.address + ", key = " + this.key + " }";
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package org.aion.fastvm;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import org.aion.types.AionAddress;
+
+/**
+ * Collects the state accesses of a single transaction, to be turned into an {@link AccessList}
+ * once the transaction is done.
+ *
+ * <p>One recorder is shared by every {@link AccessRecordingExternalState} of a transaction. This
+ * class is not thread-safe.
+ */
+final class AccessListRecorder {
+    private final Set<AionAddress> accountsRead = new HashSet<>();
+    private final Set<AionAddress> accountsWritten = new HashSet<>();
+    private final Set<AionAddress> balancesRead = new HashSet<>();
+    private final Set<AionAddress> balancesWritten = new HashSet<>();
+    private final Set<AionAddress> noncesRead = new HashSet<>();
+    private final Set<AionAddress> noncesWritten = new HashSet<>();
+    private final Set<AionAddress> codeRead = new HashSet<>();
+    private final Set<AionAddress> codeWritten = new HashSet<>();
+    private final Map<AionAddress, Set<FvmDataWord>> storageRead = new HashMap<>();
+    private final Map<AionAddress, Set<FvmDataWord>> storageWritten = new HashMap<>();
+
+    void accountRead(AionAddress address) {
+        this.accountsRead.add(address);
+    }
+
+    void accountWritten(AionAddress address) {
+        this.accountsWritten.add(address);
+    }
+
+    void balanceRead(AionAddress address) {
+        this.balancesRead.add(address);
+    }
+
+    void balanceWritten(AionAddress address) {
+        this.balancesWritten.add(address);
+    }
+
+    void nonceRead(AionAddress address) {
+        this.noncesRead.add(address);
+    }
+
+    void nonceWritten(AionAddress address) {
+        this.noncesWritten.add(address);
+    }
+
+    void codeRead(AionAddress address) {
+        this.codeRead.add(address);
+    }
+
+    void codeWritten(AionAddress address) {
+        this.codeWritten.add(address);
+    }
+
+    void storageRead(AionAddress address, FvmDataWord key) {
+        this.storageRead.computeIfAbsent(address, a -> new HashSet<>()).add(key);
+    }
+
+    void storageWritten(AionAddress address, FvmDataWord key) {
+        this.storageWritten.computeIfAbsent(address, a -> new HashSet<>()).add(key);
+    }
+
+    /** Returns everything recorded so far as a sorted access list. */
+    AccessList toAccessList() {
+        return new AccessList(
+                this.accountsRead,
+                this.accountsWritten,
+                this.balancesRead,
+                this.balancesWritten,
+                this.noncesRead,
+                this.noncesWritten,
+                this.codeRead,
+                this.codeWritten,
+                this.storageRead,
+                this.storageWritten);
+    }
+}
@@ -0,0 +1,143 @@
+package org.aion.fastvm;
+
+import java.math.BigInteger;
+import java.util.List;
+import org.aion.types.AionAddress;
+
+/**
+ * A world state that records every state access made through it, and through its child world
+ * states, into a shared {@link AccessListRecorder}.
+ */
+final class AccessRecordingExternalState extends ForwardingExternalState {
+    private final AccessListRecorder recorder;
+
+    AccessRecordingExternalState(IExternalStateForFvm delegate, AccessListRecorder recorder) {
+        super(delegate);
+        if (recorder == null) {
+            throw new NullPointerException("Cannot record into a null recorder!");
+        }
+        this.recorder = recorder;
+    }
+
+    @Override
+    public IExternalStateForFvm newChildExternalState() {
+        return new AccessRecordingExternalState(this.delegate.newChildExternalState(), this.recorder);
+    }
+
+    @Override
+    public FastVmTransactionResult runInternalPrecompiledContractCall(ExecutionContext context) {
+        this.recorder.accountRead(context.getDestinationAddress());
+        this.recorder.accountWritten(context.getDestinationAddress());
+        return super.runInternalPrecompiledContractCall(context);
+    }
+
+    @Override
+    public void addStorageValue(AionAddress address, FvmDataWord key, FvmDataWord value) {
+        this.recorder.storageWritten(address, key);
+        super.addStorageValue(address, key, value);
+    }
+
+    @Override
+    public void removeStorage(AionAddress address, FvmDataWord key) {
+        this.recorder.storageWritten(address, key);
+        super.removeStorage(address, key);
+    }
+
+    @Override
+    public FvmDataWord getStorageValue(AionAddress address, FvmDataWord key) {
+        this.recorder.storageRead(address, key);
+        return super.getStorageValue(address, key);
+    }
+
+    @Override
+    public List<FvmDataWord> getStorageValues(AionAddress address, List<FvmDataWord> keys) {
+        for (FvmDataWord key : keys) {
+            this.recorder.storageRead(address, key);
+        }
+        return super.getStorageValues(address, keys);
+    }
+
+    @Override
+    public boolean destinationAddressIsSafeForFvm(AionAddress destination) {
+        this.recorder.accountRead(destination);
+        return super.destinationAddressIsSafeForFvm(destination);
+    }
+
+    @Override
+    public byte[] getCode(AionAddress address) {
+        this.recorder.codeRead(address);
+        return super.getCode(address);
+    }
+
+    @Override
+    public void putCode(AionAddress address, byte[] code) {
+        this.recorder.codeWritten(address);
+        super.putCode(address, code);
+    }
+
+    @Override
+    public boolean hasStorage(AionAddress address) {
+        this.recorder.accountRead(address);
+        return super.hasStorage(address);
+    }
+
+    @Override
+    public boolean hasAccountState(AionAddress address) {
+        this.recorder.accountRead(address);
+        return super.hasAccountState(address);
+    }
+
+    @Override
+    public void createAccount(AionAddress address) {
+        this.recorder.accountWritten(address);
+        super.createAccount(address);
+    }
+
+    @Override
+    public void setVmType(AionAddress address) {
+        this.recorder.accountWritten(address);
+        super.setVmType(address);
+    }
+
+    @Override
+    public BigInteger getBalance(AionAddress address) {
+        this.recorder.balanceRead(address);
+        return super.getBalance(address);
+    }
+
+    @Override
+    public void addBalance(AionAddress address, BigInteger amount) {
+        this.recorder.balanceWritten(address);
+        super.addBalance(address, amount);
+    }
+
+    @Override
+    public BigInteger getNonce(AionAddress address) {
+        this.recorder.nonceRead(address);
+        return super.getNonce(address);
+    }
+
+    @Override
+    public void incrementNonce(AionAddress address) {
+        this.recorder.nonceWritten(address);
+        super.incrementNonce(address);
+    }
+
+    @Override
+    public boolean accountNonceEquals(AionAddress address, BigInteger nonce) {
+        this.recorder.nonceRead(address);
+        return super.accountNonceEquals(address, nonce);
+    }
+
+    @Override
+    public boolean accountBalanceIsAtLeast(AionAddress address, BigInteger balance) {
+        this.recorder.balanceRead(address);
+        return super.accountBalanceIsAtLeast(address, balance);
+    }
+
+    @Override
+    public void deductEnergyCost(AionAddress address, BigInteger energyCost) {
+        this.recorder.balanceWritten(address);
+        super.deductEnergyCost(address, energyCost);
+    }
+}
@@ -0,0 +1,164 @@
+package org.aion.fastvm;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.aion.types.AionAddress;
+
+/**
+ * A counting bloom filter over the set of accounts that exist in the world state, used to answer
+ * "this account does not exist" without querying the state.
+ *
+ * <p>The filter never produces false negatives as long as every existing account has been added
+ * to it: the owner of the filter must add every account of the world state up front and must call
+ * {@link #remove(AionAddress)} once an account has actually been deleted from the state (not when
+ * a self-destruct merely schedules its deletion, since the transaction may still be rolled back).
+ * Accounts created by the fvm itself are added by {@link FastVirtualMachine}. A positive answer
+ * only means the account might exist.
+ *
+ * <p>Every counter is 4 bits wide. A counter that reaches its maximum stays there, so removals can
+ * never cause false negatives, only a slightly higher false positive rate.
+ *
+ * <p>This class is thread-safe.
+ */
+public final class AccountExistenceFilter {
+    private static final VarHandle LONG_VIEW =
+            MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private static final int COUNTERS_PER_LONG = 16;
+    private static final long COUNTER_MAX = 0xF;
+    private static final int MAX_HASHES = 16;
+
+    private final AtomicLongArray counters;
+    private final long mask;
+    private final int numberOfHashes;
+
+    /**
+     * Constructs a new empty filter sized to hold the given number of accounts with roughly the
+     * given false positive probability.
+     *
+     * @param expectedAccounts The expected number of accounts.
+     * @param falsePositiveProbability The desired false positive probability.
+     */
+    public AccountExistenceFilter(int expectedAccounts, double falsePositiveProbability) {
+        if (expectedAccounts <= 0) {
+            throw new IllegalArgumentException("Expected accounts must be positive: " + expectedAccounts);
+        }
+        if (!(falsePositiveProbability > 0 && falsePositiveProbability < 1)) {
+            throw new IllegalArgumentException("False positive probability must be in (0, 1): " + falsePositiveProbability);
+        }
+
+        double bits = -expectedAccounts * Math.log(falsePositiveProbability) / (Math.log(2) * Math.log(2));
+        long numberOfCounters = Math.max(Long.highestOneBit((long) Math.ceil(bits) - 1) << 1, COUNTERS_PER_LONG);
+        if (numberOfCounters / COUNTERS_PER_LONG > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Filter too large for " + expectedAccounts + " accounts!");
+        }
+
+        this.counters = new AtomicLongArray((int) (numberOfCounters / COUNTERS_PER_LONG));
+        this.mask = numberOfCounters - 1;
+        this.numberOfHashes = (int) Math.max(1, Math.min(MAX_HASHES, Math.round((double) numberOfCounters / expectedAccounts * Math.log(2))));
+    }
+
+    /**
+     * Records that the given account exists.
+     *
+     * @param address The account.
+     */
+    public void add(AionAddress address) {
+        byte[] bytes = address.toByteArray();
+        long h1 = hash1(bytes);
+        long h2 = hash2(bytes);
+        for (int i = 0; i < this.numberOfHashes; i++) {
+            increment((h1 + i * h2) & this.mask);
+        }
+    }
+
+    /**
+     * Records that the given account, which was previously added, no longer exists.
+     *
+     * @param address The account.
+     */
+    public void remove(AionAddress address) {
+        byte[] bytes = address.toByteArray();
+        long h1 = hash1(bytes);
+        long h2 = hash2(bytes);
+        for (int i = 0; i < this.numberOfHashes; i++) {
+            decrement((h1 + i * h2) & this.mask);
+        }
+    }
+
+    /**
+     * Returns {@code false} only if the given account definitely does not exist.
+     *
+     * @param address The account.
+     * @return whether the account might exist.
+     */
+    public boolean mightContain(AionAddress address) {
+        byte[] bytes = address.toByteArray();
+        long h1 = hash1(bytes);
+        long h2 = hash2(bytes);
+        for (int i = 0; i < this.numberOfHashes; i++) {
+            if (counter((h1 + i * h2) & this.mask) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "AccountExistenceFilter { counters = " + (this.mask + 1) + ", hashes = " + this.numberOfHashes + " }";
+    }
+
+    private long counter(long index) {
+        long word = this.counters.get((int) (index / COUNTERS_PER_LONG));
+        return (word >>> shift(index)) & COUNTER_MAX;
+    }
+
+    private void increment(long index) {
+        int wordIndex = (int) (index / COUNTERS_PER_LONG);
+        int shift = shift(index);
+        long word;
+        do {
+            word = this.counters.get(wordIndex);
+            if (((word >>> shift) & COUNTER_MAX) == COUNTER_MAX) {
+                return;
+            }
+        } while (!this.counters.compareAndSet(wordIndex, word, word + (1L << shift)));
+    }
+
+    private void decrement(long index) {
+        int wordIndex = (int) (index / COUNTERS_PER_LONG);
+        int shift = shift(index);
+        long word;
+        do {
+            word = this.counters.get(wordIndex);
+            long count = (word >>> shift) & COUNTER_MAX;
+            if (count == 0 || count == COUNTER_MAX) {
+                return;
+            }
+        } while (!this.counters.compareAndSet(wordIndex, word, word - (1L << shift)));
+    }
+
+    private static int shift(long index) {
+        return (int) (index % COUNTERS_PER_LONG) * 4;
+    }
+
+    private static long hash1(byte[] address) {
+        return mix((long) LONG_VIEW.get(address, 0) ^ (long) LONG_VIEW.get(address, 16));
+    }
+
+    private static long hash2(byte[] address) {
+        // Odd, so that every probe lands on a distinct counter.
+        return mix((long) LONG_VIEW.get(address, 8) ^ (long) LONG_VIEW.get(address, 24)) | 1;
+    }
+
+    private static long mix(long h) {
+        h ^= (h >>> 33);
+        h *= 0xff51afd7ed558ccdL;
+        h ^= (h >>> 33);
+        h *= 0xc4ceb9fe1a85ec53L;
+        return h ^ (h >>> 33);
+    }
+}
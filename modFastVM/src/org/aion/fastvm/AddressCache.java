@@ -0,0 +1,98 @@
+package org.aion.fastvm;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import org.aion.types.AionAddress;
+
+/**
+ * A small open-addressing cache that canonicalizes raw 32-byte addresses into {@link AionAddress}
+ * instances.
+ *
+ * <p>Lookups are keyed directly by the raw bytes (optionally at an offset into a larger array), so
+ * a hit does not allocate. Because every hit returns the same instance, state implementations may
+ * rely on cheap identity checks before falling back to {@link AionAddress#equals(Object)}.
+ *
+ * <p>The cache is bounded: once it is three-quarters full it is cleared and starts refilling.
+ *
+ * <p>This class is not thread-safe. {@link Callback} keeps one instance per thread.
+ */
+final class AddressCache {
+    private static final VarHandle LONG_VIEW =
+            MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    static final int CAPACITY = 512;
+    private static final int MASK = CAPACITY - 1;
+    private static final int MAX_SIZE = (CAPACITY * 3) / 4;
+
+    private final byte[][] keys = new byte[CAPACITY][];
+    private final AionAddress[] addresses = new AionAddress[CAPACITY];
+    private int size = 0;
+
+    /**
+     * Returns the canonical address whose bytes are the given 32 bytes.
+     *
+     * @param address The raw address bytes.
+     * @return the canonical address.
+     */
+    AionAddress get(byte[] address) {
+        if (address.length != AionAddress.LENGTH) {
+            // Let the AionAddress constructor produce the usual error.
+            return new AionAddress(address);
+        }
+        return get(address, 0);
+    }
+
+    /**
+     * Returns the canonical address whose bytes are the 32 bytes of {@code source} starting at
+     * {@code offset}.
+     *
+     * @param source The array holding the raw address bytes.
+     * @param offset The index of the first address byte.
+     * @return the canonical address.
+     */
+    AionAddress get(byte[] source, int offset) {
+        int index = hash(source, offset) & MASK;
+        byte[] key;
+        while ((key = this.keys[index]) != null) {
+            if (Arrays.equals(key, 0, AionAddress.LENGTH, source, offset, offset + AionAddress.LENGTH)) {
+                return this.addresses[index];
+            }
+            index = (index + 1) & MASK;
+        }
+
+        if (this.size == MAX_SIZE) {
+            clear();
+            index = hash(source, offset) & MASK;
+        }
+
+        key = Arrays.copyOfRange(source, offset, offset + AionAddress.LENGTH);
+        AionAddress address = new AionAddress(key);
+        this.keys[index] = key;
+        this.addresses[index] = address;
+        this.size++;
+        return address;
+    }
+
+    /** Returns the number of cached addresses. */
+    int size() {
+        return this.size;
+    }
+
+    /** Removes all cached addresses. */
+    void clear() {
+        Arrays.fill(this.keys, null);
+        Arrays.fill(this.addresses, null);
+        this.size = 0;
+    }
+
+    private static int hash(byte[] source, int offset) {
+        long h = (long) LONG_VIEW.get(source, offset);
+        h = h * 31 + (long) LONG_VIEW.get(source, offset + 8);
+        h = h * 31 + (long) LONG_VIEW.get(source, offset + 16);
+        h = h * 31 + (long) LONG_VIEW.get(source, offset + 24);
+        h ^= (h >>> 32);
+        return (int) (h ^ (h >>> 16));
+    }
+}
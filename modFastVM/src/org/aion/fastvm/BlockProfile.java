@@ -0,0 +1,125 @@
+package org.aion.fastvm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.aion.fastvm.util.HexUtil;
+
+/**
+ * How many times one basic block of a contract's code was executed while {@link FastVmProfiler}
+ * was enabled, and how much energy it consumed.
+ *
+ * <p>A basic block runs from a {@code JUMPDEST}, or the instruction after a jump or a halting
+ * instruction, up to and including the next jump or halting instruction, or up to the next {@code
+ * JUMPDEST}. The energy of a block includes that of the calls it makes; a block that ran out of
+ * energy is counted, but its energy is not.
+ *
+ * <p>This class is immutable.
+ */
+public final class BlockProfile {
+    private final byte[] codeHash;
+    private final byte[] code;
+    private final int offset;
+    private final int endOffset;
+    private final long executionCount;
+    private final long energyUsed;
+
+    BlockProfile(byte[] codeHash, byte[] code, int offset, long executionCount, long energyUsed) {
+        this.codeHash = codeHash;
+        this.code = code;
+        this.offset = offset;
+        this.endOffset = endOf(code, offset);
+        this.executionCount = executionCount;
+        this.energyUsed = energyUsed;
+    }
+
+    /** Returns the hash of the code the block belongs to. */
+    public byte[] getCodeHash() {
+        return this.codeHash.clone();
+    }
+
+    /** Returns the offset of the first instruction of the block. */
+    public int getOffset() {
+        return this.offset;
+    }
+
+    /** Returns the offset just after the last instruction of the block. */
+    public int getEndOffset() {
+        return this.endOffset;
+    }
+
+    /** Returns the number of times the block was entered. */
+    public long getExecutionCount() {
+        return this.executionCount;
+    }
+
+    /** Returns the energy consumed by the block, over all its executions. */
+    public long getEnergyUsed() {
+        return this.energyUsed;
+    }
+
+    /**
+     * Returns the instructions of the block, one per element, each as its offset, the name of its
+     * {@link Instruction} and its push data if it has any, e.g. {@code "0x0012 PUSH1 0x80"}.
+     */
+    public List<String> getInstructions() {
+        List<String> instructions = new ArrayList<>();
+        for (int offset = this.offset; offset < this.endOffset; offset = nextOf(this.code, offset)) {
+            int opcode = this.code[offset] & 0xff;
+            Instruction instruction = Instruction.of(opcode);
+
+            StringBuilder builder = new StringBuilder(String.format("0x%04x ", offset));
+            builder.append((instruction == null) ? String.format("UNKNOWN(0x%02x)", opcode) : instruction.name());
+            if (isPush(opcode)) {
+                int start = Math.min(offset + 1, this.code.length);
+                int end = Math.min(nextOf(this.code, offset), this.code.length);
+                byte[] data = new byte[end - start];
+                System.arraycopy(this.code, start, data, 0, data.length);
+                builder.append(" 0x").append(HexUtil.toHexString(data));
+            }
+            instructions.add(builder.toString());
+        }
+        return Collections.unmodifiableList(instructions);
+    }
+
+    @Override
+    public String toString() {
+        return "BlockProfile { code hash = " + HexUtil.toHexString(this.codeHash)
+            + ", offset = " + this.offset
+            + ", end offset = " + this.endOffset
+            + ", execution count = " + this.executionCount
+            + ", energy used = " + this.energyUsed
+            + " }";
+    }
+
+    /** Returns the offset just after the basic block that starts at the given offset. */
+    private static int endOf(byte[] code, int offset) {
+        while (offset < code.length) {
+            Instruction instruction = Instruction.of(code[offset]);
+            offset = nextOf(code, offset);
+            if (endsBlock(instruction) || (offset < code.length && Instruction.of(code[offset]) == Instruction.JUMPDEST)) {
+                break;
+            }
+        }
+        return Math.min(offset, code.length);
+    }
+
+    private static boolean endsBlock(Instruction instruction) {
+        return instruction == Instruction.JUMP
+            || instruction == Instruction.JUMPI
+            || instruction == Instruction.RETURN
+            || instruction == Instruction.REVERT
+            || instruction == Instruction.STOP
+            || instruction == Instruction.SELFDESTRUCT;
+    }
+
+    /** Returns the offset of the instruction after the one at the given offset. */
+    private static int nextOf(byte[] code, int offset) {
+        int opcode = code[offset] & 0xff;
+        return isPush(opcode) ? offset + 1 + (opcode - Instruction.PUSH1.code() + 1) : offset + 1;
+    }
+
+    private static boolean isPush(int opcode) {
+        return opcode >= (Instruction.PUSH1.code() & 0xff) && opcode <= (Instruction.PUSH32.code() & 0xff);
+    }
+}
@@ -0,0 +1,187 @@
+package org.aion.fastvm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.aion.types.Log;
+
+/**
+ * A {@link LogSink} that computes the 2048-bit log bloom of the logs it receives as they arrive,
+ * and keeps their raw bytes in one byte arena.
+ *
+ * <p>The address and every topic of a log are added to the bloom by hashing them and setting the
+ * three bits selected by the low 11 bits of the first three pairs of bytes of the hash. Since the
+ * bits of a bloom cannot be removed, the bloom is recomputed from the remaining logs when logs are
+ * reverted, which only happens when a frame fails.
+ *
+ * <p>The arena and the record arrays only ever grow, so a sink that is {@link #reset()} and reused
+ * for every transaction on a thread stops allocating once it has seen its largest transaction.
+ *
+ * <p>This class is not thread-safe.
+ */
+public final class BloomLogSink implements LogSink {
+    public static final int BLOOM_SIZE = 256;
+    private static final int INITIAL_RECORDS = 8;
+    private static final int INITIAL_ARENA_SIZE = 256;
+    private static final int TOPIC_SIZE = 32;
+
+    private final IExternalCapabilities capabilities;
+    private final byte[] bloom = new byte[BLOOM_SIZE];
+    private final byte[] topic = new byte[TOPIC_SIZE];
+
+    // Logs, each laid out in the arena as: address | topics | data.
+    private byte[] arena = new byte[INITIAL_ARENA_SIZE];
+    private int arenaSize = 0;
+    private int count = 0;
+    private int[] offsets = new int[INITIAL_RECORDS];
+    private int[] addressLengths = new int[INITIAL_RECORDS];
+    private int[] topicsLengths = new int[INITIAL_RECORDS];
+    private int[] dataLengths = new int[INITIAL_RECORDS];
+
+    /**
+     * Constructs a new sink that hashes with the given capabilities.
+     *
+     * @param capabilities The capabilities whose hash function the bloom is built with.
+     */
+    public BloomLogSink(IExternalCapabilities capabilities) {
+        if (capabilities == null) {
+            throw new NullPointerException("Cannot construct a sink with null capabilities!");
+        }
+        this.capabilities = capabilities;
+    }
+
+    @Override
+    public void log(byte[] address, byte[] topics, byte[] data) {
+        int index = this.count;
+        if (index == this.offsets.length) {
+            int capacity = index * 2;
+            this.offsets = Arrays.copyOf(this.offsets, capacity);
+            this.addressLengths = Arrays.copyOf(this.addressLengths, capacity);
+            this.topicsLengths = Arrays.copyOf(this.topicsLengths, capacity);
+            this.dataLengths = Arrays.copyOf(this.dataLengths, capacity);
+        }
+
+        this.offsets[index] = append(address);
+        append(topics);
+        append(data);
+        this.addressLengths[index] = address.length;
+        this.topicsLengths[index] = topics.length;
+        this.dataLengths[index] = data.length;
+        this.count++;
+
+        addToBloom(index);
+    }
+
+    @Override
+    public int mark() {
+        return this.count;
+    }
+
+    @Override
+    public void revertTo(int mark) {
+        if (mark < 0 || mark > this.count) {
+            throw new IllegalArgumentException("Cannot revert to unknown mark: " + mark);
+        }
+        if (mark == this.count) {
+            return;
+        }
+
+        this.count = mark;
+        this.arenaSize = (mark == 0) ? 0 : this.offsets[mark];
+        Arrays.fill(this.bloom, (byte) 0);
+        for (int i = 0; i < mark; i++) {
+            addToBloom(i);
+        }
+    }
+
+    /** Forgets every log, keeping the memory allocated so far for the next transaction. */
+    public void reset() {
+        this.count = 0;
+        this.arenaSize = 0;
+        Arrays.fill(this.bloom, (byte) 0);
+    }
+
+    /** Returns the number of logs held by this sink. */
+    public int size() {
+        return this.count;
+    }
+
+    /** Returns the log bloom of the logs held by this sink. */
+    public byte[] copyOfBloom() {
+        return Arrays.copyOf(this.bloom, BLOOM_SIZE);
+    }
+
+    /**
+     * Returns the log at the given index.
+     *
+     * @param index The index of the log, in the order the logs were received.
+     * @return the log.
+     */
+    public Log getLog(int index) {
+        if (index < 0 || index >= this.count) {
+            throw new IndexOutOfBoundsException("No log at index: " + index);
+        }
+
+        int offset = this.offsets[index];
+        byte[] address = Arrays.copyOfRange(this.arena, offset, offset + this.addressLengths[index]);
+        offset += this.addressLengths[index];
+
+        int topicsEnd = offset + this.topicsLengths[index];
+        List<byte[]> topics = new ArrayList<>();
+        for (; offset < topicsEnd; offset += TOPIC_SIZE) {
+            // A trailing partial topic is zero-padded, as it is in the side effects.
+            topics.add(Arrays.copyOf(Arrays.copyOfRange(this.arena, offset, Math.min(offset + TOPIC_SIZE, topicsEnd)), TOPIC_SIZE));
+        }
+        offset = topicsEnd;
+
+        byte[] data = Arrays.copyOfRange(this.arena, offset, offset + this.dataLengths[index]);
+        return Log.topicsAndData(address, topics, data);
+    }
+
+    /** Returns all of the logs held by this sink, in the order they were received. */
+    public List<Log> getLogs() {
+        List<Log> logs = new ArrayList<>(this.count);
+        for (int i = 0; i < this.count; i++) {
+            logs.add(getLog(i));
+        }
+        return logs;
+    }
+
+    private void addToBloom(int index) {
+        int offset = this.offsets[index];
+        addToBloom(Arrays.copyOfRange(this.arena, offset, offset + this.addressLengths[index]));
+        offset += this.addressLengths[index];
+
+        int topicsEnd = offset + this.topicsLengths[index];
+        for (; offset < topicsEnd; offset += TOPIC_SIZE) {
+            int length = Math.min(TOPIC_SIZE, topicsEnd - offset);
+            System.arraycopy(this.arena, offset, this.topic, 0, length);
+            Arrays.fill(this.topic, length, TOPIC_SIZE, (byte) 0);
+            addToBloom(this.topic);
+        }
+    }
+
+    private void addToBloom(byte[] element) {
+        byte[] hash = this.capabilities.hash256(element);
+        for (int i = 0; i < 6; i += 2) {
+            int bit = ((hash[i] & 0x7) << 8) | (hash[i + 1] & 0xFF);
+            this.bloom[BLOOM_SIZE - 1 - (bit >>> 3)] |= (byte) (1 << (bit & 0x7));
+        }
+    }
+
+    /** Copies the given bytes to the end of the arena and returns the offset they were copied to. */
+    private int append(byte[] bytes) {
+        int offset = this.arenaSize;
+        int size = offset + bytes.length;
+        if (size > this.arena.length) {
+            int capacity = this.arena.length;
+            while (capacity < size) {
+                capacity *= 2;
+            }
+            this.arena = Arrays.copyOf(this.arena, capacity);
+        }
+        System.arraycopy(bytes, 0, this.arena, offset, bytes.length);
+        this.arenaSize = size;
+        return offset;
+    }
+}
@@ -3,22 +3,17 @@ package org.aion.fastvm;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.LinkedList;
-import java.util.List;
 
+import org.aion.fastvm.CallbackMetrics.Upcall;
 import org.aion.types.AionAddress;
-import org.aion.types.InternalTransaction.RejectedStatus;
-import org.aion.types.Log;
-import org.aion.types.InternalTransaction;
 import org.aion.fastvm.util.ByteUtil;
 import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.tuple.Pair;
 
 /**
- * This class handles all callbacks from the JIT side. It is not thread-safe and should be
- * synchronized for parallel execution.
+ * This class handles all callbacks from the JIT side. Each thread has its own stack of contexts,
+ * so transactions may run on several threads at once, as read-only queries do.
  *
  * <p>All methods are static for better JNI performance.
  *
@@ -26,54 +21,116 @@ import org.apache.commons.lang3.tuple.Pair;
  */
 public class Callback {
 
-    private static LinkedList<Pair<ExecutionContext, IExternalStateForFvm>> stack =
-            new LinkedList<>();
+    private static final ThreadLocal<LinkedList<Pair<ExecutionContext, IExternalStateForFvm>>> stack =
+            ThreadLocal.withInitial(LinkedList::new);
+
+    /** Canonical address instances, so that repeated upcalls for an address do not allocate. */
+    private static final ThreadLocal<AddressCache> addressCache =
+            ThreadLocal.withInitial(AddressCache::new);
+
+    /** Storage values read ahead of time for the transaction currently being executed. */
+    private static final ThreadLocal<PrefetchedStorage> prefetchedStorage =
+            ThreadLocal.withInitial(PrefetchedStorage::new);
+
+    /** The tracker of the storage accesses of every thread, or null if there is none. */
+    private static volatile StorageAccessTracker storageAccessTracker = null;
+
+    /**
+     * Installs the given tracker of the storage reads and writes of all contracts, replacing the
+     * current one, or removes the current one if the given tracker is {@code null}.
+     */
+    public static void setStorageAccessTracker(StorageAccessTracker tracker) {
+        storageAccessTracker = tracker;
+    }
+
+    /** Returns the installed tracker of storage accesses, or {@code null} if there is none. */
+    public static StorageAccessTracker getStorageAccessTracker() {
+        return storageAccessTracker;
+    }
 
     public static boolean stackIsEmpty() {
-        return stack.isEmpty();
+        return stack.get().isEmpty();
     }
 
     /** Pushes a pair of context and repository into the callback stack. */
     public static void push(Pair<ExecutionContext, IExternalStateForFvm> pair) {
+        LinkedList<Pair<ExecutionContext, IExternalStateForFvm>> stack = Callback.stack.get();
+        if (stack.isEmpty()) {
+            // A new transaction is starting, anything prefetched belongs to the previous one.
+            PrefetchedStorage storage = prefetchedStorage.get();
+            if (!storage.isEmpty()) {
+                storage.clear();
+            }
+        }
         stack.push(pair);
     }
 
     /** Pops the last <context, repository> pair */
     public static void pop() {
-        stack.pop();
+        stack.get().pop();
     }
 
     /** Returns the current context. */
     public static ExecutionContext context() {
-        return stack.peek().getLeft();
+        return stack.get().peek().getLeft();
     }
 
     /** Returns the current repository. */
     public static IExternalStateForFvm externalState() {
-        return stack.peek().getRight();
+        return stack.get().peek().getRight();
+    }
+
+    /** Returns the canonical {@link AionAddress} for the given raw address bytes. */
+    static AionAddress canonicalAddress(byte[] address) {
+        return addressCache.get().get(address);
+    }
+
+    /**
+     * Prefetches the storage that the given code is known to read, if the current repository has
+     * storage prefetching enabled. The code is about to run in the current context.
+     */
+    static void prefetchStorage(byte[] code) {
+        IExternalStateForFvm externalState = externalState();
+        if (externalState.isStoragePrefetchEnabled()) {
+            ExecutionContext context = context();
+            if (context.getTransactionKind() == TransactionKind.CREATE) {
+                prefetchedStorage.get().exclude(context.getDestinationAddress());
+            } else {
+                prefetchedStorage.get().prefetch(externalState, context.getDestinationAddress(), code);
+            }
+        }
     }
 
     /** Returns the hash of the given block. */
     public static byte[] getBlockHash(long number) {
+        long start = CallbackMetrics.start();
         byte[] hash = externalState().getBlockHashByNumber(number);
+        CallbackMetrics.record(Upcall.GET_BLOCK_HASH, start);
         return hash == null ? new byte[32] : hash;
     }
 
     /** Returns the code of a contract. */
     public static byte[] getCode(byte[] address) {
-        byte[] code = externalState().getCode(new AionAddress(address));
+        long start = CallbackMetrics.start();
+        byte[] code = externalState().getCode(canonicalAddress(address));
+        CallbackMetrics.record(Upcall.GET_CODE, start);
         return code == null ? new byte[0] : code;
     }
 
     /** Returns the balance of an account. */
     public static byte[] getBalance(byte[] address) {
-        BigInteger balance = externalState().getBalance(new AionAddress(address));
+        long start = CallbackMetrics.start();
+        BigInteger balance = externalState().getBalance(canonicalAddress(address));
+        CallbackMetrics.record(Upcall.GET_BALANCE, start);
         return balance == null ? new byte[FvmDataWord.SIZE] : FvmDataWord.fromBigInteger(balance).copyOfData();
     }
 
     /** Returns whether an account exists. */
     public static boolean exists(byte[] address) {
-        return externalState().hasAccountState(new AionAddress(address));
+        long start = CallbackMetrics.start();
+        boolean exists = externalState().hasAccountState(canonicalAddress(address));
+        CallbackMetrics.record(Upcall.EXISTS, start);
+        return exists;
     }
 
     /** Returns the value that is mapped to the given key. */
@@ -82,7 +139,23 @@ public class Callback {
         // Hex.toHexString(key) + ", value = " + (value == null ?
         // "":Hex.toHexString(value.getData())));
 
-        return externalState().getStorageValue(new AionAddress(address), FvmDataWord.fromBytes(key)).copyOfData();
+        long start = CallbackMetrics.start();
+        AionAddress owner = canonicalAddress(address);
+        FvmDataWord storageKey = FvmDataWord.fromBytes(key);
+
+        PrefetchedStorage storage = prefetchedStorage.get();
+        FvmDataWord value = storage.isEmpty() ? null : storage.get(owner, storageKey);
+        if (value == null) {
+            value = externalState().getStorageValue(owner, storageKey);
+        }
+        CallbackMetrics.record(Upcall.GET_STORAGE, start);
+
+        // Outside of the measured upcall, so that tracking does not inflate the upcall time.
+        StorageAccessTracker tracker = storageAccessTracker;
+        if (tracker != null) {
+            tracker.storageRead(owner, storageKey);
+        }
+        return value.copyOfData();
     }
 
     /** Sets the value that is mapped to the given key. */
@@ -91,10 +164,26 @@ public class Callback {
         // System.err.println("PUT_STORAGE: address = " + Hex.toHexString(address) + ", key = " +
         // Hex.toHexString(key) + ", value = " + Hex.toHexString(value));
 
+        long start = CallbackMetrics.start();
+        AionAddress owner = canonicalAddress(address);
+        FvmDataWord storageKey = FvmDataWord.fromBytes(key);
+
+        PrefetchedStorage storage = prefetchedStorage.get();
+        if (!storage.isEmpty()) {
+            storage.invalidate(owner, storageKey);
+        }
+
         if (value == null || value.length == 0 || isZero(value)) {
-            externalState().removeStorage(new AionAddress(address), FvmDataWord.fromBytes(key));
+            externalState().removeStorage(owner, storageKey);
         } else {
-            externalState().addStorageValue(new AionAddress(address), FvmDataWord.fromBytes(key), FvmDataWord.fromBytes(value));
+            externalState().addStorageValue(owner, storageKey, FvmDataWord.fromBytes(value));
+        }
+        CallbackMetrics.record(Upcall.PUT_STORAGE, start);
+
+        // Outside of the measured upcall, so that tracking does not inflate the upcall time.
+        StorageAccessTracker tracker = storageAccessTracker;
+        if (tracker != null) {
+            tracker.storageWritten(owner, storageKey);
         }
     }
 
@@ -112,40 +201,39 @@ public class Callback {
      * Processes SELFDESTRUCT opcode.
      */
     public static void selfDestruct(byte[] sender, byte[] destination) {
-        BigInteger balance = externalState().getBalance(new AionAddress(sender));
+        long start = CallbackMetrics.start();
+        AionAddress senderAddress = canonicalAddress(sender);
+        AionAddress destinationAddress = canonicalAddress(destination);
+        BigInteger balance = externalState().getBalance(senderAddress);
 
         // add internal transaction
-        InternalTransaction internalTx =
-                InternalTransaction.contractCallTransaction(
-                        RejectedStatus.NOT_REJECTED,
-                        new AionAddress(sender),
-                        new AionAddress(destination),
-                        externalState().getNonce(new AionAddress(sender)),
-                        balance,
-                        ByteUtil.EMPTY_BYTE_ARRAY,
-                        0L,
-                        1L);
-        context().getSideEffects().addInternalTransaction(internalTx);
+        SideEffects sideEffects = context().getSideEffects();
+        if (sideEffects.recordsInternalTransactions()) {
+            sideEffects.addInternalCallTransaction(
+                    senderAddress,
+                    destinationAddress,
+                    externalState().getNonce(senderAddress),
+                    balance,
+                    ByteUtil.EMPTY_BYTE_ARRAY,
+                    0L,
+                    1L);
+        }
 
         // transfer
-        externalState().addBalance(new AionAddress(sender), balance.negate());
-        if (!Arrays.equals(sender, destination)) {
-            externalState().addBalance(new AionAddress(destination), balance);
+        externalState().addBalance(senderAddress, balance.negate());
+        if (!senderAddress.equals(destinationAddress)) {
+            externalState().addBalance(destinationAddress, balance);
         }
 
-        context().getSideEffects().addToDeletedAddresses(new AionAddress(sender));
+        sideEffects.addToDeletedAddresses(senderAddress);
+        CallbackMetrics.record(Upcall.SELF_DESTRUCT, start);
     }
 
     /** Processes LOG opcode. */
     public static void log(byte[] address, byte[] topics, byte[] data) {
-        List<byte[]> list = new ArrayList<>();
-
-        for (int i = 0; i < topics.length; i += 32) {
-            byte[] t = Arrays.copyOfRange(topics, i, i + 32);
-            list.add(t);
-        }
-
-        context().getSideEffects().addLog(Log.topicsAndData(address, list, data));
+        long start = CallbackMetrics.start();
+        context().getSideEffects().addLog(address, topics, data);
+        CallbackMetrics.record(Upcall.LOG, start);
     }
 
     /**
@@ -161,6 +249,14 @@ public class Callback {
             return new FastVmTransactionResult(FastVmResultCode.FAILURE, 0).toBytes();
         }
 
+        // check the deadline, a frame is not started once it has passed
+        if ((ctx.getFlags() & FvmConstants.FLAG_DEADLINE) != 0) {
+            ExecutionDeadline deadline = ExecutionDeadline.current();
+            if (deadline != null && deadline.isCancelled()) {
+                return new FastVmTransactionResult(FastVmResultCode.DEADLINE_EXCEEDED, 0).toBytes();
+            }
+        }
+
         // check value
         BigInteger endowment = ctx.getTransferValue();
         BigInteger callersBalance = externalState().getBalance(ctx.getSenderAddress());
@@ -176,13 +272,17 @@ public class Callback {
             result = doCall(ctx, vm);
         }
 
+        // report the frame if its energy is being estimated
+        EnergyPeakRecorder recorder = EnergyPeakRecorder.current();
+        if (recorder != null && result.getResultCode().isSuccess()) {
+            recorder.recordFrame(ctx.getTransactionStackDepth(), ctx.getTransactionEnergy(), result.getEnergyRemaining(), ctx.getTransactionKind() == TransactionKind.CREATE);
+        }
+
         // merge the effects
         if (result.getResultCode().toInt() == FastVmResultCode.SUCCESS.toInt()) {
             context().getSideEffects().merge(ctx.getSideEffects());
         } else {
-            context()
-                    .getSideEffects()
-                    .addInternalTransactions(ctx.getSideEffects().getInternalTransactions());
+            context().getSideEffects().mergeInternalTransactions(ctx.getSideEffects());
         }
 
         return result.toBytes();
@@ -190,11 +290,14 @@ public class Callback {
 
     /** Process CALL/CALLCODE/DELEGATECALL/CREATE opcode. */
     public static byte[] call(byte[] message) {
+        long start = CallbackMetrics.start();
         try {
             return performCall(message, new FastVM());
         } catch (Throwable t) {
             //TODO: when we upgrade to aion_types result we should actually include the error message in our failure result
             return new FastVmTransactionResult(FastVmResultCode.VM_INTERNAL_ERROR, 0).toBytes();
+        } finally {
+            CallbackMetrics.record(Upcall.CALL, start);
         }
     }
 
@@ -219,17 +322,18 @@ public class Callback {
                 new FastVmTransactionResult(FastVmResultCode.SUCCESS, ctx.getTransactionEnergy());
 
         // add internal transaction
-        InternalTransaction internalTx =
-                InternalTransaction.contractCallTransaction(
-                        RejectedStatus.NOT_REJECTED,
-                        ctx.getSenderAddress(),
-                        ctx.getDestinationAddress(),
-                        childState.getNonce(ctx.getSenderAddress()),
-                        ctx.getTransferValue(),
-                        ctx.getTransactionData(),
-                        0L,
-                        1L);
-        context().getSideEffects().addInternalTransaction(internalTx);
+        SideEffects sideEffects = context().getSideEffects();
+        if (sideEffects.recordsInternalTransactions()) {
+            sideEffects.addInternalCallTransaction(
+                    ctx.getSenderAddress(),
+                    ctx.getDestinationAddress(),
+                    childState.getNonce(ctx.getSenderAddress()),
+                    ctx.getTransferValue(),
+                    ctx.getTransactionData(),
+                    0L,
+                    1L);
+        }
+        ctx.getSideEffects().nestWithin(sideEffects);
 
         // transfer balance
         if (ctx.getTransactionKind() != TransactionKind.DELEGATE_CALL
@@ -289,16 +393,14 @@ public class Callback {
         ctx.setDestinationAddress(newAddress);
 
         // add internal transaction
-        InternalTransaction internalTx =
-                InternalTransaction.contractCreateTransaction(
-                        RejectedStatus.NOT_REJECTED,
-                        ctx.getSenderAddress(),
-                        childState.getNonce(ctx.getSenderAddress()),
-                        ctx.getTransferValue(),
-                        ctx.getTransactionData(),
-                        0L,
-                        1L);
-        context().getSideEffects().addInternalTransaction(internalTx);
+        context().getSideEffects().addInternalCreateTransaction(
+                ctx.getSenderAddress(),
+                nonce,
+                ctx.getTransferValue(),
+                ctx.getTransactionData(),
+                0L,
+                1L);
+        ctx.getSideEffects().nestWithin(context().getSideEffects());
 
         // in case of hashing collisions
         boolean alreadyExsits = childState.hasAccountState(newAddress);
@@ -324,16 +426,15 @@ public class Callback {
         childState.incrementNonce(ctx.getSenderAddress());
 
         // add internal transaction
-        internalTx =
-                InternalTransaction.contractCreateTransaction(
-                        RejectedStatus.NOT_REJECTED,
-                        ctx.getSenderAddress(),
-                        childState.getNonce(ctx.getSenderAddress()),
-                        ctx.getTransferValue(),
-                        ctx.getTransactionData(),
-                        0L,
-                        1L);
-        ctx.getSideEffects().addInternalTransaction(internalTx);
+        if (ctx.getSideEffects().recordsInternalTransactions()) {
+            ctx.getSideEffects().addInternalCreateTransaction(
+                    ctx.getSenderAddress(),
+                    childState.getNonce(ctx.getSenderAddress()),
+                    ctx.getTransferValue(),
+                    ctx.getTransactionData(),
+                    0L,
+                    1L);
+        }
 
         // execute transaction
         if (alreadyExsits) {
@@ -384,13 +485,12 @@ public class Callback {
 
         byte[] txHash = prev.getTransactionHash();
 
-        byte[] address = new byte[AionAddress.LENGTH];
-        buffer.get(address);
-        AionAddress destination = new AionAddress(address);
+        AddressCache addresses = addressCache.get();
+        AionAddress destination = addresses.get(message, buffer.position());
+        buffer.position(buffer.position() + AionAddress.LENGTH);
         AionAddress origin = prev.getOriginAddress();
-        byte[] caller = new byte[AionAddress.LENGTH];
-        buffer.get(caller);
-        AionAddress sender = new AionAddress(caller);
+        AionAddress sender = addresses.get(message, buffer.position());
+        buffer.position(buffer.position() + AionAddress.LENGTH);
 
         long nrgPrice = prev.getTransactionEnergyPrice();
         long nrgLimit = buffer.getLong();
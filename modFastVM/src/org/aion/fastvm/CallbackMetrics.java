@@ -0,0 +1,337 @@
+package org.aion.fastvm;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.ToLongFunction;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Opt-in count and latency histograms of the upcalls that the JIT makes into {@link Callback}.
+ *
+ * <p>The latencies are measured on the Java side of each upcall, so they cover the world state
+ * access but not the JNI transition. The latency of a {@code call} includes the whole nested
+ * frame.
+ *
+ * <p>Every thread records into histograms of its own, which only that thread writes, so recording
+ * takes no locks. The histograms have logarithmic buckets, each split into {@value SUB_BUCKETS}
+ * linear sub-buckets, so that a recorded latency is known to within 1/{@value SUB_BUCKETS} of its
+ * value. While disabled, which is the default, an upcall only pays for reading a volatile flag.
+ *
+ * <p>Once a thread has died, its histograms are folded into those of all retired threads, the next
+ * time a snapshot is taken or another thread starts recording, so that short-lived threads do not
+ * each leave their histograms behind.
+ *
+ * <p>This class is thread-safe.
+ */
+public final class CallbackMetrics {
+    /** The name under which {@link #registerMBean()} registers the metrics. */
+    public static final String MBEAN_NAME = "org.aion.fastvm:type=CallbackMetrics";
+
+    static final int SUB_BUCKET_BITS = 4;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Latencies of 2^41 ns (about 36 minutes) and above all fall into the last bucket.
+    static final int MAX_EXPONENT = 40;
+    static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    /** The upcalls that are measured. */
+    public enum Upcall {
+        GET_STORAGE,
+        PUT_STORAGE,
+        GET_BALANCE,
+        EXISTS,
+        GET_CODE,
+        CALL,
+        LOG,
+        SELF_DESTRUCT,
+        GET_BLOCK_HASH
+    }
+
+    private static final Upcall[] UPCALLS = Upcall.values();
+
+    // What the upcalls are recorded for: these metrics, the JFR callback batches of FvmEvents, the
+    // per-contract counts of ContractAccounting, or any combination of them.
+    private static final int METRICS = 1;
+    private static final int BATCHES = 2;
+    private static final int ACCOUNTING = 4;
+    private static volatile int recording = 0;
+
+    private static final Queue<Recorder> recorders = new ConcurrentLinkedQueue<>();
+
+    private static final ThreadLocal<Recorder> recorder =
+            ThreadLocal.withInitial(
+                    () -> {
+                        retireDeadRecorders();
+                        Recorder recorder = new Recorder(Thread.currentThread());
+                        recorders.add(recorder);
+                        return recorder;
+                    });
+
+    // Everything recorded by the threads that have died, guarded by the lock on recorders.
+    private static final long[][] retiredCounts = new long[UPCALLS.length][BUCKETS];
+    private static final long[] retiredNanos = new long[UPCALLS.length];
+
+    // Subtracted from every snapshot, so that a reset never writes into another thread's histograms.
+    private static volatile CallbackMetricsSnapshot baseline = null;
+
+    private static ObjectName registeredName = null;
+
+    private CallbackMetrics() {}
+
+    /** Starts recording upcalls. */
+    public static synchronized void enable() {
+        recording |= METRICS;
+    }
+
+    /** Stops recording upcalls. What has been recorded so far is kept. */
+    public static synchronized void disable() {
+        recording &= ~METRICS;
+    }
+
+    public static boolean isEnabled() {
+        return (recording & METRICS) != 0;
+    }
+
+    /** Starts or stops recording upcalls into the callback batches of {@link FvmEvents}. */
+    static synchronized void setBatching(boolean batching) {
+        recording = batching ? (recording | BATCHES) : (recording & ~BATCHES);
+    }
+
+    static boolean isBatching() {
+        return (recording & BATCHES) != 0;
+    }
+
+    /** Starts or stops counting upcalls against the contracts of {@link ContractAccounting}. */
+    static synchronized void setAccounting(boolean accounting) {
+        recording = accounting ? (recording | ACCOUNTING) : (recording & ~ACCOUNTING);
+    }
+
+    /** Discards everything recorded so far. */
+    public static void reset() {
+        baseline = totals();
+    }
+
+    /** Returns the counts and latencies of the upcalls recorded on all threads since the last reset. */
+    public static CallbackMetricsSnapshot snapshot() {
+        CallbackMetricsSnapshot baseline = CallbackMetrics.baseline;
+        CallbackMetricsSnapshot totals = totals();
+        return (baseline == null) ? totals : totals.minus(baseline);
+    }
+
+    /** Returns everything recorded on all threads. */
+    private static CallbackMetricsSnapshot totals() {
+        long[][] counts = new long[UPCALLS.length][BUCKETS];
+        long[] totalNanos = new long[UPCALLS.length];
+        synchronized (recorders) {
+            retireDeadRecorders();
+            for (int upcall = 0; upcall < UPCALLS.length; upcall++) {
+                System.arraycopy(retiredCounts[upcall], 0, counts[upcall], 0, BUCKETS);
+            }
+            System.arraycopy(retiredNanos, 0, totalNanos, 0, UPCALLS.length);
+            for (Recorder recorder : recorders) {
+                recorder.addTo(counts, totalNanos);
+            }
+        }
+        return new CallbackMetricsSnapshot(counts, totalNanos);
+    }
+
+    /** Folds the histograms of the threads that have died into the retired ones, and drops them. */
+    private static void retireDeadRecorders() {
+        synchronized (recorders) {
+            Iterator<Recorder> iterator = recorders.iterator();
+            while (iterator.hasNext()) {
+                Recorder recorder = iterator.next();
+                if (!recorder.isOwnerAlive()) {
+                    recorder.addTo(retiredCounts, retiredNanos);
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /** Returns the number of threads whose histograms are still held apart. */
+    static int liveRecorderCount() {
+        retireDeadRecorders();
+        return recorders.size();
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server under {@link #MBEAN_NAME}, unless they
+     * are already registered.
+     */
+    public static synchronized void registerMBean() {
+        if (registeredName != null) {
+            return;
+        }
+        try {
+            ObjectName name = new ObjectName(MBEAN_NAME);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MXBean(), name);
+            registeredName = name;
+        } catch (JMException e) {
+            throw new IllegalStateException("Failed to register the callback metrics MBean!", e);
+        }
+    }
+
+    /** Unregisters the metrics from the platform MBean server, if they are registered. */
+    public static synchronized void unregisterMBean() {
+        if (registeredName == null) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(registeredName)) {
+                server.unregisterMBean(registeredName);
+            }
+            registeredName = null;
+        } catch (JMException e) {
+            throw new IllegalStateException("Failed to unregister the callback metrics MBean!", e);
+        }
+    }
+
+    /** Returns the start time of an upcall, or 0 if nothing records upcalls. */
+    static long start() {
+        return (recording != 0) ? System.nanoTime() : 0L;
+    }
+
+    /** Records an upcall that began at the given start time, unless nothing recorded upcalls then. */
+    static void record(Upcall upcall, long start) {
+        if (start != 0L) {
+            long nanos = System.nanoTime() - start;
+            int recording = CallbackMetrics.recording;
+            if ((recording & METRICS) != 0) {
+                recorder.get().record(upcall.ordinal(), nanos);
+            }
+            if ((recording & BATCHES) != 0) {
+                FvmEvents.addToBatch(upcall, nanos);
+            }
+            if ((recording & ACCOUNTING) != 0) {
+                ContractAccounting.addUpcall(upcall);
+            }
+        }
+    }
+
+    /** Returns the bucket of the given latency. */
+    static int bucketOf(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) Math.max(nanos, 0L);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int subBucket = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /** Returns the highest latency that falls into the given bucket. */
+    static long highestValueOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    /** The histograms of one thread. Only that thread writes them. */
+    private static final class Recorder {
+        private final AtomicLongArray counts = new AtomicLongArray(UPCALLS.length * BUCKETS);
+        private final AtomicLongArray totalNanos = new AtomicLongArray(UPCALLS.length);
+
+        // Held weakly, so that the recorder does not keep a dead thread reachable.
+        private final WeakReference<Thread> owner;
+
+        Recorder(Thread owner) {
+            this.owner = new WeakReference<>(owner);
+        }
+
+        /** Returns whether the owning thread may still record, which it cannot once it has died. */
+        boolean isOwnerAlive() {
+            Thread owner = this.owner.get();
+            return owner != null && owner.isAlive();
+        }
+
+        void record(int upcall, long nanos) {
+            // A single writer may publish a plain increment with lazySet, without a locked instruction.
+            int index = upcall * BUCKETS + bucketOf(nanos);
+            this.counts.lazySet(index, this.counts.get(index) + 1);
+            this.totalNanos.lazySet(upcall, this.totalNanos.get(upcall) + nanos);
+        }
+
+        void addTo(long[][] counts, long[] totalNanos) {
+            for (int upcall = 0; upcall < UPCALLS.length; upcall++) {
+                totalNanos[upcall] += this.totalNanos.get(upcall);
+                for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                    counts[upcall][bucket] += this.counts.get(upcall * BUCKETS + bucket);
+                }
+            }
+        }
+    }
+
+    /** The JMX view of the metrics; every attribute is read from a fresh snapshot. */
+    private static final class MXBean implements CallbackMetricsMXBean {
+        @Override
+        public boolean isEnabled() {
+            return CallbackMetrics.isEnabled();
+        }
+
+        @Override
+        public void setEnabled(boolean enabled) {
+            if (enabled) {
+                CallbackMetrics.enable();
+            } else {
+                CallbackMetrics.disable();
+            }
+        }
+
+        @Override
+        public void reset() {
+            CallbackMetrics.reset();
+        }
+
+        @Override
+        public Map<String, Long> getCounts() {
+            CallbackMetricsSnapshot snapshot = snapshot();
+            return byUpcall(snapshot::getCount);
+        }
+
+        @Override
+        public Map<String, Long> getMeanNanos() {
+            CallbackMetricsSnapshot snapshot = snapshot();
+            return byUpcall(upcall -> (long) snapshot.getMeanNanos(upcall));
+        }
+
+        @Override
+        public Map<String, Long> getMedianNanos() {
+            CallbackMetricsSnapshot snapshot = snapshot();
+            return byUpcall(upcall -> snapshot.getPercentileNanos(upcall, 50));
+        }
+
+        @Override
+        public Map<String, Long> getP99Nanos() {
+            CallbackMetricsSnapshot snapshot = snapshot();
+            return byUpcall(upcall -> snapshot.getPercentileNanos(upcall, 99));
+        }
+
+        @Override
+        public Map<String, Long> getMaxNanos() {
+            CallbackMetricsSnapshot snapshot = snapshot();
+            return byUpcall(snapshot::getMaxNanos);
+        }
+
+        private static Map<String, Long> byUpcall(ToLongFunction<Upcall> value) {
+            Map<String, Long> values = new LinkedHashMap<>();
+            for (Upcall upcall : UPCALLS) {
+                values.put(upcall.name(), value.applyAsLong(upcall));
+            }
+            return values;
+        }
+    }
+}
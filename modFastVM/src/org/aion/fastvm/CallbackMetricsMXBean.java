@@ -0,0 +1,27 @@
+package org.aion.fastvm;
+
+import java.util.Map;
+
+/**
+ * The JMX interface of {@link CallbackMetrics}. The maps are keyed by the names of {@link
+ * CallbackMetrics.Upcall}, and their latencies are in nanoseconds.
+ */
+public interface CallbackMetricsMXBean {
+
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    /** Discards everything recorded so far. */
+    void reset();
+
+    Map<String, Long> getCounts();
+
+    Map<String, Long> getMeanNanos();
+
+    Map<String, Long> getMedianNanos();
+
+    Map<String, Long> getP99Nanos();
+
+    Map<String, Long> getMaxNanos();
+}
@@ -0,0 +1,113 @@
+package org.aion.fastvm;
+
+import org.aion.fastvm.CallbackMetrics.Upcall;
+
+/**
+ * The counts and latency histograms of the {@link Callback} upcalls at one point in time, as
+ * returned by {@link CallbackMetrics#snapshot()}. The latencies are in nanoseconds, and those read
+ * from the histograms are the highest latency of their bucket.
+ *
+ * <p>This class is immutable.
+ */
+public final class CallbackMetricsSnapshot {
+    private final long[][] counts;
+    private final long[] totalNanos;
+
+    CallbackMetricsSnapshot(long[][] counts, long[] totalNanos) {
+        this.counts = counts;
+        this.totalNanos = totalNanos;
+    }
+
+    /** Returns the number of upcalls of the given type. */
+    public long getCount(Upcall upcall) {
+        long count = 0;
+        for (long bucket : this.counts[upcall.ordinal()]) {
+            count += bucket;
+        }
+        return count;
+    }
+
+    /** Returns the total latency of the upcalls of the given type. */
+    public long getTotalNanos(Upcall upcall) {
+        return this.totalNanos[upcall.ordinal()];
+    }
+
+    /** Returns the mean latency of the upcalls of the given type, or 0 if there were none. */
+    public double getMeanNanos(Upcall upcall) {
+        long count = getCount(upcall);
+        return (count == 0) ? 0 : (double) this.totalNanos[upcall.ordinal()] / count;
+    }
+
+    /**
+     * Returns the latency that the given percentage of the upcalls of the given type did not
+     * exceed, or 0 if there were none.
+     *
+     * @param upcall The type of upcall.
+     * @param percentile The percentage, between 0 and 100.
+     * @return the latency at the percentile.
+     */
+    public long getPercentileNanos(Upcall upcall, double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("Cannot get a percentile outside of [0, 100]: " + percentile);
+        }
+        long count = getCount(upcall);
+        if (count == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        long[] buckets = this.counts[upcall.ordinal()];
+        for (int bucket = 0; bucket < buckets.length; bucket++) {
+            seen += buckets[bucket];
+            if (seen >= rank) {
+                return CallbackMetrics.highestValueOf(bucket);
+            }
+        }
+        return CallbackMetrics.highestValueOf(buckets.length - 1);
+    }
+
+    /** Returns the highest latency of the upcalls of the given type, or 0 if there were none. */
+    public long getMaxNanos(Upcall upcall) {
+        long[] buckets = this.counts[upcall.ordinal()];
+        for (int bucket = buckets.length - 1; bucket >= 0; bucket--) {
+            if (buckets[bucket] != 0) {
+                return CallbackMetrics.highestValueOf(bucket);
+            }
+        }
+        return 0;
+    }
+
+    /** Returns what was recorded between the given earlier snapshot and this one. */
+    CallbackMetricsSnapshot minus(CallbackMetricsSnapshot earlier) {
+        long[][] counts = new long[this.counts.length][];
+        long[] totalNanos = new long[this.totalNanos.length];
+        for (int upcall = 0; upcall < counts.length; upcall++) {
+            counts[upcall] = new long[this.counts[upcall].length];
+            for (int bucket = 0; bucket < counts[upcall].length; bucket++) {
+                counts[upcall][bucket] = this.counts[upcall][bucket] - earlier.counts[upcall][bucket];
+            }
+            totalNanos[upcall] = this.totalNanos[upcall] - earlier.totalNanos[upcall];
+        }
+        return new CallbackMetricsSnapshot(counts, totalNanos);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("CallbackMetricsSnapshot {");
+        for (Upcall upcall : Upcall.values()) {
+            long count = getCount(upcall);
+            if (count != 0) {
+                builder.append(String.format(
+                        " %s: count = %d, mean = %.0f ns, p50 = %d ns, p99 = %d ns, max = %d ns;",
+                        upcall,
+                        count,
+                        getMeanNanos(upcall),
+                        getPercentileNanos(upcall, 50),
+                        getPercentileNanos(upcall, 99),
+                        getMaxNanos(upcall)));
+            }
+        }
+        return builder.append(" }").toString();
+    }
+}
@@ -10,13 +10,12 @@ package org.aion.fastvm;
  * External capabilities must be installed prior to invoking the run method of the {@link FastVM}
  * class, and then must be removed once that call returns.
  *
- * It is the responsibility of the caller to ensure that installation of the capabilities, calling
- * of the fvm, and removal of the capabilities is atomic, since the fvm makes use of a static
- * {@link Callback} class which in turn calls into this class, this is the only way to guarantee
- * that the fvm can safely use this provider in a multi-threaded environment.
+ * The capabilities are installed for the calling thread only, which is the thread the fvm calls
+ * back into {@link Callback} on, so that transactions running on different threads do not see
+ * each other's capabilities.
  */
 public final class CapabilitiesProvider {
-    private static IExternalCapabilities externalCapabilities;
+    private static final ThreadLocal<IExternalCapabilities> externalCapabilities = new ThreadLocal<>();
 
     /**
      * Returns the capabilities. If there are no capabilities installed yet, an exception is thrown.
@@ -24,10 +23,11 @@ public final class CapabilitiesProvider {
      * @return the capabilities.
      */
     public static IExternalCapabilities getExternalCapabilities() {
-        if (externalCapabilities == null) {
+        IExternalCapabilities capabilities = externalCapabilities.get();
+        if (capabilities == null) {
             throw new IllegalStateException("Cannot get capabilities - it has not been set yet!");
         }
-        return externalCapabilities;
+        return capabilities;
     }
 
     /**
@@ -40,16 +40,16 @@ public final class CapabilitiesProvider {
         if (capabilities == null) {
             throw new NullPointerException("Cannot set null capabilities!");
         }
-        if (externalCapabilities != null) {
+        if (externalCapabilities.get() != null) {
             throw new IllegalStateException("External capabilities are already set, cannot overwrite!");
         }
-        externalCapabilities = capabilities;
+        externalCapabilities.set(capabilities);
     }
 
     /**
      * Removes the capabilities. This action is always safe.
      */
     public static void removeExternalCapabilities() {
-        externalCapabilities = null;
+        externalCapabilities.remove();
     }
 }
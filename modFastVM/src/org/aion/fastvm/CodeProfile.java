@@ -0,0 +1,72 @@
+package org.aion.fastvm;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.aion.fastvm.util.HexUtil;
+
+/**
+ * The basic block profile of one contract code, as collected by {@link FastVmProfiler}. Contracts
+ * that share the same code share the same profile.
+ *
+ * <p>This class is immutable.
+ */
+public final class CodeProfile {
+    /** Orders blocks from the most to the least energy used, and then by execution count. */
+    static final Comparator<BlockProfile> HOTTEST_FIRST =
+        Comparator.comparingLong(BlockProfile::getEnergyUsed)
+            .thenComparingLong(BlockProfile::getExecutionCount)
+            .reversed();
+
+    private final byte[] codeHash;
+    private final byte[] code;
+    private final List<BlockProfile> blocks;
+
+    CodeProfile(byte[] codeHash, byte[] code, List<BlockProfile> blocks) {
+        this.codeHash = codeHash;
+        this.code = code;
+        this.blocks = Collections.unmodifiableList(blocks);
+    }
+
+    /** Returns the hash of the code. */
+    public byte[] getCodeHash() {
+        return this.codeHash.clone();
+    }
+
+    /** Returns the code. */
+    public byte[] getCode() {
+        return this.code.clone();
+    }
+
+    /** Returns the profiles of all the basic blocks of the code, in the order of their offsets. */
+    public List<BlockProfile> getBlocks() {
+        return this.blocks;
+    }
+
+    /** Returns the energy consumed by all the blocks of the code. */
+    public long getEnergyUsed() {
+        return this.blocks.stream().mapToLong(BlockProfile::getEnergyUsed).sum();
+    }
+
+    /** Returns at most the given number of blocks that were executed, the hottest first. */
+    public List<BlockProfile> getHotBlocks(int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Cannot get a negative number of blocks: " + limit);
+        }
+        return this.blocks.stream()
+            .filter(block -> block.getExecutionCount() != 0)
+            .sorted(HOTTEST_FIRST)
+            .limit(limit)
+            .collect(Collectors.toList());
+    }
+
+    @Override
+    public String toString() {
+        return "CodeProfile { code hash = " + HexUtil.toHexString(this.codeHash)
+            + ", code size = " + this.code.length
+            + ", blocks = " + this.blocks.size()
+            + ", energy used = " + getEnergyUsed()
+            + " }";
+    }
+}
@@ -0,0 +1,79 @@
+package org.aion.fastvm;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.ToIntFunction;
+import org.aion.fastvm.util.HexUtil;
+
+/**
+ * A report by the jit of how a frame found its compiled code, as drained by {@link FastVM} once
+ * the frame is done. A nested frame also drains the reports of the frames that enclose it, so a
+ * report belongs to whichever frame is running at its depth on the same thread.
+ */
+final class CompileRecord {
+    /** The size of an encoded record: code hash, depth, cache hit, compile time and code size. */
+    static final int SIZE = 32 + 4 + 4 + 8 + 8;
+
+    final byte[] codeHash;
+    final int depth;
+    final boolean cacheHit;
+    final long compileNanos;
+    final long codeSize;
+
+    private CompileRecord(byte[] codeHash, int depth, boolean cacheHit, long compileNanos, long codeSize) {
+        this.codeHash = codeHash;
+        this.depth = depth;
+        this.cacheHit = cacheHit;
+        this.compileNanos = compileNanos;
+        this.codeSize = codeSize;
+    }
+
+    /**
+     * Returns the records encoded in the given bytes, in the order the jit reported them. A
+     * trailing partial record is ignored.
+     *
+     * @param records The records drained from the jit.
+     * @return the decoded records.
+     */
+    static List<CompileRecord> decode(byte[] records) {
+        if (records == null) {
+            throw new NullPointerException("Cannot decode null compile records!");
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(records);
+        List<CompileRecord> decoded = new ArrayList<>(records.length / SIZE);
+        while (buffer.remaining() >= SIZE) {
+            byte[] codeHash = new byte[32];
+            buffer.get(codeHash);
+            int depth = buffer.getInt();
+            boolean cacheHit = buffer.getInt() != 0;
+            long compileNanos = buffer.getLong();
+            long codeSize = buffer.getLong();
+            decoded.add(new CompileRecord(codeHash, depth, cacheHit, compileNanos, codeSize));
+        }
+        return decoded;
+    }
+
+    /**
+     * Returns the innermost of the given running frames that is at the depth of this record, or
+     * null if there is none.
+     *
+     * @param running The frames running on this thread, innermost last.
+     * @param depthOf The depth of a frame.
+     * @return the frame this record belongs to.
+     */
+    <F> F ownerIn(List<F> running, ToIntFunction<? super F> depthOf) {
+        for (int i = running.size() - 1; i >= 0; i--) {
+            if (depthOf.applyAsInt(running.get(i)) == this.depth) {
+                return running.get(i);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "CompileRecord { code hash = " + HexUtil.toHexString(this.codeHash) + ", depth = " + this.depth + ", cache hit = " + this.cacheHit + ", compile nanos = " + this.compileNanos + ", code size = " + this.codeSize + " }";
+    }
+}
@@ -0,0 +1,175 @@
+package org.aion.fastvm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.aion.fastvm.CallbackMetrics.Upcall;
+
+/**
+ * Opt-in accounting of the resources used by each contract: the frames run for it, the energy and
+ * wall time they used, the time the jit spent compiling its code, and the upcalls it made into the
+ * world state by type. The usage is summed over a rolling window and reported as the contracts
+ * that used the most of a given resource, which shows which contracts drive CPU and state I/O.
+ *
+ * <p>Every frame is accounted to the contract it runs, which is the destination of its context.
+ * The compile records that the jit reports are accounted to the frame that was running at their
+ * depth on the same thread.
+ *
+ * <p>While disabled, which is the default, a frame only pays for reading a volatile field.
+ *
+ * <p>This class is thread-safe.
+ */
+public final class ContractAccounting {
+    /** The default length of the window that usage is reported over. */
+    public static final long DEFAULT_WINDOW_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    /** The default number of slices that the window rolls forward by. */
+    public static final int DEFAULT_SLICES = 10;
+
+    private static final int UPCALLS = Upcall.values().length;
+
+    private static volatile ContractUsageTracker tracker = null;
+
+    // The frames currently running on this thread that are being accounted, innermost last.
+    private static final ThreadLocal<List<Frame>> frames = ThreadLocal.withInitial(ArrayList::new);
+
+    private ContractAccounting() {}
+
+    /**
+     * Starts accounting the frames that are run from now on, over the default window, discarding
+     * the usage accounted so far.
+     */
+    public static void enable() {
+        enable(DEFAULT_WINDOW_MILLIS, DEFAULT_SLICES);
+    }
+
+    /**
+     * Starts accounting the frames that are run from now on, discarding the usage accounted so far.
+     *
+     * @param windowMillis The length of the window that usage is reported over.
+     * @param slices The number of slices that the window rolls forward by.
+     */
+    public static synchronized void enable(long windowMillis, int slices) {
+        tracker = new ContractUsageTracker(TimeUnit.MILLISECONDS.toNanos(windowMillis), slices, System::nanoTime);
+        CallbackMetrics.setAccounting(true);
+    }
+
+    /** Stops accounting frames and discards the usage accounted so far. */
+    public static synchronized void disable() {
+        CallbackMetrics.setAccounting(false);
+        tracker = null;
+    }
+
+    public static boolean isEnabled() {
+        return tracker != null;
+    }
+
+    /** Discards the usage accounted so far. */
+    public static void reset() {
+        ContractUsageTracker tracker = ContractAccounting.tracker;
+        if (tracker != null) {
+            tracker.reset();
+        }
+    }
+
+    /**
+     * Returns the usage of at most the given number of contracts over the window, from the highest
+     * to the lowest value of the given measure, or nothing if accounting is disabled.
+     *
+     * @param limit The maximum number of contracts to report.
+     * @param measure The measure to order the contracts by.
+     * @return the usage of the top contracts.
+     */
+    public static List<ContractUsage> top(int limit, ContractUsage.Measure measure) {
+        ContractUsageTracker tracker = ContractAccounting.tracker;
+        if (tracker == null) {
+            if (limit < 0) {
+                throw new IllegalArgumentException("Cannot report a negative number of contracts: " + limit);
+            }
+            return Collections.emptyList();
+        }
+        return tracker.top(limit, measure);
+    }
+
+    /**
+     * Begins accounting a frame that runs in the given context, and returns it, or returns {@code
+     * null} if accounting is disabled.
+     */
+    static Frame beginFrame(ExecutionContext context) {
+        ContractUsageTracker tracker = ContractAccounting.tracker;
+        if (tracker == null) {
+            return null;
+        }
+        Frame frame = new Frame(tracker, context.getTransactionStackDepth());
+        frames.get().add(frame);
+        return frame;
+    }
+
+    /** Counts an upcall against the frame running on this thread, if it is being accounted. */
+    static void addUpcall(Upcall upcall) {
+        List<Frame> running = frames.get();
+        if (!running.isEmpty()) {
+            running.get(running.size() - 1).upcalls[upcall.ordinal()]++;
+        }
+    }
+
+    /** A frame that is being accounted. */
+    static final class Frame {
+        private final ContractUsageTracker tracker;
+        private final int depth;
+        private final long start;
+        private final long[] upcalls = new long[UPCALLS];
+        private long nestedNanos = 0;
+        private long compileNanos = 0;
+        private long compiles = 0;
+        private byte[] codeHash = null;
+
+        private Frame(ContractUsageTracker tracker, int depth) {
+            this.tracker = tracker;
+            this.depth = depth;
+            this.start = System.nanoTime();
+        }
+
+        /** Returns whether no enclosing frame is being accounted on this thread. */
+        boolean isOutermost() {
+            List<Frame> running = frames.get();
+            return running.size() == 1 && running.get(0) == this;
+        }
+
+        /**
+         * Ends accounting the frame.
+         *
+         * @param context The context the frame ran in.
+         * @param result The result of the frame.
+         * @param compileRecords The compile records that the jit reported.
+         */
+        void end(ExecutionContext context, FastVmTransactionResult result, byte[] compileRecords) {
+            long wallNanos = System.nanoTime() - this.start;
+            List<Frame> running = frames.get();
+            running.remove(this);
+            if (!running.isEmpty()) {
+                running.get(running.size() - 1).nestedNanos += wallNanos;
+            }
+
+            // A nested frame drains the records of the frames that enclose it, so these may belong
+            // to any frame still running on this thread.
+            for (CompileRecord record : CompileRecord.decode(compileRecords)) {
+                Frame frame = (record.depth == this.depth) ? this : record.ownerIn(running, f -> f.depth);
+                if (frame != null) {
+                    frame.codeHash = record.codeHash;
+                    frame.compileNanos += record.compileNanos;
+                    frame.compiles += record.cacheHit ? 0 : 1;
+                }
+            }
+
+            long energyUsed = context.getTransactionEnergy() - result.getEnergyRemaining();
+            this.tracker.add(context.getDestinationAddress(), this.codeHash, energyUsed, wallNanos, wallNanos - this.nestedNanos, this.compileNanos, this.compiles, this.upcalls);
+        }
+
+        /** Stops accounting the frame without ending it, because it threw. */
+        void abandon() {
+            frames.get().remove(this);
+        }
+    }
+}
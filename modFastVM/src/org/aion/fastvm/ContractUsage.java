@@ -0,0 +1,134 @@
+package org.aion.fastvm;
+
+import org.aion.fastvm.CallbackMetrics.Upcall;
+import org.aion.fastvm.util.HexUtil;
+import org.aion.types.AionAddress;
+
+/**
+ * The resources that the frames run for one contract used over the window of a {@link
+ * ContractAccounting} report.
+ *
+ * <p>The energy used and the wall time of a frame include those of the frames it called, while the
+ * self time and the upcall counts do not. Summing the self time over all contracts therefore gives
+ * the total time spent in the fvm, without counting nested calls twice.
+ *
+ * <p>This class is immutable.
+ */
+public final class ContractUsage {
+
+    /** The quantities that a report can be ordered by. */
+    public enum Measure {
+        EXECUTIONS,
+        ENERGY_USED,
+        WALL_TIME,
+        SELF_TIME,
+        COMPILE_TIME,
+        UPCALLS;
+
+        /** Returns this quantity of the given usage. */
+        public long of(ContractUsage usage) {
+            switch (this) {
+                case EXECUTIONS: return usage.executions;
+                case ENERGY_USED: return usage.energyUsed;
+                case WALL_TIME: return usage.wallNanos;
+                case SELF_TIME: return usage.selfNanos;
+                case COMPILE_TIME: return usage.compileNanos;
+                case UPCALLS: return usage.getTotalUpcallCount();
+                default: throw new IllegalStateException("Unknown measure: " + this);
+            }
+        }
+    }
+
+    private final AionAddress contract;
+    private final byte[] codeHash;
+    private final long executions;
+    private final long energyUsed;
+    private final long wallNanos;
+    private final long selfNanos;
+    private final long compileNanos;
+    private final long compiles;
+    private final long[] upcalls;
+
+    ContractUsage(AionAddress contract, byte[] codeHash, long executions, long energyUsed, long wallNanos, long selfNanos, long compileNanos, long compiles, long[] upcalls) {
+        this.contract = contract;
+        this.codeHash = codeHash;
+        this.executions = executions;
+        this.energyUsed = energyUsed;
+        this.wallNanos = wallNanos;
+        this.selfNanos = selfNanos;
+        this.compileNanos = compileNanos;
+        this.compiles = compiles;
+        this.upcalls = upcalls;
+    }
+
+    /** Returns the address of the contract. */
+    public AionAddress getContractAddress() {
+        return this.contract;
+    }
+
+    /**
+     * Returns the hash of the code the contract ran, as the jit reported it, or {@code null} if the
+     * jit reported none.
+     */
+    public byte[] getCodeHash() {
+        return (this.codeHash == null) ? null : this.codeHash.clone();
+    }
+
+    /** Returns the number of frames run for the contract. */
+    public long getExecutionCount() {
+        return this.executions;
+    }
+
+    /** Returns the energy used by the frames, including their nested frames. */
+    public long getEnergyUsed() {
+        return this.energyUsed;
+    }
+
+    /** Returns the wall time of the frames, including their nested frames. */
+    public long getWallNanos() {
+        return this.wallNanos;
+    }
+
+    /** Returns the wall time of the frames, excluding their nested frames. */
+    public long getSelfNanos() {
+        return this.selfNanos;
+    }
+
+    /** Returns the time the jit spent compiling the code of the contract or loading it from its cache. */
+    public long getCompileNanos() {
+        return this.compileNanos;
+    }
+
+    /** Returns the number of frames that did not find the code of the contract already compiled. */
+    public long getCompileCount() {
+        return this.compiles;
+    }
+
+    /** Returns the number of upcalls of the given type that the frames made. */
+    public long getUpcallCount(Upcall upcall) {
+        return this.upcalls[upcall.ordinal()];
+    }
+
+    /** Returns the number of upcalls of all types that the frames made. */
+    public long getTotalUpcallCount() {
+        long total = 0;
+        for (long count : this.upcalls) {
+            total += count;
+        }
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        return "ContractUsage { contract = " + this.contract
+            + ", code hash = " + ((this.codeHash == null) ? null : HexUtil.toHexString(this.codeHash))
+            + ", executions = " + this.executions
+            + ", energy used = " + this.energyUsed
+            + ", wall ns = " + this.wallNanos
+            + ", self ns = " + this.selfNanos
+            + ", compile ns = " + this.compileNanos
+            + ", compiles = " + this.compiles
+            + ", upcalls = " + getTotalUpcallCount()
+            + " }";
+    }
+}
@@ -0,0 +1,172 @@
+package org.aion.fastvm;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.LongSupplier;
+import java.util.stream.Collectors;
+import org.aion.fastvm.CallbackMetrics.Upcall;
+import org.aion.types.AionAddress;
+
+/**
+ * Sums the resources used per contract over a rolling window of time.
+ *
+ * <p>The window is divided into slices of equal length, and every frame is added to the slice of
+ * the time it ended in. A report sums the slices that still overlap the window, so the window
+ * rolls forward one slice at a time, and a report covers between {@code slices - 1} and {@code
+ * slices} slices of time.
+ *
+ * <p>This class is thread-safe.
+ */
+final class ContractUsageTracker {
+    private static final int UPCALLS = Upcall.values().length;
+
+    private final long sliceNanos;
+    private final AtomicReferenceArray<Slice> slices;
+    private final LongSupplier clock;
+
+    ContractUsageTracker(long windowNanos, int slices, LongSupplier clock) {
+        if (slices < 1) {
+            throw new IllegalArgumentException("Cannot track usage over fewer than 1 slices: " + slices);
+        }
+        if (windowNanos < slices) {
+            throw new IllegalArgumentException("Cannot track usage over a window of " + windowNanos + " ns in " + slices + " slices!");
+        }
+        if (clock == null) {
+            throw new NullPointerException("Cannot track usage with a null clock!");
+        }
+        this.sliceNanos = windowNanos / slices;
+        this.slices = new AtomicReferenceArray<>(slices);
+        this.clock = clock;
+    }
+
+    /** Adds the resources that one frame run for the given contract used. */
+    void add(AionAddress contract, byte[] codeHash, long energyUsed, long wallNanos, long selfNanos, long compileNanos, long compiles, long[] upcalls) {
+        currentSlice().usage
+            .computeIfAbsent(contract, Accumulator::new)
+            .add(codeHash, energyUsed, wallNanos, selfNanos, compileNanos, compiles, upcalls);
+    }
+
+    /**
+     * Returns the usage of at most the given number of contracts over the window, from the highest
+     * to the lowest value of the given measure.
+     */
+    List<ContractUsage> top(int limit, ContractUsage.Measure measure) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Cannot report a negative number of contracts: " + limit);
+        }
+        if (measure == null) {
+            throw new NullPointerException("Cannot order a report by a null measure!");
+        }
+
+        long oldest = epochOf(this.clock.getAsLong()) - this.slices.length() + 1;
+        Map<AionAddress, Accumulator> totals = new HashMap<>();
+        for (int i = 0; i < this.slices.length(); i++) {
+            Slice slice = this.slices.get(i);
+            if (slice != null && slice.epoch >= oldest) {
+                for (Accumulator usage : slice.usage.values()) {
+                    totals.computeIfAbsent(usage.contract, Accumulator::new).addAll(usage);
+                }
+            }
+        }
+
+        Comparator<ContractUsage> order = Comparator.comparingLong(measure::of);
+        return totals.values().stream()
+            .map(Accumulator::toUsage)
+            .sorted(order.reversed())
+            .limit(limit)
+            .collect(Collectors.toList());
+    }
+
+    /** Discards the usage of every slice. */
+    void reset() {
+        for (int i = 0; i < this.slices.length(); i++) {
+            this.slices.set(i, null);
+        }
+    }
+
+    private Slice currentSlice() {
+        long epoch = epochOf(this.clock.getAsLong());
+        int index = (int) Math.floorMod(epoch, (long) this.slices.length());
+        while (true) {
+            Slice slice = this.slices.get(index);
+            if (slice != null && slice.epoch >= epoch) {
+                return slice;
+            }
+            if (this.slices.compareAndSet(index, slice, new Slice(epoch))) {
+                return this.slices.get(index);
+            }
+        }
+    }
+
+    private long epochOf(long nanos) {
+        return Math.floorDiv(nanos, this.sliceNanos);
+    }
+
+    /** The usage of every contract over one slice of time. */
+    private static final class Slice {
+        private final long epoch;
+        private final Map<AionAddress, Accumulator> usage = new ConcurrentHashMap<>();
+
+        private Slice(long epoch) {
+            this.epoch = epoch;
+        }
+    }
+
+    /** The running totals of one contract. */
+    private static final class Accumulator {
+        private final AionAddress contract;
+        private byte[] codeHash = null;
+        private long executions = 0;
+        private long energyUsed = 0;
+        private long wallNanos = 0;
+        private long selfNanos = 0;
+        private long compileNanos = 0;
+        private long compiles = 0;
+        private final long[] upcalls = new long[UPCALLS];
+
+        private Accumulator(AionAddress contract) {
+            this.contract = contract;
+        }
+
+        synchronized void add(byte[] codeHash, long energyUsed, long wallNanos, long selfNanos, long compileNanos, long compiles, long[] upcalls) {
+            if (codeHash != null) {
+                this.codeHash = codeHash;
+            }
+            this.executions++;
+            this.energyUsed += energyUsed;
+            this.wallNanos += wallNanos;
+            this.selfNanos += selfNanos;
+            this.compileNanos += compileNanos;
+            this.compiles += compiles;
+            for (int i = 0; i < UPCALLS; i++) {
+                this.upcalls[i] += upcalls[i];
+            }
+        }
+
+        // Only called on accumulators that are private to a report, so only other is locked.
+        void addAll(Accumulator other) {
+            synchronized (other) {
+                if (other.codeHash != null) {
+                    this.codeHash = other.codeHash;
+                }
+                this.executions += other.executions;
+                this.energyUsed += other.energyUsed;
+                this.wallNanos += other.wallNanos;
+                this.selfNanos += other.selfNanos;
+                this.compileNanos += other.compileNanos;
+                this.compiles += other.compiles;
+                for (int i = 0; i < UPCALLS; i++) {
+                    this.upcalls[i] += other.upcalls[i];
+                }
+            }
+        }
+
+        ContractUsage toUsage() {
+            return new ContractUsage(this.contract, this.codeHash, this.executions, this.energyUsed, this.wallNanos, this.selfNanos, this.compileNanos, this.compiles, this.upcalls.clone());
+        }
+    }
+}
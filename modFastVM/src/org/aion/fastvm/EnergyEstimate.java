@@ -0,0 +1,32 @@
+package org.aion.fastvm;
+
+/**
+ * The result of estimating the energy limit a transaction needs, see {@link
+ * FastVirtualMachine#estimateEnergy}.
+ */
+public final class EnergyEstimate {
+    /** The estimated energy limit, or the energy used by the failed run if the estimation failed. */
+    public final long energyLimit;
+
+    /** The result code of the last run, {@link FastVmResultCode#SUCCESS} if the estimate is good. */
+    public final FastVmResultCode resultCode;
+
+    /** The number of times the transaction was run. */
+    public final int runs;
+
+    EnergyEstimate(long energyLimit, FastVmResultCode resultCode, int runs) {
+        this.energyLimit = energyLimit;
+        this.resultCode = resultCode;
+        this.runs = runs;
+    }
+
+    /** Returns {@code true} only if the transaction succeeds with the estimated energy limit. */
+    public boolean isSuccess() {
+        return this.resultCode.isSuccess();
+    }
+
+    @Override
+    public String toString() {
+        return "EnergyEstimate { energy limit = " + this.energyLimit + ", result code = " + this.resultCode + ", runs = " + this.runs + " }";
+    }
+}
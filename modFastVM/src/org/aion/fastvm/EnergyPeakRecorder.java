@@ -0,0 +1,65 @@
+package org.aion.fastvm;
+
+/**
+ * Records the nested frames of an energy estimation run, to find how much energy the transaction
+ * needs beyond what it uses.
+ *
+ * <p>A nested frame is given at most 63/64 of the energy its caller has left, so every frame on
+ * the way down withholds 1/64 that is never used, and a frame that deploys a contract must have
+ * {@link FvmConstants#ENERGY_CODE_DEPOSIT} left once its code has run. The reserve of a frame at
+ * depth {@code d} that needs {@code n} energy is therefore about {@code n * (64/63)^d - n}, and the
+ * transaction needs its used energy plus the largest reserve of any of its frames.
+ *
+ * <p>This class is not thread-safe. {@link Callback} reports to the recorder installed on the
+ * thread it runs on, if there is one.
+ */
+final class EnergyPeakRecorder {
+    private static final ThreadLocal<EnergyPeakRecorder> installed = new ThreadLocal<>();
+
+    private long reserve = 0;
+    private int maxDepth = 0;
+
+    /**
+     * Records a nested frame that succeeded.
+     *
+     * @param depth The depth of the frame, at least 1.
+     * @param energy The energy the frame was given.
+     * @param energyRemaining The energy the frame had left.
+     * @param isCreate Whether the frame deployed a contract.
+     */
+    void recordFrame(int depth, long energy, long energyRemaining, boolean isCreate) {
+        long need = (energy - energyRemaining) + (isCreate ? FvmConstants.ENERGY_CODE_DEPOSIT : 0);
+        long available = need;
+        for (int i = 0; i < depth; i++) {
+            // The least energy whose 63/64 is at least what is available to the frame below.
+            available += (available + 62) / 63;
+        }
+        this.reserve = Math.max(this.reserve, available - need);
+        this.maxDepth = Math.max(this.maxDepth, depth);
+    }
+
+    /** Returns the largest reserve of any recorded frame. */
+    long reserve() {
+        return this.reserve;
+    }
+
+    /** Returns the depth of the deepest recorded frame. */
+    int maxDepth() {
+        return this.maxDepth;
+    }
+
+    /** Makes the frames run on the current thread report to this recorder. */
+    void install() {
+        installed.set(this);
+    }
+
+    /** Stops the frames run on the current thread from reporting to this recorder. */
+    void uninstall() {
+        installed.remove();
+    }
+
+    /** Returns the recorder installed on the current thread, or {@code null} if there is none. */
+    static EnergyPeakRecorder current() {
+        return installed.get();
+    }
+}
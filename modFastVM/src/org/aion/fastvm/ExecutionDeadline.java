@@ -0,0 +1,140 @@
+package org.aion.fastvm;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A cancellation token that bounds the wall-clock time of a non-consensus execution, such as a
+ * query run by {@link FastVirtualMachine#runQuery}.
+ *
+ * <p>The token is backed by a single byte of native memory that the compiled contract code reads
+ * whenever it checks the energy of a block of instructions. Once the token is cancelled, either
+ * explicitly or because its timeout elapsed, the running frame aborts at its next check and no new
+ * nested frame is started. The execution then ends with {@link
+ * FastVmResultCode#DEADLINE_EXCEEDED}.
+ *
+ * <p>Deadlines are never applied to consensus executions, whose energy semantics are unchanged.
+ *
+ * <p>A deadline may bind the executions of several threads at once. The compiled code only reads
+ * the flag, so the timer that sets it stays armed for as long as any thread has the deadline
+ * installed.
+ *
+ * <p>This class is thread-safe.
+ */
+public final class ExecutionDeadline {
+    private static final long NO_TIMEOUT = Long.MAX_VALUE;
+
+    private static final ThreadLocal<ExecutionDeadline> installed = new ThreadLocal<>();
+
+    private static volatile ScheduledThreadPoolExecutor timer = null;
+
+    // Non-zero once cancelled. Read by the compiled code.
+    private final ByteBuffer flag = ByteBuffer.allocateDirect(1);
+    private final long deadlineNanos;
+    private volatile boolean cancelled = false;
+
+    // The number of threads that have this deadline installed, and the timer armed while any do.
+    // Both are guarded by the lock on this deadline.
+    private int installs = 0;
+    private ScheduledFuture<?> expiry = null;
+
+    private ExecutionDeadline(long deadlineNanos) {
+        this.deadlineNanos = deadlineNanos;
+    }
+
+    /**
+     * Returns a new deadline that is cancelled once the given timeout has elapsed.
+     *
+     * @param timeout The timeout.
+     * @param unit The unit of the timeout.
+     * @return the deadline.
+     */
+    public static ExecutionDeadline after(long timeout, TimeUnit unit) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("Cannot create a deadline with a negative timeout: " + timeout);
+        }
+        if (unit == null) {
+            throw new NullPointerException("Cannot create a deadline with a null time unit!");
+        }
+        return new ExecutionDeadline(System.nanoTime() + unit.toNanos(timeout));
+    }
+
+    /** Returns a new deadline that has no timeout and is only cancelled by {@link #cancel()}. */
+    public static ExecutionDeadline cancellable() {
+        return new ExecutionDeadline(NO_TIMEOUT);
+    }
+
+    /** Cancels any execution bound by this deadline. */
+    public void cancel() {
+        this.flag.put(0, (byte) 1);
+        this.cancelled = true;
+    }
+
+    /** Returns {@code true} only if this deadline was cancelled or its timeout has elapsed. */
+    public boolean isCancelled() {
+        if (!this.cancelled && this.deadlineNanos != NO_TIMEOUT && System.nanoTime() - this.deadlineNanos >= 0) {
+            cancel();
+        }
+        return this.cancelled;
+    }
+
+    /** Returns the native flag that the compiled code polls. */
+    ByteBuffer flag() {
+        return this.flag;
+    }
+
+    /**
+     * Binds the current thread's executions to this deadline until {@link #uninstall()} is called,
+     * and arms a timer that cancels it when its timeout elapses, unless another thread already did.
+     */
+    void install() {
+        installed.set(this);
+        synchronized (this) {
+            this.installs++;
+            if (this.expiry == null && this.deadlineNanos != NO_TIMEOUT && !isCancelled()) {
+                this.expiry = timer().schedule(this::cancel, this.deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    /**
+     * Unbinds the current thread's executions from this deadline, and disarms its timer once no
+     * thread has it installed.
+     */
+    void uninstall() {
+        installed.remove();
+        synchronized (this) {
+            this.installs--;
+            if (this.installs == 0 && this.expiry != null) {
+                this.expiry.cancel(false);
+                this.expiry = null;
+            }
+        }
+    }
+
+    /** Returns the deadline installed on the current thread, or {@code null} if there is none. */
+    static ExecutionDeadline current() {
+        return installed.get();
+    }
+
+    private static ScheduledThreadPoolExecutor timer() {
+        ScheduledThreadPoolExecutor result = timer;
+        if (result == null) {
+            synchronized (ExecutionDeadline.class) {
+                result = timer;
+                if (result == null) {
+                    result = new ScheduledThreadPoolExecutor(1, runnable -> {
+                        Thread thread = new Thread(runnable, "fvm-deadline-timer");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                    result.setRemoveOnCancelPolicy(true);
+                    timer = result;
+                }
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,343 @@
+package org.aion.fastvm;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import org.aion.types.Transaction;
+
+/**
+ * A scheduler in front of {@link FastVirtualMachine} that runs executions in separate lanes for
+ * block import, mempool validation and RPC queries.
+ *
+ * <p>Every lane has its own bounded queue and its own workers. A lane also has a priority: before
+ * a worker starts a task it waits while any lane of a higher priority has work queued or running,
+ * so that a burst of queries does not delay block import. To keep the scheduling fair, a worker
+ * waits at most the configured maximum deferral before it starts its task anyway.
+ *
+ * <p>A full queue pushes back on its producers: {@link #submit} blocks until there is room, while
+ * {@link #trySubmit} rejects the task straight away, which is what RPC handlers should use to shed
+ * load.
+ *
+ * <p>This class is thread-safe.
+ */
+public final class ExecutionScheduler implements AutoCloseable {
+
+    /** The lanes of the scheduler. */
+    public enum Lane { IMPORT, MEMPOOL, RPC }
+
+    /** The configuration of a single lane. */
+    public static final class LaneConfiguration {
+        public final int workers;
+        public final int queueCapacity;
+        public final int priority;
+
+        /**
+         * Constructs a new lane configuration.
+         *
+         * @param workers The number of threads running the lane's tasks.
+         * @param queueCapacity The maximum number of queued tasks.
+         * @param priority The priority of the lane, higher values are scheduled first.
+         */
+        public LaneConfiguration(int workers, int queueCapacity, int priority) {
+            if (workers < 1) {
+                throw new IllegalArgumentException("A lane must have at least one worker: " + workers);
+            }
+            if (queueCapacity < 1) {
+                throw new IllegalArgumentException("A lane must have a positive queue capacity: " + queueCapacity);
+            }
+            this.workers = workers;
+            this.queueCapacity = queueCapacity;
+            this.priority = priority;
+        }
+    }
+
+    private final Map<Lane, LaneState> lanes = new EnumMap<>(Lane.class);
+    private final long maxDeferralNanos;
+    private final Object turns = new Object();
+    private volatile boolean isShutdown = false;
+
+    /**
+     * Constructs a new scheduler and starts its workers. Every lane must be configured.
+     *
+     * @param configurations The configuration of each lane.
+     * @param maxDeferral The longest a task waits for higher priority lanes once it is dequeued.
+     * @param unit The unit of the maximum deferral.
+     */
+    public ExecutionScheduler(Map<Lane, LaneConfiguration> configurations, long maxDeferral, TimeUnit unit) {
+        if (configurations == null) {
+            throw new NullPointerException("Cannot construct a scheduler with null configurations!");
+        }
+        if (maxDeferral < 0) {
+            throw new IllegalArgumentException("Cannot construct a scheduler with a negative deferral: " + maxDeferral);
+        }
+        for (Lane lane : Lane.values()) {
+            LaneConfiguration configuration = configurations.get(lane);
+            if (configuration == null) {
+                throw new IllegalArgumentException("No configuration given for the lane: " + lane);
+            }
+            this.lanes.put(lane, new LaneState(lane, configuration));
+        }
+        this.maxDeferralNanos = unit.toNanos(maxDeferral);
+
+        for (LaneState state : this.lanes.values()) {
+            for (int i = 0; i < state.configuration.workers; i++) {
+                Thread worker = new Thread(() -> work(state), "fvm-" + state.lane.name().toLowerCase() + "-" + i);
+                worker.setDaemon(true);
+                state.workers.add(worker);
+                worker.start();
+            }
+        }
+    }
+
+    /**
+     * Returns a scheduler with one import worker, two mempool workers and one RPC worker per
+     * processor, in that order of priority, and a maximum deferral of 50 milliseconds.
+     */
+    public static ExecutionScheduler withDefaults() {
+        Map<Lane, LaneConfiguration> configurations = new EnumMap<>(Lane.class);
+        configurations.put(Lane.IMPORT, new LaneConfiguration(1, 64, 2));
+        configurations.put(Lane.MEMPOOL, new LaneConfiguration(2, 1024, 1));
+        configurations.put(Lane.RPC, new LaneConfiguration(Runtime.getRuntime().availableProcessors(), 256, 0));
+        return new ExecutionScheduler(configurations, 50, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Queues the given task in the given lane, waiting for room if the lane's queue is full.
+     *
+     * @param lane The lane.
+     * @param task The task.
+     * @return the future result of the task.
+     * @throws InterruptedException if interrupted while waiting for room.
+     */
+    public <T> Future<T> submit(Lane lane, Callable<T> task) throws InterruptedException {
+        LaneState state = laneOf(lane);
+        ScheduledTask<T> scheduled = new ScheduledTask<>(task);
+        state.pending.incrementAndGet();
+        try {
+            state.queue.put(scheduled);
+        } catch (InterruptedException e) {
+            state.finished();
+            throw e;
+        }
+        state.queued(scheduled);
+        return scheduled;
+    }
+
+    /**
+     * Queues the given task in the given lane if the lane's queue has room.
+     *
+     * @param lane The lane.
+     * @param task The task.
+     * @return the future result of the task.
+     * @throws RejectedExecutionException if the lane's queue is full.
+     */
+    public <T> Future<T> trySubmit(Lane lane, Callable<T> task) {
+        LaneState state = laneOf(lane);
+        ScheduledTask<T> scheduled = new ScheduledTask<>(task);
+        state.pending.incrementAndGet();
+        if (!state.queue.offer(scheduled)) {
+            state.finished();
+            state.rejected.increment();
+            throw new RejectedExecutionException("The " + lane + " lane is full!");
+        }
+        state.queued(scheduled);
+        return scheduled;
+    }
+
+    /**
+     * Queues a {@link FastVirtualMachine#run} of the given transaction in the given lane, waiting
+     * for room if the lane's queue is full.
+     */
+    public Future<FvmWrappedTransactionResult> submitRun(
+            Lane lane, IExternalStateForFvm externalState, IExternalCapabilities capabilities, Transaction transaction, boolean isFork040enabled) throws InterruptedException {
+        return submit(lane, () -> FastVirtualMachine.run(externalState, capabilities, transaction, isFork040enabled));
+    }
+
+    /**
+     * Queues a {@link FastVirtualMachine#runQuery} of the given transaction in the RPC lane if the
+     * lane's queue has room. The cache and deadline may be {@code null}.
+     *
+     * @throws RejectedExecutionException if the RPC lane's queue is full.
+     */
+    public Future<FvmWrappedTransactionResult> trySubmitQuery(
+            IExternalStateForFvm snapshot, IExternalCapabilities capabilities, Transaction transaction, boolean isFork040enabled, QueryResultCache cache, ExecutionDeadline deadline) {
+        return trySubmit(Lane.RPC, () -> FastVirtualMachine.runQuery(new FastVM(), snapshot, capabilities, transaction, isFork040enabled, cache, deadline));
+    }
+
+    /** Returns the number of tasks waiting in the given lane's queue. */
+    public int getQueueDepth(Lane lane) {
+        return laneOf(lane).queue.size();
+    }
+
+    /** Returns the number of tasks of the given lane that have finished running. */
+    public long getCompletedCount(Lane lane) {
+        return laneOf(lane).completed.sum();
+    }
+
+    /** Returns the number of tasks that were rejected because the given lane's queue was full. */
+    public long getRejectedCount(Lane lane) {
+        return laneOf(lane).rejected.sum();
+    }
+
+    /** Returns the mean time, in nanoseconds, that started tasks of the given lane waited to start. */
+    public long getMeanWaitNanos(Lane lane) {
+        LaneState state = laneOf(lane);
+        long started = state.started.sum();
+        return (started == 0) ? 0 : state.waitNanos.sum() / started;
+    }
+
+    /** Returns the longest time, in nanoseconds, that a task of the given lane waited to start. */
+    public long getMaxWaitNanos(Lane lane) {
+        return laneOf(lane).maxWaitNanos.get();
+    }
+
+    /** Returns the mean time, in nanoseconds, that finished tasks of the given lane took to run. */
+    public long getMeanRunNanos(Lane lane) {
+        LaneState state = laneOf(lane);
+        long completed = state.completed.sum();
+        return (completed == 0) ? 0 : state.runNanos.sum() / completed;
+    }
+
+    /** Stops all workers. Tasks that are still queued or deferred are cancelled. */
+    @Override
+    public void close() {
+        this.isShutdown = true;
+        for (LaneState state : this.lanes.values()) {
+            for (Thread worker : state.workers) {
+                worker.interrupt();
+            }
+            List<ScheduledTask<?>> remaining = new ArrayList<>();
+            state.queue.drainTo(remaining);
+            for (ScheduledTask<?> task : remaining) {
+                task.cancel(false);
+                state.finished();
+            }
+        }
+        synchronized (this.turns) {
+            this.turns.notifyAll();
+        }
+    }
+
+    private LaneState laneOf(Lane lane) {
+        if (lane == null) {
+            throw new NullPointerException("Cannot schedule on a null lane!");
+        }
+        if (this.isShutdown) {
+            throw new RejectedExecutionException("The scheduler is shut down!");
+        }
+        return this.lanes.get(lane);
+    }
+
+    private void work(LaneState state) {
+        while (!this.isShutdown) {
+            ScheduledTask<?> task;
+            try {
+                task = state.queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            boolean interrupted = false;
+            try {
+                awaitTurn(state);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+            if (interrupted || this.isShutdown) {
+                // Closed while the task was deferred, so it is cancelled like the queued tasks.
+                task.cancel(false);
+                state.finished();
+                return;
+            }
+
+            long start = System.nanoTime();
+            long wait = start - task.enqueuedAt;
+            state.started.increment();
+            state.waitNanos.add(wait);
+            state.maxWaitNanos.accumulateAndGet(wait, Math::max);
+            try {
+                task.run();
+            } finally {
+                state.runNanos.add(System.nanoTime() - start);
+                state.completed.increment();
+                state.finished();
+            }
+        }
+    }
+
+    /** Waits while a lane of higher priority has pending work, for at most the maximum deferral. */
+    private void awaitTurn(LaneState state) throws InterruptedException {
+        long deadline = System.nanoTime() + this.maxDeferralNanos;
+        synchronized (this.turns) {
+            long remaining;
+            while (!this.isShutdown && hasHigherPriorityWork(state) && (remaining = deadline - System.nanoTime()) > 0) {
+                TimeUnit.NANOSECONDS.timedWait(this.turns, remaining);
+            }
+        }
+    }
+
+    private boolean hasHigherPriorityWork(LaneState state) {
+        for (LaneState other : this.lanes.values()) {
+            if (other.configuration.priority > state.configuration.priority && other.pending.get() > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private final class LaneState {
+        final Lane lane;
+        final LaneConfiguration configuration;
+        final BlockingQueue<ScheduledTask<?>> queue;
+        final List<Thread> workers = new ArrayList<>();
+
+        // The number of tasks that are being queued, queued or running.
+        final AtomicLong pending = new AtomicLong();
+
+        final LongAdder started = new LongAdder();
+        final LongAdder completed = new LongAdder();
+        final LongAdder rejected = new LongAdder();
+        final LongAdder waitNanos = new LongAdder();
+        final LongAdder runNanos = new LongAdder();
+        final AtomicLong maxWaitNanos = new AtomicLong();
+
+        LaneState(Lane lane, LaneConfiguration configuration) {
+            this.lane = lane;
+            this.configuration = configuration;
+            this.queue = new ArrayBlockingQueue<>(configuration.queueCapacity);
+        }
+
+        void queued(ScheduledTask<?> task) {
+            // The scheduler may have been closed while the task was being queued.
+            if (isShutdown && this.queue.remove(task)) {
+                task.cancel(false);
+                finished();
+            }
+        }
+
+        void finished() {
+            if (this.pending.decrementAndGet() == 0) {
+                synchronized (turns) {
+                    turns.notifyAll();
+                }
+            }
+        }
+    }
+
+    private static final class ScheduledTask<T> extends FutureTask<T> {
+        final long enqueuedAt = System.nanoTime();
+
+        ScheduledTask(Callable<T> callable) {
+            super(callable);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package org.aion.fastvm;
+
+import java.math.BigInteger;
+import java.util.HashSet;
+import java.util.Set;
+import org.aion.types.AionAddress;
+
+/**
+ * A world state that answers negative {@link #hasAccountState(AionAddress)} queries from an
+ * {@link AccountExistenceFilter} and adds every account that the fvm creates into that filter.
+ *
+ * <p>An account is added once, when it is first written to in a transaction while it does not
+ * exist, which is only checked against the world state if the filter might contain it.
+ *
+ * <p>Accounts written by frames that are later rolled back stay in the filter, which only costs a
+ * false positive. Precompiled contracts write to the world state without going through the fvm,
+ * so once a transaction has called one, the filter is bypassed for the rest of that transaction.
+ */
+final class ExistenceFilteringExternalState extends ForwardingExternalState {
+    private final AccountExistenceFilter filter;
+    private final TransactionScope scope;
+
+    ExistenceFilteringExternalState(IExternalStateForFvm delegate, AccountExistenceFilter filter) {
+        this(delegate, filter, new TransactionScope());
+    }
+
+    private ExistenceFilteringExternalState(IExternalStateForFvm delegate, AccountExistenceFilter filter, TransactionScope scope) {
+        super(delegate);
+        if (filter == null) {
+            throw new NullPointerException("Cannot filter using a null filter!");
+        }
+        this.filter = filter;
+        this.scope = scope;
+    }
+
+    @Override
+    public IExternalStateForFvm newChildExternalState() {
+        return new ExistenceFilteringExternalState(this.delegate.newChildExternalState(), this.filter, this.scope);
+    }
+
+    @Override
+    public boolean hasAccountState(AionAddress address) {
+        if (!this.scope.calledPrecompiledContract && !this.filter.mightContain(address)) {
+            return false;
+        }
+        return super.hasAccountState(address);
+    }
+
+    @Override
+    public FastVmTransactionResult runInternalPrecompiledContractCall(ExecutionContext context) {
+        this.scope.calledPrecompiledContract = true;
+        return super.runInternalPrecompiledContractCall(context);
+    }
+
+    @Override
+    public void addStorageValue(AionAddress address, FvmDataWord key, FvmDataWord value) {
+        addIfNew(address);
+        super.addStorageValue(address, key, value);
+    }
+
+    @Override
+    public void putCode(AionAddress address, byte[] code) {
+        addIfNew(address);
+        super.putCode(address, code);
+    }
+
+    @Override
+    public void createAccount(AionAddress address) {
+        addIfNew(address);
+        super.createAccount(address);
+    }
+
+    @Override
+    public void setVmType(AionAddress address) {
+        addIfNew(address);
+        super.setVmType(address);
+    }
+
+    @Override
+    public void addBalance(AionAddress address, BigInteger amount) {
+        addIfNew(address);
+        super.addBalance(address, amount);
+    }
+
+    @Override
+    public void incrementNonce(AionAddress address) {
+        addIfNew(address);
+        super.incrementNonce(address);
+    }
+
+    /**
+     * Adds the given account to the filter if it is about to be written for the first time in
+     * this transaction and does not exist yet. The counters of an account must only be
+     * incremented once, or removing it from the filter would leave it in.
+     */
+    private void addIfNew(AionAddress address) {
+        if (this.scope.written.add(address) && !(this.filter.mightContain(address) && super.hasAccountState(address))) {
+            this.filter.add(address);
+        }
+    }
+
+    /** The state shared by every world state of a single transaction. */
+    private static final class TransactionScope {
+        private boolean calledPrecompiledContract = false;
+        private final Set<AionAddress> written = new HashSet<>();
+    }
+}
@@ -0,0 +1,62 @@
+package org.aion.fastvm;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Records every call that the fvm makes on a world state into a compact binary trace, which
+ * {@link ExternalStateReplay} can later serve in place of the world state. This makes it possible
+ * to run real blocks through {@link FastVirtualMachine} without a node or a database, and so to
+ * measure the throughput of the fvm alone, reproducibly.
+ *
+ * <p>A recorder records a sequence of transactions: wrap the world state of each transaction with
+ * {@link #record(IExternalStateForFvm)} and run them in order. The trace holds the reads with the
+ * values they returned, the writes, commits and rollbacks, the block hashes and the results of
+ * precompiled contract calls. It does not hold the world state, only what the fvm saw of it, so
+ * the transactions can only be replayed in the same order, against the same version of the fvm.
+ *
+ * <p>The world states returned by {@link #record(IExternalStateForFvm)} report no account
+ * existence filter and no state root, so that no query can bypass them.
+ *
+ * <p>This class is not thread-safe. All the transactions recorded by a recorder must be run by one
+ * thread at a time, as {@link FastVirtualMachine#run} does.
+ */
+public final class ExternalStateRecorder {
+    private final StateTrace.Writer trace = new StateTrace.Writer();
+
+    /**
+     * Returns a world state that forwards every call to the given world state and records it.
+     *
+     * @param externalState The world state of the transaction to record.
+     * @return the recording world state.
+     */
+    public IExternalStateForFvm record(IExternalStateForFvm externalState) {
+        if (externalState == null) {
+            throw new NullPointerException("Cannot record a null externalState!");
+        }
+        return new RecordingExternalState(externalState, this.trace);
+    }
+
+    /** Returns the size of the trace recorded so far, in bytes. */
+    public int size() {
+        return this.trace.size();
+    }
+
+    /** Returns the trace recorded so far. */
+    public byte[] toByteArray() {
+        return this.trace.toByteArray();
+    }
+
+    /**
+     * Writes the trace recorded so far to the given file, replacing it if it exists.
+     *
+     * @param file The file to write.
+     */
+    public void writeTo(Path file) throws IOException {
+        if (file == null) {
+            throw new NullPointerException("Cannot write a trace to a null file!");
+        }
+        Files.write(file, this.trace.toByteArray());
+    }
+}
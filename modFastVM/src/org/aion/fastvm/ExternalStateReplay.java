@@ -0,0 +1,70 @@
+package org.aion.fastvm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Serves a trace recorded by {@link ExternalStateRecorder} in place of a world state, so that the
+ * recorded transactions can be run through {@link FastVirtualMachine} again without a node or a
+ * database.
+ *
+ * <p>Run the same transactions in the same order as they were recorded, each with a world state
+ * from {@link #newExternalState()}. Reads return the recorded values, and writes, commits and
+ * rollbacks are checked against the trace and otherwise dropped. A call that does not match the
+ * trace throws an {@link IllegalStateException}: it means the transactions, their order or the fvm
+ * differ from those that were recorded.
+ *
+ * <p>The trace is read from memory, or from a file mapped into memory, which keeps replay free of
+ * any I/O beyond page faults. Traces larger than 2 GB cannot be mapped and should be recorded in
+ * several parts.
+ *
+ * <p>This class is not thread-safe.
+ */
+public final class ExternalStateReplay {
+    private final StateTrace.Reader trace;
+
+    private ExternalStateReplay(ByteBuffer buffer) {
+        this.trace = new StateTrace.Reader(buffer);
+    }
+
+    /**
+     * Returns a replay of the given trace.
+     *
+     * @param trace A trace returned by {@link ExternalStateRecorder#toByteArray()}.
+     * @return the replay.
+     */
+    public static ExternalStateReplay fromBytes(byte[] trace) {
+        if (trace == null) {
+            throw new NullPointerException("Cannot replay a null trace!");
+        }
+        return new ExternalStateReplay(ByteBuffer.wrap(trace));
+    }
+
+    /**
+     * Returns a replay of the trace in the given file, which is mapped into memory.
+     *
+     * @param file A file written by {@link ExternalStateRecorder#writeTo(Path)}.
+     * @return the replay.
+     */
+    public static ExternalStateReplay fromFile(Path file) throws IOException {
+        if (file == null) {
+            throw new NullPointerException("Cannot replay a null file!");
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return new ExternalStateReplay(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /** Returns the world state to run the next recorded transaction against. */
+    public IExternalStateForFvm newExternalState() {
+        return new ReplayingExternalState(this.trace);
+    }
+
+    /** Returns {@code true} only if every recorded call has been replayed. */
+    public boolean isFinished() {
+        return this.trace.isFinished();
+    }
+}
@@ -1,5 +1,6 @@
 package org.aion.fastvm;
 
+import java.nio.ByteBuffer;
 import org.aion.fastvm.util.FvmNativeLoader;
 import org.apache.commons.lang3.tuple.Pair;
 
@@ -44,6 +45,27 @@ public class FastVM implements IFastVm {
     /** Destroys the given VM instance. */
     private static native void destroy(long instance);
 
+    /** Enables or disables the use of cached block hashes by this thread's executions. */
+    private static native void setBlockHashCaching(boolean enabled);
+
+    /** Sets the cancellation flag polled by this thread's executions, or clears it if null. */
+    private static native void setCancelFlag(ByteBuffer flag);
+
+    /** Returns the compile records the jit reported for this thread's executions since the last call. */
+    private static native byte[] drainCompileRecords();
+
+    /** Returns the statistics of the jit, in the order of the fields of {@link FastVmStats}. */
+    static native long[] getStats();
+
+    /** Enables or disables basic block profiling, see {@link FastVmProfiler}. */
+    static native void setProfiling(boolean enabled);
+
+    /** Resets the counts of the basic block profiles. */
+    static native void resetBlockProfiles();
+
+    /** Returns the basic block profiles of the code run with profiling since the last reset. */
+    static native byte[] getBlockProfiles();
+
     /**
      * Run the specified code in the given context.
      *
@@ -59,13 +81,7 @@ public class FastVM implements IFastVm {
     public FastVmTransactionResult runPre040Fork(
             byte[] code, ExecutionContext ctx, IExternalStateForFvm externalState) {
 
-        Callback.push(Pair.of(ctx, externalState));
-        long instance = create();
-        byte[] result = run(instance, code, ctx.toBytes(), REVISION_AION);
-        destroy(instance);
-        Callback.pop();
-
-        return FastVmTransactionResult.fromBytes(result);
+        return execute(code, ctx, externalState, REVISION_AION);
     }
 
     /**
@@ -85,12 +101,77 @@ public class FastVM implements IFastVm {
     public FastVmTransactionResult runPost040Fork(
             byte[] code, ExecutionContext ctx, IExternalStateForFvm externalState) {
 
+        return execute(code, ctx, externalState, REVISION_AION_V1);
+    }
+
+    /** Runs the specified code in the given context under the given revision. */
+    private static FastVmTransactionResult execute(
+            byte[] code, ExecutionContext ctx, IExternalStateForFvm externalState, int revision) {
+
+        ByteBuffer cancelFlag = cancelFlagOf(ctx);
+        FvmEvents.Frame frame = FvmEvents.beginFrame(ctx);
+        ContractAccounting.Frame usage = ContractAccounting.beginFrame(ctx);
+        if (usage != null && usage.isOutermost() && frame == null) {
+            // Discard what the jit reported for frames that were not accounted.
+            drainCompileRecords();
+        }
+        boolean bypassBlockHashes = Callback.stackIsEmpty() && !externalState.isBlockHashCacheEnabled();
         Callback.push(Pair.of(ctx, externalState));
-        long instance = create();
-        byte[] result = run(instance, code, ctx.toBytes(), REVISION_AION_V1);
-        destroy(instance);
-        Callback.pop();
+        byte[] result;
+        try {
+            Callback.prefetchStorage(code);
+            if (cancelFlag != null) {
+                setCancelFlag(cancelFlag);
+            }
+            if (bypassBlockHashes) {
+                setBlockHashCaching(false);
+            }
+            long instance = create();
+            try {
+                // Throws whatever an upcall threw, once the jit has unwound.
+                result = run(instance, code, ctx.toBytes(), revision);
+            } finally {
+                destroy(instance);
+            }
+        } catch (RuntimeException | Error e) {
+            if (frame != null) {
+                frame.abandon();
+            }
+            if (usage != null) {
+                usage.abandon();
+            }
+            throw e;
+        } finally {
+            if (bypassBlockHashes) {
+                setBlockHashCaching(true);
+            }
+            if (cancelFlag != null) {
+                setCancelFlag(null);
+            }
+            Callback.pop();
+        }
+
+        FastVmTransactionResult transactionResult = FastVmTransactionResult.fromBytes(result);
+        byte[] compileRecords = (usage != null || (frame != null && frame.needsCompileRecords())) ? drainCompileRecords() : null;
+        if (frame != null) {
+            frame.end(ctx, transactionResult, compileRecords);
+        }
+        if (usage != null) {
+            usage.end(ctx, transactionResult, compileRecords);
+        }
+        return transactionResult;
+    }
 
-        return FastVmTransactionResult.fromBytes(result);
+    /**
+     * Returns the cancellation flag of the deadline installed on this thread if the given context
+     * starts a new execution that is bound by it, and {@code null} otherwise. Nested frames share
+     * the flag of their top-level frame.
+     */
+    private static ByteBuffer cancelFlagOf(ExecutionContext ctx) {
+        if ((ctx.getFlags() & FvmConstants.FLAG_DEADLINE) == 0 || !Callback.stackIsEmpty()) {
+            return null;
+        }
+        ExecutionDeadline deadline = ExecutionDeadline.current();
+        return (deadline == null) ? null : deadline.flag();
     }
 }
@@ -1,6 +1,14 @@
 package org.aion.fastvm;
 
 import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 import org.aion.types.AionAddress;
 import org.aion.types.Transaction;
 import org.aion.fastvm.util.TransactionResultUtil;
@@ -30,8 +38,24 @@ public final class FastVirtualMachine {
             throw new NullPointerException("Cannot run null transaction!");
         }
 
+        AccountExistenceFilter existenceFilter = externalState.getAccountExistenceFilter();
+        if (existenceFilter != null) {
+            externalState = new ExistenceFilteringExternalState(externalState, existenceFilter);
+        }
+
+        AccessListRecorder recorder = null;
+        if (externalState.isAccessListRecordingEnabled()) {
+            recorder = new AccessListRecorder();
+            externalState = new AccessRecordingExternalState(externalState, recorder);
+        }
+
         AionAddress contract = (transaction.isCreate) ? capabilities.computeNewContractAddress(transaction.senderAddress, transaction.nonce) : null;
         ExecutionContext context = constructTransactionContext(transaction, contract, externalState);
+        SideEffectsRecordingLevel recordingLevel = externalState.getSideEffectsRecordingLevel();
+        context.getSideEffects().setRecordingLevel(recordingLevel);
+        LogSink logSink = externalState.getLogSink();
+        context.getSideEffects().setLogSink(logSink);
+        int logSinkMark = (logSink == null) ? 0 : logSink.mark();
         IExternalStateForFvm childExternalState = externalState.newChildExternalState();
         IExternalStateForFvm grandChildExternalState = childExternalState.newChildExternalState();
 
@@ -45,7 +69,8 @@ public final class FastVirtualMachine {
         if (!result.getResultCode().isSuccess()) {
             return TransactionResultUtil.createWithCodeAndEnergyRemaining(
                     result.getResultCode(),
-                    transaction.energyLimit - result.getEnergyRemaining());
+                    transaction.energyLimit - result.getEnergyRemaining(),
+                    (recorder == null) ? null : recorder.toAccessList());
         }
 
         incrementNonceAndDeductEnergyCost(childExternalState, transaction);
@@ -72,16 +97,301 @@ public final class FastVirtualMachine {
             childExternalState.commit();
         }
 
+        // The logs of a failed transaction do not belong in its receipt.
+        if (logSink != null && !result.getResultCode().isSuccess()) {
+            logSink.revertTo(logSinkMark);
+        }
+
         // Propagate any side-effects.
         SideEffects sideEffects = context.getSideEffects();
+        boolean dropLogsAndDeletions =
+                recordingLevel == SideEffectsRecordingLevel.CONSENSUS_MINIMUM
+                        && !result.getResultCode().isSuccess();
 
         return TransactionResultUtil.createFvmWrappedTransactionResult(
                 result.getResultCode(),
                 sideEffects.getInternalTransactions(),
-                sideEffects.getExecutionLogs(),
+                dropLogsAndDeletions ? new ArrayList<>() : sideEffects.getExecutionLogs(),
+                transaction.energyLimit - result.getEnergyRemaining(),
+                result.getReturnData(),
+                dropLogsAndDeletions ? new ArrayList<>() : sideEffects.getAddressesToBeDeleted(),
+                (recorder == null) ? null : recorder.toAccessList());
+    }
+
+    /**
+     * Returns the result of running the specified transaction as a read-only query (a local call)
+     * against the given snapshot of the world state.
+     *
+     * <p>The transaction runs as a static call, so any attempt to modify the state fails the
+     * query. The sender's nonce and balance are neither checked nor charged, no internal
+     * transactions are recorded, and nothing is ever committed to the snapshot. The snapshot may
+     * therefore be shared by any number of concurrent queries, as long as it is not modified while
+     * they run.
+     *
+     * <p>The fvm itself still runs under the lock that transactions are executed under, so a query
+     * runs one at a time with other queries and with block import. Only the checks before
+     * and the cache around the execution run outside of it. The native jit keeps its per-execution
+     * state per thread, but that has not been verified against a built library under concurrent
+     * block import and engine resets, so the lock stays until it has.
+     *
+     * <p>This method is thread-safe.
+     *
+     * @param snapshot The world state at the block being queried.
+     * @param capabilities The external capabilities.
+     * @param transaction The call to run. It must not be a contract creation.
+     * @param isFork040enabled Whether or not the 0.4.0 fork is enabled.
+     * @return the query result.
+     */
+    public static FvmWrappedTransactionResult runQuery(
+            IExternalStateForFvm snapshot, IExternalCapabilities capabilities, Transaction transaction, boolean isFork040enabled) {
+        return runQuery(new FastVM(), snapshot, capabilities, transaction, isFork040enabled, null, null);
+    }
+
+    /**
+     * Returns the result of running the specified transaction as a read-only query, serving it
+     * from the given cache if the same query was already run against the same state.
+     * See {@link #runQuery(IExternalStateForFvm, IExternalCapabilities, Transaction, boolean)}.
+     *
+     * @param snapshot The world state at the block being queried.
+     * @param capabilities The external capabilities.
+     * @param transaction The call to run. It must not be a contract creation.
+     * @param isFork040enabled Whether or not the 0.4.0 fork is enabled.
+     * @param cache The cache of query results.
+     * @return the query result.
+     */
+    public static FvmWrappedTransactionResult runQuery(
+            IExternalStateForFvm snapshot, IExternalCapabilities capabilities, Transaction transaction, boolean isFork040enabled, QueryResultCache cache) {
+        return runQuery(new FastVM(), snapshot, capabilities, transaction, isFork040enabled, cache, null);
+    }
+
+    /**
+     * Returns the result of running the specified transaction as a read-only query that is
+     * abandoned once the given deadline is cancelled, in which case the result code is {@link
+     * FastVmResultCode#DEADLINE_EXCEEDED}. Such results are never cached.
+     * See {@link #runQuery(IExternalStateForFvm, IExternalCapabilities, Transaction, boolean, QueryResultCache)}.
+     *
+     * @param snapshot The world state at the block being queried.
+     * @param capabilities The external capabilities.
+     * @param transaction The call to run. It must not be a contract creation.
+     * @param isFork040enabled Whether or not the 0.4.0 fork is enabled.
+     * @param cache The cache of query results, or {@code null}.
+     * @param deadline The deadline of the query.
+     * @return the query result.
+     */
+    public static FvmWrappedTransactionResult runQuery(
+            IExternalStateForFvm snapshot, IExternalCapabilities capabilities, Transaction transaction, boolean isFork040enabled, QueryResultCache cache, ExecutionDeadline deadline) {
+        if (deadline == null) {
+            throw new NullPointerException("Cannot query with a null deadline!");
+        }
+        return runQuery(new FastVM(), snapshot, capabilities, transaction, isFork040enabled, cache, deadline);
+    }
+
+    /**
+     * Returns the result of running the specified transaction as a read-only query using the given
+     * fvm, and the given cache and deadline if they are not {@code null}.
+     * See {@link #runQuery(IExternalStateForFvm, IExternalCapabilities, Transaction, boolean)}.
+     */
+    public static FvmWrappedTransactionResult runQuery(
+            IFastVm fvm, IExternalStateForFvm snapshot, IExternalCapabilities capabilities, Transaction transaction, boolean isFork040enabled, QueryResultCache cache, ExecutionDeadline deadline) {
+        if (snapshot == null) {
+            throw new NullPointerException("Cannot query a null snapshot!");
+        }
+        if (capabilities == null) {
+            throw new NullPointerException("Cannot query using null capabilities!");
+        }
+        if (transaction == null) {
+            throw new NullPointerException("Cannot run null query!");
+        }
+        if (transaction.isCreate) {
+            throw new IllegalArgumentException("Cannot query a contract creation!");
+        }
+
+        QueryResultCache.Key key = (cache == null) ? null : QueryResultCache.keyOf(snapshot, transaction);
+        if (key != null) {
+            FvmWrappedTransactionResult cached = cache.get(key);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        IExternalStateForFvm externalState = new ReadOnlyExternalState(snapshot);
+        if (!externalState.isValidEnergyLimitForNonCreate(transaction.energyLimit, transaction.copyOfTransactionData())) {
+            return TransactionResultUtil.createWithCodeAndEnergyRemaining(FastVmResultCode.INVALID_NRG_LIMIT, 0);
+        }
+
+        if (deadline != null && deadline.isCancelled()) {
+            return deadlineExceeded(transaction);
+        }
+
+        long energy = transaction.energyLimit - TransactionUtil.computeTransactionCost(transaction);
+        ExecutionContext context = ExecutionContext.from(
+                transaction.copyOfTransactionHash(),
+                transaction.destinationAddress,
+                transaction.senderAddress,
+                transaction.senderAddress,
+                transaction.energyPrice,
+                energy,
+                transaction.value,
+                ArrayUtils.nullToEmpty(transaction.copyOfTransactionData()),
+                0,
+                TransactionKind.CALL,
+                (deadline == null) ? FvmConstants.FLAG_STATIC : (FvmConstants.FLAG_STATIC | FvmConstants.FLAG_DEADLINE),
+                externalState.getMinerAddress(),
+                externalState.getBlockNumber(),
+                externalState.getBlockTimestamp(),
+                externalState.getBlockEnergyLimit(),
+                externalState.getBlockDifficulty());
+        context.getSideEffects().setRecordingLevel(externalState.getSideEffectsRecordingLevel());
+
+        FastVmTransactionResult result = new FastVmTransactionResult(FastVmResultCode.SUCCESS, energy);
+        byte[] code = externalState.getCode(transaction.destinationAddress);
+        if (!ArrayUtils.isEmpty(code)) {
+            synchronized (FVM_LOCK) {
+                CapabilitiesProvider.installExternalCapabilities(capabilities);
+                if (deadline != null) {
+                    deadline.install();
+                }
+                try {
+                    if (isFork040enabled) {
+                        result = fvm.runPost040Fork(code, context, externalState);
+                    } else {
+                        result = fvm.runPre040Fork(code, context, externalState);
+                    }
+                } finally {
+                    if (deadline != null) {
+                        deadline.uninstall();
+                    }
+                    CapabilitiesProvider.removeExternalCapabilities();
+                }
+            }
+        }
+
+        // A query that failed after its deadline passed may have failed because of it.
+        if (deadline != null && !result.getResultCode().isSuccess() && deadline.isCancelled()) {
+            return deadlineExceeded(transaction);
+        }
+
+        // The result may be shared through the cache, so it holds no mutable lists.
+        FvmWrappedTransactionResult queryResult = TransactionResultUtil.createFvmWrappedTransactionResult(
+                result.getResultCode(),
+                Collections.emptyList(),
+                Collections.emptyList(),
                 transaction.energyLimit - result.getEnergyRemaining(),
                 result.getReturnData(),
-                sideEffects.getAddressesToBeDeleted());
+                Collections.emptyList());
+
+        // Internal errors may be caused by the environment rather than the query, so retry them.
+        if (key != null && !queryResult.result.transactionStatus.isFatal()) {
+            cache.put(key, queryResult);
+        }
+        return queryResult;
+    }
+
+    private static FvmWrappedTransactionResult deadlineExceeded(Transaction transaction) {
+        return TransactionResultUtil.createFvmWrappedTransactionResult(
+                FastVmResultCode.DEADLINE_EXCEEDED,
+                Collections.emptyList(),
+                Collections.emptyList(),
+                transaction.energyLimit,
+                new byte[0],
+                Collections.emptyList());
+    }
+
+    /**
+     * Returns an estimate of the energy limit that the specified transaction needs in order to
+     * succeed against the given snapshot.
+     *
+     * <p>The transaction is first run once with the given maximum energy limit. Its estimate is
+     * the energy that run used, plus the largest reserve needed by its nested frames (see {@link
+     * EnergyPeakRecorder}). The estimate is then confirmed by running the transaction with it. If
+     * that fails, because the transaction does not take the same path with less energy, twice the
+     * estimate is tried once, and otherwise the maximum energy limit is the estimate.
+     *
+     * <p>Every run is made against a fresh child of the snapshot that is discarded afterwards, so
+     * the snapshot itself is never modified. The sender's nonce and balance are neither checked
+     * nor charged.
+     *
+     * @param snapshot The world state to estimate against.
+     * @param capabilities The external capabilities.
+     * @param transaction The transaction, whose own energy limit is ignored.
+     * @param isFork040enabled Whether or not the 0.4.0 fork is enabled.
+     * @param maxEnergyLimit The largest energy limit the transaction may have.
+     * @return the estimate.
+     */
+    public static EnergyEstimate estimateEnergy(
+            IExternalStateForFvm snapshot, IExternalCapabilities capabilities, Transaction transaction, boolean isFork040enabled, long maxEnergyLimit) {
+        return estimateEnergy(new FastVM(), snapshot, capabilities, transaction, isFork040enabled, maxEnergyLimit);
+    }
+
+    /**
+     * Returns an estimate of the energy limit that the specified transaction needs, using the
+     * given fvm. See {@link #estimateEnergy(IExternalStateForFvm, IExternalCapabilities, Transaction, boolean, long)}.
+     */
+    public static EnergyEstimate estimateEnergy(
+            IFastVm fvm, IExternalStateForFvm snapshot, IExternalCapabilities capabilities, Transaction transaction, boolean isFork040enabled, long maxEnergyLimit) {
+        if (snapshot == null) {
+            throw new NullPointerException("Cannot estimate against a null snapshot!");
+        }
+        if (transaction == null) {
+            throw new NullPointerException("Cannot estimate a null transaction!");
+        }
+
+        long intrinsicCost = TransactionUtil.computeTransactionCost(transaction);
+        if (maxEnergyLimit < intrinsicCost) {
+            return new EnergyEstimate(intrinsicCost, FastVmResultCode.OUT_OF_NRG, 0);
+        }
+
+        EnergyPeakRecorder recorder = new EnergyPeakRecorder();
+        FastVmTransactionResult result = runForEstimate(fvm, snapshot, capabilities, transaction, isFork040enabled, maxEnergyLimit, recorder);
+        long used = maxEnergyLimit - result.getEnergyRemaining();
+        if (!result.getResultCode().isSuccess()) {
+            return new EnergyEstimate(used, result.getResultCode(), 1);
+        }
+
+        long estimate = Math.min(maxEnergyLimit, used + recorder.reserve());
+        if (estimate == maxEnergyLimit) {
+            return new EnergyEstimate(estimate, result.getResultCode(), 1);
+        }
+        result = runForEstimate(fvm, snapshot, capabilities, transaction, isFork040enabled, estimate, null);
+        if (result.getResultCode().isSuccess()) {
+            return new EnergyEstimate(estimate, result.getResultCode(), 2);
+        }
+
+        estimate = Math.min(maxEnergyLimit, 2 * estimate);
+        if (estimate == maxEnergyLimit) {
+            return new EnergyEstimate(estimate, FastVmResultCode.SUCCESS, 2);
+        }
+        result = runForEstimate(fvm, snapshot, capabilities, transaction, isFork040enabled, estimate, null);
+        return new EnergyEstimate(result.getResultCode().isSuccess() ? estimate : maxEnergyLimit, FastVmResultCode.SUCCESS, 3);
+    }
+
+    /** Runs the transaction with the given energy limit against a discarded child of the snapshot. */
+    private static FastVmTransactionResult runForEstimate(
+            IFastVm fvm, IExternalStateForFvm snapshot, IExternalCapabilities capabilities, Transaction transaction, boolean isFork040enabled, long energyLimit, EnergyPeakRecorder recorder) {
+        Transaction attempt = transaction.isCreate
+                ? Transaction.contractCreateTransaction(transaction.senderAddress, transaction.copyOfTransactionHash(), transaction.nonce, transaction.value, transaction.copyOfTransactionData(), energyLimit, transaction.energyPrice)
+                : Transaction.contractCallTransaction(transaction.senderAddress, transaction.destinationAddress, transaction.copyOfTransactionHash(), transaction.nonce, transaction.value, transaction.copyOfTransactionData(), energyLimit, transaction.energyPrice);
+
+        IExternalStateForFvm childExternalState = snapshot.newChildExternalState();
+        AionAddress contract = (attempt.isCreate) ? capabilities.computeNewContractAddress(attempt.senderAddress, attempt.nonce) : null;
+        ExecutionContext context = constructTransactionContext(attempt, contract, childExternalState);
+        context.getSideEffects().setRecordingLevel(SideEffectsRecordingLevel.CONSENSUS_MINIMUM);
+        FastVmTransactionResult result = new FastVmTransactionResult(FastVmResultCode.SUCCESS, context.getTransactionEnergy());
+
+        if (recorder != null) {
+            recorder.install();
+        }
+        try {
+            if (attempt.isCreate) {
+                return runContractCreationTransaction(fvm, childExternalState, capabilities, context, attempt, result, isFork040enabled);
+            } else {
+                return runNonContractCreationTransaction(fvm, childExternalState, capabilities, context, attempt, result, isFork040enabled);
+            }
+        } finally {
+            if (recorder != null) {
+                recorder.uninstall();
+            }
+        }
     }
 
     /**
@@ -265,41 +575,114 @@ public final class FastVirtualMachine {
      */
     public static void performRejectionChecks(
             IExternalStateForFvm externalState, Transaction transaction, FastVmTransactionResult result) {
-        BigInteger energyPrice = BigInteger.valueOf(transaction.energyPrice);
+        FastVmResultCode code = rejectionCodeOf(externalState, transaction, transaction.copyOfTransactionData());
+        if (code != FastVmResultCode.SUCCESS) {
+            result.setResultCode(code);
+            result.setEnergyRemaining(transaction.energyLimit);
+        }
+    }
+
+    /**
+     * Returns the verdict of the rejection checks on each of the specified transactions, which
+     * are checked in parallel on the common fork-join pool against the given snapshot without
+     * running any of them.
+     * See {@link #preValidate(IExternalStateForFvm, List, Executor)}.
+     */
+    public static List<PreValidationVerdict> preValidate(IExternalStateForFvm snapshot, List<Transaction> transactions) {
+        return preValidate(snapshot, transactions, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Returns the verdict of the rejection checks on each of the specified transactions, which
+     * are checked in parallel on the given executor against the given snapshot without running
+     * any of them.
+     *
+     * <p>Every transaction is checked as though it were the next transaction of its sender, in the
+     * same way that {@link #run(IExternalStateForFvm, IExternalCapabilities, Transaction, boolean)}
+     * checks it before execution. This is meant for admitting transactions into the mempool.
+     *
+     * <p>The snapshot is only read from, and must not be modified while this method runs. It is
+     * read from several threads of the executor at once, so its reads must be thread-safe.
+     *
+     * <p>The calling thread waits until every transaction is checked. If any check throws, one of
+     * the exceptions is rethrown once the others are done.
+     *
+     * @param snapshot The world state to check against.
+     * @param transactions The transactions to check.
+     * @param executor The executor to check the transactions on.
+     * @return the verdicts, in the order of the transactions.
+     */
+    public static List<PreValidationVerdict> preValidate(IExternalStateForFvm snapshot, List<Transaction> transactions, Executor executor) {
+        if (snapshot == null) {
+            throw new NullPointerException("Cannot pre-validate against a null snapshot!");
+        }
+        if (transactions == null) {
+            throw new NullPointerException("Cannot pre-validate null transactions!");
+        }
+        if (executor == null) {
+            throw new NullPointerException("Cannot pre-validate on a null executor!");
+        }
+
+        // A few batches per processor, so that uneven checks still keep every thread busy.
+        PreValidationVerdict[] verdicts = new PreValidationVerdict[transactions.size()];
+        int batches = Math.min(verdicts.length, 4 * Runtime.getRuntime().availableProcessors());
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[batches];
+        for (int batch = 0; batch < batches; batch++) {
+            int from = (int) ((long) verdicts.length * batch / batches);
+            int to = (int) ((long) verdicts.length * (batch + 1) / batches);
+            futures[batch] = CompletableFuture.runAsync(() -> {
+                for (int i = from; i < to; i++) {
+                    Transaction transaction = transactions.get(i);
+                    // The data is copied once and shared by both checks that read it.
+                    byte[] data = transaction.copyOfTransactionData();
+                    verdicts[i] = new PreValidationVerdict(
+                            rejectionCodeOf(snapshot, transaction, data),
+                            TransactionUtil.computeTransactionCost(transaction.isCreate, data));
+                }
+            }, executor);
+        }
+
+        try {
+            CompletableFuture.allOf(futures).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
+        return Arrays.asList(verdicts);
+    }
+
+    private static FastVmResultCode rejectionCodeOf(IExternalStateForFvm externalState, Transaction transaction, byte[] data) {
         long energyLimit = transaction.energyLimit;
 
         if (transaction.isCreate) {
-            if (!externalState.isValidEnergyLimitForCreate(energyLimit, transaction.copyOfTransactionData())) {
-                result.setResultCode(FastVmResultCode.INVALID_NRG_LIMIT);
-                result.setEnergyRemaining(energyLimit);
-                return;
+            if (!externalState.isValidEnergyLimitForCreate(energyLimit, data)) {
+                return FastVmResultCode.INVALID_NRG_LIMIT;
             }
 
             if (externalState.isForkSignatureSwapEnabled()) {
-                result.setResultCode(FastVmResultCode.REJECT_DEPLOY);
-                result.setEnergyRemaining(energyLimit);
-                return;
+                return FastVmResultCode.REJECT_DEPLOY;
             }
         } else {
-            if (!externalState.isValidEnergyLimitForNonCreate(energyLimit, transaction.copyOfTransactionData())) {
-                result.setResultCode(FastVmResultCode.INVALID_NRG_LIMIT);
-                result.setEnergyRemaining(energyLimit);
-                return;
+            if (!externalState.isValidEnergyLimitForNonCreate(energyLimit, data)) {
+                return FastVmResultCode.INVALID_NRG_LIMIT;
             }
         }
 
         if (!externalState.accountNonceEquals(transaction.senderAddress, transaction.nonce)) {
-            result.setResultCode(FastVmResultCode.INVALID_NONCE);
-            result.setEnergyRemaining(energyLimit);
-            return;
+            return FastVmResultCode.INVALID_NONCE;
         }
 
         BigInteger transactionCost =
-                energyPrice.multiply(BigInteger.valueOf(energyLimit)).add(transaction.value);
+                BigInteger.valueOf(transaction.energyPrice).multiply(BigInteger.valueOf(energyLimit)).add(transaction.value);
         if (!externalState.accountBalanceIsAtLeast(transaction.senderAddress, transactionCost)) {
-            result.setResultCode(FastVmResultCode.INSUFFICIENT_BALANCE);
-            result.setEnergyRemaining(energyLimit);
+            return FastVmResultCode.INSUFFICIENT_BALANCE;
         }
+        return FastVmResultCode.SUCCESS;
     }
 
     /**
@@ -0,0 +1,96 @@
+package org.aion.fastvm;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * An opt-in basic block profiler of the contracts run by the FastVM.
+ *
+ * <p>While enabled, the jit compiles every contract it runs into a separate profiling variant,
+ * which counts how many times each basic block of the code is entered and how much energy each
+ * consumes. The variants without profiling are left as they are, so production executions are
+ * not affected, and they run again once the profiler is disabled. The profiled variants are
+ * slower and compiled anew on first use, so the profiler is meant to be enabled for a while on a
+ * node that is being investigated.
+ *
+ * <p>The counts are kept per contract code until {@link #reset()} is called, including while the
+ * profiler is disabled.
+ *
+ * <p>This class is thread-safe.
+ */
+public final class FastVmProfiler {
+    private static boolean enabled = false;
+
+    private FastVmProfiler() {}
+
+    /** Starts profiling the contracts that are run from now on. */
+    public static synchronized void enable() {
+        FastVM.setProfiling(true);
+        enabled = true;
+    }
+
+    /** Stops profiling. The counts so far are kept. */
+    public static synchronized void disable() {
+        FastVM.setProfiling(false);
+        enabled = false;
+    }
+
+    public static synchronized boolean isEnabled() {
+        return enabled;
+    }
+
+    /** Discards the counts so far. */
+    public static void reset() {
+        FastVM.resetBlockProfiles();
+    }
+
+    /** Returns the profiles of the contract codes that were run with profiling since the last reset. */
+    public static List<CodeProfile> getProfiles() {
+        return decode(FastVM.getBlockProfiles());
+    }
+
+    /** Returns at most the given number of blocks that were executed, over all codes, the hottest first. */
+    public static List<BlockProfile> getHotBlocks(int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Cannot get a negative number of blocks: " + limit);
+        }
+        return hottestOf(getProfiles(), limit);
+    }
+
+    static List<BlockProfile> hottestOf(List<CodeProfile> profiles, int limit) {
+        return profiles.stream()
+            .flatMap(profile -> profile.getBlocks().stream())
+            .filter(block -> block.getExecutionCount() != 0)
+            .sorted(CodeProfile.HOTTEST_FIRST)
+            .limit(limit)
+            .collect(Collectors.toList());
+    }
+
+    /** Decodes the profiles reported by the jit. */
+    static List<CodeProfile> decode(byte[] encoding) {
+        ByteBuffer buffer = ByteBuffer.wrap(encoding);
+        int count = buffer.getInt();
+
+        List<CodeProfile> profiles = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] codeHash = new byte[32];
+            buffer.get(codeHash);
+            byte[] code = new byte[buffer.getInt()];
+            buffer.get(code);
+
+            int blockCount = buffer.getInt();
+            List<BlockProfile> blocks = new ArrayList<>(blockCount);
+            for (int j = 0; j < blockCount; j++) {
+                int offset = buffer.getInt();
+                long executionCount = buffer.getLong();
+                long energyUsed = buffer.getLong();
+                blocks.add(new BlockProfile(codeHash, code, offset, executionCount, energyUsed));
+            }
+            profiles.add(new CodeProfile(codeHash, code, blocks));
+        }
+        return Collections.unmodifiableList(profiles);
+    }
+}
@@ -36,6 +36,8 @@ public enum FastVmResultCode {
 
     ABORT(11, ResultCategory.FAILED),
 
+    DEADLINE_EXCEEDED(12, ResultCategory.FATAL),
+
     REJECT_DEPLOY(104, ResultCategory.REJECTED),
 
     VM_REJECTED(-1, ResultCategory.FATAL),
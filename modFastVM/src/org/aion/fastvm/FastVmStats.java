@@ -0,0 +1,165 @@
+package org.aion.fastvm;
+
+/**
+ * The statistics of the jit that compiles and runs the contracts of the FastVM, as returned by
+ * {@link #current()}.
+ *
+ * <p>The jit keeps the code it compiled in a code map until its engine is reset, which happens
+ * every 20000 compilations and whenever the engine holds more than 1000 MB. A recompile storm
+ * shows up as a rising miss count and compile time between two readings, memory growth as a
+ * rising memory size, and both as resets evicting many modules.
+ *
+ * <p>All the counts and times are cumulative since the library was loaded, except for the live
+ * module count and the memory size, which describe the current engine. Use {@link
+ * #since(FastVmStats)} to get the counts and times between two readings.
+ *
+ * <p>This class is immutable.
+ */
+public final class FastVmStats {
+    private final long compiledModules;
+    private final long liveModules;
+    private final long codeMapHits;
+    private final long codeMapMisses;
+    private final long memorySize;
+    private final long cacheLoadNanos;
+    private final long compilationNanos;
+    private final long optimizationNanos;
+    private final long codeGenNanos;
+    private final long resets;
+    private final long evictedModules;
+
+    private FastVmStats(long[] values) {
+        this.compiledModules = values[0];
+        this.liveModules = values[1];
+        this.codeMapHits = values[2];
+        this.codeMapMisses = values[3];
+        this.memorySize = values[4];
+        this.cacheLoadNanos = values[5];
+        this.compilationNanos = values[6];
+        this.optimizationNanos = values[7];
+        this.codeGenNanos = values[8];
+        this.resets = values[9];
+        this.evictedModules = values[10];
+    }
+
+    /** Returns the current statistics of the jit. */
+    public static FastVmStats current() {
+        return fromValues(FastVM.getStats());
+    }
+
+    /** Returns the statistics reported by the jit, in the order of the fields of this class. */
+    static FastVmStats fromValues(long[] values) {
+        if (values == null) {
+            throw new NullPointerException("Cannot create stats from null values!");
+        }
+        if (values.length != 11) {
+            throw new IllegalArgumentException("Cannot create stats from " + values.length + " values, expected 11!");
+        }
+        return new FastVmStats(values.clone());
+    }
+
+    /**
+     * Returns the counts and times between the given earlier reading and this one. The live module
+     * count and the memory size are those of this reading.
+     */
+    public FastVmStats since(FastVmStats earlier) {
+        if (earlier == null) {
+            throw new NullPointerException("Cannot get stats since null stats!");
+        }
+        return new FastVmStats(new long[] {
+            this.compiledModules - earlier.compiledModules,
+            this.liveModules,
+            this.codeMapHits - earlier.codeMapHits,
+            this.codeMapMisses - earlier.codeMapMisses,
+            this.memorySize,
+            this.cacheLoadNanos - earlier.cacheLoadNanos,
+            this.compilationNanos - earlier.compilationNanos,
+            this.optimizationNanos - earlier.optimizationNanos,
+            this.codeGenNanos - earlier.codeGenNanos,
+            this.resets - earlier.resets,
+            this.evictedModules - earlier.evictedModules
+        });
+    }
+
+    /** Returns the number of modules the jit compiled. */
+    public long getCompiledModuleCount() {
+        return this.compiledModules;
+    }
+
+    /** Returns the number of compiled modules held by the current engine. */
+    public long getLiveModuleCount() {
+        return this.liveModules;
+    }
+
+    /** Returns the number of executions that found their code already compiled. */
+    public long getCodeMapHitCount() {
+        return this.codeMapHits;
+    }
+
+    /** Returns the number of executions that did not find their code compiled. */
+    public long getCodeMapMissCount() {
+        return this.codeMapMisses;
+    }
+
+    /** Returns the fraction of the executions that found their code compiled, or 0 if there were none. */
+    public double getCodeMapHitRatio() {
+        long lookups = this.codeMapHits + this.codeMapMisses;
+        return (lookups == 0) ? 0 : (double) this.codeMapHits / lookups;
+    }
+
+    /** Returns the memory allocated by the current engine, in bytes. */
+    public long getMemorySize() {
+        return this.memorySize;
+    }
+
+    /** Returns the time spent loading compiled modules from the jit's object cache. */
+    public long getCacheLoadNanos() {
+        return this.cacheLoadNanos;
+    }
+
+    /** Returns the time spent translating contract code to LLVM IR. */
+    public long getCompilationNanos() {
+        return this.compilationNanos;
+    }
+
+    /** Returns the time spent optimizing and lowering the IR. */
+    public long getOptimizationNanos() {
+        return this.optimizationNanos;
+    }
+
+    /** Returns the time spent generating machine code. */
+    public long getCodeGenNanos() {
+        return this.codeGenNanos;
+    }
+
+    /** Returns the total time spent compiling, over all the phases. */
+    public long getTotalCompileNanos() {
+        return this.cacheLoadNanos + this.compilationNanos + this.optimizationNanos + this.codeGenNanos;
+    }
+
+    /** Returns the number of times the engine was reset. */
+    public long getResetCount() {
+        return this.resets;
+    }
+
+    /** Returns the number of compiled modules dropped by the resets. */
+    public long getEvictedModuleCount() {
+        return this.evictedModules;
+    }
+
+    @Override
+    public String toString() {
+        return "FastVmStats { compiled modules = " + this.compiledModules
+            + ", live modules = " + this.liveModules
+            + ", code map hits = " + this.codeMapHits
+            + ", code map misses = " + this.codeMapMisses
+            + ", memory size = " + this.memorySize
+            + ", cache load ns = " + this.cacheLoadNanos
+            + ", compilation ns = " + this.compilationNanos
+            + ", optimization ns = " + this.optimizationNanos
+            + ", code gen ns = " + this.codeGenNanos
+            + ", resets = " + this.resets
+            + ", evicted modules = " + this.evictedModules
+            + " }";
+    }
+}
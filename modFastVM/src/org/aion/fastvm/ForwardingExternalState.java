@@ -0,0 +1,228 @@
+package org.aion.fastvm;
+
+import java.math.BigInteger;
+import java.util.List;
+import org.aion.types.AionAddress;
+
+/**
+ * An {@link IExternalStateForFvm} that forwards every call to another world state. Subclasses
+ * override the calls they want to observe or alter.
+ *
+ * <p>Subclasses must implement {@link #newChildExternalState()} so that child world states are
+ * wrapped in the same way as this one.
+ */
+abstract class ForwardingExternalState implements IExternalStateForFvm {
+    protected final IExternalStateForFvm delegate;
+
+    ForwardingExternalState(IExternalStateForFvm delegate) {
+        if (delegate == null) {
+            throw new NullPointerException("Cannot forward to a null externalState!");
+        }
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void commit() {
+        this.delegate.commit();
+    }
+
+    @Override
+    public void rollback() {
+        this.delegate.rollback();
+    }
+
+    @Override
+    public boolean isPrecompiledContract(AionAddress address) {
+        return this.delegate.isPrecompiledContract(address);
+    }
+
+    @Override
+    public FastVmTransactionResult runInternalPrecompiledContractCall(ExecutionContext context) {
+        return this.delegate.runInternalPrecompiledContractCall(context);
+    }
+
+    @Override
+    public void addStorageValue(AionAddress address, FvmDataWord key, FvmDataWord value) {
+        this.delegate.addStorageValue(address, key, value);
+    }
+
+    @Override
+    public void removeStorage(AionAddress address, FvmDataWord key) {
+        this.delegate.removeStorage(address, key);
+    }
+
+    @Override
+    public FvmDataWord getStorageValue(AionAddress address, FvmDataWord key) {
+        return this.delegate.getStorageValue(address, key);
+    }
+
+    @Override
+    public List<FvmDataWord> getStorageValues(AionAddress address, List<FvmDataWord> keys) {
+        return this.delegate.getStorageValues(address, keys);
+    }
+
+    @Override
+    public boolean isStoragePrefetchEnabled() {
+        return this.delegate.isStoragePrefetchEnabled();
+    }
+
+    @Override
+    public boolean destinationAddressIsSafeForFvm(AionAddress destination) {
+        return this.delegate.destinationAddressIsSafeForFvm(destination);
+    }
+
+    @Override
+    public byte[] getCode(AionAddress address) {
+        return this.delegate.getCode(address);
+    }
+
+    @Override
+    public void putCode(AionAddress address, byte[] code) {
+        this.delegate.putCode(address, code);
+    }
+
+    @Override
+    public boolean hasStorage(AionAddress address) {
+        return this.delegate.hasStorage(address);
+    }
+
+    @Override
+    public boolean hasAccountState(AionAddress address) {
+        return this.delegate.hasAccountState(address);
+    }
+
+    @Override
+    public void createAccount(AionAddress address) {
+        this.delegate.createAccount(address);
+    }
+
+    @Override
+    public void setVmType(AionAddress address) {
+        this.delegate.setVmType(address);
+    }
+
+    @Override
+    public BigInteger getBalance(AionAddress address) {
+        return this.delegate.getBalance(address);
+    }
+
+    @Override
+    public void addBalance(AionAddress address, BigInteger amount) {
+        this.delegate.addBalance(address, amount);
+    }
+
+    @Override
+    public BigInteger getNonce(AionAddress address) {
+        return this.delegate.getNonce(address);
+    }
+
+    @Override
+    public void incrementNonce(AionAddress address) {
+        this.delegate.incrementNonce(address);
+    }
+
+    @Override
+    public boolean isValidEnergyLimitForCreate(long energyLimit, byte[] data) {
+        return this.delegate.isValidEnergyLimitForCreate(energyLimit, data);
+    }
+
+    @Override
+    public boolean isValidEnergyLimitForNonCreate(long energyLimit, byte[] data) {
+        return this.delegate.isValidEnergyLimitForNonCreate(energyLimit, data);
+    }
+
+    @Override
+    public boolean accountNonceEquals(AionAddress address, BigInteger nonce) {
+        return this.delegate.accountNonceEquals(address, nonce);
+    }
+
+    @Override
+    public boolean accountBalanceIsAtLeast(AionAddress address, BigInteger balance) {
+        return this.delegate.accountBalanceIsAtLeast(address, balance);
+    }
+
+    @Override
+    public void deductEnergyCost(AionAddress address, BigInteger energyCost) {
+        this.delegate.deductEnergyCost(address, energyCost);
+    }
+
+    @Override
+    public boolean isFork040enabled() {
+        return this.delegate.isFork040enabled();
+    }
+
+    @Override
+    public boolean isLocalCall() {
+        return this.delegate.isLocalCall();
+    }
+
+    @Override
+    public boolean allowNonceIncrement() {
+        return this.delegate.allowNonceIncrement();
+    }
+
+    @Override
+    public boolean isAccessListRecordingEnabled() {
+        return this.delegate.isAccessListRecordingEnabled();
+    }
+
+    @Override
+    public AccountExistenceFilter getAccountExistenceFilter() {
+        return this.delegate.getAccountExistenceFilter();
+    }
+
+    @Override
+    public boolean isBlockHashCacheEnabled() {
+        return this.delegate.isBlockHashCacheEnabled();
+    }
+
+    @Override
+    public SideEffectsRecordingLevel getSideEffectsRecordingLevel() {
+        return this.delegate.getSideEffectsRecordingLevel();
+    }
+
+    @Override
+    public LogSink getLogSink() {
+        return this.delegate.getLogSink();
+    }
+
+    @Override
+    public byte[] getStateRoot() {
+        return this.delegate.getStateRoot();
+    }
+
+    @Override
+    public AionAddress getMinerAddress() {
+        return this.delegate.getMinerAddress();
+    }
+
+    @Override
+    public long getBlockNumber() {
+        return this.delegate.getBlockNumber();
+    }
+
+    @Override
+    public long getBlockTimestamp() {
+        return this.delegate.getBlockTimestamp();
+    }
+
+    @Override
+    public long getBlockEnergyLimit() {
+        return this.delegate.getBlockEnergyLimit();
+    }
+
+    @Override
+    public FvmDataWord getBlockDifficulty() {
+        return this.delegate.getBlockDifficulty();
+    }
+
+    @Override
+    public byte[] getBlockHashByNumber(long blockNumber) {
+        return this.delegate.getBlockHashByNumber(blockNumber);
+    }
+
+    @Override
+    public boolean isForkSignatureSwapEnabled() {
+        return this.delegate.isForkSignatureSwapEnabled();
+    }
+}
@@ -17,4 +17,16 @@ public final class FvmConstants {
 
     /** Call stack depth limit. Based on EIP-150, the theoretical limit is ~340. */
     public static final int MAX_CALL_DEPTH = 128;
+
+    /**
+     * The context flag of a static call, which may not modify the state. This is the same value as
+     * {@link FastVM#FLAG_STATIC}, but using it does not load the native library.
+     */
+    public static final int FLAG_STATIC = 1;
+
+    /**
+     * The context flag of an execution that is bound by an {@link ExecutionDeadline}. It is never
+     * set on consensus executions.
+     */
+    public static final int FLAG_DEADLINE = 2;
 }
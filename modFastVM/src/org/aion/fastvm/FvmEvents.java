@@ -0,0 +1,335 @@
+package org.aion.fastvm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+import org.aion.fastvm.CallbackMetrics.Upcall;
+import org.aion.fastvm.util.HexUtil;
+
+/**
+ * The Java Flight Recorder events of the FastVM.
+ *
+ * <p>Every frame that {@link FastVM} runs is recorded as a {@link TransactionExecuted} event if it
+ * is a top-level frame, and as a {@link FrameExecuted} event otherwise. The jit reports how each
+ * frame found its compiled code in a per-thread buffer that is polled once the frame is done, and
+ * every report is recorded as a {@link JitCompile} event. A nested frame also polls the reports
+ * of the frames that enclose it, which are handed to the frame running at their depth and
+ * recorded when it is done. The upcalls a frame makes into {@link
+ * Callback}, not counting those of its nested frames, are recorded as one {@link CallbackBatch}
+ * event.
+ *
+ * <p>Nothing is recorded unless the events are enabled in a running recording. While they are
+ * disabled, a frame only pays for checking that.
+ */
+final class FvmEvents {
+    private static final String CATEGORY = "Aion FastVM";
+
+    private static final EventType TRANSACTION = EventType.getEventType(TransactionExecuted.class);
+    private static final EventType FRAME = EventType.getEventType(FrameExecuted.class);
+    private static final EventType COMPILE = EventType.getEventType(JitCompile.class);
+    private static final EventType BATCH = EventType.getEventType(CallbackBatch.class);
+
+    // The upcalls of the frame currently running on this thread, if callback batches are recorded.
+    private static final ThreadLocal<long[]> batch = new ThreadLocal<>();
+
+    // The frames currently being recorded on this thread, innermost last.
+    private static final ThreadLocal<List<Frame>> frames = ThreadLocal.withInitial(ArrayList::new);
+
+    private static final int UPCALLS = Upcall.values().length;
+
+    private FvmEvents() {}
+
+    /**
+     * Begins recording a frame that runs in the given context, and returns it, or returns {@code
+     * null} if none of the events are enabled.
+     */
+    static Frame beginFrame(ExecutionContext context) {
+        boolean topLevel = context.getTransactionStackDepth() == 0;
+        boolean frameEnabled = topLevel ? TRANSACTION.isEnabled() : FRAME.isEnabled();
+        boolean compileEnabled = COMPILE.isEnabled();
+        boolean batchEnabled = BATCH.isEnabled();
+
+        // Switched between transactions only, so that a transaction is batched completely or not at all.
+        if (topLevel && batchEnabled != CallbackMetrics.isBatching()) {
+            CallbackMetrics.setBatching(batchEnabled);
+        }
+
+        if (!frameEnabled && !compileEnabled && !batchEnabled) {
+            return null;
+        }
+        Frame frame = new Frame(context, frameEnabled, compileEnabled, batchEnabled);
+        frames.get().add(frame);
+        return frame;
+    }
+
+    /** Adds an upcall to the callback batch of the frame running on this thread, if any. */
+    static void addToBatch(Upcall upcall, long nanos) {
+        long[] upcalls = batch.get();
+        if (upcalls != null) {
+            upcalls[upcall.ordinal()]++;
+            upcalls[UPCALLS] += nanos;
+        }
+    }
+
+    /** A frame whose events are being recorded. */
+    static final class Frame {
+        private final TransactionExecuted transaction;
+        private final FrameExecuted frame;
+        private final boolean compileEnabled;
+        private final long[] upcalls;
+        private final long[] outerUpcalls;
+        private final int depth;
+
+        // The reports of this frame that a nested frame polled.
+        private final List<JitCompile> compiles = new ArrayList<>();
+
+        private Frame(ExecutionContext context, boolean frameEnabled, boolean compileEnabled, boolean batchEnabled) {
+            this.depth = context.getTransactionStackDepth();
+            boolean topLevel = this.depth == 0;
+            this.transaction = (frameEnabled && topLevel) ? new TransactionExecuted() : null;
+            this.frame = (frameEnabled && !topLevel) ? new FrameExecuted() : null;
+            this.compileEnabled = compileEnabled;
+
+            // The last slot holds the total time of the upcalls.
+            this.outerUpcalls = batchEnabled ? batch.get() : null;
+            this.upcalls = batchEnabled ? new long[UPCALLS + 1] : null;
+            if (batchEnabled) {
+                batch.set(this.upcalls);
+            }
+
+            if (this.transaction != null) {
+                this.transaction.begin();
+            }
+            if (this.frame != null) {
+                this.frame.begin();
+            }
+        }
+
+        /** Returns whether {@link #end} needs the compile records that the jit reported. */
+        boolean needsCompileRecords() {
+            return this.compileEnabled || this.transaction != null || this.frame != null;
+        }
+
+        /** Stops recording the frame without committing its events, because it threw. */
+        void abandon() {
+            if (this.upcalls != null) {
+                batch.set(this.outerUpcalls);
+            }
+            frames.get().remove(this);
+        }
+
+        /**
+         * Ends recording the frame and commits its events.
+         *
+         * @param context The context the frame ran in.
+         * @param result The result of the frame.
+         * @param compileRecords The compile records that the jit reported, or null if they are not
+         *     needed.
+         */
+        void end(ExecutionContext context, FastVmTransactionResult result, byte[] compileRecords) {
+            if (this.upcalls != null) {
+                batch.set(this.outerUpcalls);
+            }
+            List<Frame> running = frames.get();
+            running.remove(this);
+
+            if (compileRecords != null) {
+                for (CompileRecord record : CompileRecord.decode(compileRecords)) {
+                    JitCompile compile = new JitCompile();
+                    compile.codeHash = HexUtil.toHexString(record.codeHash);
+                    compile.depth = record.depth;
+                    compile.cacheHit = record.cacheHit;
+                    compile.compileTime = record.compileNanos;
+                    compile.codeSize = record.codeSize;
+
+                    // The reports of an enclosing frame wait until it is done.
+                    Frame owner = (record.depth == this.depth) ? null : record.ownerIn(running, frame -> frame.depth);
+                    if (owner != null) {
+                        owner.compiles.add(compile);
+                    } else {
+                        this.compiles.add(compile);
+                    }
+                }
+            }
+
+            String codeHash = null;
+            for (JitCompile compile : this.compiles) {
+                if (compile.depth == this.depth) {
+                    codeHash = compile.codeHash;
+                }
+                if (this.compileEnabled) {
+                    compile.commit();
+                }
+            }
+
+            long energyUsed = context.getTransactionEnergy() - result.getEnergyRemaining();
+            if (this.transaction != null) {
+                this.transaction.end();
+                if (this.transaction.shouldCommit()) {
+                    this.transaction.transactionHash = HexUtil.toHexString(context.getTransactionHash());
+                    this.transaction.kind = context.getTransactionKind().name();
+                    this.transaction.destination = context.getDestinationAddress().toString();
+                    this.transaction.codeHash = codeHash;
+                    this.transaction.energyUsed = energyUsed;
+                    this.transaction.resultCode = result.getResultCode().name();
+                    this.transaction.commit();
+                }
+            }
+            if (this.frame != null) {
+                this.frame.end();
+                if (this.frame.shouldCommit()) {
+                    this.frame.depth = this.depth;
+                    this.frame.kind = context.getTransactionKind().name();
+                    this.frame.caller = context.getSenderAddress().toString();
+                    this.frame.callee = context.getDestinationAddress().toString();
+                    this.frame.codeHash = codeHash;
+                    this.frame.energyUsed = energyUsed;
+                    this.frame.resultCode = result.getResultCode().name();
+                    this.frame.commit();
+                }
+            }
+            if (this.upcalls != null && Arrays.stream(this.upcalls, 0, UPCALLS).anyMatch(count -> count != 0)) {
+                CallbackBatch event = new CallbackBatch();
+                event.depth = this.depth;
+                event.contract = context.getDestinationAddress().toString();
+                event.getStorage = this.upcalls[Upcall.GET_STORAGE.ordinal()];
+                event.putStorage = this.upcalls[Upcall.PUT_STORAGE.ordinal()];
+                event.getBalance = this.upcalls[Upcall.GET_BALANCE.ordinal()];
+                event.exists = this.upcalls[Upcall.EXISTS.ordinal()];
+                event.getCode = this.upcalls[Upcall.GET_CODE.ordinal()];
+                event.call = this.upcalls[Upcall.CALL.ordinal()];
+                event.log = this.upcalls[Upcall.LOG.ordinal()];
+                event.selfDestruct = this.upcalls[Upcall.SELF_DESTRUCT.ordinal()];
+                event.getBlockHash = this.upcalls[Upcall.GET_BLOCK_HASH.ordinal()];
+                event.upcallTime = this.upcalls[UPCALLS];
+                event.commit();
+            }
+        }
+    }
+
+    @Name("org.aion.fastvm.TransactionExecuted")
+    @Label("Transaction Executed")
+    @Category(CATEGORY)
+    @Description("A top-level frame run by the FastVM")
+    static final class TransactionExecuted extends Event {
+        @Label("Transaction Hash")
+        String transactionHash;
+
+        @Label("Kind")
+        String kind;
+
+        @Label("Destination")
+        String destination;
+
+        @Label("Code Hash")
+        String codeHash;
+
+        @Label("Energy Used")
+        long energyUsed;
+
+        @Label("Result Code")
+        String resultCode;
+    }
+
+    @Name("org.aion.fastvm.FrameExecuted")
+    @Label("Nested Frame Executed")
+    @Category(CATEGORY)
+    @Description("A frame run by the FastVM for a call or create made by a contract")
+    static final class FrameExecuted extends Event {
+        @Label("Depth")
+        int depth;
+
+        @Label("Kind")
+        String kind;
+
+        @Label("Caller")
+        String caller;
+
+        @Label("Callee")
+        String callee;
+
+        @Label("Code Hash")
+        String codeHash;
+
+        @Label("Energy Used")
+        long energyUsed;
+
+        @Label("Result Code")
+        String resultCode;
+    }
+
+    @Name("org.aion.fastvm.JitCompile")
+    @Label("JIT Compile")
+    @Category(CATEGORY)
+    @Description("How a frame found its compiled code, either in the code cache or by compiling it")
+    static final class JitCompile extends Event {
+        @Label("Code Hash")
+        String codeHash;
+
+        @Label("Depth")
+        int depth;
+
+        @Label("Cache Hit")
+        boolean cacheHit;
+
+        @Label("Compile Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long compileTime;
+
+        @Label("Code Size")
+        @DataAmount(DataAmount.BYTES)
+        long codeSize;
+    }
+
+    @Name("org.aion.fastvm.CallbackBatch")
+    @Label("Callback Batch")
+    @Category(CATEGORY)
+    @Description("The upcalls a frame made into the world state, not counting those of its nested frames")
+    static final class CallbackBatch extends Event {
+        @Label("Depth")
+        int depth;
+
+        @Label("Contract")
+        String contract;
+
+        @Label("Storage Reads")
+        long getStorage;
+
+        @Label("Storage Writes")
+        long putStorage;
+
+        @Label("Balance Reads")
+        long getBalance;
+
+        @Label("Existence Checks")
+        long exists;
+
+        @Label("Code Reads")
+        long getCode;
+
+        @Label("Calls")
+        long call;
+
+        @Label("Logs")
+        long log;
+
+        @Label("Self-Destructs")
+        long selfDestruct;
+
+        @Label("Block Hash Reads")
+        long getBlockHash;
+
+        @Label("Upcall Time")
+        @Description("The total time of the upcalls, including the nested frames of the calls")
+        @Timespan(Timespan.NANOSECONDS)
+        long upcallTime;
+    }
+}
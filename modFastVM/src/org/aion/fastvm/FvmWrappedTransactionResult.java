@@ -8,6 +8,7 @@ import org.aion.fastvm.util.TransactionResultUtil;
 public final class FvmWrappedTransactionResult {
     public final TransactionResult result;
     public final List<AionAddress> deletedAddresses;
+    public final AccessList accessList;
 
     /**
      * Constructs a new result wrapper that wraps the provided result and also contains additional
@@ -19,16 +20,31 @@ public final class FvmWrappedTransactionResult {
      * @param deletedAddresses The deleted addresses.
      */
     public FvmWrappedTransactionResult(TransactionResult result, List<AionAddress> deletedAddresses) {
+        this(result, deletedAddresses, null);
+    }
+
+    /**
+     * Constructs a new result wrapper that wraps the provided result and also contains additional
+     * information such as the list of deleted addresses and the state accessed by the transaction.
+     *
+     * It is strongly recommended that this class only ever be created via the {@link TransactionResultUtil} class!
+     *
+     * @param result The result to wrap.
+     * @param deletedAddresses The deleted addresses.
+     * @param accessList The accessed state, or {@code null} if it was not recorded.
+     */
+    public FvmWrappedTransactionResult(TransactionResult result, List<AionAddress> deletedAddresses, AccessList accessList) {
         if (result == null) {
             throw new NullPointerException("Cannot construct TransactionResult with null result!");
         }
 
         this.result = result;
         this.deletedAddresses = deletedAddresses;
+        this.accessList = accessList;
     }
 
     @Override
     public String toString() {
-        return "FvmWrappedTransactionResult { result = " + this.result + ", deleted addresses = " + this.deletedAddresses + " }";
+        return "FvmWrappedTransactionResult { result = " + this.result + ", deleted addresses = " + this.deletedAddresses + ", access list = " + this.accessList + " }";
     }
 }
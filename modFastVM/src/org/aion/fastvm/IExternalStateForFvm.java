@@ -1,6 +1,8 @@
 package org.aion.fastvm;
 
 import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
 import org.aion.types.AionAddress;
 
 /**
@@ -73,6 +75,36 @@ public interface IExternalStateForFvm {
      */
     FvmDataWord getStorageValue(AionAddress address, FvmDataWord key);
 
+    /**
+     * Returns the values of the key-value pairings in the storage space of the given address, in
+     * the same order as the given keys. An entry is {@code null} if its key has no pairing.
+     *
+     * <p>Implementations backed by slow storage should override this to read all of the keys in
+     * one batch. The default implementation simply reads the keys one at a time.
+     *
+     * @param address The address.
+     * @param keys The keys.
+     * @return the values.
+     */
+    default List<FvmDataWord> getStorageValues(AionAddress address, List<FvmDataWord> keys) {
+        List<FvmDataWord> values = new ArrayList<>(keys.size());
+        for (FvmDataWord key : keys) {
+            values.add(getStorageValue(address, key));
+        }
+        return values;
+    }
+
+    /**
+     * Returns {@code true} only if the fvm should prefetch the storage keys that a contract is
+     * known to read, using {@link #getStorageValues(AionAddress, List)}, before running its code.
+     * Otherwise {@code false}.
+     *
+     * @return whether storage should be prefetched.
+     */
+    default boolean isStoragePrefetchEnabled() {
+        return false;
+    }
+
     /**
      * Returns {@code true} only if the destination address is safe for the FVM to execute.
      * Otherwise {@code false}.
@@ -232,6 +264,77 @@ public interface IExternalStateForFvm {
      */
     boolean allowNonceIncrement();
 
+    /**
+     * Returns {@code true} only if the fvm should record every account, balance, nonce, code and
+     * storage slot that a transaction reads or writes, and return it as an {@link AccessList}
+     * alongside the transaction result. Otherwise {@code false}.
+     *
+     * @return whether the accessed state should be recorded.
+     */
+    default boolean isAccessListRecordingEnabled() {
+        return false;
+    }
+
+    /**
+     * Returns a filter holding every account in this world state, which the fvm uses to skip
+     * {@link #hasAccountState(AionAddress)} queries for accounts that definitely do not exist, or
+     * {@code null} if no such filter is maintained.
+     *
+     * <p>The fvm adds the accounts it writes to into this filter. The caller remains responsible
+     * for adding every other account and for removing deleted accounts.
+     *
+     * @return the account existence filter.
+     */
+    default AccountExistenceFilter getAccountExistenceFilter() {
+        return null;
+    }
+
+    /**
+     * Returns {@code true} only if the jit may serve BLOCKHASH from the block hashes it cached for
+     * earlier transactions on the same thread, instead of calling {@link
+     * #getBlockHashByNumber(long)}. Otherwise {@code false}, in which case every BLOCKHASH of the
+     * transaction calls into this world state.
+     *
+     * @return whether the jit may cache block hashes.
+     */
+    default boolean isBlockHashCacheEnabled() {
+        return true;
+    }
+
+    /**
+     * Returns how much of the side effects of a transaction the fvm should record. Nodes that never
+     * serve internal transactions can skip recording them.
+     *
+     * @return the recording level.
+     */
+    default SideEffectsRecordingLevel getSideEffectsRecordingLevel() {
+        return SideEffectsRecordingLevel.FULL;
+    }
+
+    /**
+     * Returns the sink that should receive the logs of the transaction as they are produced, or
+     * {@code null} if the logs should be returned in the transaction result.
+     *
+     * <p>If a sink is returned, the transaction result holds no logs, and the logs of failed frames
+     * (and of the transaction, if it fails) are reverted in the sink. See {@link LogSink}.
+     *
+     * @return the log sink.
+     */
+    default LogSink getLogSink() {
+        return null;
+    }
+
+    /**
+     * Returns an identifier of the version of the world state this state reads from, such as its
+     * state root, or {@code null} if there is none. Read-only query results are only cached for
+     * states that have one. See {@link QueryResultCache}.
+     *
+     * @return the state root.
+     */
+    default byte[] getStateRoot() {
+        return null;
+    }
+
     /**
      * Returns the address of the miner that is mining the current block.
      *
@@ -0,0 +1,39 @@
+package org.aion.fastvm;
+
+/**
+ * A consumer of the logs of a transaction, which receives every log as soon as the fvm produces
+ * it, instead of having the logs collected into the transaction result.
+ *
+ * <p>Since a log is delivered before it is known whether the frame that produced it succeeds, a
+ * sink must be able to forget the most recent logs: the fvm takes a {@link #mark()} when a frame
+ * starts and, if the frame fails, calls {@link #revertTo(int)} with that mark. This includes the
+ * transaction itself, so once the fvm returns the sink holds exactly the logs a receipt of the
+ * transaction should hold.
+ *
+ * <p>A sink is only ever called by the thread executing the transaction.
+ */
+public interface LogSink {
+
+    /**
+     * Receives a log. The given arrays are owned by the caller and must not be kept.
+     *
+     * @param address The address of the log.
+     * @param topics The topics of the log, concatenated 32-byte words.
+     * @param data The data of the log.
+     */
+    void log(byte[] address, byte[] topics, byte[] data);
+
+    /**
+     * Returns a mark identifying the logs received so far.
+     *
+     * @return the mark.
+     */
+    int mark();
+
+    /**
+     * Forgets every log received after the given mark was taken.
+     *
+     * @param mark A mark previously returned by {@link #mark()}.
+     */
+    void revertTo(int mark);
+}
@@ -0,0 +1,28 @@
+package org.aion.fastvm;
+
+/**
+ * The verdict of pre-validating a transaction for the mempool, see {@link
+ * FastVirtualMachine#preValidate}.
+ */
+public final class PreValidationVerdict {
+    /** {@link FastVmResultCode#SUCCESS} if the transaction passed, otherwise the reason it is rejected. */
+    public final FastVmResultCode resultCode;
+
+    /** The intrinsic energy cost of the transaction, which is charged before any code runs. */
+    public final long intrinsicCost;
+
+    PreValidationVerdict(FastVmResultCode resultCode, long intrinsicCost) {
+        this.resultCode = resultCode;
+        this.intrinsicCost = intrinsicCost;
+    }
+
+    /** Returns {@code true} only if the transaction passed all of the rejection checks. */
+    public boolean isAccepted() {
+        return this.resultCode == FastVmResultCode.SUCCESS;
+    }
+
+    @Override
+    public String toString() {
+        return "PreValidationVerdict { result code = " + this.resultCode + ", intrinsic cost = " + this.intrinsicCost + " }";
+    }
+}
@@ -0,0 +1,182 @@
+package org.aion.fastvm;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.aion.types.AionAddress;
+
+/**
+ * Storage values that were read ahead of time, in one batch, for the contracts taking part in a
+ * single transaction.
+ *
+ * <p>A contract's constant storage keys (see {@link StorageKeyAnalyzer}) are prefetched the first
+ * time a frame runs with that contract as its storage owner. At that point nothing in the
+ * transaction can have written to its storage yet, so the prefetched values are the values the
+ * contract started the transaction with. A prefetched value stays valid until its key is written
+ * to, and is then dropped for the remainder of the transaction, so that state rollbacks are always
+ * observed through the external state itself.
+ *
+ * <p>The constant storage keys of the most recently run codes are kept across transactions, so
+ * that code is only analyzed again once it has been evicted. They are looked up by the code
+ * itself, since computing a hash of the code would cost more than analyzing it.
+ *
+ * <p>This class is not thread-safe. {@link Callback} keeps one instance per thread and clears it
+ * at the start of every transaction. The analyzed codes are shared by every thread.
+ */
+final class PrefetchedStorage {
+    static final int MAX_KEYS_PER_CONTRACT = 64;
+    static final int MAX_ANALYZED_CODES = 1024;
+
+    // The constant storage keys of the most recently run codes, least recently used first.
+    private static final Map<Code, List<FvmDataWord>> analyzedCodes =
+            new LinkedHashMap<Code, List<FvmDataWord>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Code, List<FvmDataWord>> eldest) {
+                    return size() > MAX_ANALYZED_CODES;
+                }
+            };
+
+    private final Map<AionAddress, Map<FvmDataWord, FvmDataWord>> values = new HashMap<>();
+    private final Set<AionAddress> owners = new HashSet<>();
+
+    /**
+     * Prefetches the constant storage keys of the given code, which is about to run with the
+     * given address as its storage owner. Nothing is fetched if that address has already been a
+     * storage owner earlier in the transaction.
+     *
+     * @param externalState The state to read from.
+     * @param address The storage owner.
+     * @param code The code that is about to run.
+     */
+    void prefetch(IExternalStateForFvm externalState, AionAddress address, byte[] code) {
+        if (!this.owners.add(address)) {
+            return;
+        }
+
+        List<FvmDataWord> keys = constantStorageKeys(code);
+        if (keys.isEmpty()) {
+            return;
+        }
+
+        List<FvmDataWord> fetched = externalState.getStorageValues(address, keys);
+        Map<FvmDataWord, FvmDataWord> storage = new HashMap<>();
+        for (int i = 0; i < keys.size(); i++) {
+            FvmDataWord value = fetched.get(i);
+            if (value != null) {
+                storage.put(keys.get(i), value);
+            }
+        }
+        this.values.put(address, storage);
+    }
+
+    /**
+     * Returns the constant storage keys of the given code, analyzing it only if it is not one of
+     * the most recently analyzed codes.
+     *
+     * @param code The code.
+     * @return the constant storage keys, which cannot be modified.
+     */
+    static List<FvmDataWord> constantStorageKeys(byte[] code) {
+        Code lookup = new Code(code);
+        synchronized (analyzedCodes) {
+            List<FvmDataWord> keys = analyzedCodes.get(lookup);
+            if (keys != null) {
+                return keys;
+            }
+        }
+
+        List<FvmDataWord> keys = Collections.unmodifiableList(StorageKeyAnalyzer.findConstantStorageKeys(code, MAX_KEYS_PER_CONTRACT));
+        synchronized (analyzedCodes) {
+            // The caller may reuse its array, so the cache keeps its own copy.
+            analyzedCodes.put(new Code(code.clone()), keys);
+        }
+        return keys;
+    }
+
+    /**
+     * Records that the given address is the storage owner of a frame whose storage must not be
+     * prefetched, such as a contract that is being deployed.
+     *
+     * @param address The storage owner.
+     */
+    void exclude(AionAddress address) {
+        this.owners.add(address);
+    }
+
+    /**
+     * Returns the prefetched value of the given key, or {@code null} if it was not prefetched.
+     *
+     * @param address The storage owner.
+     * @param key The key.
+     * @return the prefetched value.
+     */
+    FvmDataWord get(AionAddress address, FvmDataWord key) {
+        Map<FvmDataWord, FvmDataWord> storage = this.values.get(address);
+        return (storage == null) ? null : storage.get(key);
+    }
+
+    /**
+     * Drops the prefetched value of the given key, which is about to be written to.
+     *
+     * @param address The storage owner.
+     * @param key The key.
+     */
+    void invalidate(AionAddress address, FvmDataWord key) {
+        Map<FvmDataWord, FvmDataWord> storage = this.values.get(address);
+        if (storage != null) {
+            storage.remove(key);
+        }
+    }
+
+    /** Returns {@code true} only if no storage values are currently prefetched. */
+    boolean isEmpty() {
+        return this.values.isEmpty();
+    }
+
+    /** Forgets everything that was prefetched and every storage owner that was seen. */
+    void clear() {
+        this.values.clear();
+        this.owners.clear();
+    }
+
+    /** A code compared by content, whose hash only samples it so that lookups stay cheap. */
+    private static final class Code {
+        private static final int SAMPLES = 64;
+
+        private final byte[] code;
+        private final int hashCode;
+
+        private Code(byte[] code) {
+            this.code = code;
+
+            int hash = code.length;
+            int step = Math.max(1, code.length / SAMPLES);
+            for (int i = 0; i < code.length; i += step) {
+                hash = 31 * hash + code[i];
+            }
+            this.hashCode = hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) {
+                return true;
+            }
+            if (!(other instanceof Code)) {
+                return false;
+            }
+            Code code = (Code) other;
+            return this.hashCode == code.hashCode && Arrays.equals(this.code, code.code);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hashCode;
+        }
+    }
+}
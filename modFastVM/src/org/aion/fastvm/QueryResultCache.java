@@ -0,0 +1,215 @@
+package org.aion.fastvm;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+import org.aion.types.AionAddress;
+import org.aion.types.Transaction;
+
+/**
+ * A cache of the results of read-only queries, so that the same view function called over and
+ * over at the same block is only run once.
+ *
+ * <p>A result is keyed by the state root of the snapshot it was computed against, and by every
+ * field that the fvm can observe. For the block, that is the number, timestamp, coinbase,
+ * difficulty and energy limit. For the call, that is the destination, sender, value, call data,
+ * energy limit and energy price. So a snapshot of a pending block, whose timestamp or coinbase can
+ * change while its state root does not, never serves a result computed for another version of it. Queries against a snapshot that does not report a
+ * state root (see {@link IExternalStateForFvm#getStateRoot()}) are never cached.
+ *
+ * <p>Entries are invalidated by block number: once a query at block {@code n} is seen, the
+ * entries of blocks at or before {@code n - retainedBlocks} are dropped. Beyond that, the least
+ * recently used entries are evicted once the cache holds {@code maxEntries} entries.
+ *
+ * <p>This class is thread-safe.
+ */
+public final class QueryResultCache {
+    private final int maxEntries;
+    private final int retainedBlocks;
+    private final Map<Key, FvmWrappedTransactionResult> entries;
+    private long highestBlockNumber = Long.MIN_VALUE;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    /**
+     * Constructs a new empty cache.
+     *
+     * @param maxEntries The maximum number of results to hold.
+     * @param retainedBlocks The number of most recent blocks whose results are kept.
+     */
+    public QueryResultCache(int maxEntries, int retainedBlocks) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Cannot construct a cache with fewer than 1 entries: " + maxEntries);
+        }
+        if (retainedBlocks < 1) {
+            throw new IllegalArgumentException("Cannot construct a cache retaining fewer than 1 blocks: " + retainedBlocks);
+        }
+        this.maxEntries = maxEntries;
+        this.retainedBlocks = retainedBlocks;
+        this.entries = new LinkedHashMap<Key, FvmWrappedTransactionResult>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, FvmWrappedTransactionResult> eldest) {
+                if (size() > QueryResultCache.this.maxEntries) {
+                    QueryResultCache.this.evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns the key of the given query against the given snapshot, or {@code null} if the query
+     * cannot be cached.
+     */
+    static Key keyOf(IExternalStateForFvm snapshot, Transaction transaction) {
+        byte[] stateRoot = snapshot.getStateRoot();
+        return (stateRoot == null) ? null : new Key(stateRoot, snapshot, transaction);
+    }
+
+    /** Returns the cached result for the given key, or {@code null} if there is none. */
+    synchronized FvmWrappedTransactionResult get(Key key) {
+        advanceTo(key.blockNumber);
+        FvmWrappedTransactionResult result = this.entries.get(key);
+        if (result == null) {
+            this.misses.increment();
+        } else {
+            this.hits.increment();
+        }
+        return result;
+    }
+
+    /** Caches the given result, unless its block has already been invalidated. */
+    synchronized void put(Key key, FvmWrappedTransactionResult result) {
+        advanceTo(key.blockNumber);
+        if (isRetained(key.blockNumber)) {
+            this.entries.put(key, result);
+        }
+    }
+
+    /** Returns the number of cached results. */
+    public synchronized int size() {
+        return this.entries.size();
+    }
+
+    /** Removes every cached result. The metrics are kept. */
+    public synchronized void clear() {
+        this.entries.clear();
+    }
+
+    /** Returns the number of queries that were served from this cache. */
+    public long getHitCount() {
+        return this.hits.sum();
+    }
+
+    /** Returns the number of cacheable queries that were not found in this cache. */
+    public long getMissCount() {
+        return this.misses.sum();
+    }
+
+    /** Returns the number of results that were evicted to make room for newer results. */
+    public long getEvictionCount() {
+        return this.evictions.sum();
+    }
+
+    /** Returns the number of results that were dropped because their block became too old. */
+    public long getInvalidationCount() {
+        return this.invalidations.sum();
+    }
+
+    private void advanceTo(long blockNumber) {
+        if (blockNumber <= this.highestBlockNumber) {
+            return;
+        }
+        this.highestBlockNumber = blockNumber;
+
+        Iterator<Key> keys = this.entries.keySet().iterator();
+        while (keys.hasNext()) {
+            if (!isRetained(keys.next().blockNumber)) {
+                keys.remove();
+                this.invalidations.increment();
+            }
+        }
+    }
+
+    private boolean isRetained(long blockNumber) {
+        return blockNumber > this.highestBlockNumber - this.retainedBlocks;
+    }
+
+    /** The key of a cached query result. */
+    static final class Key {
+        private final byte[] stateRoot;
+        private final long blockNumber;
+        private final long blockTimestamp;
+        private final AionAddress coinbase;
+        private final FvmDataWord blockDifficulty;
+        private final long blockEnergyLimit;
+        private final AionAddress destination;
+        private final AionAddress sender;
+        private final BigInteger value;
+        private final byte[] data;
+        private final long energyLimit;
+        private final long energyPrice;
+        private final int hashCode;
+
+        private Key(byte[] stateRoot, IExternalStateForFvm snapshot, Transaction transaction) {
+            this.stateRoot = stateRoot.clone();
+            this.blockNumber = snapshot.getBlockNumber();
+            this.blockTimestamp = snapshot.getBlockTimestamp();
+            this.coinbase = snapshot.getMinerAddress();
+            this.blockDifficulty = snapshot.getBlockDifficulty();
+            this.blockEnergyLimit = snapshot.getBlockEnergyLimit();
+            this.destination = transaction.destinationAddress;
+            this.sender = transaction.senderAddress;
+            this.value = transaction.value;
+            this.data = transaction.copyOfTransactionData();
+            this.energyLimit = transaction.energyLimit;
+            this.energyPrice = transaction.energyPrice;
+
+            int hash = Arrays.hashCode(this.stateRoot);
+            hash = 31 * hash + Long.hashCode(this.blockNumber);
+            hash = 31 * hash + Long.hashCode(this.blockTimestamp);
+            hash = 31 * hash + Objects.hashCode(this.coinbase);
+            hash = 31 * hash + Objects.hashCode(this.destination);
+            hash = 31 * hash + Objects.hashCode(this.sender);
+            hash = 31 * hash + Arrays.hashCode(this.data);
+            this.hashCode = hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) {
+                return true;
+            }
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return this.hashCode == key.hashCode
+                    && this.blockNumber == key.blockNumber
+                    && this.blockTimestamp == key.blockTimestamp
+                    && this.blockEnergyLimit == key.blockEnergyLimit
+                    && this.energyLimit == key.energyLimit
+                    && this.energyPrice == key.energyPrice
+                    && Arrays.equals(this.stateRoot, key.stateRoot)
+                    && Objects.equals(this.coinbase, key.coinbase)
+                    && Objects.equals(this.blockDifficulty, key.blockDifficulty)
+                    && Objects.equals(this.destination, key.destination)
+                    && Objects.equals(this.sender, key.sender)
+                    && Objects.equals(this.value, key.value)
+                    && Arrays.equals(this.data, key.data);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hashCode;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package org.aion.fastvm;
+
+import java.math.BigInteger;
+import org.aion.types.AionAddress;
+
+/**
+ * A world state that can only be read from, over a snapshot that may be shared by any number of
+ * concurrent read-only queries.
+ *
+ * <p>Queries run as static calls, and the jit rejects every opcode that would modify the state of a
+ * static frame before it reaches the world state, so the fvm never attempts to. The only writes
+ * that reach a world state during a static call are the zero-valued balance transfers of nested
+ * calls, which are ignored. Any other write throws an {@link IllegalStateException}. Nothing turns
+ * that into a failed frame: it propagates out of the upcall and aborts the whole query, as it
+ * would for any world state that throws.
+ *
+ * <p>There is nothing to isolate, so a child world state is this world state itself, and commits
+ * and rollbacks do nothing.
+ */
+final class ReadOnlyExternalState extends ForwardingExternalState {
+
+    ReadOnlyExternalState(IExternalStateForFvm snapshot) {
+        super(snapshot);
+    }
+
+    @Override
+    public IExternalStateForFvm newChildExternalState() {
+        return this;
+    }
+
+    @Override
+    public void commit() {}
+
+    @Override
+    public void rollback() {}
+
+    @Override
+    public void addStorageValue(AionAddress address, FvmDataWord key, FvmDataWord value) {
+        throw readOnly();
+    }
+
+    @Override
+    public void removeStorage(AionAddress address, FvmDataWord key) {
+        throw readOnly();
+    }
+
+    @Override
+    public void putCode(AionAddress address, byte[] code) {
+        throw readOnly();
+    }
+
+    @Override
+    public void createAccount(AionAddress address) {
+        throw readOnly();
+    }
+
+    @Override
+    public void setVmType(AionAddress address) {
+        throw readOnly();
+    }
+
+    @Override
+    public void addBalance(AionAddress address, BigInteger amount) {
+        if (amount.signum() != 0) {
+            throw readOnly();
+        }
+    }
+
+    @Override
+    public void incrementNonce(AionAddress address) {
+        throw readOnly();
+    }
+
+    @Override
+    public void deductEnergyCost(AionAddress address, BigInteger energyCost) {
+        throw readOnly();
+    }
+
+    @Override
+    public boolean isLocalCall() {
+        return true;
+    }
+
+    @Override
+    public boolean isAccessListRecordingEnabled() {
+        return false;
+    }
+
+    @Override
+    public LogSink getLogSink() {
+        return null;
+    }
+
+    @Override
+    public SideEffectsRecordingLevel getSideEffectsRecordingLevel() {
+        return SideEffectsRecordingLevel.CONSENSUS_MINIMUM;
+    }
+
+    // Only reachable if the static checks of the jit missed a write, which is a bug, not a frame failure.
+    private static IllegalStateException readOnly() {
+        return new IllegalStateException("Cannot write to a read-only world state!");
+    }
+}
@@ -0,0 +1,356 @@
+package org.aion.fastvm;
+
+import java.math.BigInteger;
+import java.util.List;
+import org.aion.types.AionAddress;
+
+/**
+ * A world state that appends every call made on it, and on its child world states, to a shared
+ * {@link StateTrace.Writer}, together with its arguments and result.
+ *
+ * <p>It maintains no account existence filter and no state root, so that the fvm makes every
+ * query through it and never serves a query from {@link QueryResultCache}. Otherwise those
+ * queries would be missing from the trace. For the same reason, it keeps the jit from serving
+ * BLOCKHASH from the block hashes it cached on the thread, which depend on what the thread ran
+ * before.
+ */
+final class RecordingExternalState extends ForwardingExternalState {
+    private final StateTrace.Writer trace;
+
+    RecordingExternalState(IExternalStateForFvm delegate, StateTrace.Writer trace) {
+        super(delegate);
+        if (trace == null) {
+            throw new NullPointerException("Cannot record into a null trace!");
+        }
+        this.trace = trace;
+    }
+
+    @Override
+    public IExternalStateForFvm newChildExternalState() {
+        IExternalStateForFvm child = new RecordingExternalState(this.delegate.newChildExternalState(), this.trace);
+        this.trace.writeOp(StateTrace.NEW_CHILD);
+        return child;
+    }
+
+    @Override
+    public void commit() {
+        super.commit();
+        this.trace.writeOp(StateTrace.COMMIT);
+    }
+
+    @Override
+    public void rollback() {
+        super.rollback();
+        this.trace.writeOp(StateTrace.ROLLBACK);
+    }
+
+    @Override
+    public boolean isPrecompiledContract(AionAddress address) {
+        boolean result = super.isPrecompiledContract(address);
+        this.trace.writeOp(StateTrace.IS_PRECOMPILED_CONTRACT);
+        this.trace.writeAddress(address);
+        this.trace.writeBoolean(result);
+        return result;
+    }
+
+    @Override
+    public FastVmTransactionResult runInternalPrecompiledContractCall(ExecutionContext context) {
+        FastVmTransactionResult result = super.runInternalPrecompiledContractCall(context);
+        this.trace.writeOp(StateTrace.RUN_PRECOMPILED_CONTRACT);
+        this.trace.writeAddress(context.getDestinationAddress());
+        this.trace.writeBytes(result.toBytes());
+        return result;
+    }
+
+    @Override
+    public void addStorageValue(AionAddress address, FvmDataWord key, FvmDataWord value) {
+        super.addStorageValue(address, key, value);
+        this.trace.writeOp(StateTrace.ADD_STORAGE_VALUE);
+        this.trace.writeAddress(address);
+        this.trace.writeWord(key);
+        this.trace.writeWord(value);
+    }
+
+    @Override
+    public void removeStorage(AionAddress address, FvmDataWord key) {
+        super.removeStorage(address, key);
+        this.trace.writeOp(StateTrace.REMOVE_STORAGE);
+        this.trace.writeAddress(address);
+        this.trace.writeWord(key);
+    }
+
+    @Override
+    public FvmDataWord getStorageValue(AionAddress address, FvmDataWord key) {
+        FvmDataWord value = super.getStorageValue(address, key);
+        this.trace.writeOp(StateTrace.GET_STORAGE_VALUE);
+        this.trace.writeAddress(address);
+        this.trace.writeWord(key);
+        this.trace.writeWord(value);
+        return value;
+    }
+
+    @Override
+    public List<FvmDataWord> getStorageValues(AionAddress address, List<FvmDataWord> keys) {
+        List<FvmDataWord> values = super.getStorageValues(address, keys);
+        this.trace.writeOp(StateTrace.GET_STORAGE_VALUES);
+        this.trace.writeAddress(address);
+        this.trace.writeVarLong(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            this.trace.writeWord(keys.get(i));
+            this.trace.writeWord(values.get(i));
+        }
+        return values;
+    }
+
+    @Override
+    public boolean isStoragePrefetchEnabled() {
+        boolean result = super.isStoragePrefetchEnabled();
+        this.trace.writeOp(StateTrace.IS_STORAGE_PREFETCH_ENABLED);
+        this.trace.writeBoolean(result);
+        return result;
+    }
+
+    @Override
+    public boolean destinationAddressIsSafeForFvm(AionAddress destination) {
+        boolean result = super.destinationAddressIsSafeForFvm(destination);
+        this.trace.writeOp(StateTrace.DESTINATION_IS_SAFE);
+        this.trace.writeAddress(destination);
+        this.trace.writeBoolean(result);
+        return result;
+    }
+
+    @Override
+    public byte[] getCode(AionAddress address) {
+        byte[] code = super.getCode(address);
+        this.trace.writeOp(StateTrace.GET_CODE);
+        this.trace.writeAddress(address);
+        this.trace.writeBytes(code);
+        return code;
+    }
+
+    @Override
+    public void putCode(AionAddress address, byte[] code) {
+        super.putCode(address, code);
+        this.trace.writeOp(StateTrace.PUT_CODE);
+        this.trace.writeAddress(address);
+        this.trace.writeBytes(code);
+    }
+
+    @Override
+    public boolean hasStorage(AionAddress address) {
+        boolean result = super.hasStorage(address);
+        this.trace.writeOp(StateTrace.HAS_STORAGE);
+        this.trace.writeAddress(address);
+        this.trace.writeBoolean(result);
+        return result;
+    }
+
+    @Override
+    public boolean hasAccountState(AionAddress address) {
+        boolean result = super.hasAccountState(address);
+        this.trace.writeOp(StateTrace.HAS_ACCOUNT_STATE);
+        this.trace.writeAddress(address);
+        this.trace.writeBoolean(result);
+        return result;
+    }
+
+    @Override
+    public void createAccount(AionAddress address) {
+        super.createAccount(address);
+        this.trace.writeOp(StateTrace.CREATE_ACCOUNT);
+        this.trace.writeAddress(address);
+    }
+
+    @Override
+    public void setVmType(AionAddress address) {
+        super.setVmType(address);
+        this.trace.writeOp(StateTrace.SET_VM_TYPE);
+        this.trace.writeAddress(address);
+    }
+
+    @Override
+    public BigInteger getBalance(AionAddress address) {
+        BigInteger balance = super.getBalance(address);
+        this.trace.writeOp(StateTrace.GET_BALANCE);
+        this.trace.writeAddress(address);
+        this.trace.writeBigInteger(balance);
+        return balance;
+    }
+
+    @Override
+    public void addBalance(AionAddress address, BigInteger amount) {
+        super.addBalance(address, amount);
+        this.trace.writeOp(StateTrace.ADD_BALANCE);
+        this.trace.writeAddress(address);
+        this.trace.writeBigInteger(amount);
+    }
+
+    @Override
+    public BigInteger getNonce(AionAddress address) {
+        BigInteger nonce = super.getNonce(address);
+        this.trace.writeOp(StateTrace.GET_NONCE);
+        this.trace.writeAddress(address);
+        this.trace.writeBigInteger(nonce);
+        return nonce;
+    }
+
+    @Override
+    public void incrementNonce(AionAddress address) {
+        super.incrementNonce(address);
+        this.trace.writeOp(StateTrace.INCREMENT_NONCE);
+        this.trace.writeAddress(address);
+    }
+
+    @Override
+    public boolean isValidEnergyLimitForCreate(long energyLimit, byte[] data) {
+        boolean result = super.isValidEnergyLimitForCreate(energyLimit, data);
+        writeEnergyLimitCheck(StateTrace.IS_VALID_LIMIT_FOR_CREATE, energyLimit, data, result);
+        return result;
+    }
+
+    @Override
+    public boolean isValidEnergyLimitForNonCreate(long energyLimit, byte[] data) {
+        boolean result = super.isValidEnergyLimitForNonCreate(energyLimit, data);
+        writeEnergyLimitCheck(StateTrace.IS_VALID_LIMIT_FOR_NON_CREATE, energyLimit, data, result);
+        return result;
+    }
+
+    @Override
+    public boolean accountNonceEquals(AionAddress address, BigInteger nonce) {
+        boolean result = super.accountNonceEquals(address, nonce);
+        this.trace.writeOp(StateTrace.ACCOUNT_NONCE_EQUALS);
+        this.trace.writeAddress(address);
+        this.trace.writeBigInteger(nonce);
+        this.trace.writeBoolean(result);
+        return result;
+    }
+
+    @Override
+    public boolean accountBalanceIsAtLeast(AionAddress address, BigInteger balance) {
+        boolean result = super.accountBalanceIsAtLeast(address, balance);
+        this.trace.writeOp(StateTrace.ACCOUNT_BALANCE_IS_AT_LEAST);
+        this.trace.writeAddress(address);
+        this.trace.writeBigInteger(balance);
+        this.trace.writeBoolean(result);
+        return result;
+    }
+
+    @Override
+    public void deductEnergyCost(AionAddress address, BigInteger energyCost) {
+        super.deductEnergyCost(address, energyCost);
+        this.trace.writeOp(StateTrace.DEDUCT_ENERGY_COST);
+        this.trace.writeAddress(address);
+        this.trace.writeBigInteger(energyCost);
+    }
+
+    @Override
+    public boolean isFork040enabled() {
+        return writeFlag(StateTrace.IS_FORK_040_ENABLED, super.isFork040enabled());
+    }
+
+    @Override
+    public boolean isLocalCall() {
+        return writeFlag(StateTrace.IS_LOCAL_CALL, super.isLocalCall());
+    }
+
+    @Override
+    public boolean allowNonceIncrement() {
+        return writeFlag(StateTrace.ALLOW_NONCE_INCREMENT, super.allowNonceIncrement());
+    }
+
+    @Override
+    public boolean isAccessListRecordingEnabled() {
+        return writeFlag(StateTrace.IS_ACCESS_LIST_RECORDING_ENABLED, super.isAccessListRecordingEnabled());
+    }
+
+    @Override
+    public AccountExistenceFilter getAccountExistenceFilter() {
+        return null;
+    }
+
+    @Override
+    public boolean isBlockHashCacheEnabled() {
+        return false;
+    }
+
+    @Override
+    public SideEffectsRecordingLevel getSideEffectsRecordingLevel() {
+        SideEffectsRecordingLevel level = super.getSideEffectsRecordingLevel();
+        this.trace.writeOp(StateTrace.GET_SIDE_EFFECTS_RECORDING_LEVEL);
+        this.trace.writeVarLong(level.ordinal());
+        return level;
+    }
+
+    @Override
+    public byte[] getStateRoot() {
+        return null;
+    }
+
+    @Override
+    public AionAddress getMinerAddress() {
+        AionAddress miner = super.getMinerAddress();
+        this.trace.writeOp(StateTrace.GET_MINER_ADDRESS);
+        this.trace.writeAddress(miner);
+        return miner;
+    }
+
+    @Override
+    public long getBlockNumber() {
+        return writeNumber(StateTrace.GET_BLOCK_NUMBER, super.getBlockNumber());
+    }
+
+    @Override
+    public long getBlockTimestamp() {
+        return writeNumber(StateTrace.GET_BLOCK_TIMESTAMP, super.getBlockTimestamp());
+    }
+
+    @Override
+    public long getBlockEnergyLimit() {
+        return writeNumber(StateTrace.GET_BLOCK_ENERGY_LIMIT, super.getBlockEnergyLimit());
+    }
+
+    @Override
+    public FvmDataWord getBlockDifficulty() {
+        FvmDataWord difficulty = super.getBlockDifficulty();
+        this.trace.writeOp(StateTrace.GET_BLOCK_DIFFICULTY);
+        this.trace.writeWord(difficulty);
+        return difficulty;
+    }
+
+    @Override
+    public byte[] getBlockHashByNumber(long blockNumber) {
+        byte[] hash = super.getBlockHashByNumber(blockNumber);
+        this.trace.writeOp(StateTrace.GET_BLOCK_HASH_BY_NUMBER);
+        this.trace.writeVarLong(blockNumber);
+        this.trace.writeBytes(hash);
+        return hash;
+    }
+
+    @Override
+    public boolean isForkSignatureSwapEnabled() {
+        return writeFlag(StateTrace.IS_FORK_SIGNATURE_SWAP_ENABLED, super.isForkSignatureSwapEnabled());
+    }
+
+    /**
+     * Only the length of the transaction data is recorded, which is enough to tell transactions
+     * apart during replay without storing their data a second time.
+     */
+    private void writeEnergyLimitCheck(byte op, long energyLimit, byte[] data, boolean result) {
+        this.trace.writeOp(op);
+        this.trace.writeVarLong(energyLimit);
+        this.trace.writeVarLong((data == null) ? 0 : data.length);
+        this.trace.writeBoolean(result);
+    }
+
+    private boolean writeFlag(byte op, boolean flag) {
+        this.trace.writeOp(op);
+        this.trace.writeBoolean(flag);
+        return flag;
+    }
+
+    private long writeNumber(byte op, long number) {
+        this.trace.writeOp(op);
+        this.trace.writeVarLong(number);
+        return number;
+    }
+}
@@ -0,0 +1,292 @@
+package org.aion.fastvm;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import org.aion.types.AionAddress;
+
+/**
+ * A world state that answers every call from a shared {@link StateTrace.Reader}, instead of from
+ * a database. Writes, commits and rollbacks are checked against the trace and otherwise dropped.
+ *
+ * <p>The calls must be made in the same order as they were recorded, which they are as long as
+ * the same transactions are run in the same order with the same fvm. A call that was not recorded
+ * throws an {@link IllegalStateException}. Like the recording world state, it keeps the jit from
+ * caching block hashes, so that every BLOCKHASH is answered from the trace on any thread.
+ */
+final class ReplayingExternalState implements IExternalStateForFvm {
+    private final StateTrace.Reader trace;
+
+    ReplayingExternalState(StateTrace.Reader trace) {
+        if (trace == null) {
+            throw new NullPointerException("Cannot replay a null trace!");
+        }
+        this.trace = trace;
+    }
+
+    @Override
+    public IExternalStateForFvm newChildExternalState() {
+        this.trace.expectOp(StateTrace.NEW_CHILD);
+        return new ReplayingExternalState(this.trace);
+    }
+
+    @Override
+    public void commit() {
+        this.trace.expectOp(StateTrace.COMMIT);
+    }
+
+    @Override
+    public void rollback() {
+        this.trace.expectOp(StateTrace.ROLLBACK);
+    }
+
+    @Override
+    public boolean isPrecompiledContract(AionAddress address) {
+        this.trace.expectOp(StateTrace.IS_PRECOMPILED_CONTRACT);
+        this.trace.expectAddress(address);
+        return this.trace.readBoolean();
+    }
+
+    @Override
+    public FastVmTransactionResult runInternalPrecompiledContractCall(ExecutionContext context) {
+        this.trace.expectOp(StateTrace.RUN_PRECOMPILED_CONTRACT);
+        this.trace.expectAddress(context.getDestinationAddress());
+        return FastVmTransactionResult.fromBytes(this.trace.readBytes());
+    }
+
+    @Override
+    public void addStorageValue(AionAddress address, FvmDataWord key, FvmDataWord value) {
+        this.trace.expectOp(StateTrace.ADD_STORAGE_VALUE);
+        this.trace.expectAddress(address);
+        this.trace.expectWord(key);
+        this.trace.expectWord(value);
+    }
+
+    @Override
+    public void removeStorage(AionAddress address, FvmDataWord key) {
+        this.trace.expectOp(StateTrace.REMOVE_STORAGE);
+        this.trace.expectAddress(address);
+        this.trace.expectWord(key);
+    }
+
+    @Override
+    public FvmDataWord getStorageValue(AionAddress address, FvmDataWord key) {
+        this.trace.expectOp(StateTrace.GET_STORAGE_VALUE);
+        this.trace.expectAddress(address);
+        this.trace.expectWord(key);
+        return this.trace.readWord();
+    }
+
+    @Override
+    public List<FvmDataWord> getStorageValues(AionAddress address, List<FvmDataWord> keys) {
+        this.trace.expectOp(StateTrace.GET_STORAGE_VALUES);
+        this.trace.expectAddress(address);
+        this.trace.expectVarLong(keys.size());
+        List<FvmDataWord> values = new ArrayList<>(keys.size());
+        for (FvmDataWord key : keys) {
+            this.trace.expectWord(key);
+            values.add(this.trace.readWord());
+        }
+        return values;
+    }
+
+    @Override
+    public boolean isStoragePrefetchEnabled() {
+        this.trace.expectOp(StateTrace.IS_STORAGE_PREFETCH_ENABLED);
+        return this.trace.readBoolean();
+    }
+
+    @Override
+    public boolean destinationAddressIsSafeForFvm(AionAddress destination) {
+        this.trace.expectOp(StateTrace.DESTINATION_IS_SAFE);
+        this.trace.expectAddress(destination);
+        return this.trace.readBoolean();
+    }
+
+    @Override
+    public byte[] getCode(AionAddress address) {
+        this.trace.expectOp(StateTrace.GET_CODE);
+        this.trace.expectAddress(address);
+        return this.trace.readBytes();
+    }
+
+    @Override
+    public void putCode(AionAddress address, byte[] code) {
+        this.trace.expectOp(StateTrace.PUT_CODE);
+        this.trace.expectAddress(address);
+        this.trace.expectBytes(code);
+    }
+
+    @Override
+    public boolean hasStorage(AionAddress address) {
+        this.trace.expectOp(StateTrace.HAS_STORAGE);
+        this.trace.expectAddress(address);
+        return this.trace.readBoolean();
+    }
+
+    @Override
+    public boolean hasAccountState(AionAddress address) {
+        this.trace.expectOp(StateTrace.HAS_ACCOUNT_STATE);
+        this.trace.expectAddress(address);
+        return this.trace.readBoolean();
+    }
+
+    @Override
+    public void createAccount(AionAddress address) {
+        this.trace.expectOp(StateTrace.CREATE_ACCOUNT);
+        this.trace.expectAddress(address);
+    }
+
+    @Override
+    public void setVmType(AionAddress address) {
+        this.trace.expectOp(StateTrace.SET_VM_TYPE);
+        this.trace.expectAddress(address);
+    }
+
+    @Override
+    public BigInteger getBalance(AionAddress address) {
+        this.trace.expectOp(StateTrace.GET_BALANCE);
+        this.trace.expectAddress(address);
+        return this.trace.readBigInteger();
+    }
+
+    @Override
+    public void addBalance(AionAddress address, BigInteger amount) {
+        this.trace.expectOp(StateTrace.ADD_BALANCE);
+        this.trace.expectAddress(address);
+        this.trace.expectBigInteger(amount);
+    }
+
+    @Override
+    public BigInteger getNonce(AionAddress address) {
+        this.trace.expectOp(StateTrace.GET_NONCE);
+        this.trace.expectAddress(address);
+        return this.trace.readBigInteger();
+    }
+
+    @Override
+    public void incrementNonce(AionAddress address) {
+        this.trace.expectOp(StateTrace.INCREMENT_NONCE);
+        this.trace.expectAddress(address);
+    }
+
+    @Override
+    public boolean isValidEnergyLimitForCreate(long energyLimit, byte[] data) {
+        return readEnergyLimitCheck(StateTrace.IS_VALID_LIMIT_FOR_CREATE, energyLimit, data);
+    }
+
+    @Override
+    public boolean isValidEnergyLimitForNonCreate(long energyLimit, byte[] data) {
+        return readEnergyLimitCheck(StateTrace.IS_VALID_LIMIT_FOR_NON_CREATE, energyLimit, data);
+    }
+
+    @Override
+    public boolean accountNonceEquals(AionAddress address, BigInteger nonce) {
+        this.trace.expectOp(StateTrace.ACCOUNT_NONCE_EQUALS);
+        this.trace.expectAddress(address);
+        this.trace.expectBigInteger(nonce);
+        return this.trace.readBoolean();
+    }
+
+    @Override
+    public boolean accountBalanceIsAtLeast(AionAddress address, BigInteger balance) {
+        this.trace.expectOp(StateTrace.ACCOUNT_BALANCE_IS_AT_LEAST);
+        this.trace.expectAddress(address);
+        this.trace.expectBigInteger(balance);
+        return this.trace.readBoolean();
+    }
+
+    @Override
+    public void deductEnergyCost(AionAddress address, BigInteger energyCost) {
+        this.trace.expectOp(StateTrace.DEDUCT_ENERGY_COST);
+        this.trace.expectAddress(address);
+        this.trace.expectBigInteger(energyCost);
+    }
+
+    @Override
+    public boolean isFork040enabled() {
+        return readFlag(StateTrace.IS_FORK_040_ENABLED);
+    }
+
+    @Override
+    public boolean isLocalCall() {
+        return readFlag(StateTrace.IS_LOCAL_CALL);
+    }
+
+    @Override
+    public boolean allowNonceIncrement() {
+        return readFlag(StateTrace.ALLOW_NONCE_INCREMENT);
+    }
+
+    @Override
+    public boolean isAccessListRecordingEnabled() {
+        return readFlag(StateTrace.IS_ACCESS_LIST_RECORDING_ENABLED);
+    }
+
+    @Override
+    public boolean isBlockHashCacheEnabled() {
+        return false;
+    }
+
+    @Override
+    public SideEffectsRecordingLevel getSideEffectsRecordingLevel() {
+        this.trace.expectOp(StateTrace.GET_SIDE_EFFECTS_RECORDING_LEVEL);
+        return SideEffectsRecordingLevel.values()[(int) this.trace.readVarLong()];
+    }
+
+    @Override
+    public AionAddress getMinerAddress() {
+        this.trace.expectOp(StateTrace.GET_MINER_ADDRESS);
+        return this.trace.readAddress();
+    }
+
+    @Override
+    public long getBlockNumber() {
+        return readNumber(StateTrace.GET_BLOCK_NUMBER);
+    }
+
+    @Override
+    public long getBlockTimestamp() {
+        return readNumber(StateTrace.GET_BLOCK_TIMESTAMP);
+    }
+
+    @Override
+    public long getBlockEnergyLimit() {
+        return readNumber(StateTrace.GET_BLOCK_ENERGY_LIMIT);
+    }
+
+    @Override
+    public FvmDataWord getBlockDifficulty() {
+        this.trace.expectOp(StateTrace.GET_BLOCK_DIFFICULTY);
+        return this.trace.readWord();
+    }
+
+    @Override
+    public byte[] getBlockHashByNumber(long blockNumber) {
+        this.trace.expectOp(StateTrace.GET_BLOCK_HASH_BY_NUMBER);
+        this.trace.expectVarLong(blockNumber);
+        return this.trace.readBytes();
+    }
+
+    @Override
+    public boolean isForkSignatureSwapEnabled() {
+        return readFlag(StateTrace.IS_FORK_SIGNATURE_SWAP_ENABLED);
+    }
+
+    private boolean readEnergyLimitCheck(byte op, long energyLimit, byte[] data) {
+        this.trace.expectOp(op);
+        this.trace.expectVarLong(energyLimit);
+        this.trace.expectVarLong((data == null) ? 0 : data.length);
+        return this.trace.readBoolean();
+    }
+
+    private boolean readFlag(byte op) {
+        this.trace.expectOp(op);
+        return this.trace.readBoolean();
+    }
+
+    private long readNumber(byte op) {
+        this.trace.expectOp(op);
+        return this.trace.readVarLong();
+    }
+}
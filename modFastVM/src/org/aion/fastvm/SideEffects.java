@@ -22,13 +22,15 @@
  */
 package org.aion.fastvm;
 
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
 import org.aion.types.AionAddress;
-import org.aion.types.InternalTransaction.RejectedStatus;
 import org.aion.types.Log;
 import org.aion.types.InternalTransaction;
 
@@ -43,13 +45,27 @@ import org.aion.types.InternalTransaction;
  *   <li>account deleted
  *       <p>
  *
+ * <p>The side effects of every frame of a transaction are appended to one journal that is shared
+ * by the whole transaction. A frame's side effects are the range of the journal that was appended
+ * while the frame (or any frame nested within it) was running. This way merging a finished frame
+ * into its parent does not copy anything, and rejecting every internal transaction of a failed
+ * frame only sets a range of bits. The rejected {@link InternalTransaction} objects are created
+ * when the internal transactions are requested. See {@link SideEffectsJournal}.
+ *
  * @author yulong
  */
 public class SideEffects {
 
-    private Set<AionAddress> deleteAccounts = new HashSet<>();
-    private List<InternalTransaction> internalTxs = new ArrayList<>();
-    private List<Log> logs = new ArrayList<>();
+    private SideEffectsJournal journal = null;
+    private SideEffects parent = null;
+    private int internalTxsStart = 0;
+    private int logsStart = 0;
+    private int deletionsStart = 0;
+    private int logSinkMark = 0;
+    private int internalTxsEnd = -1;
+    private int logsEnd = -1;
+    private int deletionsEnd = -1;
+    private int mostRecentInternalTx = -1;
     private List<Call> calls = new ArrayList<>();
 
     public static class Call {
@@ -77,8 +93,63 @@ public class SideEffects {
         }
     }
 
+    /**
+     * Makes these side effects those of a frame nested within the frame of the given side effects,
+     * so that they are appended to the same journal.
+     *
+     * <p>These side effects must be empty, and the parent must not add anything else until these
+     * side effects have been merged back into it.
+     *
+     * @param parent The side effects of the enclosing frame.
+     */
+    void nestWithin(SideEffects parent) {
+        if (this.journal != null && !this.journal.isEmpty()) {
+            throw new IllegalStateException("Cannot nest side effects that are not empty!");
+        }
+
+        SideEffectsJournal journal = parent.journal();
+        this.journal = journal;
+        this.parent = parent;
+        this.internalTxsStart = journal.internalTransactionCount();
+        this.logsStart = journal.logCount();
+        this.deletionsStart = journal.deletions.size();
+        this.logSinkMark = (journal.logSink == null) ? 0 : journal.logSink.mark();
+    }
+
+    /**
+     * Sets how much of the side effects is recorded, for these side effects and every side effects
+     * nested within them.
+     *
+     * @param level The recording level.
+     */
+    void setRecordingLevel(SideEffectsRecordingLevel level) {
+        if (level == null) {
+            throw new NullPointerException("Cannot set a null recording level!");
+        }
+        journal().recordingLevel = level;
+    }
+
+    /**
+     * Sets the sink that receives the logs added to these side effects, and to every side effects
+     * nested within them, instead of these side effects. The logs of nested side effects that are
+     * merged back as failed are reverted in the sink.
+     *
+     * @param logSink The log sink, or {@code null} to record the logs here.
+     */
+    void setLogSink(LogSink logSink) {
+        journal().logSink = logSink;
+    }
+
+    /**
+     * Returns {@code true} only if internal transactions added to these side effects are recorded.
+     * Callers may skip preparing internal transactions otherwise.
+     */
+    boolean recordsInternalTransactions() {
+        return this.journal == null || this.journal.recordingLevel.recordsInternalTransactions();
+    }
+
     public void addToDeletedAddresses(AionAddress address) {
-        deleteAccounts.add(address);
+        journal().deletions.add(address);
     }
 
     /**
@@ -89,7 +160,7 @@ public class SideEffects {
     public void addAllToDeletedAddresses(Collection<AionAddress> addresses) {
         for (AionAddress addr : addresses) {
             if (addr != null) {
-                deleteAccounts.add(addr);
+                addToDeletedAddresses(addr);
             }
         }
     }
@@ -100,7 +171,33 @@ public class SideEffects {
      * @param log The log to add to the execution logs.
      */
     public void addLog(Log log) {
-        logs.add(log);
+        SideEffectsJournal journal = journal();
+        if (journal.logSink == null) {
+            journal.addLog(log);
+        } else {
+            List<byte[]> topics = log.copyOfTopics();
+            ByteArrayOutputStream concatenated = new ByteArrayOutputStream();
+            for (byte[] topic : topics) {
+                concatenated.write(topic, 0, topic.length);
+            }
+            journal.logSink.log(log.copyOfAddress(), concatenated.toByteArray(), log.copyOfData());
+        }
+    }
+
+    /**
+     * Adds a log, which is only built from the given bytes when it is requested.
+     *
+     * @param address The address of the log.
+     * @param topics The topics of the log, concatenated.
+     * @param data The data of the log.
+     */
+    void addLog(byte[] address, byte[] topics, byte[] data) {
+        SideEffectsJournal journal = journal();
+        if (journal.logSink == null) {
+            journal.addLog(address, topics, data);
+        } else {
+            journal.logSink.log(address, topics, data);
+        }
     }
 
     /**
@@ -111,7 +208,7 @@ public class SideEffects {
     public void addLogs(Collection<Log> logs) {
         for (Log log : logs) {
             if (log != null) {
-                this.logs.add(log);
+                addLog(log);
             }
         }
     }
@@ -133,11 +230,52 @@ public class SideEffects {
      * @param tx The internal transaction to add.
      */
     public void addInternalTransaction(InternalTransaction tx) {
-        if (tx != null) {
-            internalTxs.add(tx);
+        if (tx != null && recordsInternalTransactions()) {
+            SideEffectsJournal journal = journal();
+            this.mostRecentInternalTx = journal.internalTransactionCount();
+            journal.addInternalTransaction(tx);
         }
     }
 
+    /**
+     * Adds a contract call internal transaction, which is only built when it is requested.
+     *
+     * @param sender The sender.
+     * @param destination The destination.
+     * @param nonce The nonce of the sender.
+     * @param value The value transferred.
+     * @param data The call data.
+     * @param energyLimit The energy limit.
+     * @param energyPrice The energy price.
+     */
+    void addInternalCallTransaction(AionAddress sender, AionAddress destination, BigInteger nonce, BigInteger value, byte[] data, long energyLimit, long energyPrice) {
+        if (!recordsInternalTransactions()) {
+            return;
+        }
+        SideEffectsJournal journal = journal();
+        this.mostRecentInternalTx = journal.internalTransactionCount();
+        journal.addInternalTransaction(false, sender, destination, nonce, value, data, energyLimit, energyPrice);
+    }
+
+    /**
+     * Adds a contract create internal transaction, which is only built when it is requested.
+     *
+     * @param sender The sender.
+     * @param nonce The nonce of the sender.
+     * @param value The value transferred.
+     * @param data The deployment code.
+     * @param energyLimit The energy limit.
+     * @param energyPrice The energy price.
+     */
+    void addInternalCreateTransaction(AionAddress sender, BigInteger nonce, BigInteger value, byte[] data, long energyLimit, long energyPrice) {
+        if (!recordsInternalTransactions()) {
+            return;
+        }
+        SideEffectsJournal journal = journal();
+        this.mostRecentInternalTx = journal.internalTransactionCount();
+        journal.addInternalTransaction(true, sender, null, nonce, value, data, energyLimit, energyPrice);
+    }
+
     /**
      * Adds a collection of internal transactions, txs, to the internal transactions list.
      *
@@ -150,31 +288,77 @@ public class SideEffects {
     }
 
     public void markAllInternalTransactionsAsRejected() {
-        internalTxs = copyAllTransactionsAsRejected(internalTxs);
+        if (this.journal != null) {
+            this.journal.rejectedInternalTxs.set(this.internalTxsStart, internalTxsEnd());
+        }
     }
 
     public void markMostRecentInternalTransactionAsRejected() {
-        if (internalTxs.isEmpty()) {
-            return;
+        if (this.mostRecentInternalTx >= 0) {
+            this.journal.rejectedInternalTxs.set(this.mostRecentInternalTx);
         }
-
-        InternalTransaction toReject = internalTxs.get(internalTxs.size() - 1);
-        InternalTransaction rejected = copyTransactionAsRejected(toReject);
-        internalTxs.remove(toReject);
-        internalTxs.add(rejected);
     }
 
     public void merge(SideEffects other) {
-        addInternalTransactions(other.getInternalTransactions());
-        addAllToDeletedAddresses(other.getAddressesToBeDeleted());
-        addLogs(other.getExecutionLogs());
+        if (other.isNestedWithin(this)) {
+            // Everything is already in the journal, within the range of these side effects.
+            closeNested(other);
+        } else {
+            addInternalTransactions(other.getInternalTransactions());
+            addAllToDeletedAddresses(other.getAddressesToBeDeleted());
+            addLogs(other.getExecutionLogs());
+        }
+    }
+
+    /**
+     * Adds the internal transactions of other, but none of its logs or deleted addresses, to these
+     * side effects. This is how the side effects of a failed frame are merged into its parent.
+     *
+     * <p>If other is nested within these side effects, its logs and deleted addresses are dropped
+     * from the journal, and its logs are reverted in the log sink, if there is one.
+     *
+     * @param other The side effects whose internal transactions are to be added.
+     */
+    public void mergeInternalTransactions(SideEffects other) {
+        if (other.isNestedWithin(this)) {
+            SideEffectsJournal journal = this.journal;
+            journal.droppedLogs.set(other.logsStart, journal.logCount());
+            journal.droppedDeletions.set(other.deletionsStart, journal.deletions.size());
+            if (journal.logSink != null) {
+                journal.logSink.revertTo(other.logSinkMark);
+            }
+            closeNested(other);
+        } else {
+            addInternalTransactions(other.getInternalTransactions());
+        }
     }
 
     public List<AionAddress> getAddressesToBeDeleted() {
+        Set<AionAddress> deleteAccounts = new LinkedHashSet<>();
+        if (this.journal != null) {
+            List<AionAddress> deletions = this.journal.deletions;
+            BitSet dropped = this.journal.droppedDeletions;
+            int end = (this.deletionsEnd < 0) ? deletions.size() : this.deletionsEnd;
+            for (int i = this.deletionsStart; i < end; i++) {
+                if (!dropped.get(i)) {
+                    deleteAccounts.add(deletions.get(i));
+                }
+            }
+        }
         return new ArrayList<>(deleteAccounts);
     }
 
     public List<Log> getExecutionLogs() {
+        List<Log> logs = new ArrayList<>();
+        if (this.journal != null) {
+            BitSet dropped = this.journal.droppedLogs;
+            int end = (this.logsEnd < 0) ? this.journal.logCount() : this.logsEnd;
+            for (int i = this.logsStart; i < end; i++) {
+                if (!dropped.get(i)) {
+                    logs.add(this.journal.log(i));
+                }
+            }
+        }
         return logs;
     }
 
@@ -193,37 +377,44 @@ public class SideEffects {
      * @return the internal transactions.
      */
     public List<InternalTransaction> getInternalTransactions() {
+        List<InternalTransaction> internalTxs = new ArrayList<>();
+        if (this.journal != null) {
+            int end = internalTxsEnd();
+            for (int i = this.internalTxsStart; i < end; i++) {
+                internalTxs.add(this.journal.internalTransaction(i));
+            }
+        }
         return internalTxs;
     }
 
-    /**
-     * Returns a list of transactions such that the i'th returned transaction has every field equal
-     * to the i'th input transaction, except that it is marked rejected, for all transactions in the
-     * list.
-     *
-     * @param transactions The transactions that the new transactions are derived from.
-     * @return the new rejected transactions.
-     */
-    private static List<InternalTransaction> copyAllTransactionsAsRejected(List<InternalTransaction> transactions) {
-        List<InternalTransaction> rejectedTransactions = new ArrayList<>();
-        for (InternalTransaction transaction : transactions) {
-            rejectedTransactions.add(copyTransactionAsRejected(transaction));
+    private SideEffectsJournal journal() {
+        if (this.journal == null) {
+            this.journal = new SideEffectsJournal();
         }
-        return rejectedTransactions;
+        return this.journal;
+    }
+
+    private int internalTxsEnd() {
+        return (this.internalTxsEnd < 0) ? this.journal.internalTransactionCount() : this.internalTxsEnd;
+    }
+
+    private boolean isNestedWithin(SideEffects other) {
+        return this.parent == other && this.internalTxsEnd < 0;
     }
 
     /**
-     * Returns a transaction such that every field in the returned transaction are equal to the
-     * input transaction, except that it is marked rejected.
-     *
-     * @param transaction The transaction that the new transaction is derived from.
-     * @return the new rejected transaction.
+     * Fixes the range of the nested side effects, whose frame has finished, so that they no longer
+     * grow along with the journal.
      */
-    private static InternalTransaction copyTransactionAsRejected(InternalTransaction transaction) {
-        if (transaction.isCreate) {
-            return InternalTransaction.contractCreateTransaction(RejectedStatus.REJECTED, transaction.sender, transaction.senderNonce, transaction.value, transaction.copyOfData(), transaction.energyLimit, transaction.energyPrice);
-        } else {
-            return InternalTransaction.contractCallTransaction(RejectedStatus.REJECTED, transaction.sender, transaction.destination, transaction.senderNonce, transaction.value, transaction.copyOfData(), transaction.energyLimit, transaction.energyPrice);
+    private void closeNested(SideEffects nested) {
+        SideEffectsJournal journal = this.journal;
+        nested.internalTxsEnd = journal.internalTransactionCount();
+        nested.logsEnd = journal.logCount();
+        nested.deletionsEnd = journal.deletions.size();
+
+        // The internal transactions of the nested side effects now come last.
+        if (nested.internalTxsEnd > nested.internalTxsStart) {
+            this.mostRecentInternalTx = nested.internalTxsEnd - 1;
         }
     }
 }
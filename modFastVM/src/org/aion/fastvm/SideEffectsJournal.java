@@ -0,0 +1,219 @@
+package org.aion.fastvm;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import org.aion.types.AionAddress;
+import org.aion.types.InternalTransaction;
+import org.aion.types.InternalTransaction.RejectedStatus;
+import org.aion.types.Log;
+
+/**
+ * The append-only record of every side effect of a single transaction, shared by the
+ * {@link SideEffects} of all of its frames.
+ *
+ * <p>Internal transactions and logs recorded by {@link Callback} are kept as compact records:
+ * their fields live in parallel arrays and their byte payloads (call data, log addresses, topics
+ * and data) are copied into one shared byte arena. The {@link InternalTransaction} and {@link Log}
+ * objects are only built when they are requested, which for most frames that end up reverted is
+ * never. Objects that are added already built are kept as they are.
+ *
+ * <p>This class is not thread-safe.
+ */
+final class SideEffectsJournal {
+    private static final int INITIAL_RECORDS = 8;
+    private static final int INITIAL_ARENA_SIZE = 256;
+    private static final int TOPIC_SIZE = 32;
+
+    SideEffectsRecordingLevel recordingLevel = SideEffectsRecordingLevel.FULL;
+
+    // Receives the logs instead of this journal, if not null.
+    LogSink logSink = null;
+
+    // The byte payloads of all records.
+    private byte[] arena = null;
+    private int arenaSize = 0;
+
+    // Internal transactions.
+    private int internalTxCount = 0;
+    private InternalTransaction[] internalTxs = new InternalTransaction[0];
+    private boolean[] isCreate = new boolean[0];
+    private AionAddress[] senders = new AionAddress[0];
+    private AionAddress[] destinations = new AionAddress[0];
+    private BigInteger[] nonces = new BigInteger[0];
+    private BigInteger[] values = new BigInteger[0];
+    private int[] dataOffsets = new int[0];
+    private int[] dataLengths = new int[0];
+    private long[] energyLimits = new long[0];
+    private long[] energyPrices = new long[0];
+    final BitSet rejectedInternalTxs = new BitSet();
+
+    // Logs, each laid out in the arena as: address | topics | data.
+    private int logCount = 0;
+    private Log[] logs = new Log[0];
+    private int[] logOffsets = new int[0];
+    private int[] logAddressLengths = new int[0];
+    private int[] logTopicsLengths = new int[0];
+    private int[] logDataLengths = new int[0];
+    final BitSet droppedLogs = new BitSet();
+
+    // Deleted accounts.
+    final List<AionAddress> deletions = new ArrayList<>();
+    final BitSet droppedDeletions = new BitSet();
+
+    boolean isEmpty() {
+        return this.internalTxCount == 0 && this.logCount == 0 && this.deletions.isEmpty();
+    }
+
+    int internalTransactionCount() {
+        return this.internalTxCount;
+    }
+
+    int logCount() {
+        return this.logCount;
+    }
+
+    /** Appends an internal transaction that has already been built. */
+    void addInternalTransaction(InternalTransaction transaction) {
+        int index = nextInternalTransaction();
+        this.internalTxs[index] = transaction;
+    }
+
+    /** Appends the record of an internal transaction, to be built when it is requested. */
+    void addInternalTransaction(boolean isCreate, AionAddress sender, AionAddress destination, BigInteger nonce, BigInteger value, byte[] data, long energyLimit, long energyPrice) {
+        int index = nextInternalTransaction();
+        this.isCreate[index] = isCreate;
+        this.senders[index] = sender;
+        this.destinations[index] = destination;
+        this.nonces[index] = nonce;
+        this.values[index] = value;
+        this.dataOffsets[index] = append(data);
+        this.dataLengths[index] = data.length;
+        this.energyLimits[index] = energyLimit;
+        this.energyPrices[index] = energyPrice;
+    }
+
+    /** Appends a log that has already been built. */
+    void addLog(Log log) {
+        int index = nextLog();
+        this.logs[index] = log;
+    }
+
+    /** Appends the record of a log whose topics are concatenated 32-byte words. */
+    void addLog(byte[] address, byte[] topics, byte[] data) {
+        int index = nextLog();
+        this.logOffsets[index] = append(address);
+        append(topics);
+        append(data);
+        this.logAddressLengths[index] = address.length;
+        this.logTopicsLengths[index] = topics.length;
+        this.logDataLengths[index] = data.length;
+    }
+
+    /** Returns the internal transaction at the given index, marked rejected if it was rejected. */
+    InternalTransaction internalTransaction(int index) {
+        InternalTransaction transaction = this.internalTxs[index];
+        boolean rejected = this.rejectedInternalTxs.get(index);
+        if (transaction != null) {
+            return (rejected && !transaction.isRejected) ? copyTransactionAsRejected(transaction) : transaction;
+        }
+
+        RejectedStatus status = rejected ? RejectedStatus.REJECTED : RejectedStatus.NOT_REJECTED;
+        byte[] data = Arrays.copyOfRange(this.arena, this.dataOffsets[index], this.dataOffsets[index] + this.dataLengths[index]);
+        if (this.isCreate[index]) {
+            return InternalTransaction.contractCreateTransaction(status, this.senders[index], this.nonces[index], this.values[index], data, this.energyLimits[index], this.energyPrices[index]);
+        } else {
+            return InternalTransaction.contractCallTransaction(status, this.senders[index], this.destinations[index], this.nonces[index], this.values[index], data, this.energyLimits[index], this.energyPrices[index]);
+        }
+    }
+
+    /** Returns the log at the given index. */
+    Log log(int index) {
+        Log log = this.logs[index];
+        if (log != null) {
+            return log;
+        }
+
+        int offset = this.logOffsets[index];
+        byte[] address = Arrays.copyOfRange(this.arena, offset, offset + this.logAddressLengths[index]);
+        offset += this.logAddressLengths[index];
+
+        int topicsEnd = offset + this.logTopicsLengths[index];
+        List<byte[]> topics = new ArrayList<>();
+        for (; offset < topicsEnd; offset += TOPIC_SIZE) {
+            // A trailing partial topic is zero-padded, as if it had been copied out of its own array.
+            byte[] topic = Arrays.copyOfRange(this.arena, offset, Math.min(offset + TOPIC_SIZE, topicsEnd));
+            topics.add((topic.length == TOPIC_SIZE) ? topic : Arrays.copyOf(topic, TOPIC_SIZE));
+        }
+        offset = topicsEnd;
+
+        byte[] data = Arrays.copyOfRange(this.arena, offset, offset + this.logDataLengths[index]);
+        return Log.topicsAndData(address, topics, data);
+    }
+
+    private int nextInternalTransaction() {
+        int index = this.internalTxCount;
+        if (index == this.internalTxs.length) {
+            int capacity = Math.max(INITIAL_RECORDS, index * 2);
+            this.internalTxs = Arrays.copyOf(this.internalTxs, capacity);
+            this.isCreate = Arrays.copyOf(this.isCreate, capacity);
+            this.senders = Arrays.copyOf(this.senders, capacity);
+            this.destinations = Arrays.copyOf(this.destinations, capacity);
+            this.nonces = Arrays.copyOf(this.nonces, capacity);
+            this.values = Arrays.copyOf(this.values, capacity);
+            this.dataOffsets = Arrays.copyOf(this.dataOffsets, capacity);
+            this.dataLengths = Arrays.copyOf(this.dataLengths, capacity);
+            this.energyLimits = Arrays.copyOf(this.energyLimits, capacity);
+            this.energyPrices = Arrays.copyOf(this.energyPrices, capacity);
+        }
+        this.internalTxCount++;
+        return index;
+    }
+
+    private int nextLog() {
+        int index = this.logCount;
+        if (index == this.logs.length) {
+            int capacity = Math.max(INITIAL_RECORDS, index * 2);
+            this.logs = Arrays.copyOf(this.logs, capacity);
+            this.logOffsets = Arrays.copyOf(this.logOffsets, capacity);
+            this.logAddressLengths = Arrays.copyOf(this.logAddressLengths, capacity);
+            this.logTopicsLengths = Arrays.copyOf(this.logTopicsLengths, capacity);
+            this.logDataLengths = Arrays.copyOf(this.logDataLengths, capacity);
+        }
+        this.logCount++;
+        return index;
+    }
+
+    /** Copies the given bytes to the end of the arena and returns the offset they were copied to. */
+    private int append(byte[] bytes) {
+        int offset = this.arenaSize;
+        int size = offset + bytes.length;
+        if (this.arena == null || size > this.arena.length) {
+            int capacity = (this.arena == null) ? INITIAL_ARENA_SIZE : this.arena.length;
+            while (capacity < size) {
+                capacity *= 2;
+            }
+            this.arena = (this.arena == null) ? new byte[capacity] : Arrays.copyOf(this.arena, capacity);
+        }
+        System.arraycopy(bytes, 0, this.arena, offset, bytes.length);
+        this.arenaSize = size;
+        return offset;
+    }
+
+    /**
+     * Returns a transaction such that every field in the returned transaction are equal to the
+     * input transaction, except that it is marked rejected.
+     *
+     * @param transaction The transaction that the new transaction is derived from.
+     * @return the new rejected transaction.
+     */
+    private static InternalTransaction copyTransactionAsRejected(InternalTransaction transaction) {
+        if (transaction.isCreate) {
+            return InternalTransaction.contractCreateTransaction(RejectedStatus.REJECTED, transaction.sender, transaction.senderNonce, transaction.value, transaction.copyOfData(), transaction.energyLimit, transaction.energyPrice);
+        } else {
+            return InternalTransaction.contractCallTransaction(RejectedStatus.REJECTED, transaction.sender, transaction.destination, transaction.senderNonce, transaction.value, transaction.copyOfData(), transaction.energyLimit, transaction.energyPrice);
+        }
+    }
+}
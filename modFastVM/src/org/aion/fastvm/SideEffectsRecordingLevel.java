@@ -0,0 +1,26 @@
+package org.aion.fastvm;
+
+/**
+ * How much of the side effects of a transaction the fvm records.
+ *
+ * <p>Deleted addresses are recorded at every level, since they are needed to apply a transaction
+ * to the world state.
+ */
+public enum SideEffectsRecordingLevel {
+    /** Internal transactions, logs and deleted addresses are all recorded. */
+    FULL,
+
+    /** Logs and deleted addresses are recorded, internal transactions are not. */
+    LOGS_ONLY,
+
+    /**
+     * Only what a transaction receipt needs is recorded: no internal transactions, and the logs
+     * and deleted addresses of a transaction are only returned if the transaction succeeded.
+     */
+    CONSENSUS_MINIMUM;
+
+    /** Returns {@code true} only if internal transactions are recorded at this level. */
+    public boolean recordsInternalTransactions() {
+        return this == FULL;
+    }
+}
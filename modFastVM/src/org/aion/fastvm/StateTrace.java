@@ -0,0 +1,291 @@
+package org.aion.fastvm;
+
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.aion.types.AionAddress;
+
+/**
+ * The binary encoding of the world state calls captured by {@link ExternalStateRecorder} and
+ * served by {@link ExternalStateReplay}.
+ *
+ * <p>A trace is a header followed by one entry per call, in the order the calls were made on the
+ * recorded world state and all of its child world states. An entry is the opcode of the call,
+ * then its arguments, then its result, if it has one. Integers and lengths are unsigned LEB128
+ * varints. An address is a varint reference into the addresses seen so far in the trace: 0 is
+ * {@code null}, and a reference to the next unseen address is followed by its 32 bytes. Nullable
+ * byte arrays and words are prefixed with their length plus one and a presence byte respectively.
+ */
+final class StateTrace {
+    static final int MAGIC = 0x46564d54; // "FVMT"
+    static final int VERSION = 1;
+
+    static final byte COMMIT = 1;
+    static final byte ROLLBACK = 2;
+    static final byte NEW_CHILD = 3;
+    static final byte IS_PRECOMPILED_CONTRACT = 4;
+    static final byte RUN_PRECOMPILED_CONTRACT = 5;
+    static final byte ADD_STORAGE_VALUE = 6;
+    static final byte REMOVE_STORAGE = 7;
+    static final byte GET_STORAGE_VALUE = 8;
+    static final byte GET_STORAGE_VALUES = 9;
+    static final byte IS_STORAGE_PREFETCH_ENABLED = 10;
+    static final byte DESTINATION_IS_SAFE = 11;
+    static final byte GET_CODE = 12;
+    static final byte PUT_CODE = 13;
+    static final byte HAS_STORAGE = 14;
+    static final byte HAS_ACCOUNT_STATE = 15;
+    static final byte CREATE_ACCOUNT = 16;
+    static final byte SET_VM_TYPE = 17;
+    static final byte GET_BALANCE = 18;
+    static final byte ADD_BALANCE = 19;
+    static final byte GET_NONCE = 20;
+    static final byte INCREMENT_NONCE = 21;
+    static final byte IS_VALID_LIMIT_FOR_CREATE = 22;
+    static final byte IS_VALID_LIMIT_FOR_NON_CREATE = 23;
+    static final byte ACCOUNT_NONCE_EQUALS = 24;
+    static final byte ACCOUNT_BALANCE_IS_AT_LEAST = 25;
+    static final byte DEDUCT_ENERGY_COST = 26;
+    static final byte IS_FORK_040_ENABLED = 27;
+    static final byte IS_LOCAL_CALL = 28;
+    static final byte ALLOW_NONCE_INCREMENT = 29;
+    static final byte IS_ACCESS_LIST_RECORDING_ENABLED = 30;
+    static final byte GET_SIDE_EFFECTS_RECORDING_LEVEL = 31;
+    static final byte GET_MINER_ADDRESS = 32;
+    static final byte GET_BLOCK_NUMBER = 33;
+    static final byte GET_BLOCK_TIMESTAMP = 34;
+    static final byte GET_BLOCK_ENERGY_LIMIT = 35;
+    static final byte GET_BLOCK_DIFFICULTY = 36;
+    static final byte GET_BLOCK_HASH_BY_NUMBER = 37;
+    static final byte IS_FORK_SIGNATURE_SWAP_ENABLED = 38;
+
+    private StateTrace() {}
+
+    /** Appends entries to a growing trace. */
+    static final class Writer {
+        private final Map<AionAddress, Integer> addresses = new HashMap<>();
+        private byte[] buffer = new byte[4096];
+        private int size = 0;
+
+        Writer() {
+            writeInt(MAGIC);
+            writeVarLong(VERSION);
+        }
+
+        int size() {
+            return this.size;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(this.buffer, this.size);
+        }
+
+        void writeOp(byte op) {
+            ensure(1);
+            this.buffer[this.size++] = op;
+        }
+
+        void writeBoolean(boolean value) {
+            ensure(1);
+            this.buffer[this.size++] = (byte) (value ? 1 : 0);
+        }
+
+        void writeVarLong(long value) {
+            ensure(10);
+            while ((value & ~0x7fL) != 0) {
+                this.buffer[this.size++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            this.buffer[this.size++] = (byte) value;
+        }
+
+        void writeAddress(AionAddress address) {
+            if (address == null) {
+                writeVarLong(0);
+                return;
+            }
+            Integer index = this.addresses.get(address);
+            if (index != null) {
+                writeVarLong(index + 1);
+            } else {
+                writeVarLong(this.addresses.size() + 1);
+                writeRaw(address.toByteArray());
+                this.addresses.put(address, this.addresses.size());
+            }
+        }
+
+        void writeWord(FvmDataWord word) {
+            writeBoolean(word != null);
+            if (word != null) {
+                writeRaw(word.copyOfData());
+            }
+        }
+
+        void writeBytes(byte[] bytes) {
+            if (bytes == null) {
+                writeVarLong(0);
+            } else {
+                writeVarLong(bytes.length + 1L);
+                writeRaw(bytes);
+            }
+        }
+
+        void writeBigInteger(BigInteger value) {
+            writeBytes((value == null) ? null : value.toByteArray());
+        }
+
+        private void writeInt(int value) {
+            ensure(4);
+            this.buffer[this.size++] = (byte) (value >>> 24);
+            this.buffer[this.size++] = (byte) (value >>> 16);
+            this.buffer[this.size++] = (byte) (value >>> 8);
+            this.buffer[this.size++] = (byte) value;
+        }
+
+        private void writeRaw(byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, this.buffer, this.size, bytes.length);
+            this.size += bytes.length;
+        }
+
+        private void ensure(int length) {
+            if (this.size + length > this.buffer.length) {
+                this.buffer = Arrays.copyOf(this.buffer, Math.max(this.buffer.length * 2, this.size + length));
+            }
+        }
+    }
+
+    /**
+     * Reads the entries of a trace back in order, checking that each call being replayed is the
+     * one that was recorded. A call that does not match throws an {@link IllegalStateException}.
+     */
+    static final class Reader {
+        private final ByteBuffer buffer;
+        private final List<AionAddress> addresses = new ArrayList<>();
+
+        Reader(ByteBuffer buffer) {
+            this.buffer = buffer;
+            try {
+                if (buffer.getInt() != MAGIC) {
+                    throw new IllegalArgumentException("Cannot replay a buffer that is not a state trace!");
+                }
+                long version = readVarLong();
+                if (version != VERSION) {
+                    throw new IllegalArgumentException("Cannot replay a state trace of version " + version + "!");
+                }
+            } catch (BufferUnderflowException e) {
+                throw new IllegalArgumentException("Cannot replay a buffer that is not a state trace!");
+            }
+        }
+
+        boolean isFinished() {
+            return !this.buffer.hasRemaining();
+        }
+
+        void expectOp(byte op) {
+            if (!this.buffer.hasRemaining()) {
+                throw diverged("the trace ended before call " + op);
+            }
+            int position = this.buffer.position();
+            byte recorded = this.buffer.get();
+            if (recorded != op) {
+                throw diverged("call " + op + " was made at offset " + position + " where call " + recorded + " was recorded");
+            }
+        }
+
+        void expectAddress(AionAddress address) {
+            AionAddress recorded = readAddress();
+            if (address == null ? recorded != null : !address.equals(recorded)) {
+                throw diverged("address " + address + " was used where " + recorded + " was recorded");
+            }
+        }
+
+        void expectWord(FvmDataWord word) {
+            FvmDataWord recorded = readWord();
+            if (word == null ? recorded != null : !word.equals(recorded)) {
+                throw diverged("word " + word + " was used where " + recorded + " was recorded");
+            }
+        }
+
+        void expectBigInteger(BigInteger value) {
+            BigInteger recorded = readBigInteger();
+            if (value == null ? recorded != null : !value.equals(recorded)) {
+                throw diverged("value " + value + " was used where " + recorded + " was recorded");
+            }
+        }
+
+        void expectBytes(byte[] bytes) {
+            if (!Arrays.equals(bytes, readBytes())) {
+                throw diverged("different bytes were used than were recorded");
+            }
+        }
+
+        void expectVarLong(long value) {
+            long recorded = readVarLong();
+            if (value != recorded) {
+                throw diverged("number " + value + " was used where " + recorded + " was recorded");
+            }
+        }
+
+        boolean readBoolean() {
+            return this.buffer.get() != 0;
+        }
+
+        long readVarLong() {
+            long value = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte next = this.buffer.get();
+                value |= (long) (next & 0x7f) << shift;
+                if (next >= 0) {
+                    return value;
+                }
+            }
+        }
+
+        AionAddress readAddress() {
+            int reference = (int) readVarLong();
+            if (reference == 0) {
+                return null;
+            }
+            if (reference > this.addresses.size()) {
+                byte[] address = new byte[AionAddress.LENGTH];
+                this.buffer.get(address);
+                this.addresses.add(new AionAddress(address));
+            }
+            return this.addresses.get(reference - 1);
+        }
+
+        FvmDataWord readWord() {
+            if (!readBoolean()) {
+                return null;
+            }
+            byte[] word = new byte[FvmDataWord.SIZE];
+            this.buffer.get(word);
+            return FvmDataWord.fromBytes(word);
+        }
+
+        byte[] readBytes() {
+            long length = readVarLong();
+            if (length == 0) {
+                return null;
+            }
+            byte[] bytes = new byte[(int) (length - 1)];
+            this.buffer.get(bytes);
+            return bytes;
+        }
+
+        BigInteger readBigInteger() {
+            byte[] bytes = readBytes();
+            return (bytes == null) ? null : new BigInteger(bytes);
+        }
+
+        private static IllegalStateException diverged(String reason) {
+            return new IllegalStateException("The replay diverged from the state trace: " + reason + "!");
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package org.aion.fastvm;
+
+import org.aion.types.AionAddress;
+
+/**
+ * Observes the storage reads and writes that contracts make through {@link Callback}. Install a
+ * tracker with {@link Callback#setStorageAccessTracker(StorageAccessTracker)}.
+ *
+ * <p>The methods are called on the thread running the contract, while it waits, so they must be
+ * fast and thread-safe. {@link StorageHeatmap} is a tracker with bounded memory.
+ */
+public interface StorageAccessTracker {
+
+    /**
+     * Called when a contract reads a storage slot, whether the value comes from the world state
+     * or was prefetched.
+     *
+     * @param contract The address of the contract that owns the storage.
+     * @param key The key of the slot.
+     */
+    void storageRead(AionAddress contract, FvmDataWord key);
+
+    /**
+     * Called when a contract writes a storage slot, including when it clears the slot.
+     *
+     * @param contract The address of the contract that owns the storage.
+     * @param key The key of the slot.
+     */
+    void storageWritten(AionAddress contract, FvmDataWord key);
+}
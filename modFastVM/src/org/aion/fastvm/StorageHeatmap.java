@@ -0,0 +1,470 @@
+package org.aion.fastvm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import org.aion.types.AionAddress;
+
+/**
+ * A {@link StorageAccessTracker} that finds the contracts whose storage is accessed the most, and
+ * within each of them the storage slots that are accessed the most, in bounded memory.
+ *
+ * <p>Both the contracts and the slots of each contract are counted with the Space-Saving
+ * heavy-hitter algorithm: at most {@code maxContracts} contracts and {@code maxSlots} slots per
+ * contract are counted at once, and a newcomer replaces the least accessed entry, inheriting its
+ * count as a possible overcount. Every contract or slot accessed more than {@code 1 / capacity} of
+ * the time is guaranteed to be counted. For each entry, the reported access count is at least the
+ * true count, and exceeds it by at most {@link Heat#getMaxOvercount()}. The read and write counts
+ * are the exact counts since the entry was last admitted.
+ *
+ * <p>The counters are kept in a Stream-Summary, which groups them by count, so that counting an
+ * access and replacing the least accessed entry both take constant time.
+ *
+ * <p>So that threads do not contend on a single lock, accesses are counted in one summary per
+ * stripe of threads, which are merged when a report is made. An entry missing from the summary
+ * of a stripe may have been accessed there as often as the least accessed entry of that summary,
+ * which is added to its overcount. The memory used therefore grows with the number of stripes,
+ * which is the number of processors rounded up to a power of two.
+ *
+ * <p>This class is thread-safe.
+ */
+public final class StorageHeatmap implements StorageAccessTracker {
+    private final int maxContracts;
+    private final int maxSlots;
+    private final Stripe[] stripes;
+
+    /**
+     * Constructs a new empty heatmap.
+     *
+     * @param maxContracts The maximum number of contracts to count at once.
+     * @param maxSlots The maximum number of slots to count at once per contract.
+     */
+    public StorageHeatmap(int maxContracts, int maxSlots) {
+        if (maxContracts < 1) {
+            throw new IllegalArgumentException("Cannot construct a heatmap of fewer than 1 contracts: " + maxContracts);
+        }
+        if (maxSlots < 1) {
+            throw new IllegalArgumentException("Cannot construct a heatmap of fewer than 1 slots: " + maxSlots);
+        }
+        this.maxContracts = maxContracts;
+        this.maxSlots = maxSlots;
+
+        int processors = Runtime.getRuntime().availableProcessors();
+        this.stripes = new Stripe[(processors == 1) ? 1 : Integer.highestOneBit(processors - 1) << 1];
+        for (int i = 0; i < this.stripes.length; i++) {
+            this.stripes[i] = new Stripe(maxContracts);
+        }
+    }
+
+    @Override
+    public void storageRead(AionAddress contract, FvmDataWord key) {
+        Stripe stripe = stripeOfCurrentThread();
+        synchronized (stripe) {
+            ContractCounter counter = stripe.contracts.increment(contract, (address, overcount) -> new ContractCounter(address, overcount, this.maxSlots));
+            counter.reads++;
+            counter.slots.increment(key, Counter::new).reads++;
+        }
+    }
+
+    @Override
+    public void storageWritten(AionAddress contract, FvmDataWord key) {
+        Stripe stripe = stripeOfCurrentThread();
+        synchronized (stripe) {
+            ContractCounter counter = stripe.contracts.increment(contract, (address, overcount) -> new ContractCounter(address, overcount, this.maxSlots));
+            counter.writes++;
+            counter.slots.increment(key, Counter::new).writes++;
+        }
+    }
+
+    /**
+     * Returns at most the given number of the contracts whose storage was accessed the most, the
+     * most accessed first.
+     */
+    public List<ContractHeat> getHottestContracts(int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Cannot report a negative number of contracts: " + limit);
+        }
+        return merge(null).stream()
+            .sorted(Comparator.comparingLong(ContractHeat::getAccessCount).reversed())
+            .limit(limit)
+            .collect(Collectors.toList());
+    }
+
+    /** Returns the storage heat of the given contract, or {@code null} if it is not being counted. */
+    public ContractHeat getContract(AionAddress contract) {
+        List<ContractHeat> heat = merge(contract);
+        return heat.isEmpty() ? null : heat.get(0);
+    }
+
+    /** Discards everything counted so far. */
+    public void reset() {
+        for (Stripe stripe : this.stripes) {
+            synchronized (stripe) {
+                stripe.contracts = new Summary<>(this.maxContracts);
+            }
+        }
+    }
+
+    private Stripe stripeOfCurrentThread() {
+        long id = Thread.currentThread().getId();
+        return this.stripes[(int) (id ^ (id >>> 32)) & (this.stripes.length - 1)];
+    }
+
+    /**
+     * Merges the summaries of all stripes into the heat of every contract counted in any of them,
+     * or only of the given contract if it is not {@code null}.
+     */
+    private List<ContractHeat> merge(AionAddress only) {
+        Map<AionAddress, MergedContract> merged = new HashMap<>();
+        List<Long> contractBounds = new ArrayList<>(this.stripes.length);
+        for (int i = 0; i < this.stripes.length; i++) {
+            Stripe stripe = this.stripes[i];
+            synchronized (stripe) {
+                contractBounds.add(stripe.contracts.bound());
+                if (only == null) {
+                    for (ContractCounter counter : stripe.contracts.counters.values()) {
+                        merged.computeIfAbsent(counter.key, MergedContract::new).add(i, counter);
+                    }
+                } else {
+                    ContractCounter counter = stripe.contracts.counters.get(only);
+                    if (counter != null) {
+                        merged.computeIfAbsent(only, MergedContract::new).add(i, counter);
+                    }
+                }
+            }
+        }
+
+        List<ContractHeat> heat = new ArrayList<>(merged.size());
+        for (MergedContract contract : merged.values()) {
+            heat.add(contract.toHeat(contractBounds, this.maxSlots));
+        }
+        return heat;
+    }
+
+    /** The counters of the threads of one stripe. */
+    private static final class Stripe {
+        private Summary<AionAddress, ContractCounter> contracts;
+
+        private Stripe(int maxContracts) {
+            this.contracts = new Summary<>(maxContracts);
+        }
+    }
+
+    /** Creates the counter of an entry that is admitted with the given overcount. */
+    private interface CounterFactory<K, C extends Counter<K>> {
+        C create(K key, long overcount);
+    }
+
+    /**
+     * The Space-Saving counters of at most a given number of entries, in a Stream-Summary: the
+     * counters are grouped into buckets of equal count, and the buckets are linked in increasing
+     * order of count, so that the least accessed counter is always in the first bucket.
+     */
+    private static final class Summary<K, C extends Counter<K>> {
+        private final int capacity;
+        private final Map<K, C> counters = new HashMap<>();
+        private Bucket first = null;
+
+        private Summary(int capacity) {
+            this.capacity = capacity;
+        }
+
+        /** Counts an access to the given entry, admitting it if needed, and returns its counter. */
+        C increment(K key, CounterFactory<K, C> factory) {
+            C counter = this.counters.get(key);
+            if (counter == null) {
+                long overcount = 0;
+                if (this.counters.size() >= this.capacity) {
+                    @SuppressWarnings("unchecked")
+                    C coldest = (C) this.first.counters;
+                    overcount = coldest.count();
+                    detach(coldest);
+                    this.counters.remove(coldest.key);
+                }
+                counter = factory.create(key, overcount);
+                this.counters.put(key, counter);
+
+                // Nothing counts less than the evicted counter, so the new one comes first.
+                if (this.first == null || this.first.count != overcount) {
+                    Bucket bucket = new Bucket(overcount);
+                    bucket.next = this.first;
+                    if (this.first != null) {
+                        this.first.previous = bucket;
+                    }
+                    this.first = bucket;
+                }
+                attach(counter, this.first);
+            }
+
+            // The caller increments the reads or writes, which moves the counter up by one.
+            Bucket from = counter.bucket;
+            long count = from.count + 1;
+            Bucket to = from.next;
+            if (to == null || to.count != count) {
+                to = new Bucket(count);
+                to.previous = from;
+                to.next = from.next;
+                if (from.next != null) {
+                    from.next.previous = to;
+                }
+                from.next = to;
+            }
+            detach(counter);
+            attach(counter, to);
+            return counter;
+        }
+
+        /**
+         * Returns the most that an entry missing from this summary may have been accessed, which
+         * is the least count if the summary is full, and zero otherwise.
+         */
+        long bound() {
+            return (this.counters.size() < this.capacity || this.first == null) ? 0 : this.first.count;
+        }
+
+        private void attach(Counter<?> counter, Bucket bucket) {
+            counter.bucket = bucket;
+            counter.previous = null;
+            counter.next = bucket.counters;
+            if (bucket.counters != null) {
+                bucket.counters.previous = counter;
+            }
+            bucket.counters = counter;
+        }
+
+        private void detach(Counter<?> counter) {
+            Bucket bucket = counter.bucket;
+            if (counter.previous != null) {
+                counter.previous.next = counter.next;
+            } else {
+                bucket.counters = counter.next;
+            }
+            if (counter.next != null) {
+                counter.next.previous = counter.previous;
+            }
+            counter.bucket = null;
+            counter.previous = null;
+            counter.next = null;
+
+            if (bucket.counters == null) {
+                if (bucket.previous != null) {
+                    bucket.previous.next = bucket.next;
+                } else {
+                    this.first = bucket.next;
+                }
+                if (bucket.next != null) {
+                    bucket.next.previous = bucket.previous;
+                }
+            }
+        }
+    }
+
+    /** The counters of a Stream-Summary that have the same count. */
+    private static final class Bucket {
+        private final long count;
+        private Bucket previous = null;
+        private Bucket next = null;
+        private Counter<?> counters = null;
+
+        private Bucket(long count) {
+            this.count = count;
+        }
+    }
+
+    /** The accesses counted for a contract or a slot. */
+    private static class Counter<K> {
+        final K key;
+        final long overcount;
+        long reads = 0;
+        long writes = 0;
+
+        // The position of the counter in its summary.
+        Bucket bucket = null;
+        Counter<?> previous = null;
+        Counter<?> next = null;
+
+        Counter(K key, long overcount) {
+            this.key = key;
+            this.overcount = overcount;
+        }
+
+        long count() {
+            return this.overcount + this.reads + this.writes;
+        }
+    }
+
+    private static final class ContractCounter extends Counter<AionAddress> {
+        private final Summary<FvmDataWord, Counter<FvmDataWord>> slots;
+
+        private ContractCounter(AionAddress contract, long overcount, int maxSlots) {
+            super(contract, overcount);
+            this.slots = new Summary<>(maxSlots);
+        }
+    }
+
+    /** The counts of one contract or slot, summed over the stripes that count it. */
+    private static class Merged {
+        long reads = 0;
+        long writes = 0;
+        long overcount = 0;
+
+        // Whether each stripe counts the entry.
+        final boolean[] counted;
+
+        Merged(int stripes) {
+            this.counted = new boolean[stripes];
+        }
+
+        void add(int stripe, Counter<?> counter) {
+            this.counted[stripe] = true;
+            this.reads += counter.reads;
+            this.writes += counter.writes;
+            this.overcount += counter.overcount;
+        }
+
+        /** Returns the overcount, plus the most the entry may have been accessed where it is missing. */
+        long overcount(List<Long> bounds) {
+            long overcount = this.overcount;
+            for (int i = 0; i < this.counted.length; i++) {
+                if (!this.counted[i]) {
+                    overcount += bounds.get(i);
+                }
+            }
+            return overcount;
+        }
+    }
+
+    private final class MergedContract extends Merged {
+        private final AionAddress contract;
+        private final Map<FvmDataWord, Merged> slots = new HashMap<>();
+
+        // The bound of the slots of the contract in each stripe, if it is counted there.
+        private final long[] slotBounds;
+
+        private MergedContract(AionAddress contract) {
+            super(StorageHeatmap.this.stripes.length);
+            this.contract = contract;
+            this.slotBounds = new long[StorageHeatmap.this.stripes.length];
+        }
+
+        void add(int stripe, ContractCounter counter) {
+            super.add(stripe, counter);
+            this.slotBounds[stripe] = counter.slots.bound();
+            for (Counter<FvmDataWord> slot : counter.slots.counters.values()) {
+                this.slots.computeIfAbsent(slot.key, key -> new Merged(this.counted.length)).add(stripe, slot);
+            }
+        }
+
+        ContractHeat toHeat(List<Long> contractBounds, int maxSlots) {
+            // Where the contract itself is missing, so are its slots.
+            List<Long> bounds = new ArrayList<>(this.counted.length);
+            for (int i = 0; i < this.counted.length; i++) {
+                bounds.add(this.counted[i] ? this.slotBounds[i] : contractBounds.get(i));
+            }
+
+            List<SlotHeat> slots = new ArrayList<>(this.slots.size());
+            for (Map.Entry<FvmDataWord, Merged> slot : this.slots.entrySet()) {
+                Merged counts = slot.getValue();
+                slots.add(new SlotHeat(slot.getKey(), counts.reads, counts.writes, counts.overcount(bounds)));
+            }
+            slots.sort(Comparator.comparingLong(SlotHeat::getAccessCount).reversed());
+            if (slots.size() > maxSlots) {
+                slots = new ArrayList<>(slots.subList(0, maxSlots));
+            }
+            return new ContractHeat(this.contract, this.reads, this.writes, overcount(contractBounds), slots);
+        }
+    }
+
+    /** How often something was accessed. */
+    public abstract static class Heat {
+        private final long reads;
+        private final long writes;
+        private final long overcount;
+
+        private Heat(long reads, long writes, long overcount) {
+            this.reads = reads;
+            this.writes = writes;
+            this.overcount = overcount;
+        }
+
+        /** Returns the number of reads since this entry was last admitted. */
+        public long getReadCount() {
+            return this.reads;
+        }
+
+        /** Returns the number of writes since this entry was last admitted. */
+        public long getWriteCount() {
+            return this.writes;
+        }
+
+        /** Returns the estimated number of accesses, which is never below the true number. */
+        public long getAccessCount() {
+            return this.overcount + this.reads + this.writes;
+        }
+
+        /** Returns by how much {@link #getAccessCount()} may exceed the true number of accesses. */
+        public long getMaxOvercount() {
+            return this.overcount;
+        }
+    }
+
+    /** How often the storage of a contract was accessed, and its most accessed slots. */
+    public static final class ContractHeat extends Heat {
+        private final AionAddress contract;
+        private final List<SlotHeat> slots;
+
+        private ContractHeat(AionAddress contract, long reads, long writes, long overcount, List<SlotHeat> slots) {
+            super(reads, writes, overcount);
+            this.contract = contract;
+            this.slots = Collections.unmodifiableList(slots);
+        }
+
+        /** Returns the address of the contract. */
+        public AionAddress getContractAddress() {
+            return this.contract;
+        }
+
+        /** Returns the slots of the contract that are being counted, the most accessed first. */
+        public List<SlotHeat> getHotSlots() {
+            return this.slots;
+        }
+
+        @Override
+        public String toString() {
+            return "ContractHeat { contract = " + this.contract
+                + ", reads = " + getReadCount()
+                + ", writes = " + getWriteCount()
+                + ", max overcount = " + getMaxOvercount()
+                + ", hot slots = " + this.slots.size()
+                + " }";
+        }
+    }
+
+    /** How often one storage slot of a contract was accessed. */
+    public static final class SlotHeat extends Heat {
+        private final FvmDataWord key;
+
+        private SlotHeat(FvmDataWord key, long reads, long writes, long overcount) {
+            super(reads, writes, overcount);
+            this.key = key;
+        }
+
+        /** Returns the key of the slot. */
+        public FvmDataWord getKey() {
+            return this.key;
+        }
+
+        @Override
+        public String toString() {
+            return "SlotHeat { key = " + this.key
+                + ", reads = " + getReadCount()
+                + ", writes = " + getWriteCount()
+                + ", max overcount = " + getMaxOvercount()
+                + " }";
+        }
+    }
+}
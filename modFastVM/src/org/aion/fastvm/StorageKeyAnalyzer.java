@@ -0,0 +1,72 @@
+package org.aion.fastvm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A static analyzer that finds the storage keys a contract is known to read no matter what its
+ * inputs are.
+ *
+ * <p>A storage key is considered constant if its {@code SLOAD} is fed directly by a push, that is
+ * one of the following patterns:
+ *
+ * <ul>
+ *   <li>{@code PUSHn key, SLOAD}
+ *   <li>{@code PUSHn key, DUP1, SLOAD}
+ * </ul>
+ *
+ * where {@code n} is at most {@value FvmDataWord#SIZE}, so that the pushed value is a single data
+ * word. These are the slots of plain state variables (owners, totals, counters, ...). Keys that are
+ * derived at runtime, such as mapping and dynamic array slots, are not reported.
+ */
+public final class StorageKeyAnalyzer {
+    private static final int PUSH1 = Instruction.PUSH1.code() & 0xFF;
+    private static final int PUSH16 = Instruction.PUSH16.code() & 0xFF;
+    private static final int PUSH32 = Instruction.PUSH32.code() & 0xFF;
+    private static final int DUP1 = Instruction.DUP1.code() & 0xFF;
+    private static final int SLOAD = Instruction.SLOAD.code() & 0xFF;
+
+    private StorageKeyAnalyzer() {}
+
+    /**
+     * Returns the distinct constant storage keys read by the given code, in the order they first
+     * appear, up to {@code limit} of them.
+     *
+     * @param code The contract code.
+     * @param limit The maximum number of keys to return.
+     * @return the constant storage keys.
+     */
+    public static List<FvmDataWord> findConstantStorageKeys(byte[] code, int limit) {
+        if (code == null) {
+            throw new NullPointerException("Cannot analyze null code!");
+        }
+
+        Set<FvmDataWord> keys = new LinkedHashSet<>();
+        int length = code.length;
+        int i = 0;
+        while (i < length && keys.size() < limit) {
+            int op = code[i] & 0xFF;
+            if (op < PUSH1 || op > PUSH32) {
+                i++;
+                continue;
+            }
+
+            int size = op - PUSH1 + 1;
+            int next = i + 1 + size;
+            if (op <= PUSH16 && next < length) {
+                int consumer = code[next] & 0xFF;
+                if (consumer == DUP1 && next + 1 < length) {
+                    consumer = code[next + 1] & 0xFF;
+                }
+                if (consumer == SLOAD) {
+                    keys.add(FvmDataWord.fromBytes(Arrays.copyOfRange(code, i + 1, next)));
+                }
+            }
+            i = next;
+        }
+        return new ArrayList<>(keys);
+    }
+}
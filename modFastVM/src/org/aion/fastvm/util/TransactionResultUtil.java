@@ -2,6 +2,7 @@ package org.aion.fastvm.util;
 
 import java.util.ArrayList;
 import java.util.List;
+import org.aion.fastvm.AccessList;
 import org.aion.fastvm.FastVmResultCode;
 import org.aion.fastvm.FvmWrappedTransactionResult;
 import org.aion.types.AionAddress;
@@ -34,19 +35,39 @@ public final class TransactionResultUtil {
             byte[] output,
             List<AionAddress> deletedAddresses) {
 
+        return createFvmWrappedTransactionResult(code, internalTransactions, logs, energyUsed, output, deletedAddresses, null);
+    }
+
+    public static FvmWrappedTransactionResult createFvmWrappedTransactionResult(
+            FastVmResultCode code,
+            List<InternalTransaction> internalTransactions,
+            List<Log> logs,
+            long energyUsed,
+            byte[] output,
+            List<AionAddress> deletedAddresses,
+            AccessList accessList) {
+
         TransactionStatus status = transactionStatusFromFvmResultCode(code);
         TransactionResult result = new TransactionResult(status, logs, internalTransactions, energyUsed, output);
 
-        return new FvmWrappedTransactionResult(result, deletedAddresses);
+        return new FvmWrappedTransactionResult(result, deletedAddresses, accessList);
     }
 
     public static FvmWrappedTransactionResult createWithCodeAndEnergyRemaining(
             FastVmResultCode code,
             long energyUsed) {
 
+        return createWithCodeAndEnergyRemaining(code, energyUsed, null);
+    }
+
+    public static FvmWrappedTransactionResult createWithCodeAndEnergyRemaining(
+            FastVmResultCode code,
+            long energyUsed,
+            AccessList accessList) {
+
         TransactionStatus status = transactionStatusFromFvmResultCode(code);
         TransactionResult result = new TransactionResult(status, new ArrayList<>(), new ArrayList<>(), energyUsed, new byte[0]);
 
-        return new FvmWrappedTransactionResult(result, new ArrayList<>());
+        return new FvmWrappedTransactionResult(result, new ArrayList<>(), accessList);
     }
 }
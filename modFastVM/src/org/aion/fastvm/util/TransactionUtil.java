@@ -6,19 +6,17 @@ import org.aion.types.Transaction;
 public final class TransactionUtil {
 
     public static long computeTransactionCost(Transaction transaction) {
-        byte[] data = transaction.copyOfTransactionData();
-        long nonZeroes = nonZeroBytesInData(data);
-        long zeroes = zeroBytesInData(data);
-
-        return (transaction.isCreate ? FvmConstants.CREATE_TRANSACTION_FEE : 0)
-            + FvmConstants.TRANSACTION_BASE_FEE
-            + zeroes * FvmConstants.ZERO_BYTE_FEE
-            + nonZeroes * FvmConstants.NONZERO_BYTE_FEE;
+        return computeTransactionCost(transaction.isCreate, transaction.copyOfTransactionData());
     }
 
+    /**
+     * Returns the intrinsic energy cost of a transaction with the given data, counting its zero
+     * bytes in a single pass over the data and without copying it.
+     */
     public static long computeTransactionCost(boolean isCreate, byte[] data) {
-        long nonZeroes = nonZeroBytesInData(data);
+        long total = (data == null) ? 0 : data.length;
         long zeroes = zeroBytesInData(data);
+        long nonZeroes = total - zeroes;
 
         return (isCreate ? FvmConstants.CREATE_TRANSACTION_FEE : 0)
             + FvmConstants.TRANSACTION_BASE_FEE
@@ -26,12 +24,6 @@ public final class TransactionUtil {
             + nonZeroes * FvmConstants.NONZERO_BYTE_FEE;
     }
 
-    private static long nonZeroBytesInData(byte[] data) {
-        int total = (data == null) ? 0 : data.length;
-
-        return total - zeroBytesInData(data);
-    }
-
     private static long zeroBytesInData(byte[] data) {
         if (data == null) {
             return 0;
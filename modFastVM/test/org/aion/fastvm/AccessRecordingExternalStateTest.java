@@ -0,0 +1,144 @@
+package org.aion.fastvm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.aion.ExternalStateForTesting;
+import org.aion.repository.BlockchainForTesting;
+import org.aion.repository.RepositoryForTesting;
+import org.aion.types.AionAddress;
+import org.apache.commons.lang3.RandomUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Unit tests for the {@link AccessRecordingExternalState} and {@link AccessList} classes. */
+public class AccessRecordingExternalStateTest {
+    private AccessListRecorder recorder;
+    private IExternalStateForFvm state;
+
+    @Before
+    public void setup() {
+        recorder = new AccessListRecorder();
+        state = new AccessRecordingExternalState(newState(), recorder);
+    }
+
+    @Test
+    public void testNothingRecorded() {
+        AccessList accessList = recorder.toAccessList();
+        assertTrue(accessList.touchedAccounts().isEmpty());
+        assertTrue(accessList.storageRead().isEmpty());
+        assertTrue(accessList.storageWritten().isEmpty());
+    }
+
+    @Test
+    public void testBalanceAndNonceAccessesAreRecorded() {
+        AionAddress sender = randomAddress();
+        AionAddress beneficiary = randomAddress();
+
+        state.accountBalanceIsAtLeast(sender, BigInteger.ZERO);
+        state.getNonce(sender);
+        state.incrementNonce(sender);
+        state.addBalance(beneficiary, BigInteger.TEN);
+
+        AccessList accessList = recorder.toAccessList();
+        assertEquals(Collections.singletonList(sender), accessList.balancesRead());
+        assertEquals(Collections.singletonList(beneficiary), accessList.balancesWritten());
+        assertEquals(Collections.singletonList(sender), accessList.noncesRead());
+        assertEquals(Collections.singletonList(sender), accessList.noncesWritten());
+        assertEquals(2, accessList.touchedAccounts().size());
+    }
+
+    @Test
+    public void testStorageAccessesAreRecordedOnce() {
+        AionAddress contract = randomAddress();
+        FvmDataWord key = FvmDataWord.fromLong(1);
+        FvmDataWord otherKey = FvmDataWord.fromLong(2);
+
+        state.getStorageValue(contract, key);
+        state.getStorageValue(contract, key);
+        state.addStorageValue(contract, otherKey, FvmDataWord.fromLong(7));
+        state.removeStorage(contract, otherKey);
+
+        AccessList accessList = recorder.toAccessList();
+        assertEquals(1, accessList.storageRead().size());
+        assertEquals(contract, accessList.storageRead().get(0).address);
+        assertEquals(key, accessList.storageRead().get(0).key);
+        assertEquals(1, accessList.storageWritten().size());
+        assertEquals(otherKey, accessList.storageWritten().get(0).key);
+        assertEquals(Collections.singletonList(contract), accessList.touchedAccounts());
+    }
+
+    @Test
+    public void testChildStatesShareTheRecorder() {
+        AionAddress address = randomAddress();
+
+        IExternalStateForFvm grandChild = state.newChildExternalState().newChildExternalState();
+        grandChild.createAccount(address);
+        grandChild.putCode(address, new byte[] { 0x1 });
+        grandChild.rollback();
+
+        AccessList accessList = recorder.toAccessList();
+        assertEquals(Collections.singletonList(address), accessList.accountsWritten());
+        assertEquals(Collections.singletonList(address), accessList.codeWritten());
+        assertFalse(state.hasAccountState(address));
+    }
+
+    @Test
+    public void testAddressesAreSorted() {
+        AionAddress low = addressEndingIn((byte) 0x01);
+        AionAddress high = addressEndingIn((byte) 0xf0);
+
+        state.getBalance(high);
+        state.getBalance(low);
+
+        List<AionAddress> expected = Arrays.asList(low, high);
+        assertEquals(expected, recorder.toAccessList().balancesRead());
+    }
+
+    @Test
+    public void testStorageSlotsAreSortedByAddressThenKey() {
+        AionAddress low = addressEndingIn((byte) 0x01);
+        AionAddress high = addressEndingIn((byte) 0xf0);
+
+        state.getStorageValue(high, FvmDataWord.fromLong(1));
+        state.getStorageValue(low, FvmDataWord.fromLong(0xff));
+        state.getStorageValue(low, FvmDataWord.fromLong(2));
+
+        List<AccessList.StorageSlot> slots = recorder.toAccessList().storageRead();
+        assertEquals(3, slots.size());
+        assertEquals(low, slots.get(0).address);
+        assertEquals(FvmDataWord.fromLong(2), slots.get(0).key);
+        assertEquals(low, slots.get(1).address);
+        assertEquals(FvmDataWord.fromLong(0xff), slots.get(1).key);
+        assertEquals(high, slots.get(2).address);
+        assertEquals(Arrays.asList(low, high), recorder.toAccessList().touchedAccounts());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testAccessListIsUnmodifiable() {
+        state.getBalance(randomAddress());
+        recorder.toAccessList().balancesRead().clear();
+    }
+
+    private static AionAddress addressEndingIn(byte last) {
+        byte[] bytes = new byte[AionAddress.LENGTH];
+        bytes[0] = (byte) 0xa0;
+        bytes[AionAddress.LENGTH - 1] = last;
+        return new AionAddress(bytes);
+    }
+
+    private static ExternalStateForTesting newState() {
+        return new ExternalStateForTesting(RepositoryForTesting.newRepository(), new BlockchainForTesting(), randomAddress(), FvmDataWord.fromLong(0), false, true, false, 0L, 0L, 15_000_000L);
+    }
+
+    private static AionAddress randomAddress() {
+        byte[] bytes = RandomUtils.nextBytes(AionAddress.LENGTH);
+        bytes[0] = (byte) 0xa0;
+        return new AionAddress(bytes);
+    }
+}
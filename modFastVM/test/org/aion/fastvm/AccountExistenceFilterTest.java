@@ -0,0 +1,159 @@
+package org.aion.fastvm;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import org.aion.ExternalStateForTesting;
+import org.aion.repository.BlockchainForTesting;
+import org.aion.repository.RepositoryForTesting;
+import org.aion.types.AionAddress;
+import org.apache.commons.lang3.RandomUtils;
+import org.junit.Test;
+
+/** Tests for the {@link AccountExistenceFilter} and {@link ExistenceFilteringExternalState} classes. */
+public class AccountExistenceFilterTest {
+
+    @Test
+    public void testAddedAccountsAreNeverMissed() {
+        AccountExistenceFilter filter = new AccountExistenceFilter(10_000, 0.01);
+        List<AionAddress> addresses = randomAddresses(10_000);
+        for (AionAddress address : addresses) {
+            filter.add(address);
+        }
+        for (AionAddress address : addresses) {
+            assertTrue(filter.mightContain(address));
+        }
+    }
+
+    @Test
+    public void testFalsePositiveRateIsBounded() {
+        AccountExistenceFilter filter = new AccountExistenceFilter(10_000, 0.01);
+        for (AionAddress address : randomAddresses(10_000)) {
+            filter.add(address);
+        }
+
+        int falsePositives = 0;
+        for (AionAddress address : randomAddresses(10_000)) {
+            if (filter.mightContain(address)) {
+                falsePositives++;
+            }
+        }
+        assertTrue("false positives: " + falsePositives, falsePositives < 300);
+    }
+
+    @Test
+    public void testRemovedAccountIsForgotten() {
+        AccountExistenceFilter filter = new AccountExistenceFilter(100, 0.001);
+        AionAddress address = randomAddress();
+        filter.add(address);
+        filter.remove(address);
+        assertFalse(filter.mightContain(address));
+    }
+
+    @Test
+    public void testRemovingOneAccountKeepsTheOthers() {
+        AccountExistenceFilter filter = new AccountExistenceFilter(1_000, 0.01);
+        List<AionAddress> addresses = randomAddresses(1_000);
+        for (AionAddress address : addresses) {
+            filter.add(address);
+        }
+        for (int i = 0; i < addresses.size(); i += 2) {
+            filter.remove(addresses.get(i));
+        }
+        for (int i = 1; i < addresses.size(); i += 2) {
+            assertTrue(filter.mightContain(addresses.get(i)));
+        }
+    }
+
+    @Test
+    public void testSaturatedCountersAreNeverDecremented() {
+        AccountExistenceFilter filter = new AccountExistenceFilter(100, 0.01);
+        AionAddress address = randomAddress();
+        for (int i = 0; i < 20; i++) {
+            filter.add(address);
+        }
+        for (int i = 0; i < 20; i++) {
+            filter.remove(address);
+        }
+        assertTrue(filter.mightContain(address));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidProbabilityIsRejected() {
+        new AccountExistenceFilter(100, 1.0);
+    }
+
+    @Test
+    public void testUnknownAccountIsShortCircuited() {
+        AionAddress address = randomAddress();
+        ExternalStateForTesting state = newState();
+        state.createAccount(address);
+
+        // The account was never added to the filter, so it is reported as missing.
+        IExternalStateForFvm filtered = new ExistenceFilteringExternalState(state, new AccountExistenceFilter(100, 0.001));
+        assertFalse(filtered.hasAccountState(address));
+    }
+
+    @Test
+    public void testAccountsWrittenByTheFvmAreAdded() {
+        AccountExistenceFilter filter = new AccountExistenceFilter(100, 0.001);
+        IExternalStateForFvm filtered = new ExistenceFilteringExternalState(newState(), filter);
+        AionAddress beneficiary = randomAddress();
+        AionAddress contract = randomAddress();
+
+        IExternalStateForFvm child = filtered.newChildExternalState();
+        child.addBalance(beneficiary, BigInteger.ONE);
+        child.createAccount(contract);
+        child.commit();
+
+        assertTrue(filter.mightContain(beneficiary));
+        assertTrue(filter.mightContain(contract));
+        assertTrue(filtered.hasAccountState(beneficiary));
+        assertTrue(filtered.hasAccountState(contract));
+    }
+
+    @Test
+    public void testAccountsAreAddedOnlyOnce() {
+        AccountExistenceFilter filter = new AccountExistenceFilter(100, 0.001);
+        ExternalStateForTesting state = newState();
+        AionAddress existing = randomAddress();
+        state.createAccount(existing);
+        filter.add(existing);
+        AionAddress created = randomAddress();
+
+        IExternalStateForFvm filtered = new ExistenceFilteringExternalState(state, filter);
+        for (int i = 0; i < 3; i++) {
+            filtered.addBalance(existing, BigInteger.ONE);
+            filtered.incrementNonce(existing);
+            filtered.addBalance(created, BigInteger.ONE);
+            filtered.incrementNonce(created);
+        }
+
+        // A single removal takes either account out of the filter again.
+        filter.remove(existing);
+        filter.remove(created);
+        assertFalse(filter.mightContain(existing));
+        assertFalse(filter.mightContain(created));
+    }
+
+    private static ExternalStateForTesting newState() {
+        return new ExternalStateForTesting(RepositoryForTesting.newRepository(), new BlockchainForTesting(), randomAddress(), FvmDataWord.fromLong(0), false, true, false, 0L, 0L, 15_000_000L);
+    }
+
+    private static List<AionAddress> randomAddresses(int count) {
+        List<AionAddress> addresses = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            addresses.add(randomAddress());
+        }
+        return addresses;
+    }
+
+    private static AionAddress randomAddress() {
+        byte[] bytes = RandomUtils.nextBytes(AionAddress.LENGTH);
+        bytes[0] = (byte) 0xa0;
+        return new AionAddress(bytes);
+    }
+}
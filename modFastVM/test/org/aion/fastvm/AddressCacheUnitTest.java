@@ -0,0 +1,84 @@
+package org.aion.fastvm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import org.aion.types.AionAddress;
+import org.apache.commons.lang3.RandomUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Unit tests for the {@link AddressCache} class. */
+public class AddressCacheUnitTest {
+    private AddressCache cache;
+
+    @Before
+    public void setup() {
+        cache = new AddressCache();
+    }
+
+    @Test
+    public void testEqualBytesReturnSameInstance() {
+        byte[] bytes = RandomUtils.nextBytes(AionAddress.LENGTH);
+        AionAddress address = cache.get(bytes);
+        assertSame(address, cache.get(Arrays.copyOf(bytes, bytes.length)));
+        assertArrayEquals(bytes, address.toByteArray());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testDistinctBytesReturnDistinctInstances() {
+        byte[] bytes = RandomUtils.nextBytes(AionAddress.LENGTH);
+        byte[] other = Arrays.copyOf(bytes, bytes.length);
+        other[AionAddress.LENGTH - 1] = (byte) ~other[AionAddress.LENGTH - 1];
+
+        AionAddress address = cache.get(bytes);
+        AionAddress otherAddress = cache.get(other);
+        assertNotSame(address, otherAddress);
+        assertArrayEquals(other, otherAddress.toByteArray());
+    }
+
+    @Test
+    public void testLookupAtOffset() {
+        byte[] bytes = RandomUtils.nextBytes(AionAddress.LENGTH);
+        byte[] message = new byte[7 + AionAddress.LENGTH + 5];
+        System.arraycopy(bytes, 0, message, 7, bytes.length);
+
+        assertSame(cache.get(bytes), cache.get(message, 7));
+    }
+
+    @Test
+    public void testCacheDoesNotAliasInput() {
+        byte[] bytes = RandomUtils.nextBytes(AionAddress.LENGTH);
+        byte[] original = Arrays.copyOf(bytes, bytes.length);
+        AionAddress address = cache.get(bytes);
+
+        Arrays.fill(bytes, (byte) 0);
+        assertArrayEquals(original, address.toByteArray());
+        assertSame(address, cache.get(original));
+    }
+
+    @Test
+    public void testOverflowingTheCacheStaysCorrect() {
+        int count = AddressCache.CAPACITY * 3;
+        byte[][] addresses = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            addresses[i] = RandomUtils.nextBytes(AionAddress.LENGTH);
+            assertArrayEquals(addresses[i], cache.get(addresses[i]).toByteArray());
+        }
+        assertTrue(cache.size() < AddressCache.CAPACITY);
+
+        for (byte[] address : addresses) {
+            assertArrayEquals(address, cache.get(address).toByteArray());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWrongLengthIsRejected() {
+        cache.get(new byte[AionAddress.LENGTH - 1]);
+    }
+}
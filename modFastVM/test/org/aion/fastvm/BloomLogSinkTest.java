@@ -0,0 +1,133 @@
+package org.aion.fastvm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import org.aion.types.AionAddress;
+import org.aion.types.Log;
+import org.apache.commons.lang3.RandomUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Tests the {@link BloomLogSink} class and how {@link SideEffects} feeds a {@link LogSink}. */
+public class BloomLogSinkTest {
+    private static final int TOPIC_SIZE = 32;
+
+    private BloomLogSink sink;
+
+    @Before
+    public void setup() {
+        sink = new BloomLogSink(new Sha256Capabilities());
+    }
+
+    @Test
+    public void testLogsAreKeptAsReceived() {
+        byte[] address = RandomUtils.nextBytes(AionAddress.LENGTH);
+        byte[] topic1 = RandomUtils.nextBytes(TOPIC_SIZE);
+        byte[] topic2 = RandomUtils.nextBytes(TOPIC_SIZE);
+        byte[] data = RandomUtils.nextBytes(100);
+
+        sink.log(address, concatenate(topic1, topic2), data);
+
+        assertEquals(1, sink.size());
+        assertEquals(Log.topicsAndData(address, Arrays.asList(topic1, topic2), data), sink.getLog(0));
+    }
+
+    @Test
+    public void testIncrementalBloomEqualsBloomOfAllLogs() {
+        byte[] bloom = new byte[BloomLogSink.BLOOM_SIZE];
+        for (int i = 0; i < 10; i++) {
+            byte[] address = RandomUtils.nextBytes(AionAddress.LENGTH);
+            byte[] topic = RandomUtils.nextBytes(TOPIC_SIZE);
+            sink.log(address, topic, RandomUtils.nextBytes(i));
+            or(bloom, bloomOf(address));
+            or(bloom, bloomOf(topic));
+        }
+        assertArrayEquals(bloom, sink.copyOfBloom());
+    }
+
+    @Test
+    public void testRevertRecomputesBloomAndDropsLogs() {
+        byte[] address = RandomUtils.nextBytes(AionAddress.LENGTH);
+        sink.log(address, new byte[0], new byte[0]);
+        byte[] bloom = sink.copyOfBloom();
+        Log log = sink.getLog(0);
+
+        int mark = sink.mark();
+        sink.log(RandomUtils.nextBytes(AionAddress.LENGTH), RandomUtils.nextBytes(TOPIC_SIZE), RandomUtils.nextBytes(10));
+        sink.revertTo(mark);
+
+        assertEquals(Collections.singletonList(log), sink.getLogs());
+        assertArrayEquals(bloom, sink.copyOfBloom());
+    }
+
+    @Test
+    public void testResetClearsEverything() {
+        sink.log(RandomUtils.nextBytes(AionAddress.LENGTH), RandomUtils.nextBytes(TOPIC_SIZE), RandomUtils.nextBytes(1000));
+        sink.reset();
+
+        assertEquals(0, sink.size());
+        assertArrayEquals(new byte[BloomLogSink.BLOOM_SIZE], sink.copyOfBloom());
+    }
+
+    @Test
+    public void testFailedNestedFrameIsRevertedInSink() {
+        SideEffects parent = new SideEffects();
+        parent.setLogSink(sink);
+        byte[] address = RandomUtils.nextBytes(AionAddress.LENGTH);
+        parent.addLog(address, new byte[0], new byte[0]);
+
+        SideEffects success = new SideEffects();
+        success.nestWithin(parent);
+        success.addLog(address, RandomUtils.nextBytes(TOPIC_SIZE), new byte[0]);
+        parent.merge(success);
+
+        SideEffects failure = new SideEffects();
+        failure.nestWithin(parent);
+        failure.addLog(address, RandomUtils.nextBytes(TOPIC_SIZE), new byte[0]);
+        parent.mergeInternalTransactions(failure);
+
+        assertEquals(2, sink.size());
+        assertTrue(parent.getExecutionLogs().isEmpty());
+    }
+
+    private static byte[] bloomOf(byte[] element) {
+        BloomLogSink single = new BloomLogSink(new Sha256Capabilities());
+        single.log(element, new byte[0], new byte[0]);
+        return single.copyOfBloom();
+    }
+
+    private static void or(byte[] bloom, byte[] other) {
+        for (int i = 0; i < bloom.length; i++) {
+            bloom[i] |= other[i];
+        }
+    }
+
+    private static byte[] concatenate(byte[] first, byte[] second) {
+        byte[] bytes = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, bytes, first.length, second.length);
+        return bytes;
+    }
+
+    private static final class Sha256Capabilities implements IExternalCapabilities {
+        @Override
+        public AionAddress computeNewContractAddress(AionAddress sender, BigInteger senderNonce) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public byte[] hash256(byte[] payload) {
+            try {
+                return MessageDigest.getInstance("SHA-256").digest(payload);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package org.aion.fastvm;
+
+import java.lang.management.ManagementFactory;
+import java.math.BigInteger;
+import javax.management.Attribute;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+import org.aion.ExternalStateForTesting;
+import org.aion.fastvm.CallbackMetrics.Upcall;
+import org.aion.repository.BlockchainForTesting;
+import org.aion.repository.RepositoryForTesting;
+import org.aion.types.AionAddress;
+import org.apache.commons.lang3.RandomUtils;
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CallbackMetricsTest {
+
+    @Before
+    public void setup() {
+        CallbackMetrics.reset();
+        Callback.push(Pair.of(newDummyContext(), newState()));
+    }
+
+    @After
+    public void tearDown() {
+        CallbackMetrics.disable();
+        CallbackMetrics.reset();
+        CallbackMetrics.unregisterMBean();
+        while (!Callback.stackIsEmpty()) {
+            Callback.pop();
+        }
+    }
+
+    @Test
+    public void testBucketsBoundTheirLatencies() {
+        long[] latencies = {0, 1, 15, 16, 17, 31, 32, 1_000, 123_456, 987_654_321L, 1L << 40};
+        for (long latency : latencies) {
+            long highest = CallbackMetrics.highestValueOf(CallbackMetrics.bucketOf(latency));
+            Assert.assertTrue(highest >= latency);
+            Assert.assertTrue(highest - latency <= latency / CallbackMetrics.SUB_BUCKETS);
+        }
+    }
+
+    @Test
+    public void testBucketsAreOrdered() {
+        for (int bucket = 1; bucket < CallbackMetrics.BUCKETS; bucket++) {
+            long highest = CallbackMetrics.highestValueOf(bucket);
+            Assert.assertTrue(highest > CallbackMetrics.highestValueOf(bucket - 1));
+            Assert.assertEquals(bucket, CallbackMetrics.bucketOf(highest));
+        }
+        Assert.assertEquals(CallbackMetrics.BUCKETS - 1, CallbackMetrics.bucketOf(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testNothingIsRecordedWhileDisabled() {
+        Callback.getBalance(randomAddress().toByteArray());
+        Callback.exists(randomAddress().toByteArray());
+
+        CallbackMetricsSnapshot snapshot = CallbackMetrics.snapshot();
+        for (Upcall upcall : Upcall.values()) {
+            Assert.assertEquals(0, snapshot.getCount(upcall));
+            Assert.assertEquals(0, snapshot.getMaxNanos(upcall));
+        }
+    }
+
+    @Test
+    public void testUpcallsAreCountedWhileEnabled() {
+        CallbackMetrics.enable();
+        Callback.getBalance(randomAddress().toByteArray());
+        Callback.getBalance(randomAddress().toByteArray());
+        Callback.exists(randomAddress().toByteArray());
+        Callback.getBlockHash(1L);
+        CallbackMetrics.disable();
+        Callback.getBalance(randomAddress().toByteArray());
+
+        CallbackMetricsSnapshot snapshot = CallbackMetrics.snapshot();
+        Assert.assertEquals(2, snapshot.getCount(Upcall.GET_BALANCE));
+        Assert.assertEquals(1, snapshot.getCount(Upcall.EXISTS));
+        Assert.assertEquals(1, snapshot.getCount(Upcall.GET_BLOCK_HASH));
+        Assert.assertEquals(0, snapshot.getCount(Upcall.GET_STORAGE));
+
+        Assert.assertTrue(snapshot.getPercentileNanos(Upcall.GET_BALANCE, 50) <= snapshot.getMaxNanos(Upcall.GET_BALANCE));
+        Assert.assertTrue(snapshot.getMeanNanos(Upcall.GET_BALANCE) <= snapshot.getMaxNanos(Upcall.GET_BALANCE));
+    }
+
+    @Test
+    public void testUpcallsOnOtherThreadsAreCounted() throws InterruptedException {
+        CallbackMetrics.enable();
+        Thread thread = new Thread(() -> {
+            Callback.push(Pair.of(newDummyContext(), newState()));
+            Callback.exists(randomAddress().toByteArray());
+            Callback.pop();
+        });
+        thread.start();
+        thread.join();
+        Callback.exists(randomAddress().toByteArray());
+
+        Assert.assertEquals(2, CallbackMetrics.snapshot().getCount(Upcall.EXISTS));
+    }
+
+    @Test
+    public void testHistogramsOfDeadThreadsAreRetired() throws InterruptedException {
+        CallbackMetrics.enable();
+        Callback.exists(randomAddress().toByteArray());
+        int recorders = CallbackMetrics.liveRecorderCount();
+
+        for (int i = 0; i < 10; i++) {
+            Thread thread = new Thread(() -> {
+                Callback.push(Pair.of(newDummyContext(), newState()));
+                Callback.exists(randomAddress().toByteArray());
+                Callback.pop();
+            });
+            thread.start();
+            thread.join();
+        }
+
+        Assert.assertEquals(11, CallbackMetrics.snapshot().getCount(Upcall.EXISTS));
+        Assert.assertTrue(CallbackMetrics.liveRecorderCount() <= recorders);
+    }
+
+    @Test
+    public void testResetDiscardsWhatWasRecorded() {
+        CallbackMetrics.enable();
+        Callback.exists(randomAddress().toByteArray());
+        CallbackMetrics.reset();
+        Assert.assertEquals(0, CallbackMetrics.snapshot().getCount(Upcall.EXISTS));
+
+        Callback.exists(randomAddress().toByteArray());
+        Assert.assertEquals(1, CallbackMetrics.snapshot().getCount(Upcall.EXISTS));
+    }
+
+    @Test
+    public void testPercentileOfNoUpcallsIsZero() {
+        Assert.assertEquals(0, CallbackMetrics.snapshot().getPercentileNanos(Upcall.CALL, 99));
+        Assert.assertEquals(0, CallbackMetrics.snapshot().getMeanNanos(Upcall.CALL), 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPercentileAboveHundred() {
+        CallbackMetrics.snapshot().getPercentileNanos(Upcall.CALL, 100.5);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativePercentile() {
+        CallbackMetrics.snapshot().getPercentileNanos(Upcall.CALL, -1);
+    }
+
+    @Test
+    public void testMBeanExposesTheCounts() throws Exception {
+        CallbackMetrics.registerMBean();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(CallbackMetrics.MBEAN_NAME);
+
+        server.setAttribute(name, new Attribute("Enabled", true));
+        Assert.assertTrue(CallbackMetrics.isEnabled());
+        Callback.exists(randomAddress().toByteArray());
+
+        TabularData counts = (TabularData) server.getAttribute(name, "Counts");
+        CompositeData exists = counts.get(new Object[] {Upcall.EXISTS.name()});
+        Assert.assertEquals(1L, exists.get("value"));
+
+        CallbackMetrics.unregisterMBean();
+        Assert.assertFalse(server.isRegistered(name));
+    }
+
+    private static ExecutionContext newDummyContext() {
+        return ExecutionContext.from(new byte[32], randomAddress(), randomAddress(), randomAddress(), 1L, 1L,
+            BigInteger.ZERO, new byte[0], 0, TransactionKind.CALL, 0, randomAddress(), 0L, 0L, 500_000L, FvmDataWord.fromLong(0L));
+    }
+
+    private static ExternalStateForTesting newState() {
+        return new ExternalStateForTesting(RepositoryForTesting.newRepository(), new BlockchainForTesting(), randomAddress(), FvmDataWord.fromInt(0), false, true, false, 0L, 0L, 0L, false);
+    }
+
+    private static AionAddress randomAddress() {
+        byte[] bytes = RandomUtils.nextBytes(AionAddress.LENGTH);
+        bytes[0] = (byte) 0xa0;
+        return new AionAddress(bytes);
+    }
+}
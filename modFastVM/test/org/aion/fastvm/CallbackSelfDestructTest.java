@@ -194,6 +194,25 @@ public class CallbackSelfDestructTest {
         }
     }
 
+    @Test
+    public void testSelfDestructWithoutRecordingInternalTransactions() {
+        AionAddress addressToKill = randomAddress();
+        AionAddress beneficiary = randomAddress();
+
+        ExecutionContext context = newDummyContext();
+        context.getSideEffects().setRecordingLevel(SideEffectsRecordingLevel.LOGS_ONLY);
+        ExternalStateForTesting state = newState();
+        state.addBalance(addressToKill, BigInteger.TEN);
+        pushContextAndStateToCallbackStack(context, state);
+
+        Callback.selfDestruct(addressToKill.toByteArray(), beneficiary.toByteArray());
+
+        // The deletion is still recorded but the internal transaction is not.
+        Assert.assertEquals(BigInteger.TEN, state.getBalance(beneficiary));
+        Assert.assertEquals(1, context.getSideEffects().getAddressesToBeDeleted().size());
+        Assert.assertTrue(context.getSideEffects().getInternalTransactions().isEmpty());
+    }
+
     private static void assertTransactionCorrect(InternalTransaction transaction, AionAddress destination, BigInteger value) {
         Assert.assertEquals(destination, transaction.destination);
         Assert.assertEquals(value, transaction.value);
@@ -0,0 +1,175 @@
+package org.aion.fastvm;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.List;
+import org.aion.types.AionAddress;
+import org.apache.commons.lang3.RandomUtils;
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the storage prefetching logic in the {@link Callback} class.
+ */
+public class CallbackStoragePrefetchTest {
+    private static final byte[] CODE = new byte[] {Instruction.PUSH1.code(), 0x01, Instruction.SLOAD.code()};
+    private static final FvmDataWord KEY = FvmDataWord.fromInt(1);
+    private static final FvmDataWord PREFETCHED = FvmDataWord.fromInt(42);
+    private static final FvmDataWord CURRENT = FvmDataWord.fromInt(43);
+
+    @After
+    public void tearDown() {
+        while (!Callback.stackIsEmpty()) {
+            Callback.pop();
+        }
+    }
+
+    @Test
+    public void testPrefetchedValueIsServedWithoutStateRead() {
+        AionAddress contract = randomAddress();
+        IExternalStateForFvm state = newState(true);
+        Callback.push(Pair.of(newContext(contract, TransactionKind.CALL), state));
+
+        Callback.prefetchStorage(CODE);
+
+        Assert.assertArrayEquals(PREFETCHED.copyOfData(), Callback.getStorage(contract.toByteArray(), KEY.copyOfData()));
+        verify(state, times(1)).getStorageValues(contract, Arrays.asList(KEY));
+        verify(state, never()).getStorageValue(any(), any());
+    }
+
+    @Test
+    public void testWriteInvalidatesPrefetchedValue() {
+        AionAddress contract = randomAddress();
+        IExternalStateForFvm state = newState(true);
+        Callback.push(Pair.of(newContext(contract, TransactionKind.CALL), state));
+
+        Callback.prefetchStorage(CODE);
+        Callback.putStorage(contract.toByteArray(), KEY.copyOfData(), CURRENT.copyOfData());
+
+        Assert.assertArrayEquals(CURRENT.copyOfData(), Callback.getStorage(contract.toByteArray(), KEY.copyOfData()));
+        verify(state, times(1)).getStorageValue(contract, KEY);
+    }
+
+    @Test
+    public void testOwnerIsOnlyPrefetchedOncePerTransaction() {
+        AionAddress contract = randomAddress();
+        IExternalStateForFvm state = newState(true);
+        Callback.push(Pair.of(newContext(contract, TransactionKind.CALL), state));
+
+        Callback.prefetchStorage(CODE);
+        Callback.putStorage(contract.toByteArray(), KEY.copyOfData(), CURRENT.copyOfData());
+
+        // A nested frame for the same contract must not re-prefetch the written key.
+        Callback.push(Pair.of(newContext(contract, TransactionKind.CALL), state));
+        Callback.prefetchStorage(CODE);
+
+        Assert.assertArrayEquals(CURRENT.copyOfData(), Callback.getStorage(contract.toByteArray(), KEY.copyOfData()));
+        verify(state, times(1)).getStorageValues(any(), anyList());
+    }
+
+    @Test
+    public void testCreateIsNeverPrefetched() {
+        AionAddress contract = randomAddress();
+        IExternalStateForFvm state = newState(true);
+        Callback.push(Pair.of(newContext(contract, TransactionKind.CREATE), state));
+
+        Callback.prefetchStorage(CODE);
+        Callback.push(Pair.of(newContext(contract, TransactionKind.CALL), state));
+        Callback.prefetchStorage(CODE);
+
+        verify(state, never()).getStorageValues(any(), anyList());
+    }
+
+    @Test
+    public void testNothingIsPrefetchedWhenDisabled() {
+        AionAddress contract = randomAddress();
+        IExternalStateForFvm state = newState(false);
+        Callback.push(Pair.of(newContext(contract, TransactionKind.CALL), state));
+
+        Callback.prefetchStorage(CODE);
+
+        Assert.assertArrayEquals(CURRENT.copyOfData(), Callback.getStorage(contract.toByteArray(), KEY.copyOfData()));
+        verify(state, never()).getStorageValues(any(), anyList());
+    }
+
+    @Test
+    public void testPrefetchedValuesDoNotOutliveTheTransaction() {
+        AionAddress contract = randomAddress();
+        IExternalStateForFvm state = newState(true);
+        Callback.push(Pair.of(newContext(contract, TransactionKind.CALL), state));
+        Callback.prefetchStorage(CODE);
+        Callback.pop();
+
+        // The next transaction starts with an empty callback stack and sees the current value.
+        Callback.push(Pair.of(newContext(contract, TransactionKind.CALL), newState(false)));
+        Assert.assertArrayEquals(CURRENT.copyOfData(), Callback.getStorage(contract.toByteArray(), KEY.copyOfData()));
+    }
+
+    @Test
+    public void testAnalysisIsSharedByEqualCode() {
+        byte[] code = newCode(0x0102);
+        List<FvmDataWord> keys = PrefetchedStorage.constantStorageKeys(code);
+        Assert.assertEquals(Arrays.asList(FvmDataWord.fromInt(0x0102)), keys);
+
+        // Equal code in another array is not analyzed again.
+        Assert.assertSame(keys, PrefetchedStorage.constantStorageKeys(code.clone()));
+
+        // The cache kept its own copy, so changing the array changes the code that is looked up.
+        byte[] original = code.clone();
+        code[2] = 0x03;
+        Assert.assertEquals(Arrays.asList(FvmDataWord.fromInt(0x0103)), PrefetchedStorage.constantStorageKeys(code));
+        Assert.assertSame(keys, PrefetchedStorage.constantStorageKeys(original));
+    }
+
+    @Test
+    public void testLeastRecentlyAnalyzedCodeIsEvicted() {
+        byte[] code = newCode(1);
+        List<FvmDataWord> keys = PrefetchedStorage.constantStorageKeys(code);
+        for (int i = 0; i < PrefetchedStorage.MAX_ANALYZED_CODES; i++) {
+            PrefetchedStorage.constantStorageKeys(newCode(i));
+        }
+
+        List<FvmDataWord> reanalyzed = PrefetchedStorage.constantStorageKeys(code);
+        Assert.assertNotSame(keys, reanalyzed);
+        Assert.assertEquals(keys, reanalyzed);
+    }
+
+    private static IExternalStateForFvm newState(boolean prefetchEnabled) {
+        IExternalStateForFvm state = mock(IExternalStateForFvm.class);
+        when(state.isStoragePrefetchEnabled()).thenReturn(prefetchEnabled);
+        when(state.getStorageValues(any(), anyList())).thenReturn(Arrays.asList(PREFETCHED));
+        when(state.getStorageValue(any(), any())).thenReturn(CURRENT);
+        return state;
+    }
+
+    /** Returns code that reads the given key, followed by random bytes that make it unique. */
+    private static byte[] newCode(int key) {
+        byte[] code = RandomUtils.nextBytes(36);
+        code[0] = Instruction.PUSH2.code();
+        code[1] = (byte) (key >> 8);
+        code[2] = (byte) key;
+        code[3] = Instruction.SLOAD.code();
+        code[4] = Instruction.STOP.code();
+        return code;
+    }
+
+    private static ExecutionContext newContext(AionAddress destination, TransactionKind kind) {
+        return ExecutionContext.from(new byte[32], destination, randomAddress(), randomAddress(), 1L, 1L, BigInteger.ZERO, new byte[0], 0, kind, 0, randomAddress(), 0L, 0L, 500_000L, FvmDataWord.fromLong(0L));
+    }
+
+    private static AionAddress randomAddress() {
+        byte[] bytes = RandomUtils.nextBytes(AionAddress.LENGTH);
+        bytes[0] = (byte) 0xa0;
+        return new AionAddress(bytes);
+    }
+}
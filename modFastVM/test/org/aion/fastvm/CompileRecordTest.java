@@ -0,0 +1,68 @@
+package org.aion.fastvm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.commons.lang3.RandomUtils;
+import org.junit.Test;
+
+/** Unit tests for the {@link CompileRecord} class. */
+public class CompileRecordTest {
+
+    @Test
+    public void testRecordsAreDecodedInOrder() {
+        byte[] firstHash = RandomUtils.nextBytes(32);
+        byte[] secondHash = RandomUtils.nextBytes(32);
+        ByteBuffer buffer = ByteBuffer.allocate(2 * CompileRecord.SIZE + 7);
+        buffer.put(firstHash).putInt(0).putInt(0).putLong(2_000_000).putLong(120);
+        buffer.put(secondHash).putInt(1).putInt(1).putLong(0).putLong(40);
+
+        // The trailing partial record is ignored.
+        List<CompileRecord> records = CompileRecord.decode(buffer.array());
+        assertEquals(2, records.size());
+
+        assertArrayEquals(firstHash, records.get(0).codeHash);
+        assertEquals(0, records.get(0).depth);
+        assertFalse(records.get(0).cacheHit);
+        assertEquals(2_000_000, records.get(0).compileNanos);
+        assertEquals(120, records.get(0).codeSize);
+
+        assertArrayEquals(secondHash, records.get(1).codeHash);
+        assertEquals(1, records.get(1).depth);
+        assertTrue(records.get(1).cacheHit);
+        assertEquals(0, records.get(1).compileNanos);
+        assertEquals(40, records.get(1).codeSize);
+    }
+
+    @Test
+    public void testNoRecords() {
+        assertTrue(CompileRecord.decode(new byte[0]).isEmpty());
+    }
+
+    @Test
+    public void testOwnerIsTheInnermostFrameAtTheSameDepth() {
+        ByteBuffer buffer = ByteBuffer.allocate(CompileRecord.SIZE);
+        buffer.put(new byte[32]).putInt(1).putInt(0).putLong(0).putLong(0);
+        CompileRecord record = CompileRecord.decode(buffer.array()).get(0);
+
+        // The depths of the running frames, innermost last.
+        int[] outer = {1};
+        int[] inner = {1};
+        List<int[]> running = Arrays.asList(new int[] {0}, outer, inner, new int[] {2});
+
+        assertSame(inner, record.ownerIn(running, frame -> frame[0]));
+        assertNull(record.ownerIn(running.subList(0, 1), frame -> frame[0]));
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testNullRecords() {
+        CompileRecord.decode(null);
+    }
+}
@@ -0,0 +1,188 @@
+package org.aion.fastvm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.aion.fastvm.CallbackMetrics.Upcall;
+import org.aion.fastvm.ContractUsage.Measure;
+import org.aion.types.AionAddress;
+import org.apache.commons.lang3.RandomUtils;
+import org.junit.After;
+import org.junit.Test;
+
+/** Unit tests for the {@link ContractAccounting} and {@link ContractUsageTracker} classes. */
+public class ContractAccountingTest {
+    private final AtomicLong now = new AtomicLong(0);
+
+    @After
+    public void tearDown() {
+        ContractAccounting.disable();
+    }
+
+    @Test
+    public void testUsageIsSummedPerContract() {
+        ContractUsageTracker tracker = newTracker();
+        AionAddress contract = randomAddress();
+        long[] upcalls = new long[Upcall.values().length];
+        upcalls[Upcall.GET_STORAGE.ordinal()] = 3;
+
+        tracker.add(contract, null, 100, 50, 40, 7, 1, upcalls);
+        tracker.add(contract, new byte[32], 200, 60, 60, 0, 0, upcalls);
+
+        List<ContractUsage> report = tracker.top(10, Measure.ENERGY_USED);
+        assertEquals(1, report.size());
+        ContractUsage usage = report.get(0);
+        assertEquals(contract, usage.getContractAddress());
+        assertArrayEquals(new byte[32], usage.getCodeHash());
+        assertEquals(2, usage.getExecutionCount());
+        assertEquals(300, usage.getEnergyUsed());
+        assertEquals(110, usage.getWallNanos());
+        assertEquals(100, usage.getSelfNanos());
+        assertEquals(7, usage.getCompileNanos());
+        assertEquals(1, usage.getCompileCount());
+        assertEquals(6, usage.getUpcallCount(Upcall.GET_STORAGE));
+        assertEquals(6, usage.getTotalUpcallCount());
+    }
+
+    @Test
+    public void testReportIsOrderedByMeasure() {
+        ContractUsageTracker tracker = newTracker();
+        AionAddress heavy = randomAddress();
+        AionAddress busy = randomAddress();
+        long[] upcalls = new long[Upcall.values().length];
+
+        tracker.add(heavy, null, 1_000, 10, 10, 0, 0, upcalls);
+        for (int i = 0; i < 5; i++) {
+            tracker.add(busy, null, 10, 10, 10, 0, 0, upcalls);
+        }
+
+        assertEquals(heavy, tracker.top(10, Measure.ENERGY_USED).get(0).getContractAddress());
+        assertEquals(busy, tracker.top(10, Measure.EXECUTIONS).get(0).getContractAddress());
+        assertEquals(1, tracker.top(1, Measure.EXECUTIONS).size());
+        assertTrue(tracker.top(0, Measure.EXECUTIONS).isEmpty());
+    }
+
+    @Test
+    public void testWindowRollsForwardBySlice() {
+        ContractUsageTracker tracker = newTracker();
+        AionAddress contract = randomAddress();
+        long[] upcalls = new long[Upcall.values().length];
+
+        tracker.add(contract, null, 1, 1, 1, 0, 0, upcalls);
+        now.set(350);
+        tracker.add(contract, null, 1, 1, 1, 0, 0, upcalls);
+        assertEquals(2, tracker.top(1, Measure.EXECUTIONS).get(0).getExecutionCount());
+
+        // The window is 4 slices of 100 ns: the slice at 0 falls out at 400.
+        now.set(400);
+        assertEquals(1, tracker.top(1, Measure.EXECUTIONS).get(0).getExecutionCount());
+
+        now.set(800);
+        assertTrue(tracker.top(1, Measure.EXECUTIONS).isEmpty());
+
+        tracker.add(contract, null, 1, 1, 1, 0, 0, upcalls);
+        assertEquals(1, tracker.top(1, Measure.EXECUTIONS).get(0).getExecutionCount());
+    }
+
+    @Test
+    public void testReset() {
+        ContractUsageTracker tracker = newTracker();
+        tracker.add(randomAddress(), null, 1, 1, 1, 0, 0, new long[Upcall.values().length]);
+        tracker.reset();
+        assertTrue(tracker.top(1, Measure.EXECUTIONS).isEmpty());
+    }
+
+    @Test
+    public void testNestedFramesAreAccountedSeparately() {
+        ContractAccounting.enable();
+        AionAddress outer = randomAddress();
+        AionAddress inner = randomAddress();
+        byte[] outerHash = RandomUtils.nextBytes(32);
+        byte[] innerHash = RandomUtils.nextBytes(32);
+
+        ExecutionContext outerContext = newContext(outer, 0);
+        ContractAccounting.Frame outerFrame = ContractAccounting.beginFrame(outerContext);
+        assertTrue(outerFrame.isOutermost());
+        ContractAccounting.addUpcall(Upcall.GET_STORAGE);
+
+        ExecutionContext innerContext = newContext(inner, 1);
+        ContractAccounting.Frame innerFrame = ContractAccounting.beginFrame(innerContext);
+        assertFalse(innerFrame.isOutermost());
+        ContractAccounting.addUpcall(Upcall.PUT_STORAGE);
+        ContractAccounting.addUpcall(Upcall.PUT_STORAGE);
+
+        // The inner frame drains the record of the outer frame along with its own.
+        byte[] records = compileRecords(outerHash, 0, false, 100, innerHash, 1, true, 5);
+        innerFrame.end(innerContext, new FastVmTransactionResult(FastVmResultCode.SUCCESS, 400_000), records);
+        ContractAccounting.addUpcall(Upcall.CALL);
+        outerFrame.end(outerContext, new FastVmTransactionResult(FastVmResultCode.SUCCESS, 300_000), new byte[0]);
+
+        List<ContractUsage> report = ContractAccounting.top(10, Measure.ENERGY_USED);
+        assertEquals(2, report.size());
+
+        ContractUsage outerUsage = report.get(0);
+        assertEquals(outer, outerUsage.getContractAddress());
+        assertArrayEquals(outerHash, outerUsage.getCodeHash());
+        assertEquals(200_000, outerUsage.getEnergyUsed());
+        assertEquals(100, outerUsage.getCompileNanos());
+        assertEquals(1, outerUsage.getCompileCount());
+        assertEquals(1, outerUsage.getUpcallCount(Upcall.GET_STORAGE));
+        assertEquals(1, outerUsage.getUpcallCount(Upcall.CALL));
+        assertEquals(0, outerUsage.getUpcallCount(Upcall.PUT_STORAGE));
+        assertTrue(outerUsage.getSelfNanos() <= outerUsage.getWallNanos() - report.get(1).getWallNanos());
+
+        ContractUsage innerUsage = report.get(1);
+        assertEquals(inner, innerUsage.getContractAddress());
+        assertArrayEquals(innerHash, innerUsage.getCodeHash());
+        assertEquals(100_000, innerUsage.getEnergyUsed());
+        assertEquals(5, innerUsage.getCompileNanos());
+        assertEquals(0, innerUsage.getCompileCount());
+        assertEquals(2, innerUsage.getUpcallCount(Upcall.PUT_STORAGE));
+    }
+
+    @Test
+    public void testNothingIsAccountedWhileDisabled() {
+        assertFalse(ContractAccounting.isEnabled());
+        assertNull(ContractAccounting.beginFrame(newContext(randomAddress(), 0)));
+        ContractAccounting.addUpcall(Upcall.GET_CODE);
+        assertTrue(ContractAccounting.top(10, Measure.UPCALLS).isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeLimit() {
+        newTracker().top(-1, Measure.EXECUTIONS);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooShortWindow() {
+        new ContractUsageTracker(3, 4, now::get);
+    }
+
+    private ContractUsageTracker newTracker() {
+        return new ContractUsageTracker(400, 4, now::get);
+    }
+
+    private static byte[] compileRecords(byte[] firstHash, int firstDepth, boolean firstHit, long firstNanos, byte[] secondHash, int secondDepth, boolean secondHit, long secondNanos) {
+        ByteBuffer buffer = ByteBuffer.allocate(2 * CompileRecord.SIZE);
+        buffer.put(firstHash).putInt(firstDepth).putInt(firstHit ? 1 : 0).putLong(firstNanos).putLong(10);
+        buffer.put(secondHash).putInt(secondDepth).putInt(secondHit ? 1 : 0).putLong(secondNanos).putLong(10);
+        return buffer.array();
+    }
+
+    private static ExecutionContext newContext(AionAddress destination, int depth) {
+        return ExecutionContext.from(new byte[32], destination, randomAddress(), randomAddress(), 1L, 500_000L, BigInteger.ZERO, new byte[0], depth, TransactionKind.CALL, 0, randomAddress(), 0L, 0L, 15_000_000L, FvmDataWord.fromLong(0L));
+    }
+
+    private static AionAddress randomAddress() {
+        byte[] bytes = RandomUtils.nextBytes(AionAddress.LENGTH);
+        bytes[0] = (byte) 0xa0;
+        return new AionAddress(bytes);
+    }
+}
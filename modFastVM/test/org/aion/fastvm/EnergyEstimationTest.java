@@ -0,0 +1,143 @@
+package org.aion.fastvm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+import org.aion.ExternalCapabilitiesForTesting;
+import org.aion.ExternalStateForTesting;
+import org.aion.fastvm.util.TransactionUtil;
+import org.aion.repository.BlockchainForTesting;
+import org.aion.repository.RepositoryForTesting;
+import org.aion.types.AionAddress;
+import org.aion.types.Transaction;
+import org.apache.commons.lang3.RandomUtils;
+import org.junit.Test;
+
+/** Tests {@link FastVirtualMachine#estimateEnergy}. */
+public class EnergyEstimationTest {
+    private static final long MAX_ENERGY_LIMIT = 2_000_000L;
+
+    @Test
+    public void testEstimateIncludesNestedReserve() {
+        ExternalStateForTesting state = newState();
+        Transaction call = newCall(state);
+        // 63,000 used by a frame at depth 1 means its caller must have 64,000 left at the call.
+        NestingVm fvm = new NestingVm(100_000, 63_000, 1, 1_000);
+
+        EnergyEstimate estimate = FastVirtualMachine.estimateEnergy(fvm, state, new ExternalCapabilitiesForTesting(), call, true, MAX_ENERGY_LIMIT);
+
+        assertTrue(estimate.isSuccess());
+        assertEquals(TransactionUtil.computeTransactionCost(call) + 101_000, estimate.energyLimit);
+        assertEquals(2, estimate.runs);
+        assertEquals(2, fvm.runs);
+    }
+
+    @Test
+    public void testEstimateIncludesCodeDepositReserve() {
+        EnergyPeakRecorder recorder = new EnergyPeakRecorder();
+        recorder.recordFrame(2, 100_000, 100_000 - 62_000, true);
+        // 63,000 needed at depth 2: 64,000 at depth 1, then 65,016 at the top.
+        assertEquals(2_016, recorder.reserve());
+        assertEquals(2, recorder.maxDepth());
+    }
+
+    @Test
+    public void testUnderestimateFallsBackWithinTwoConfirmations() {
+        ExternalStateForTesting state = newState();
+        Transaction call = newCall(state);
+        // The vm needs 50,000 more than it reports, which no recorded frame accounts for.
+        NestingVm fvm = new NestingVm(100_000, 0, 0, 50_000);
+
+        EnergyEstimate estimate = FastVirtualMachine.estimateEnergy(fvm, state, new ExternalCapabilitiesForTesting(), call, true, MAX_ENERGY_LIMIT);
+
+        assertTrue(estimate.isSuccess());
+        assertEquals(2 * (TransactionUtil.computeTransactionCost(call) + 100_000), estimate.energyLimit);
+        assertEquals(3, fvm.runs);
+    }
+
+    @Test
+    public void testFailingTransactionIsNotConfirmed() {
+        ExternalStateForTesting state = newState();
+        Transaction call = newCall(state);
+        NestingVm fvm = new NestingVm(MAX_ENERGY_LIMIT * 2, 0, 0, 0);
+
+        EnergyEstimate estimate = FastVirtualMachine.estimateEnergy(fvm, state, new ExternalCapabilitiesForTesting(), call, true, MAX_ENERGY_LIMIT);
+
+        assertFalse(estimate.isSuccess());
+        assertEquals(FastVmResultCode.OUT_OF_NRG, estimate.resultCode);
+        assertEquals(1, fvm.runs);
+    }
+
+    @Test
+    public void testSnapshotIsNotModified() {
+        ExternalStateForTesting state = newState();
+        Transaction call = newCall(state);
+        AionAddress written = randomAddress();
+        NestingVm fvm = new NestingVm(1_000, 0, 0, 0) {
+            @Override
+            public FastVmTransactionResult runPost040Fork(byte[] code, ExecutionContext context, IExternalStateForFvm state) {
+                state.addBalance(written, BigInteger.TEN);
+                return super.runPost040Fork(code, context, state);
+            }
+        };
+
+        FastVirtualMachine.estimateEnergy(fvm, state, new ExternalCapabilitiesForTesting(), call, true, MAX_ENERGY_LIMIT);
+        assertEquals(BigInteger.ZERO, state.getBalance(written));
+    }
+
+    /**
+     * A vm that uses a fixed amount of energy, reports one nested frame, and fails unless it has
+     * some energy beyond what it uses.
+     */
+    private static class NestingVm implements IFastVm {
+        private final long used;
+        private final long nestedUsed;
+        private final int nestedDepth;
+        private final long needed;
+        int runs = 0;
+
+        NestingVm(long used, long nestedUsed, int nestedDepth, long needed) {
+            this.used = used;
+            this.nestedUsed = nestedUsed;
+            this.nestedDepth = nestedDepth;
+            this.needed = needed;
+        }
+
+        @Override
+        public FastVmTransactionResult runPre040Fork(byte[] code, ExecutionContext context, IExternalStateForFvm state) {
+            return runPost040Fork(code, context, state);
+        }
+
+        @Override
+        public FastVmTransactionResult runPost040Fork(byte[] code, ExecutionContext context, IExternalStateForFvm state) {
+            this.runs++;
+            long energy = context.getTransactionEnergy();
+            if (energy < this.used + this.needed) {
+                return new FastVmTransactionResult(FastVmResultCode.OUT_OF_NRG, 0);
+            }
+            EnergyPeakRecorder recorder = EnergyPeakRecorder.current();
+            if (recorder != null && this.nestedDepth > 0) {
+                recorder.recordFrame(this.nestedDepth, energy, energy - this.nestedUsed, false);
+            }
+            return new FastVmTransactionResult(FastVmResultCode.SUCCESS, energy - this.used);
+        }
+    }
+
+    private static Transaction newCall(ExternalStateForTesting state) {
+        AionAddress contract = randomAddress();
+        state.putCode(contract, RandomUtils.nextBytes(10));
+        return Transaction.contractCallTransaction(randomAddress(), contract, new byte[32], BigInteger.ZERO, BigInteger.ZERO, RandomUtils.nextBytes(36), 0L, 1L);
+    }
+
+    private static ExternalStateForTesting newState() {
+        return new ExternalStateForTesting(RepositoryForTesting.newRepository(), new BlockchainForTesting(), randomAddress(), FvmDataWord.fromLong(0), true, false, true, 1L, 0L, 15_000_000L);
+    }
+
+    private static AionAddress randomAddress() {
+        byte[] bytes = RandomUtils.nextBytes(AionAddress.LENGTH);
+        bytes[0] = (byte) 0xa0;
+        return new AionAddress(bytes);
+    }
+}
@@ -0,0 +1,176 @@
+package org.aion.fastvm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.aion.ExternalCapabilitiesForTesting;
+import org.aion.ExternalStateForTesting;
+import org.aion.repository.BlockchainForTesting;
+import org.aion.repository.RepositoryForTesting;
+import org.aion.types.AionAddress;
+import org.aion.types.Transaction;
+import org.apache.commons.lang3.RandomUtils;
+import org.junit.Test;
+
+/** Tests {@link ExecutionDeadline} and queries bound by one. */
+public class ExecutionDeadlineTest {
+    private static final long ENERGY_LIMIT = 2_000_000L;
+
+    @Test
+    public void testCancelSetsTheNativeFlag() {
+        ExecutionDeadline deadline = ExecutionDeadline.cancellable();
+        assertFalse(deadline.isCancelled());
+        assertEquals(0, deadline.flag().get(0));
+
+        deadline.cancel();
+        assertTrue(deadline.isCancelled());
+        assertEquals(1, deadline.flag().get(0));
+    }
+
+    @Test
+    public void testInstalledDeadlineIsCancelledByItsTimer() throws InterruptedException {
+        ExecutionDeadline deadline = ExecutionDeadline.after(20, TimeUnit.MILLISECONDS);
+        deadline.install();
+        try {
+            assertSame(deadline, ExecutionDeadline.current());
+            long giveUp = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            // Only the timer may set the flag, isCancelled() is not called while waiting.
+            while (deadline.flag().get(0) == 0 && System.nanoTime() < giveUp) {
+                Thread.sleep(5);
+            }
+            assertEquals(1, deadline.flag().get(0));
+        } finally {
+            deadline.uninstall();
+        }
+        assertNull(ExecutionDeadline.current());
+    }
+
+    @Test
+    public void testSharedDeadlineStaysArmedUntilTheLastThreadUninstallsIt() throws Exception {
+        ExecutionDeadline deadline = ExecutionDeadline.after(50, TimeUnit.MILLISECONDS);
+        CountDownLatch installed = new CountDownLatch(1);
+        CountDownLatch uninstalled = new CountDownLatch(1);
+        Thread other = new Thread(() -> {
+            deadline.install();
+            installed.countDown();
+            try {
+                uninstalled.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            } finally {
+                deadline.uninstall();
+            }
+        });
+        other.start();
+        assertTrue(installed.await(10, TimeUnit.SECONDS));
+
+        // This thread finishes first, while the other one still runs under the deadline.
+        deadline.install();
+        deadline.uninstall();
+        try {
+            long giveUp = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (deadline.flag().get(0) == 0 && System.nanoTime() < giveUp) {
+                Thread.sleep(5);
+            }
+            assertEquals(1, deadline.flag().get(0));
+        } finally {
+            uninstalled.countDown();
+            other.join();
+        }
+    }
+
+    @Test
+    public void testQueryPastItsDeadlineIsNotRun() {
+        ExternalStateForTesting state = newState();
+        AionAddress contract = randomAddress();
+        state.putCode(contract, RandomUtils.nextBytes(10));
+        WaitingVm fvm = new WaitingVm();
+
+        ExecutionDeadline deadline = ExecutionDeadline.after(0, TimeUnit.NANOSECONDS);
+        FvmWrappedTransactionResult result = FastVirtualMachine.runQuery(fvm, state, new ExternalCapabilitiesForTesting(), newCall(contract), true, null, deadline);
+
+        assertEquals(FastVmResultCode.DEADLINE_EXCEEDED.toString(), result.result.transactionStatus.causeOfError);
+        assertEquals(ENERGY_LIMIT, result.result.energyUsed);
+        assertEquals(0, fvm.runs);
+    }
+
+    @Test
+    public void testQueryAbortedByItsDeadlineIsNotCached() {
+        ExternalStateForTesting state = newState();
+        AionAddress contract = randomAddress();
+        state.putCode(contract, RandomUtils.nextBytes(10));
+        Transaction call = newCall(contract);
+        QueryResultCache cache = new QueryResultCache(16, 4);
+        WaitingVm fvm = new WaitingVm();
+
+        ExecutionDeadline deadline = ExecutionDeadline.after(20, TimeUnit.MILLISECONDS);
+        FvmWrappedTransactionResult result = FastVirtualMachine.runQuery(fvm, new RootedState(state), new ExternalCapabilitiesForTesting(), call, true, cache, deadline);
+
+        assertEquals(FastVmResultCode.DEADLINE_EXCEEDED.toString(), result.result.transactionStatus.causeOfError);
+        assertEquals(FvmConstants.FLAG_STATIC | FvmConstants.FLAG_DEADLINE, fvm.flags);
+        assertSame(deadline, fvm.installed);
+        assertNull(ExecutionDeadline.current());
+        assertEquals(0, cache.size());
+    }
+
+    /** A vm that spins until the installed deadline's flag is set, like the compiled code does. */
+    private static class WaitingVm implements IFastVm {
+        int runs = 0;
+        int flags = -1;
+        ExecutionDeadline installed = null;
+
+        @Override
+        public FastVmTransactionResult runPre040Fork(byte[] code, ExecutionContext context, IExternalStateForFvm state) {
+            return runPost040Fork(code, context, state);
+        }
+
+        @Override
+        public FastVmTransactionResult runPost040Fork(byte[] code, ExecutionContext context, IExternalStateForFvm state) {
+            this.runs++;
+            this.flags = context.getFlags();
+            this.installed = ExecutionDeadline.current();
+            long giveUp = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (this.installed.flag().get(0) == 0 && System.nanoTime() < giveUp) {
+                Thread.onSpinWait();
+            }
+            return new FastVmTransactionResult(FastVmResultCode.OUT_OF_NRG, 0);
+        }
+    }
+
+    /** A state with a state root, so that its query results can be cached. */
+    private static class RootedState extends ForwardingExternalState {
+        RootedState(IExternalStateForFvm delegate) {
+            super(delegate);
+        }
+
+        @Override
+        public byte[] getStateRoot() {
+            return new byte[32];
+        }
+
+        @Override
+        public IExternalStateForFvm newChildExternalState() {
+            return new RootedState(this.delegate.newChildExternalState());
+        }
+    }
+
+    private static Transaction newCall(AionAddress contract) {
+        return Transaction.contractCallTransaction(randomAddress(), contract, new byte[32], BigInteger.ZERO, BigInteger.ZERO, RandomUtils.nextBytes(36), ENERGY_LIMIT, 1L);
+    }
+
+    private static ExternalStateForTesting newState() {
+        return new ExternalStateForTesting(RepositoryForTesting.newRepository(), new BlockchainForTesting(), randomAddress(), FvmDataWord.fromLong(0), true, false, true, 1L, 0L, 15_000_000L);
+    }
+
+    private static AionAddress randomAddress() {
+        byte[] bytes = RandomUtils.nextBytes(AionAddress.LENGTH);
+        bytes[0] = (byte) 0xa0;
+        return new AionAddress(bytes);
+    }
+}
@@ -0,0 +1,154 @@
+package org.aion.fastvm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.aion.fastvm.ExecutionScheduler.Lane;
+import org.aion.fastvm.ExecutionScheduler.LaneConfiguration;
+import org.junit.After;
+import org.junit.Test;
+
+/** Tests the lanes of the {@link ExecutionScheduler}. */
+public class ExecutionSchedulerTest {
+    private ExecutionScheduler scheduler;
+
+    @After
+    public void tearDown() {
+        if (scheduler != null) {
+            scheduler.close();
+        }
+    }
+
+    @Test
+    public void testFullLaneRejectsTask() throws Exception {
+        scheduler = newScheduler(10, TimeUnit.MILLISECONDS);
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        Future<Integer> first = scheduler.trySubmit(Lane.RPC, () -> {
+            running.countDown();
+            release.await();
+            return 1;
+        });
+        assertTrue(running.await(10, TimeUnit.SECONDS));
+        Future<Integer> second = scheduler.trySubmit(Lane.RPC, () -> 2);
+        assertEquals(1, scheduler.getQueueDepth(Lane.RPC));
+
+        try {
+            scheduler.trySubmit(Lane.RPC, () -> 3);
+            fail("The lane should have been full.");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+        assertEquals(1, scheduler.getRejectedCount(Lane.RPC));
+
+        release.countDown();
+        assertEquals(1, (int) first.get(10, TimeUnit.SECONDS));
+        assertEquals(2, (int) second.get(10, TimeUnit.SECONDS));
+        waitForCompletions(Lane.RPC, 2);
+        assertEquals(0, scheduler.getQueueDepth(Lane.RPC));
+        assertTrue(scheduler.getMaxWaitNanos(Lane.RPC) >= scheduler.getMeanWaitNanos(Lane.RPC));
+    }
+
+    @Test
+    public void testImportRunsBeforeQueries() throws Exception {
+        scheduler = newScheduler(1, TimeUnit.MINUTES);
+        CountDownLatch importRunning = new CountDownLatch(1);
+        CountDownLatch releaseImport = new CountDownLatch(1);
+
+        Future<?> blockImport = scheduler.submit(Lane.IMPORT, () -> {
+            importRunning.countDown();
+            releaseImport.await();
+            return null;
+        });
+        assertTrue(importRunning.await(10, TimeUnit.SECONDS));
+
+        Future<?> query = scheduler.trySubmit(Lane.RPC, () -> null);
+        Thread.sleep(100);
+        assertFalse(query.isDone());
+
+        releaseImport.countDown();
+        blockImport.get(10, TimeUnit.SECONDS);
+        query.get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testQueriesAreNotStarvedByImport() throws Exception {
+        scheduler = newScheduler(20, TimeUnit.MILLISECONDS);
+        CountDownLatch importRunning = new CountDownLatch(1);
+        CountDownLatch releaseImport = new CountDownLatch(1);
+
+        scheduler.submit(Lane.IMPORT, () -> {
+            importRunning.countDown();
+            releaseImport.await();
+            return null;
+        });
+        assertTrue(importRunning.await(10, TimeUnit.SECONDS));
+
+        try {
+            assertEquals(7, (int) scheduler.trySubmit(Lane.RPC, () -> 7).get(10, TimeUnit.SECONDS));
+            assertTrue(scheduler.getMaxWaitNanos(Lane.RPC) >= TimeUnit.MILLISECONDS.toNanos(20));
+        } finally {
+            releaseImport.countDown();
+        }
+    }
+
+    @Test
+    public void testCloseCancelsDeferredTask() throws Exception {
+        scheduler = newScheduler(1, TimeUnit.MINUTES);
+        CountDownLatch importRunning = new CountDownLatch(1);
+
+        scheduler.submit(Lane.IMPORT, () -> {
+            importRunning.countDown();
+            new CountDownLatch(1).await();
+            return null;
+        });
+        assertTrue(importRunning.await(10, TimeUnit.SECONDS));
+
+        // The query is dequeued, then deferred behind the import.
+        Future<?> query = scheduler.trySubmit(Lane.RPC, () -> null);
+        long giveUp = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (scheduler.getQueueDepth(Lane.RPC) > 0 && System.nanoTime() < giveUp) {
+            Thread.sleep(1);
+        }
+        assertEquals(0, scheduler.getQueueDepth(Lane.RPC));
+
+        scheduler.close();
+        giveUp = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!query.isDone() && System.nanoTime() < giveUp) {
+            Thread.sleep(1);
+        }
+        assertTrue(query.isCancelled());
+    }
+
+    @Test(expected = RejectedExecutionException.class)
+    public void testClosedSchedulerRejectsTasks() {
+        scheduler = newScheduler(10, TimeUnit.MILLISECONDS);
+        scheduler.close();
+        scheduler.trySubmit(Lane.MEMPOOL, () -> null);
+    }
+
+    private void waitForCompletions(Lane lane, long count) throws InterruptedException {
+        long giveUp = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (scheduler.getCompletedCount(lane) < count && System.nanoTime() < giveUp) {
+            Thread.sleep(1);
+        }
+        assertEquals(count, scheduler.getCompletedCount(lane));
+    }
+
+    private static ExecutionScheduler newScheduler(long maxDeferral, TimeUnit unit) {
+        Map<Lane, LaneConfiguration> configurations = new EnumMap<>(Lane.class);
+        configurations.put(Lane.IMPORT, new LaneConfiguration(1, 4, 2));
+        configurations.put(Lane.MEMPOOL, new LaneConfiguration(1, 4, 1));
+        configurations.put(Lane.RPC, new LaneConfiguration(1, 1, 0));
+        return new ExecutionScheduler(configurations, maxDeferral, unit);
+    }
+}
@@ -0,0 +1,259 @@
+package org.aion.fastvm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import org.aion.ExternalCapabilitiesForTesting;
+import org.aion.ExternalStateForTesting;
+import org.aion.repository.BlockchainForTesting;
+import org.aion.repository.EnergyLimitRuleForTesting;
+import org.aion.repository.RepositoryForTesting;
+import org.aion.fastvm.util.HexUtil;
+import org.aion.types.AionAddress;
+import org.aion.types.Transaction;
+import org.apache.commons.lang3.RandomUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Unit tests for the {@link ExternalStateRecorder} and {@link ExternalStateReplay} classes. */
+public class ExternalStateReplayTest {
+    private ExternalStateRecorder recorder;
+    private AionAddress address;
+    private FvmDataWord key;
+
+    @Before
+    public void setup() {
+        recorder = new ExternalStateRecorder();
+        address = randomAddress();
+        key = FvmDataWord.fromLong(1);
+    }
+
+    @Test
+    public void testReadsAreReplayed() {
+        IExternalStateForFvm state = recorder.record(newState());
+        state.addBalance(address, BigInteger.TEN);
+        state.addStorageValue(address, key, FvmDataWord.fromLong(7));
+        state.putCode(address, new byte[] { 0x60, 0x00 });
+        IExternalStateForFvm child = state.newChildExternalState();
+        child.incrementNonce(address);
+        child.commit();
+
+        List<Object> recorded = readEverything(state);
+
+        IExternalStateForFvm replay = ExternalStateReplay.fromBytes(recorder.toByteArray()).newExternalState();
+        replay.addBalance(address, BigInteger.TEN);
+        replay.addStorageValue(address, key, FvmDataWord.fromLong(7));
+        replay.putCode(address, new byte[] { 0x60, 0x00 });
+        IExternalStateForFvm replayChild = replay.newChildExternalState();
+        replayChild.incrementNonce(address);
+        replayChild.commit();
+
+        List<Object> replayed = readEverything(replay);
+        assertEquals(recorded.size(), replayed.size());
+        for (int i = 0; i < recorded.size(); i++) {
+            if (recorded.get(i) instanceof byte[]) {
+                assertArrayEquals((byte[]) recorded.get(i), (byte[]) replayed.get(i));
+            } else {
+                assertEquals(recorded.get(i), replayed.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testMissingValuesAreReplayedAsNull() {
+        IExternalStateForFvm state = recorder.record(newState());
+        assertNull(state.getCode(address));
+        assertNull(state.getBlockHashByNumber(100));
+
+        IExternalStateForFvm replay = ExternalStateReplay.fromBytes(recorder.toByteArray()).newExternalState();
+        assertNull(replay.getCode(address));
+        assertNull(replay.getBlockHashByNumber(100));
+    }
+
+    @Test
+    public void testBatchedStorageReadsAreReplayed() {
+        IExternalStateForFvm state = recorder.record(newState());
+        state.addStorageValue(address, key, FvmDataWord.fromLong(3));
+        List<FvmDataWord> keys = Arrays.asList(key, FvmDataWord.fromLong(2));
+        List<FvmDataWord> values = state.getStorageValues(address, keys);
+
+        IExternalStateForFvm replay = ExternalStateReplay.fromBytes(recorder.toByteArray()).newExternalState();
+        replay.addStorageValue(address, key, FvmDataWord.fromLong(3));
+        assertEquals(values, replay.getStorageValues(address, keys));
+        assertEquals(FvmDataWord.fromLong(3), values.get(0));
+    }
+
+    @Test
+    public void testRejectedTransactionIsReplayed() {
+        AionAddress sender = randomAddress();
+        Transaction transaction = Transaction.contractCallTransaction(sender, randomAddress(), new byte[32], BigInteger.ZERO, BigInteger.ONE, new byte[0], EnergyLimitRuleForTesting.MIN_NON_CREATE_ENERGY_LIMIT, 1L);
+        IExternalCapabilities capabilities = new ExternalCapabilitiesForTesting();
+
+        FvmWrappedTransactionResult recorded = FastVirtualMachine.run(recorder.record(newState()), capabilities, transaction, false);
+
+        ExternalStateReplay replay = ExternalStateReplay.fromBytes(recorder.toByteArray());
+        FvmWrappedTransactionResult replayed = FastVirtualMachine.run(replay.newExternalState(), capabilities, transaction, false);
+        assertEquals(recorded.result, replayed.result);
+        assertFalse(replayed.result.transactionStatus.isSuccess());
+        assertTrue(replay.isFinished());
+    }
+
+    @Test
+    public void testTransactionsAreReplayedInSequence() {
+        recorder.record(newState()).getBalance(address);
+        recorder.record(newState()).getNonce(address);
+
+        ExternalStateReplay replay = ExternalStateReplay.fromBytes(recorder.toByteArray());
+        assertEquals(BigInteger.ZERO, replay.newExternalState().getBalance(address));
+        assertFalse(replay.isFinished());
+        assertEquals(BigInteger.ZERO, replay.newExternalState().getNonce(address));
+        assertTrue(replay.isFinished());
+    }
+
+    @Test
+    public void testReplayFromMappedFile() throws Exception {
+        IExternalStateForFvm state = recorder.record(newState());
+        state.addBalance(address, BigInteger.valueOf(5));
+        state.getBalance(address);
+
+        Path file = Files.createTempFile("state", ".trace");
+        try {
+            recorder.writeTo(file);
+            IExternalStateForFvm replay = ExternalStateReplay.fromFile(file).newExternalState();
+            replay.addBalance(address, BigInteger.valueOf(5));
+            assertEquals(BigInteger.valueOf(5), replay.getBalance(address));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testRepeatedAddressesAreRecordedOnce() {
+        IExternalStateForFvm state = recorder.record(newState());
+        state.hasAccountState(address);
+        int first = recorder.size();
+        state.hasAccountState(address);
+        int second = recorder.size() - first;
+
+        assertTrue(second < AionAddress.LENGTH);
+    }
+
+    @Test
+    public void testRecordingBypassesFilterAndStateRoot() {
+        IExternalStateForFvm state = recorder.record(newState());
+        assertNull(state.getAccountExistenceFilter());
+        assertNull(state.getStateRoot());
+    }
+
+    @Test
+    public void testRecordingAndReplayBypassBlockHashCache() {
+        assertTrue(newState().isBlockHashCacheEnabled());
+        assertFalse(recorder.record(newState()).isBlockHashCacheEnabled());
+        assertFalse(ExternalStateReplay.fromBytes(recorder.toByteArray()).newExternalState().isBlockHashCacheEnabled());
+    }
+
+    @Test
+    public void testReplayOnAnotherThread() throws Exception {
+        // BLOCKHASH(8) twice, returned as 64 bytes
+        byte[] code = HexUtil.decode("60084060005260105260084060205260305260406000F3");
+        BlockchainForTesting blockchain = new BlockchainForTesting();
+        for (long number = 0; number < 12; number++) {
+            blockchain.registerBlockHash(number, RandomUtils.nextBytes(32));
+        }
+
+        // Warm up the block hashes cached for this thread before recording.
+        FastVM vm = new FastVM();
+        vm.runPost040Fork(code, newContext(), newState(blockchain));
+        FastVmTransactionResult recorded = vm.runPost040Fork(code, newContext(), recorder.record(newState(blockchain)));
+        assertEquals(FastVmResultCode.SUCCESS, recorded.getResultCode());
+
+        ExternalStateReplay replay = ExternalStateReplay.fromBytes(recorder.toByteArray());
+        FastVmTransactionResult[] replayed = new FastVmTransactionResult[1];
+        Thread thread = new Thread(() -> replayed[0] = vm.runPost040Fork(code, newContext(), replay.newExternalState()));
+        thread.start();
+        thread.join();
+
+        assertEquals(FastVmResultCode.SUCCESS, replayed[0].getResultCode());
+        assertArrayEquals(recorded.getReturnData(), replayed[0].getReturnData());
+        assertTrue(replay.isFinished());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testDifferentCallDiverges() {
+        recorder.record(newState()).getBalance(address);
+        ExternalStateReplay.fromBytes(recorder.toByteArray()).newExternalState().getNonce(address);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testDifferentWriteDiverges() {
+        recorder.record(newState()).addStorageValue(address, key, FvmDataWord.fromLong(1));
+        ExternalStateReplay.fromBytes(recorder.toByteArray()).newExternalState().addStorageValue(address, key, FvmDataWord.fromLong(2));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testCallPastTheEndDiverges() {
+        ExternalStateReplay.fromBytes(recorder.toByteArray()).newExternalState().commit();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testReplayOfNonTrace() {
+        ExternalStateReplay.fromBytes(new byte[] { 1, 2, 3, 4, 5 });
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testRecordNullState() {
+        recorder.record(null);
+    }
+
+    private List<Object> readEverything(IExternalStateForFvm state) {
+        return Arrays.asList(
+            state.getBalance(address),
+            state.getNonce(address),
+            state.getStorageValue(address, key),
+            state.getCode(address),
+            state.hasStorage(address),
+            state.hasAccountState(address),
+            state.destinationAddressIsSafeForFvm(address),
+            state.isPrecompiledContract(address),
+            state.accountNonceEquals(address, BigInteger.ONE),
+            state.accountBalanceIsAtLeast(address, BigInteger.TEN),
+            state.isValidEnergyLimitForNonCreate(50_000, new byte[4]),
+            state.getMinerAddress(),
+            state.getBlockNumber(),
+            state.getBlockTimestamp(),
+            state.getBlockEnergyLimit(),
+            state.getBlockDifficulty(),
+            state.isFork040enabled(),
+            state.isLocalCall(),
+            state.allowNonceIncrement(),
+            state.isForkSignatureSwapEnabled(),
+            state.getSideEffectsRecordingLevel());
+    }
+
+    private static ExternalStateForTesting newState() {
+        return newState(new BlockchainForTesting());
+    }
+
+    private static ExternalStateForTesting newState(BlockchainForTesting blockchain) {
+        return new ExternalStateForTesting(RepositoryForTesting.newRepository(), blockchain, new AionAddress(new byte[AionAddress.LENGTH]), FvmDataWord.fromLong(9), false, true, false, 12L, 34L, 15_000_000L);
+    }
+
+    private static ExecutionContext newContext() {
+        AionAddress sender = randomAddress();
+        return ExecutionContext.from(RandomUtils.nextBytes(32), randomAddress(), sender, sender, 1L, 100_000L, BigInteger.ZERO, new byte[0], 0, TransactionKind.CALL, 0, new AionAddress(new byte[AionAddress.LENGTH]), 12L, 34L, 15_000_000L, FvmDataWord.fromLong(9));
+    }
+
+    private static AionAddress randomAddress() {
+        byte[] bytes = RandomUtils.nextBytes(AionAddress.LENGTH);
+        bytes[0] = (byte) 0xa0;
+        return new AionAddress(bytes);
+    }
+}
@@ -1,11 +1,13 @@
 package org.aion.fastvm;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
 import java.math.BigInteger;
+import java.util.Arrays;
 import org.aion.ExternalCapabilitiesForTesting;
 import org.aion.repository.RepositoryForTesting;
 import org.aion.ExternalStateForTesting;
@@ -854,13 +856,110 @@ public class FastVMTest {
         assertEquals(FastVmResultCode.SUCCESS, result.getResultCode());
     }
 
+    @Test
+    public void testProfiledContractCountsBlocksAndEnergy() {
+        // PUSH1 3; loop: JUMPDEST; PUSH1 1; SWAP1; SUB; DUP1; PUSH1 2; JUMPI; STOP
+        byte[] code = HexUtil.decode("60035B600190038060025700");
+        FastVmProfiler.reset();
+        FastVmProfiler.enable();
+        FastVmTransactionResult result;
+        try {
+            result = new FastVM().runPost040Fork(code, newExecutionContext(), newState(repo));
+        } finally {
+            FastVmProfiler.disable();
+        }
+        assertEquals(FastVmResultCode.SUCCESS, result.getResultCode());
+
+        CodeProfile profile = null;
+        for (CodeProfile candidate : FastVmProfiler.getProfiles()) {
+            if (Arrays.equals(code, candidate.getCode())) {
+                profile = candidate;
+            }
+        }
+        assertNotNull(profile);
+        assertEquals(3, profile.getBlocks().size());
+        assertEquals(0, profile.getBlocks().get(0).getOffset());
+        assertEquals(1, profile.getBlocks().get(0).getExecutionCount());
+        assertEquals(2, profile.getBlocks().get(1).getOffset());
+        assertEquals(3, profile.getBlocks().get(1).getExecutionCount());
+        assertEquals(11, profile.getBlocks().get(2).getOffset());
+        assertEquals(1, profile.getBlocks().get(2).getExecutionCount());
+
+        // PUSH1 once, then JUMPDEST, PUSH1, SWAP1, SUB, DUP1, PUSH1 and JUMPI three times.
+        assertEquals(3, profile.getBlocks().get(0).getEnergyUsed());
+        assertEquals(3 * (1 + 3 + 3 + 3 + 3 + 3 + 10), profile.getBlocks().get(1).getEnergyUsed());
+        assertEquals(nrgLimit - result.getEnergyRemaining(), profile.getEnergyUsed());
+    }
+
+    @Test
+    public void testBlockHashCacheIsDroppedOnReorg() {
+        // BLOCKHASH(8), returned as 32 bytes
+        byte[] code = HexUtil.decode("60084060005260105260206000F3");
+        blockNumber = 10;
+        FastVM vm = new FastVM();
+
+        BlockchainForTesting chain1 = newChain();
+        FastVmTransactionResult result = vm.runPost040Fork(code, newExecutionContext(), newState(repo, chain1));
+        assertEquals(FastVmResultCode.SUCCESS, result.getResultCode());
+        assertArrayEquals(chain1.getBlockHashByNumber(8), result.getReturnData());
+
+        // A sibling block with another context is checked against its parent.
+        BlockchainForTesting chain2 = newChain();
+        blockTimestamp++;
+        result = vm.runPost040Fork(code, newExecutionContext(), newState(repo, chain2));
+        assertEquals(FastVmResultCode.SUCCESS, result.getResultCode());
+        assertArrayEquals(chain2.getBlockHashByNumber(8), result.getReturnData());
+
+        // So is a sibling block with exactly the same context.
+        BlockchainForTesting chain3 = newChain();
+        result = vm.runPost040Fork(code, newExecutionContext(), newState(repo, chain3));
+        assertEquals(FastVmResultCode.SUCCESS, result.getResultCode());
+        assertArrayEquals(chain3.getBlockHashByNumber(8), result.getReturnData());
+    }
+
+    @Test
+    public void testUnknownBlockHashIsNotCached() {
+        // BLOCKHASH(8), returned as 32 bytes
+        byte[] code = HexUtil.decode("60084060005260105260206000F3");
+        blockNumber = 10;
+        FastVM vm = new FastVM();
+
+        // Neither the parent nor block 8 is known yet.
+        BlockchainForTesting chain = new BlockchainForTesting();
+        FastVmTransactionResult result = vm.runPost040Fork(code, newExecutionContext(), newState(repo, chain));
+        assertEquals(FastVmResultCode.SUCCESS, result.getResultCode());
+        assertArrayEquals(new byte[32], result.getReturnData());
+
+        // Block 8 becomes known, but the parent is not, so it is fetched without the cache.
+        chain.registerBlockHash(8, RandomUtils.nextBytes(32));
+        result = vm.runPost040Fork(code, newExecutionContext(), newState(repo, chain));
+        assertArrayEquals(chain.getBlockHashByNumber(8), result.getReturnData());
+
+        // Once the parent is known too, the cache was never filled with zeros.
+        chain.registerBlockHash(9, RandomUtils.nextBytes(32));
+        result = vm.runPost040Fork(code, newExecutionContext(), newState(repo, chain));
+        assertArrayEquals(chain.getBlockHashByNumber(8), result.getReturnData());
+    }
+
     @After
     public void teardown() {}
 
+    private BlockchainForTesting newChain() {
+        BlockchainForTesting chain = new BlockchainForTesting();
+        for (long number = 0; number < blockNumber; number++) {
+            chain.registerBlockHash(number, RandomUtils.nextBytes(32));
+        }
+        return chain;
+    }
+
     private IExternalStateForFvm newState(RepositoryForTesting cache) {
+        return newState(cache, new BlockchainForTesting());
+    }
+
+    private IExternalStateForFvm newState(RepositoryForTesting cache, BlockchainForTesting blockchain) {
         return new ExternalStateForTesting(
             cache,
-            new BlockchainForTesting(),
+            blockchain,
             blockCoinbase,
             blockDifficulty,
             false,
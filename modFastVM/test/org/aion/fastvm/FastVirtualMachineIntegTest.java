@@ -828,6 +828,67 @@ public class FastVirtualMachineIntegTest {
         Assert.assertEquals(BigInteger.ZERO, state.getBalance(destination));
     }
 
+    @Test
+    public void testThrowingStorageReadCommitsNothing() {
+        AionAddress sender = randomAddress();
+        AionAddress contract = randomAddress();
+        BigInteger senderNonce = BigInteger.valueOf(12);
+        long energyLimit = EnergyLimitRuleForTesting.MAX_NON_CREATE_ENERGY_LIMIT;
+        long energyPrice = 4L;
+
+        // SSTORE(1, 1), then SSTORE(3, SLOAD(2 + 0)), whose key is not constant and so is not prefetched
+        byte[] code = HexUtil.decode("600160015560026000015460035500");
+
+        BigInteger senderBalance = BigInteger.valueOf(energyLimit).multiply(BigInteger.valueOf(energyPrice));
+        ExternalStateForTesting state = newState(true);
+        state.setNonce(sender, senderNonce);
+        state.addBalance(sender, senderBalance);
+        state.putCode(contract, code);
+
+        Transaction transaction = Transaction.contractCallTransaction(sender, contract, new byte[32], senderNonce, BigInteger.ZERO, new byte[0], energyLimit, energyPrice);
+
+        try {
+            FastVirtualMachine.run(new ThrowingStorageState(state), new ExternalCapabilitiesForTesting(), transaction, true);
+            Assert.fail("The exception thrown by getStorageValue was swallowed.");
+        } catch (IllegalStateException e) {
+            Assert.assertEquals(ThrowingStorageState.MESSAGE, e.getMessage());
+        }
+        Assert.assertTrue(Callback.stackIsEmpty());
+
+        // Verify that neither the storage write before the read nor the one after it was committed.
+        FvmDataWord zero = FvmDataWord.fromBytes(new byte[FvmDataWord.SIZE]);
+        Assert.assertEquals(zero, state.getStorageValue(contract, FvmDataWord.fromInt(1)));
+        Assert.assertEquals(zero, state.getStorageValue(contract, FvmDataWord.fromInt(3)));
+
+        // Verify that the sender was neither charged nor had its nonce incremented.
+        Assert.assertEquals(senderNonce, state.getNonce(sender));
+        Assert.assertEquals(senderBalance, state.getBalance(sender));
+
+        // The same thread runs the next transaction normally.
+        TransactionResult result = FastVirtualMachine.run(state, new ExternalCapabilitiesForTesting(), transaction, true).result;
+        Assert.assertTrue(result.transactionStatus.isSuccess());
+        Assert.assertEquals(FvmDataWord.fromInt(1), state.getStorageValue(contract, FvmDataWord.fromInt(1)));
+    }
+
+    /** A world state whose storage reads throw, as a failing database would. */
+    private static final class ThrowingStorageState extends ForwardingExternalState {
+        static final String MESSAGE = "storage is unavailable";
+
+        ThrowingStorageState(IExternalStateForFvm delegate) {
+            super(delegate);
+        }
+
+        @Override
+        public FvmDataWord getStorageValue(AionAddress address, FvmDataWord key) {
+            throw new IllegalStateException(MESSAGE);
+        }
+
+        @Override
+        public IExternalStateForFvm newChildExternalState() {
+            return new ThrowingStorageState(this.delegate.newChildExternalState());
+        }
+    }
+
     private static byte[] encodeCallToDefaultPayableContract(DefaultPayableFunction function) {
         switch (function) {
             case NON_PAYABLE: return HexUtil.hexStringToBytes("52da86d5");
@@ -0,0 +1,150 @@
+package org.aion.fastvm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.aion.ExternalCapabilitiesForTesting;
+import org.aion.ExternalStateForTesting;
+import org.aion.repository.BlockchainForTesting;
+import org.aion.repository.RepositoryForTesting;
+import org.aion.types.AionAddress;
+import org.aion.types.Transaction;
+import org.apache.commons.lang3.RandomUtils;
+import org.junit.Test;
+
+/** Tests read-only queries run through {@link FastVirtualMachine#runQuery}. */
+public class FastVirtualMachineQueryTest {
+    private static final long ENERGY_LIMIT = 2_000_000L;
+
+    @Test
+    public void testQueryRunsStaticWithoutChargingSender() {
+        ExternalStateForTesting state = newState();
+        AionAddress sender = randomAddress();
+        AionAddress contract = randomAddress();
+        state.addBalance(sender, BigInteger.TEN);
+        state.putCode(contract, RandomUtils.nextBytes(10));
+        byte[] output = RandomUtils.nextBytes(32);
+
+        QueryVm fvm = new QueryVm(output);
+        FvmWrappedTransactionResult result = FastVirtualMachine.runQuery(fvm, state, new ExternalCapabilitiesForTesting(), newCall(sender, contract), true, null, null);
+
+        assertTrue(result.result.transactionStatus.isSuccess());
+        assertArrayEquals(output, result.result.copyOfTransactionOutput().get());
+        assertEquals(FvmConstants.FLAG_STATIC, fvm.flags);
+        assertEquals(BigInteger.TEN, state.getBalance(sender));
+        assertEquals(BigInteger.ZERO, state.getNonce(sender));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testContractCreationCannotBeQueried() {
+        Transaction create = Transaction.contractCreateTransaction(randomAddress(), new byte[32], BigInteger.ZERO, BigInteger.ZERO, new byte[0], ENERGY_LIMIT, 1L);
+        FastVirtualMachine.runQuery(new QueryVm(new byte[0]), newState(), new ExternalCapabilitiesForTesting(), create, true, null, null);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testReadOnlyStateRejectsWrites() {
+        new ReadOnlyExternalState(newState()).addStorageValue(randomAddress(), FvmDataWord.fromLong(1), FvmDataWord.fromLong(2));
+    }
+
+    @Test
+    public void testReadOnlyStateIgnoresZeroValueTransfers() {
+        ExternalStateForTesting state = newState();
+        AionAddress address = randomAddress();
+        IExternalStateForFvm readOnly = new ReadOnlyExternalState(state);
+
+        readOnly.addBalance(address, BigInteger.ZERO);
+        readOnly.newChildExternalState().commit();
+
+        assertSame(readOnly, readOnly.newChildExternalState());
+        assertEquals(BigInteger.ZERO, state.getBalance(address));
+    }
+
+    @Test
+    public void testConcurrentQueriesRunOneAtATimeWithTheirOwnCapabilities() throws Exception {
+        int threads = 8;
+        ExternalStateForTesting state = newState();
+        AionAddress contract = randomAddress();
+        state.putCode(contract, RandomUtils.nextBytes(10));
+        CountDownLatch allSubmitted = new CountDownLatch(threads);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Boolean>> futures = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                futures.add(executor.submit(() -> {
+                    IExternalCapabilities capabilities = new ExternalCapabilitiesForTesting();
+                    IFastVm fvm = new QueryVm(new byte[0]) {
+                        @Override
+                        public FastVmTransactionResult runPost040Fork(byte[] code, ExecutionContext context, IExternalStateForFvm state) {
+                            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                            try {
+                                Thread.sleep(10);
+                            } catch (InterruptedException e) {
+                                throw new IllegalStateException(e);
+                            }
+                            running.decrementAndGet();
+                            boolean own = CapabilitiesProvider.getExternalCapabilities() == capabilities;
+                            return new FastVmTransactionResult(own ? FastVmResultCode.SUCCESS : FastVmResultCode.FAILURE, 0);
+                        }
+                    };
+                    allSubmitted.countDown();
+                    allSubmitted.await(10, TimeUnit.SECONDS);
+                    return FastVirtualMachine.runQuery(fvm, state, capabilities, newCall(randomAddress(), contract), true, null, null).result.transactionStatus.isSuccess();
+                }));
+            }
+            for (Future<Boolean> future : futures) {
+                assertTrue(future.get(30, TimeUnit.SECONDS));
+            }
+            assertEquals(1, maxRunning.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static class QueryVm implements IFastVm {
+        private final byte[] output;
+        int flags = -1;
+
+        QueryVm(byte[] output) {
+            this.output = output;
+        }
+
+        @Override
+        public FastVmTransactionResult runPre040Fork(byte[] code, ExecutionContext context, IExternalStateForFvm state) {
+            return runPost040Fork(code, context, state);
+        }
+
+        @Override
+        public FastVmTransactionResult runPost040Fork(byte[] code, ExecutionContext context, IExternalStateForFvm state) {
+            this.flags = context.getFlags();
+            return new FastVmTransactionResult(FastVmResultCode.SUCCESS, context.getTransactionEnergy() / 2, this.output);
+        }
+    }
+
+    private static Transaction newCall(AionAddress sender, AionAddress contract) {
+        return Transaction.contractCallTransaction(sender, contract, new byte[32], BigInteger.ZERO, BigInteger.ZERO, RandomUtils.nextBytes(36), ENERGY_LIMIT, 1L);
+    }
+
+    private static ExternalStateForTesting newState() {
+        return new ExternalStateForTesting(RepositoryForTesting.newRepository(), new BlockchainForTesting(), randomAddress(), FvmDataWord.fromLong(0), true, false, true, 1L, 0L, 15_000_000L);
+    }
+
+    private static AionAddress randomAddress() {
+        byte[] bytes = RandomUtils.nextBytes(AionAddress.LENGTH);
+        bytes[0] = (byte) 0xa0;
+        return new AionAddress(bytes);
+    }
+}
@@ -1,6 +1,12 @@
 package org.aion.fastvm;
 
 import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.aion.ExternalStateForTesting;
 import org.aion.ExternalCapabilitiesForTesting;
 import org.aion.FastVmForTesting;
@@ -251,6 +257,78 @@ public class FastVirtualMachineUnitTest {
         Assert.assertEquals(energyLimit, result.getEnergyRemaining());
     }
 
+    @Test
+    public void testPreValidateReturnsVerdictPerTransaction() {
+        AionAddress sender = randomAddress();
+        BigInteger nonce = BigInteger.valueOf(7);
+        long energyLimit = EnergyLimitRuleForTesting.MIN_NON_CREATE_ENERGY_LIMIT;
+        long energyPrice = 10L;
+        ExternalStateForTesting state = newState();
+        state.setNonce(sender, nonce);
+        state.addBalance(sender, BigInteger.valueOf(energyLimit * energyPrice));
+
+        List<Transaction> transactions = new ArrayList<>();
+        transactions.add(randomCallTransaction(sender, nonce, BigInteger.ZERO, energyLimit, energyPrice));
+        transactions.add(randomCallTransaction(sender, nonce.add(BigInteger.ONE), BigInteger.ZERO, energyLimit, energyPrice));
+        transactions.add(randomCallTransaction(sender, nonce, BigInteger.ONE, energyLimit, energyPrice));
+        transactions.add(randomCallTransaction(sender, nonce, BigInteger.ZERO, energyLimit - 1, energyPrice));
+
+        List<PreValidationVerdict> verdicts = FastVirtualMachine.preValidate(state, transactions);
+        Assert.assertEquals(4, verdicts.size());
+        Assert.assertTrue(verdicts.get(0).isAccepted());
+        Assert.assertEquals(FastVmResultCode.INVALID_NONCE, verdicts.get(1).resultCode);
+        Assert.assertEquals(FastVmResultCode.INSUFFICIENT_BALANCE, verdicts.get(2).resultCode);
+        Assert.assertEquals(FastVmResultCode.INVALID_NRG_LIMIT, verdicts.get(3).resultCode);
+
+        // The verdicts agree with the checks made by run(), and nothing was charged.
+        for (int i = 0; i < transactions.size(); i++) {
+            FastVmTransactionResult result = newSuccessfulResult(transactions.get(i).energyLimit);
+            FastVirtualMachine.performRejectionChecks(state, transactions.get(i), result);
+            Assert.assertEquals(result.getResultCode(), verdicts.get(i).resultCode);
+            Assert.assertEquals(TransactionUtil.computeTransactionCost(transactions.get(i)), verdicts.get(i).intrinsicCost);
+        }
+        Assert.assertEquals(nonce, state.getNonce(sender));
+    }
+
+    @Test
+    public void testPreValidateRunsOnTheGivenExecutor() throws InterruptedException {
+        AionAddress sender = randomAddress();
+        long energyLimit = EnergyLimitRuleForTesting.MIN_NON_CREATE_ENERGY_LIMIT;
+        ExternalStateForTesting state = newState();
+        state.addBalance(sender, BigInteger.valueOf(energyLimit * 10L));
+
+        List<Transaction> transactions = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            transactions.add(randomCallTransaction(sender, BigInteger.valueOf(i % 2), BigInteger.ZERO, energyLimit, 10L));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        AtomicInteger tasks = new AtomicInteger();
+        try {
+            List<PreValidationVerdict> verdicts = FastVirtualMachine.preValidate(state, transactions, task -> {
+                tasks.incrementAndGet();
+                executor.execute(task);
+            });
+            Assert.assertTrue(tasks.get() > 0);
+            Assert.assertEquals(100, verdicts.size());
+            for (int i = 0; i < verdicts.size(); i++) {
+                Assert.assertEquals((i % 2 == 0) ? FastVmResultCode.SUCCESS : FastVmResultCode.INVALID_NONCE, verdicts.get(i).resultCode);
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testComputeTransactionCostCountsZeroBytes() {
+        byte[] data = new byte[] { 0, 1, 0, 0, 2 };
+        long expected = FvmConstants.TRANSACTION_BASE_FEE + 3 * FvmConstants.ZERO_BYTE_FEE + 2 * FvmConstants.NONZERO_BYTE_FEE;
+        Assert.assertEquals(expected, TransactionUtil.computeTransactionCost(false, data));
+        Assert.assertEquals(expected + FvmConstants.CREATE_TRANSACTION_FEE, TransactionUtil.computeTransactionCost(true, data));
+        Assert.assertEquals(FvmConstants.TRANSACTION_BASE_FEE, TransactionUtil.computeTransactionCost(false, null));
+    }
+
     @Test
     public void testIncrementNonceAndDeductEnergyCost() {
         AionAddress sender = randomAddress();
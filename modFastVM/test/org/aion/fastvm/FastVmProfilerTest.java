@@ -0,0 +1,126 @@
+package org.aion.fastvm;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import org.aion.fastvm.util.HexUtil;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FastVmProfilerTest {
+
+    @Test
+    public void testDecodeProfileOfTheJit() {
+        // One profile of the code 6001565b00 (PUSH1 0x01 JUMP JUMPDEST STOP), as encoded by the jni.
+        byte[] encoding = HexUtil.decode("00000001ab00000000000000000000000000000000000000000000000000000000000000000000056001565b000000000200000000000000000000000000000000000000000000000300000000000000070000000000000046");
+
+        List<CodeProfile> profiles = FastVmProfiler.decode(encoding);
+        Assert.assertEquals(1, profiles.size());
+
+        CodeProfile profile = profiles.get(0);
+        Assert.assertEquals((byte) 0xab, profile.getCodeHash()[0]);
+        Assert.assertArrayEquals(HexUtil.decode("6001565b00"), profile.getCode());
+        Assert.assertEquals(70, profile.getEnergyUsed());
+
+        List<BlockProfile> blocks = profile.getBlocks();
+        Assert.assertEquals(2, blocks.size());
+        Assert.assertEquals(0, blocks.get(0).getOffset());
+        Assert.assertEquals(3, blocks.get(0).getEndOffset());
+        Assert.assertEquals(0, blocks.get(0).getExecutionCount());
+        Assert.assertEquals(3, blocks.get(1).getOffset());
+        Assert.assertEquals(5, blocks.get(1).getEndOffset());
+        Assert.assertEquals(7, blocks.get(1).getExecutionCount());
+        Assert.assertEquals(70, blocks.get(1).getEnergyUsed());
+
+        Assert.assertEquals(Arrays.asList("0x0000 PUSH1 0x01", "0x0002 JUMP"), blocks.get(0).getInstructions());
+        Assert.assertEquals(Arrays.asList("0x0003 JUMPDEST", "0x0004 STOP"), blocks.get(1).getInstructions());
+    }
+
+    @Test
+    public void testDecodeNoProfiles() {
+        Assert.assertTrue(FastVmProfiler.decode(new byte[4]).isEmpty());
+    }
+
+    @Test
+    public void testBlockEndsBeforeJumpDest() {
+        // ADD JUMPDEST PUSH2 0x0102 SSTORE
+        CodeProfile profile = profileOf(1, HexUtil.decode("015b61010255"), new int[] {0, 1}, new long[] {1, 1}, new long[] {3, 5});
+
+        Assert.assertEquals(1, profile.getBlocks().get(0).getEndOffset());
+        Assert.assertEquals(Arrays.asList("0x0001 JUMPDEST", "0x0002 PUSH2 0x0102", "0x0005 SSTORE"), profile.getBlocks().get(1).getInstructions());
+    }
+
+    @Test
+    public void testTruncatedPushAndUnknownOpcode() {
+        // UNKNOWN(0x0c) PUSH2 0x01 with the last byte of the push data missing
+        CodeProfile profile = profileOf(1, HexUtil.decode("0c6101"), new int[] {0}, new long[] {1}, new long[] {1});
+
+        BlockProfile block = profile.getBlocks().get(0);
+        Assert.assertEquals(3, block.getEndOffset());
+        Assert.assertEquals(Arrays.asList("0x0000 UNKNOWN(0x0c)", "0x0001 PUSH2 0x01"), block.getInstructions());
+    }
+
+    @Test
+    public void testHotBlocksAreOrderedByEnergyThenCount() {
+        byte[] code = HexUtil.decode("5b005b005b005b00");
+        CodeProfile profile = profileOf(1, code, new int[] {0, 2, 4, 6}, new long[] {1, 0, 9, 4}, new long[] {10, 0, 10, 30});
+
+        List<BlockProfile> hot = profile.getHotBlocks(10);
+        Assert.assertEquals(3, hot.size());
+        Assert.assertEquals(6, hot.get(0).getOffset());
+        Assert.assertEquals(4, hot.get(1).getOffset());
+        Assert.assertEquals(0, hot.get(2).getOffset());
+
+        Assert.assertEquals(1, profile.getHotBlocks(1).size());
+        Assert.assertTrue(profile.getHotBlocks(0).isEmpty());
+    }
+
+    @Test
+    public void testHotBlocksAcrossProfiles() {
+        byte[] code = HexUtil.decode("5b005b00");
+        List<CodeProfile> profiles = Arrays.asList(
+            profileOf(1, code, new int[] {0, 2}, new long[] {1, 1}, new long[] {5, 50}),
+            profileOf(2, code, new int[] {0, 2}, new long[] {1, 1}, new long[] {20, 1}));
+
+        List<BlockProfile> hot = FastVmProfiler.hottestOf(profiles, 2);
+        Assert.assertEquals(2, hot.size());
+        Assert.assertEquals(50, hot.get(0).getEnergyUsed());
+        Assert.assertEquals(1, hot.get(0).getCodeHash()[0]);
+        Assert.assertEquals(20, hot.get(1).getEnergyUsed());
+        Assert.assertEquals(2, hot.get(1).getCodeHash()[0]);
+    }
+
+    @Test
+    public void testCodeAndHashAreCopied() {
+        CodeProfile profile = profileOf(1, HexUtil.decode("00"), new int[] {0}, new long[] {1}, new long[] {0});
+        profile.getCode()[0] = 1;
+        profile.getCodeHash()[0] = 2;
+        profile.getBlocks().get(0).getCodeHash()[0] = 3;
+
+        Assert.assertEquals(0, profile.getCode()[0]);
+        Assert.assertEquals(1, profile.getCodeHash()[0]);
+        Assert.assertEquals(1, profile.getBlocks().get(0).getCodeHash()[0]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeLimit() {
+        profileOf(1, HexUtil.decode("00"), new int[] {0}, new long[] {1}, new long[] {0}).getHotBlocks(-1);
+    }
+
+    private static CodeProfile profileOf(int hash, byte[] code, int[] offsets, long[] counts, long[] energy) {
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 32 + 4 + code.length + 4 + offsets.length * 20);
+        buffer.putInt(1);
+        byte[] codeHash = new byte[32];
+        codeHash[0] = (byte) hash;
+        buffer.put(codeHash);
+        buffer.putInt(code.length);
+        buffer.put(code);
+        buffer.putInt(offsets.length);
+        for (int i = 0; i < offsets.length; i++) {
+            buffer.putInt(offsets[i]);
+            buffer.putLong(counts[i]);
+            buffer.putLong(energy[i]);
+        }
+        return FastVmProfiler.decode(buffer.array()).get(0);
+    }
+}
@@ -0,0 +1,74 @@
+package org.aion.fastvm;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FastVmStatsTest {
+
+    @Test
+    public void testValuesAreReadInOrder() {
+        FastVmStats stats = FastVmStats.fromValues(new long[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11});
+
+        Assert.assertEquals(1, stats.getCompiledModuleCount());
+        Assert.assertEquals(2, stats.getLiveModuleCount());
+        Assert.assertEquals(3, stats.getCodeMapHitCount());
+        Assert.assertEquals(4, stats.getCodeMapMissCount());
+        Assert.assertEquals(5, stats.getMemorySize());
+        Assert.assertEquals(6, stats.getCacheLoadNanos());
+        Assert.assertEquals(7, stats.getCompilationNanos());
+        Assert.assertEquals(8, stats.getOptimizationNanos());
+        Assert.assertEquals(9, stats.getCodeGenNanos());
+        Assert.assertEquals(10, stats.getResetCount());
+        Assert.assertEquals(11, stats.getEvictedModuleCount());
+        Assert.assertEquals(30, stats.getTotalCompileNanos());
+        Assert.assertEquals(3.0 / 7, stats.getCodeMapHitRatio(), 0);
+    }
+
+    @Test
+    public void testValuesAreCopied() {
+        long[] values = new long[11];
+        FastVmStats stats = FastVmStats.fromValues(values);
+        values[0] = 100;
+
+        Assert.assertEquals(0, stats.getCompiledModuleCount());
+    }
+
+    @Test
+    public void testSinceSubtractsCumulativeValuesOnly() {
+        FastVmStats earlier = FastVmStats.fromValues(new long[] {10, 10, 100, 10, 4096, 1, 20, 30, 40, 0, 0});
+        FastVmStats later = FastVmStats.fromValues(new long[] {25, 5, 150, 25, 2048, 1, 50, 60, 90, 1, 20});
+
+        FastVmStats delta = later.since(earlier);
+        Assert.assertEquals(15, delta.getCompiledModuleCount());
+        Assert.assertEquals(5, delta.getLiveModuleCount());
+        Assert.assertEquals(50, delta.getCodeMapHitCount());
+        Assert.assertEquals(15, delta.getCodeMapMissCount());
+        Assert.assertEquals(2048, delta.getMemorySize());
+        Assert.assertEquals(0, delta.getCacheLoadNanos());
+        Assert.assertEquals(30, delta.getCompilationNanos());
+        Assert.assertEquals(30, delta.getOptimizationNanos());
+        Assert.assertEquals(50, delta.getCodeGenNanos());
+        Assert.assertEquals(1, delta.getResetCount());
+        Assert.assertEquals(20, delta.getEvictedModuleCount());
+    }
+
+    @Test
+    public void testHitRatioWithoutLookups() {
+        Assert.assertEquals(0, FastVmStats.fromValues(new long[11]).getCodeMapHitRatio(), 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooFewValues() {
+        FastVmStats.fromValues(new long[10]);
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testNullValues() {
+        FastVmStats.fromValues(null);
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testSinceNull() {
+        FastVmStats.fromValues(new long[11]).since(null);
+    }
+}
@@ -0,0 +1,224 @@
+package org.aion.fastvm;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.aion.ExternalStateForTesting;
+import org.aion.fastvm.util.HexUtil;
+import org.aion.repository.BlockchainForTesting;
+import org.aion.repository.RepositoryForTesting;
+import org.aion.types.AionAddress;
+import org.apache.commons.lang3.RandomUtils;
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FvmEventsTest {
+    private static final String[] ALL_EVENTS = {
+        "org.aion.fastvm.TransactionExecuted",
+        "org.aion.fastvm.FrameExecuted",
+        "org.aion.fastvm.JitCompile",
+        "org.aion.fastvm.CallbackBatch"
+    };
+
+    private Recording recording;
+
+    @After
+    public void tearDown() {
+        if (this.recording != null) {
+            this.recording.close();
+        }
+        CallbackMetrics.setBatching(false);
+        while (!Callback.stackIsEmpty()) {
+            Callback.pop();
+        }
+    }
+
+    @Test
+    public void testNoFrameWithoutRecording() {
+        Assert.assertNull(FvmEvents.beginFrame(newContext(0)));
+        Assert.assertFalse(CallbackMetrics.isBatching());
+    }
+
+    @Test
+    public void testTransactionAndCompileEvents() throws Exception {
+        startRecording("org.aion.fastvm.TransactionExecuted", "org.aion.fastvm.JitCompile");
+        byte[] codeHash = RandomUtils.nextBytes(32);
+        byte[] calleeHash = RandomUtils.nextBytes(32);
+
+        ExecutionContext context = newContext(0);
+        FvmEvents.Frame frame = FvmEvents.beginFrame(context);
+        Assert.assertTrue(frame.needsCompileRecords());
+        byte[] records = compileRecords(codeHash, 0, false, 2_000_000, 120, calleeHash, 1, true, 0, 40);
+        frame.end(context, new FastVmTransactionResult(FastVmResultCode.REVERT, 100_000L), records);
+
+        List<RecordedEvent> events = stopRecording();
+        List<RecordedEvent> transactions = ofType(events, "org.aion.fastvm.TransactionExecuted");
+        Assert.assertEquals(1, transactions.size());
+        RecordedEvent transaction = transactions.get(0);
+        Assert.assertEquals(HexUtil.toHexString(codeHash), transaction.getString("codeHash"));
+        Assert.assertEquals(400_000L, transaction.getLong("energyUsed"));
+        Assert.assertEquals("REVERT", transaction.getString("resultCode"));
+        Assert.assertEquals("CALL", transaction.getString("kind"));
+
+        List<RecordedEvent> compiles = ofType(events, "org.aion.fastvm.JitCompile");
+        Assert.assertEquals(2, compiles.size());
+        Assert.assertFalse(compiles.get(0).getBoolean("cacheHit"));
+        Assert.assertEquals(2_000_000L, compiles.get(0).getLong("compileTime"));
+        Assert.assertEquals(120L, compiles.get(0).getLong("codeSize"));
+        Assert.assertTrue(compiles.get(1).getBoolean("cacheHit"));
+        Assert.assertEquals(1, compiles.get(1).getInt("depth"));
+        Assert.assertEquals(HexUtil.toHexString(calleeHash), compiles.get(1).getString("codeHash"));
+    }
+
+    @Test
+    public void testNestedFrameEvent() throws Exception {
+        startRecording("org.aion.fastvm.FrameExecuted");
+
+        ExecutionContext context = newContext(2);
+        FvmEvents.Frame frame = FvmEvents.beginFrame(context);
+        frame.end(context, new FastVmTransactionResult(FastVmResultCode.SUCCESS, 499_000L), new byte[0]);
+
+        List<RecordedEvent> frames = ofType(stopRecording(), "org.aion.fastvm.FrameExecuted");
+        Assert.assertEquals(1, frames.size());
+        Assert.assertEquals(2, frames.get(0).getInt("depth"));
+        Assert.assertEquals(1_000L, frames.get(0).getLong("energyUsed"));
+        Assert.assertEquals(context.getDestinationAddress().toString(), frames.get(0).getString("callee"));
+        Assert.assertNull(frames.get(0).getString("codeHash"));
+    }
+
+    @Test
+    public void testCompileRecordsPolledByNestedFrameGoToEnclosingFrame() throws Exception {
+        startRecording("org.aion.fastvm.TransactionExecuted", "org.aion.fastvm.FrameExecuted", "org.aion.fastvm.JitCompile");
+        byte[] codeHash = RandomUtils.nextBytes(32);
+        byte[] calleeHash = RandomUtils.nextBytes(32);
+
+        ExecutionContext outer = newContext(0);
+        FvmEvents.Frame outerFrame = FvmEvents.beginFrame(outer);
+        ExecutionContext inner = newContext(1);
+        FvmEvents.Frame innerFrame = FvmEvents.beginFrame(inner);
+
+        // The nested frame polls the report of the top-level frame along with its own.
+        byte[] records = compileRecords(codeHash, 0, false, 1_000_000, 80, calleeHash, 1, true, 0, 40);
+        innerFrame.end(inner, new FastVmTransactionResult(FastVmResultCode.SUCCESS, 0L), records);
+        outerFrame.end(outer, new FastVmTransactionResult(FastVmResultCode.SUCCESS, 0L), new byte[0]);
+
+        List<RecordedEvent> events = stopRecording();
+        List<RecordedEvent> transactions = ofType(events, "org.aion.fastvm.TransactionExecuted");
+        Assert.assertEquals(1, transactions.size());
+        Assert.assertEquals(HexUtil.toHexString(codeHash), transactions.get(0).getString("codeHash"));
+        List<RecordedEvent> frames = ofType(events, "org.aion.fastvm.FrameExecuted");
+        Assert.assertEquals(1, frames.size());
+        Assert.assertEquals(HexUtil.toHexString(calleeHash), frames.get(0).getString("codeHash"));
+
+        // Each report is recorded when the frame at its depth is done.
+        List<RecordedEvent> compiles = ofType(events, "org.aion.fastvm.JitCompile");
+        Assert.assertEquals(2, compiles.size());
+        for (RecordedEvent compile : compiles) {
+            RecordedEvent frame = (compile.getInt("depth") == 0) ? transactions.get(0) : frames.get(0);
+            Assert.assertFalse(compile.getEndTime().isAfter(frame.getEndTime()));
+            Assert.assertFalse(compile.getEndTime().isBefore(frame.getStartTime()));
+        }
+        Assert.assertTrue(compiles.stream().anyMatch(compile -> compile.getInt("depth") == 0
+            && compile.getString("codeHash").equals(HexUtil.toHexString(codeHash))));
+    }
+
+    @Test
+    public void testCallbackBatchesExcludeNestedFrames() throws Exception {
+        startRecording("org.aion.fastvm.CallbackBatch");
+
+        ExecutionContext outer = newContext(0);
+        FvmEvents.Frame outerFrame = FvmEvents.beginFrame(outer);
+        Assert.assertTrue(CallbackMetrics.isBatching());
+        Assert.assertFalse(outerFrame.needsCompileRecords());
+        Callback.push(Pair.of(outer, newState()));
+        Callback.exists(randomAddress().toByteArray());
+
+        ExecutionContext inner = newContext(1);
+        FvmEvents.Frame innerFrame = FvmEvents.beginFrame(inner);
+        Callback.push(Pair.of(inner, newState()));
+        Callback.getBalance(randomAddress().toByteArray());
+        Callback.getBalance(randomAddress().toByteArray());
+        Callback.pop();
+        innerFrame.end(inner, new FastVmTransactionResult(FastVmResultCode.SUCCESS, 0L), null);
+
+        Callback.getBlockHash(1L);
+        Callback.pop();
+        outerFrame.end(outer, new FastVmTransactionResult(FastVmResultCode.SUCCESS, 0L), null);
+
+        List<RecordedEvent> batches = ofType(stopRecording(), "org.aion.fastvm.CallbackBatch");
+        Assert.assertEquals(2, batches.size());
+        RecordedEvent innerBatch = batches.get(0);
+        Assert.assertEquals(1, innerBatch.getInt("depth"));
+        Assert.assertEquals(2L, innerBatch.getLong("getBalance"));
+        Assert.assertEquals(0L, innerBatch.getLong("exists"));
+        RecordedEvent outerBatch = batches.get(1);
+        Assert.assertEquals(0, outerBatch.getInt("depth"));
+        Assert.assertEquals(1L, outerBatch.getLong("exists"));
+        Assert.assertEquals(1L, outerBatch.getLong("getBlockHash"));
+        Assert.assertEquals(0L, outerBatch.getLong("getBalance"));
+    }
+
+    private void startRecording(String... events) {
+        this.recording = new Recording();
+        for (String event : ALL_EVENTS) {
+            this.recording.disable(event);
+        }
+        for (String event : events) {
+            this.recording.enable(event);
+        }
+        this.recording.start();
+    }
+
+    private List<RecordedEvent> stopRecording() throws Exception {
+        this.recording.stop();
+        Path file = Files.createTempFile("fvm-events", ".jfr");
+        try {
+            this.recording.dump(file);
+            return RecordingFile.readAllEvents(file);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static List<RecordedEvent> ofType(List<RecordedEvent> events, String name) {
+        return events.stream()
+                .filter(event -> event.getEventType().getName().equals(name))
+                .sorted((a, b) -> a.getEndTime().compareTo(b.getEndTime()))
+                .collect(Collectors.toList());
+    }
+
+    private static byte[] compileRecords(Object... fields) {
+        ByteBuffer buffer = ByteBuffer.allocate(fields.length / 5 * CompileRecord.SIZE);
+        for (int i = 0; i < fields.length; i += 5) {
+            buffer.put((byte[]) fields[i]);
+            buffer.putInt((Integer) fields[i + 1]);
+            buffer.putInt((Boolean) fields[i + 2] ? 1 : 0);
+            buffer.putLong(((Number) fields[i + 3]).longValue());
+            buffer.putLong(((Number) fields[i + 4]).longValue());
+        }
+        return buffer.array();
+    }
+
+    private static ExecutionContext newContext(int depth) {
+        return ExecutionContext.from(new byte[32], randomAddress(), randomAddress(), randomAddress(), 1L, 500_000L,
+            BigInteger.ZERO, new byte[0], depth, TransactionKind.CALL, 0, randomAddress(), 0L, 0L, 15_000_000L, FvmDataWord.fromLong(0L));
+    }
+
+    private static ExternalStateForTesting newState() {
+        return new ExternalStateForTesting(RepositoryForTesting.newRepository(), new BlockchainForTesting(), randomAddress(), FvmDataWord.fromInt(0), false, true, false, 0L, 0L, 0L, false);
+    }
+
+    private static AionAddress randomAddress() {
+        byte[] bytes = RandomUtils.nextBytes(AionAddress.LENGTH);
+        bytes[0] = (byte) 0xa0;
+        return new AionAddress(bytes);
+    }
+}
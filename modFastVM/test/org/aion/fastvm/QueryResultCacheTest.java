@@ -0,0 +1,191 @@
+package org.aion.fastvm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.math.BigInteger;
+import org.aion.ExternalCapabilitiesForTesting;
+import org.aion.ExternalStateForTesting;
+import org.aion.repository.BlockchainForTesting;
+import org.aion.repository.RepositoryForTesting;
+import org.aion.types.AionAddress;
+import org.aion.types.Transaction;
+import org.apache.commons.lang3.RandomUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Tests the {@link QueryResultCache} through {@link FastVirtualMachine#runQuery}. */
+public class QueryResultCacheTest {
+    private static final IExternalCapabilities capabilities = new ExternalCapabilitiesForTesting();
+    private static final AionAddress COINBASE = randomAddress();
+
+    private CountingVm fvm;
+    private AionAddress contract;
+
+    @Before
+    public void setup() {
+        fvm = new CountingVm();
+        contract = randomAddress();
+    }
+
+    @Test
+    public void testRepeatedQueryIsServedFromCache() {
+        QueryResultCache cache = new QueryResultCache(16, 1);
+        IExternalStateForFvm state = newState(1, new byte[32]);
+        Transaction call = newCall(RandomUtils.nextBytes(36));
+
+        FvmWrappedTransactionResult first = FastVirtualMachine.runQuery(fvm, state, capabilities, call, true, cache, null);
+        FvmWrappedTransactionResult second = FastVirtualMachine.runQuery(fvm, state, capabilities, call, true, cache, null);
+
+        assertSame(first, second);
+        assertEquals(1, fvm.runs);
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void testDifferentCallDataOrStateRootMisses() {
+        QueryResultCache cache = new QueryResultCache(16, 1);
+        byte[] data = RandomUtils.nextBytes(36);
+
+        FastVirtualMachine.runQuery(fvm, newState(1, new byte[32]), capabilities, newCall(data), true, cache, null);
+        FastVirtualMachine.runQuery(fvm, newState(1, new byte[32]), capabilities, newCall(RandomUtils.nextBytes(36)), true, cache, null);
+        FastVirtualMachine.runQuery(fvm, newState(1, RandomUtils.nextBytes(32)), capabilities, newCall(data), true, cache, null);
+
+        assertEquals(3, fvm.runs);
+        assertEquals(0, cache.getHitCount());
+        assertEquals(3, cache.size());
+    }
+
+    @Test
+    public void testDifferentBlockFieldsMiss() {
+        QueryResultCache cache = new QueryResultCache(16, 1);
+        byte[] root = new byte[32];
+        Transaction call = newCall(RandomUtils.nextBytes(36));
+
+        // A pending block keeps its state root while its other fields change.
+        FastVirtualMachine.runQuery(fvm, newState(1, root), capabilities, call, true, cache, null);
+        FastVirtualMachine.runQuery(fvm, newState(1, root, 1L, COINBASE, FvmDataWord.fromLong(0), 15_000_000L), capabilities, call, true, cache, null);
+        FastVirtualMachine.runQuery(fvm, newState(1, root, 0L, randomAddress(), FvmDataWord.fromLong(0), 15_000_000L), capabilities, call, true, cache, null);
+        FastVirtualMachine.runQuery(fvm, newState(1, root, 0L, COINBASE, FvmDataWord.fromLong(1), 15_000_000L), capabilities, call, true, cache, null);
+        FastVirtualMachine.runQuery(fvm, newState(1, root, 0L, COINBASE, FvmDataWord.fromLong(0), 10_000_000L), capabilities, call, true, cache, null);
+
+        assertEquals(5, fvm.runs);
+        assertEquals(0, cache.getHitCount());
+        assertEquals(5, cache.size());
+
+        // The same block is still served from the cache.
+        FastVirtualMachine.runQuery(fvm, newState(1, root), capabilities, call, true, cache, null);
+        assertEquals(5, fvm.runs);
+        assertEquals(1, cache.getHitCount());
+    }
+
+    @Test
+    public void testStateWithoutRootIsNeverCached() {
+        QueryResultCache cache = new QueryResultCache(16, 1);
+        IExternalStateForFvm state = newState(1, null);
+        Transaction call = newCall(RandomUtils.nextBytes(36));
+
+        FastVirtualMachine.runQuery(fvm, state, capabilities, call, true, cache, null);
+        FastVirtualMachine.runQuery(fvm, state, capabilities, call, true, cache, null);
+
+        assertEquals(2, fvm.runs);
+        assertEquals(0, cache.getMissCount());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() {
+        QueryResultCache cache = new QueryResultCache(2, 1);
+        IExternalStateForFvm state = newState(1, new byte[32]);
+        Transaction call1 = newCall(RandomUtils.nextBytes(36));
+        Transaction call2 = newCall(RandomUtils.nextBytes(36));
+        Transaction call3 = newCall(RandomUtils.nextBytes(36));
+
+        FastVirtualMachine.runQuery(fvm, state, capabilities, call1, true, cache, null);
+        FastVirtualMachine.runQuery(fvm, state, capabilities, call2, true, cache, null);
+        FastVirtualMachine.runQuery(fvm, state, capabilities, call1, true, cache, null);
+        FastVirtualMachine.runQuery(fvm, state, capabilities, call3, true, cache, null);
+        assertEquals(1, cache.getEvictionCount());
+
+        // call2 was the least recently used.
+        FastVirtualMachine.runQuery(fvm, state, capabilities, call1, true, cache, null);
+        assertEquals(3, fvm.runs);
+        FastVirtualMachine.runQuery(fvm, state, capabilities, call2, true, cache, null);
+        assertEquals(4, fvm.runs);
+    }
+
+    @Test
+    public void testNewBlocksInvalidateOldResults() {
+        QueryResultCache cache = new QueryResultCache(16, 2);
+        byte[] root = new byte[32];
+        Transaction call = newCall(RandomUtils.nextBytes(36));
+
+        FastVirtualMachine.runQuery(fvm, newState(1, root), capabilities, call, true, cache, null);
+        FastVirtualMachine.runQuery(fvm, newState(2, root), capabilities, call, true, cache, null);
+        assertEquals(2, cache.size());
+
+        FastVirtualMachine.runQuery(fvm, newState(3, root), capabilities, call, true, cache, null);
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getInvalidationCount());
+
+        // Results of invalidated blocks are no longer cached.
+        FastVirtualMachine.runQuery(fvm, newState(1, root), capabilities, call, true, cache, null);
+        FastVirtualMachine.runQuery(fvm, newState(1, root), capabilities, call, true, cache, null);
+        assertEquals(5, fvm.runs);
+    }
+
+    private IExternalStateForFvm newState(long blockNumber, byte[] stateRoot) {
+        return newState(blockNumber, stateRoot, 0L, COINBASE, FvmDataWord.fromLong(0), 15_000_000L);
+    }
+
+    private IExternalStateForFvm newState(long blockNumber, byte[] stateRoot, long timestamp, AionAddress coinbase, FvmDataWord difficulty, long blockEnergyLimit) {
+        ExternalStateForTesting state = new ExternalStateForTesting(RepositoryForTesting.newRepository(), new BlockchainForTesting(), coinbase, difficulty, true, false, true, blockNumber, timestamp, blockEnergyLimit);
+        state.putCode(contract, new byte[] {0x00});
+        return new StateWithRoot(state, stateRoot);
+    }
+
+    private Transaction newCall(byte[] data) {
+        return Transaction.contractCallTransaction(new AionAddress(new byte[32]), contract, new byte[32], BigInteger.ZERO, BigInteger.ZERO, data, 2_000_000L, 1L);
+    }
+
+    private static AionAddress randomAddress() {
+        byte[] bytes = RandomUtils.nextBytes(AionAddress.LENGTH);
+        bytes[0] = (byte) 0xa0;
+        return new AionAddress(bytes);
+    }
+
+    private static final class StateWithRoot extends ForwardingExternalState {
+        private final byte[] stateRoot;
+
+        StateWithRoot(IExternalStateForFvm delegate, byte[] stateRoot) {
+            super(delegate);
+            this.stateRoot = stateRoot;
+        }
+
+        @Override
+        public IExternalStateForFvm newChildExternalState() {
+            return new StateWithRoot(this.delegate.newChildExternalState(), this.stateRoot);
+        }
+
+        @Override
+        public byte[] getStateRoot() {
+            return this.stateRoot;
+        }
+    }
+
+    private static final class CountingVm implements IFastVm {
+        int runs = 0;
+
+        @Override
+        public FastVmTransactionResult runPre040Fork(byte[] code, ExecutionContext context, IExternalStateForFvm state) {
+            return runPost040Fork(code, context, state);
+        }
+
+        @Override
+        public FastVmTransactionResult runPost040Fork(byte[] code, ExecutionContext context, IExternalStateForFvm state) {
+            this.runs++;
+            return new FastVmTransactionResult(FastVmResultCode.SUCCESS, 0, context.getTransactionData());
+        }
+    }
+}
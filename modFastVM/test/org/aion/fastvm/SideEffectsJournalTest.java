@@ -0,0 +1,86 @@
+package org.aion.fastvm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.aion.types.AionAddress;
+import org.aion.types.InternalTransaction;
+import org.aion.types.InternalTransaction.RejectedStatus;
+import org.aion.types.Log;
+import org.apache.commons.lang3.RandomUtils;
+import org.junit.Test;
+
+/** Tests that the compact records of the {@link SideEffectsJournal} build the expected objects. */
+public class SideEffectsJournalTest {
+
+    @Test
+    public void testCallRecordBuildsEqualTransaction() {
+        AionAddress sender = randomAddress();
+        AionAddress destination = randomAddress();
+        byte[] data = RandomUtils.nextBytes(71);
+
+        SideEffectsJournal journal = new SideEffectsJournal();
+        journal.addInternalTransaction(false, sender, destination, BigInteger.TEN, BigInteger.ONE, data, 0L, 1L);
+
+        InternalTransaction expected = InternalTransaction.contractCallTransaction(RejectedStatus.NOT_REJECTED, sender, destination, BigInteger.TEN, BigInteger.ONE, data, 0L, 1L);
+        assertEquals(expected, journal.internalTransaction(0));
+    }
+
+    @Test
+    public void testRejectedCreateRecordBuildsRejectedTransaction() {
+        AionAddress sender = randomAddress();
+        byte[] data = RandomUtils.nextBytes(300);
+
+        SideEffectsJournal journal = new SideEffectsJournal();
+        journal.addInternalTransaction(true, sender, null, BigInteger.ZERO, BigInteger.TEN, new byte[0], 0L, 1L);
+        journal.addInternalTransaction(true, sender, null, BigInteger.ONE, BigInteger.TEN, data, 0L, 1L);
+        journal.rejectedInternalTxs.set(1);
+
+        InternalTransaction expected = InternalTransaction.contractCreateTransaction(RejectedStatus.REJECTED, sender, BigInteger.ONE, BigInteger.TEN, data, 0L, 1L);
+        assertEquals(expected, journal.internalTransaction(1));
+        assertFalse(journal.internalTransaction(0).isRejected);
+    }
+
+    @Test
+    public void testLogRecordSplitsTopics() {
+        byte[] address = randomAddress().toByteArray();
+        byte[] topics = RandomUtils.nextBytes(32 * 3);
+        byte[] data = RandomUtils.nextBytes(45);
+
+        SideEffectsJournal journal = new SideEffectsJournal();
+        journal.addLog(address, topics, data);
+
+        List<byte[]> topicList = new ArrayList<>();
+        for (int i = 0; i < topics.length; i += 32) {
+            topicList.add(Arrays.copyOfRange(topics, i, i + 32));
+        }
+        assertEquals(Log.topicsAndData(address, topicList, data), journal.log(0));
+    }
+
+    @Test
+    public void testManyRecordsGrowTheJournal() {
+        SideEffectsJournal journal = new SideEffectsJournal();
+        List<byte[]> datas = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            byte[] data = RandomUtils.nextBytes(i * 7);
+            datas.add(data);
+            journal.addLog(randomAddress().toByteArray(), new byte[0], data);
+        }
+
+        assertEquals(100, journal.logCount());
+        for (int i = 0; i < 100; i++) {
+            assertTrue(Arrays.equals(datas.get(i), journal.log(i).copyOfData()));
+        }
+    }
+
+    private static AionAddress randomAddress() {
+        byte[] bytes = RandomUtils.nextBytes(AionAddress.LENGTH);
+        bytes[0] = (byte) 0xa0;
+        return new AionAddress(bytes);
+    }
+}
@@ -0,0 +1,176 @@
+package org.aion.fastvm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+import java.util.Collections;
+import java.util.List;
+import org.aion.types.AionAddress;
+import org.aion.types.InternalTransaction;
+import org.aion.types.InternalTransaction.RejectedStatus;
+import org.aion.types.Log;
+import org.apache.commons.lang3.RandomUtils;
+import org.junit.Test;
+
+/**
+ * Tests the side effects of nested frames, which share a single journal, the way {@link Callback}
+ * uses them.
+ */
+public class SideEffectsNestingTest {
+
+    @Test
+    public void testSuccessfulChildIsMergedInOrder() {
+        SideEffects parent = new SideEffects();
+        InternalTransaction call = newInternalTransaction();
+        parent.addInternalTransaction(call);
+
+        SideEffects child = new SideEffects();
+        child.nestWithin(parent);
+        InternalTransaction nested = newInternalTransaction();
+        Log log = newLog();
+        AionAddress deleted = randomAddress();
+        child.addInternalTransaction(nested);
+        child.addLog(log);
+        child.addToDeletedAddresses(deleted);
+
+        parent.merge(child);
+
+        List<InternalTransaction> internalTxs = parent.getInternalTransactions();
+        assertEquals(2, internalTxs.size());
+        assertSame(call, internalTxs.get(0));
+        assertSame(nested, internalTxs.get(1));
+        assertEquals(Collections.singletonList(log), parent.getExecutionLogs());
+        assertEquals(Collections.singletonList(deleted), parent.getAddressesToBeDeleted());
+    }
+
+    @Test
+    public void testFailedChildIsRejectedAndItsLogsAreDropped() {
+        SideEffects parent = new SideEffects();
+        Log parentLog = newLog();
+        parent.addLog(parentLog);
+        parent.addInternalTransaction(newInternalTransaction());
+
+        SideEffects child = new SideEffects();
+        child.nestWithin(parent);
+        child.addInternalTransaction(newInternalTransaction());
+        child.addLog(newLog());
+        child.addToDeletedAddresses(randomAddress());
+
+        parent.markMostRecentInternalTransactionAsRejected();
+        child.markAllInternalTransactionsAsRejected();
+        parent.mergeInternalTransactions(child);
+
+        List<InternalTransaction> internalTxs = parent.getInternalTransactions();
+        assertEquals(2, internalTxs.size());
+        assertTrue(internalTxs.get(0).isRejected);
+        assertTrue(internalTxs.get(1).isRejected);
+        assertEquals(Collections.singletonList(parentLog), parent.getExecutionLogs());
+        assertTrue(parent.getAddressesToBeDeleted().isEmpty());
+    }
+
+    @Test
+    public void testFailedGrandChildOnlyAffectsItsOwnRange() {
+        SideEffects parent = new SideEffects();
+        parent.addInternalTransaction(newInternalTransaction());
+
+        SideEffects child = new SideEffects();
+        child.nestWithin(parent);
+        child.addInternalTransaction(newInternalTransaction());
+        Log childLog = newLog();
+        child.addLog(childLog);
+
+        SideEffects grandChild = new SideEffects();
+        grandChild.nestWithin(child);
+        grandChild.addInternalTransaction(newInternalTransaction());
+        grandChild.addLog(newLog());
+
+        child.markMostRecentInternalTransactionAsRejected();
+        grandChild.markAllInternalTransactionsAsRejected();
+        child.mergeInternalTransactions(grandChild);
+        parent.merge(child);
+
+        List<InternalTransaction> internalTxs = parent.getInternalTransactions();
+        assertEquals(3, internalTxs.size());
+        assertFalse(internalTxs.get(0).isRejected);
+        assertTrue(internalTxs.get(1).isRejected);
+        assertTrue(internalTxs.get(2).isRejected);
+        assertEquals(Collections.singletonList(childLog), parent.getExecutionLogs());
+    }
+
+    @Test
+    public void testMergedChildDoesNotSeeLaterParentEffects() {
+        SideEffects parent = new SideEffects();
+        SideEffects child = new SideEffects();
+        child.nestWithin(parent);
+        child.addInternalTransaction(newInternalTransaction());
+        parent.merge(child);
+
+        parent.addInternalTransaction(newInternalTransaction());
+        parent.addLog(newLog());
+
+        assertEquals(1, child.getInternalTransactions().size());
+        assertTrue(child.getExecutionLogs().isEmpty());
+        assertEquals(2, parent.getInternalTransactions().size());
+    }
+
+    @Test
+    public void testMostRecentAfterMergeIsTheChildsLast() {
+        SideEffects parent = new SideEffects();
+        parent.addInternalTransaction(newInternalTransaction());
+
+        SideEffects child = new SideEffects();
+        child.nestWithin(parent);
+        child.addInternalTransaction(newInternalTransaction());
+        child.addInternalTransaction(newInternalTransaction());
+        parent.merge(child);
+
+        parent.markMostRecentInternalTransactionAsRejected();
+
+        List<InternalTransaction> internalTxs = parent.getInternalTransactions();
+        assertFalse(internalTxs.get(0).isRejected);
+        assertFalse(internalTxs.get(1).isRejected);
+        assertTrue(internalTxs.get(2).isRejected);
+    }
+
+    @Test
+    public void testNestedSideEffectsShareTheRecordingLevel() {
+        SideEffects parent = new SideEffects();
+        parent.setRecordingLevel(SideEffectsRecordingLevel.LOGS_ONLY);
+        parent.addInternalTransaction(newInternalTransaction());
+
+        SideEffects child = new SideEffects();
+        child.nestWithin(parent);
+        assertFalse(child.recordsInternalTransactions());
+        child.addInternalCallTransaction(randomAddress(), randomAddress(), BigInteger.ZERO, BigInteger.ONE, new byte[0], 0L, 1L);
+        Log log = newLog();
+        child.addLog(log);
+        parent.merge(child);
+
+        assertTrue(parent.getInternalTransactions().isEmpty());
+        assertEquals(Collections.singletonList(log), parent.getExecutionLogs());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testNonEmptySideEffectsCannotBeNested() {
+        SideEffects child = new SideEffects();
+        child.addLog(newLog());
+        child.nestWithin(new SideEffects());
+    }
+
+    private static InternalTransaction newInternalTransaction() {
+        return InternalTransaction.contractCallTransaction(RejectedStatus.NOT_REJECTED, randomAddress(), randomAddress(), BigInteger.ZERO, BigInteger.ONE, RandomUtils.nextBytes(10), 0L, 1L);
+    }
+
+    private static Log newLog() {
+        return Log.dataOnly(randomAddress().toByteArray(), RandomUtils.nextBytes(10));
+    }
+
+    private static AionAddress randomAddress() {
+        byte[] bytes = RandomUtils.nextBytes(AionAddress.LENGTH);
+        bytes[0] = (byte) 0xa0;
+        return new AionAddress(bytes);
+    }
+}
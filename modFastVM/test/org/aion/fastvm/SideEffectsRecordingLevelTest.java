@@ -0,0 +1,80 @@
+package org.aion.fastvm;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import org.aion.ExternalCapabilitiesForTesting;
+import org.aion.ExternalStateForTesting;
+import org.aion.contract.ContractUtils;
+import org.aion.fastvm.util.ByteUtil;
+import org.aion.fastvm.util.HexUtil;
+import org.aion.repository.BlockchainForTesting;
+import org.aion.repository.RepositoryForTesting;
+import org.aion.types.AionAddress;
+import org.apache.commons.lang3.RandomUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Runs a call-heavy transaction (a contract that recursively calls itself and logs at every level)
+ * under each {@link SideEffectsRecordingLevel}, and checks what each level records. Its throughput
+ * is measured by {@code SideEffectsRecordingBenchmark}.
+ */
+public class SideEffectsRecordingLevelTest {
+    private static final int DEPTH = 128;
+
+    private byte[] txHash = RandomUtils.nextBytes(32);
+    private AionAddress origin = new AionAddress(RandomUtils.nextBytes(32));
+    private AionAddress address = new AionAddress(RandomUtils.nextBytes(32));
+    private AionAddress blockCoinbase = new AionAddress(RandomUtils.nextBytes(32));
+    private FvmDataWord blockDifficulty = FvmDataWord.fromLong(0x100000000L);
+
+    @BeforeClass
+    public static void setupCapabilities() {
+        CapabilitiesProvider.installExternalCapabilities(new ExternalCapabilitiesForTesting());
+    }
+
+    @AfterClass
+    public static void teardownCapabilities() {
+        CapabilitiesProvider.removeExternalCapabilities();
+    }
+
+    @Test
+    public void testRecursiveCallPerLevel() throws IOException {
+        byte[] contract = ContractUtils.getContractBody("Recursive.sol", "Recursive");
+        RepositoryForTesting repo = RepositoryForTesting.newRepository();
+        repo.saveCode(address, contract);
+
+        byte[] callData =
+                ByteUtil.merge(
+                        HexUtil.decode("2d7df21a"),
+                        address.toByteArray(),
+                        FvmDataWord.fromInt(DEPTH).copyOfData());
+
+        for (SideEffectsRecordingLevel level : SideEffectsRecordingLevel.values()) {
+            run(contract, callData, repo, level);
+        }
+    }
+
+    private void run(byte[] contract, byte[] callData, RepositoryForTesting repo, SideEffectsRecordingLevel level) {
+        ExecutionContext ctx = newExecutionContext(callData);
+        ctx.getSideEffects().setRecordingLevel(level);
+
+        FastVmTransactionResult result = new FastVM().runPost040Fork(contract, ctx, newState(repo));
+        assertEquals(FastVmResultCode.SUCCESS, result.getResultCode());
+
+        int expectedInternalTransactions = level.recordsInternalTransactions() ? DEPTH - 1 : 0;
+        assertEquals(expectedInternalTransactions, ctx.getSideEffects().getInternalTransactions().size());
+        assertEquals(DEPTH, ctx.getSideEffects().getExecutionLogs().size());
+    }
+
+    private ExecutionContext newExecutionContext(byte[] callData) {
+        return ExecutionContext.from(txHash, address, origin, origin, 1L, 10_000_000L, BigInteger.ZERO, callData, 0, TransactionKind.CALL, 0, blockCoinbase, 1L, 0L, 15_000_000L, blockDifficulty);
+    }
+
+    private IExternalStateForFvm newState(RepositoryForTesting repo) {
+        return new ExternalStateForTesting(repo, new BlockchainForTesting(), blockCoinbase, blockDifficulty, false, true, false, 1L, 0L, 15_000_000L, false);
+    }
+}
@@ -0,0 +1,186 @@
+package org.aion.fastvm;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.math.BigInteger;
+import java.util.List;
+import org.aion.types.AionAddress;
+import org.apache.commons.lang3.RandomUtils;
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/** Unit tests for the {@link StorageHeatmap} class and its capture in {@link Callback}. */
+public class StorageHeatmapTest {
+    private static final FvmDataWord KEY = FvmDataWord.fromInt(1);
+    private static final FvmDataWord OTHER_KEY = FvmDataWord.fromInt(2);
+
+    @After
+    public void tearDown() {
+        Callback.setStorageAccessTracker(null);
+        while (!Callback.stackIsEmpty()) {
+            Callback.pop();
+        }
+    }
+
+    @Test
+    public void testReadsAndWritesAreCountedPerSlot() {
+        StorageHeatmap heatmap = new StorageHeatmap(4, 4);
+        AionAddress contract = randomAddress();
+
+        heatmap.storageRead(contract, KEY);
+        heatmap.storageRead(contract, KEY);
+        heatmap.storageWritten(contract, KEY);
+        heatmap.storageWritten(contract, OTHER_KEY);
+
+        StorageHeatmap.ContractHeat heat = heatmap.getContract(contract);
+        Assert.assertEquals(contract, heat.getContractAddress());
+        Assert.assertEquals(2, heat.getReadCount());
+        Assert.assertEquals(2, heat.getWriteCount());
+        Assert.assertEquals(4, heat.getAccessCount());
+        Assert.assertEquals(0, heat.getMaxOvercount());
+
+        List<StorageHeatmap.SlotHeat> slots = heat.getHotSlots();
+        Assert.assertEquals(2, slots.size());
+        Assert.assertEquals(KEY, slots.get(0).getKey());
+        Assert.assertEquals(2, slots.get(0).getReadCount());
+        Assert.assertEquals(1, slots.get(0).getWriteCount());
+        Assert.assertEquals(OTHER_KEY, slots.get(1).getKey());
+        Assert.assertEquals(1, slots.get(1).getAccessCount());
+    }
+
+    @Test
+    public void testHotSlotSurvivesColdSlots() {
+        StorageHeatmap heatmap = new StorageHeatmap(1, 2);
+        AionAddress contract = randomAddress();
+
+        // The hot slot takes two thirds of the accesses, more than the 1 / 2 that two slots guarantee.
+        for (int i = 0; i < 100; i++) {
+            heatmap.storageRead(contract, KEY);
+            heatmap.storageWritten(contract, KEY);
+            heatmap.storageRead(contract, FvmDataWord.fromInt(1000 + i));
+        }
+
+        List<StorageHeatmap.SlotHeat> slots = heatmap.getContract(contract).getHotSlots();
+        Assert.assertEquals(2, slots.size());
+        Assert.assertEquals(KEY, slots.get(0).getKey());
+        Assert.assertEquals(200, slots.get(0).getAccessCount());
+        Assert.assertEquals(0, slots.get(0).getMaxOvercount());
+
+        // The other slot replaced a cold slot and inherited its count as overcount.
+        Assert.assertEquals(1, slots.get(1).getReadCount());
+        Assert.assertTrue(slots.get(1).getMaxOvercount() > 0);
+    }
+
+    @Test
+    public void testHottestContractsAreReportedFirst() {
+        StorageHeatmap heatmap = new StorageHeatmap(2, 1);
+        AionAddress hot = randomAddress();
+        AionAddress warm = randomAddress();
+        AionAddress cold = randomAddress();
+
+        for (int i = 0; i < 10; i++) {
+            heatmap.storageRead(hot, KEY);
+        }
+        heatmap.storageRead(warm, KEY);
+        heatmap.storageRead(warm, KEY);
+        heatmap.storageWritten(cold, KEY);
+
+        List<StorageHeatmap.ContractHeat> report = heatmap.getHottestContracts(10);
+        Assert.assertEquals(2, report.size());
+        Assert.assertEquals(hot, report.get(0).getContractAddress());
+        Assert.assertEquals(10, report.get(0).getAccessCount());
+
+        // The cold contract replaced the warm one, the less accessed of the two.
+        Assert.assertNull(heatmap.getContract(warm));
+        Assert.assertEquals(cold, report.get(1).getContractAddress());
+        Assert.assertEquals(3, report.get(1).getAccessCount());
+        Assert.assertEquals(2, report.get(1).getMaxOvercount());
+
+        Assert.assertEquals(1, heatmap.getHottestContracts(1).size());
+    }
+
+    @Test
+    public void testAccessesFromManyThreadsAreMerged() throws Exception {
+        StorageHeatmap heatmap = new StorageHeatmap(4, 4);
+        AionAddress contract = randomAddress();
+
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < 1_000; j++) {
+                    heatmap.storageRead(contract, KEY);
+                    heatmap.storageWritten(contract, OTHER_KEY);
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        StorageHeatmap.ContractHeat heat = heatmap.getContract(contract);
+        Assert.assertEquals(8_000, heat.getReadCount());
+        Assert.assertEquals(8_000, heat.getWriteCount());
+        Assert.assertEquals(0, heat.getMaxOvercount());
+        Assert.assertEquals(2, heat.getHotSlots().size());
+        Assert.assertEquals(8_000, heat.getHotSlots().get(0).getAccessCount());
+    }
+
+    @Test
+    public void testReset() {
+        StorageHeatmap heatmap = new StorageHeatmap(4, 4);
+        heatmap.storageRead(randomAddress(), KEY);
+        heatmap.reset();
+        Assert.assertTrue(heatmap.getHottestContracts(10).isEmpty());
+    }
+
+    @Test
+    public void testCallbackReportsStorageAccesses() {
+        StorageHeatmap heatmap = new StorageHeatmap(4, 4);
+        Callback.setStorageAccessTracker(heatmap);
+        Assert.assertSame(heatmap, Callback.getStorageAccessTracker());
+
+        AionAddress contract = randomAddress();
+        IExternalStateForFvm state = mock(IExternalStateForFvm.class);
+        when(state.getStorageValue(any(), any())).thenReturn(FvmDataWord.fromInt(7));
+        Callback.push(Pair.of(newContext(contract), state));
+
+        Callback.getStorage(contract.toByteArray(), KEY.copyOfData());
+        Callback.putStorage(contract.toByteArray(), KEY.copyOfData(), FvmDataWord.fromInt(8).copyOfData());
+        Callback.putStorage(contract.toByteArray(), OTHER_KEY.copyOfData(), new byte[FvmDataWord.SIZE]);
+
+        StorageHeatmap.ContractHeat heat = heatmap.getContract(contract);
+        Assert.assertEquals(1, heat.getReadCount());
+        Assert.assertEquals(2, heat.getWriteCount());
+        Assert.assertEquals(KEY, heat.getHotSlots().get(0).getKey());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoContracts() {
+        new StorageHeatmap(0, 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoSlots() {
+        new StorageHeatmap(1, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeLimit() {
+        new StorageHeatmap(1, 1).getHottestContracts(-1);
+    }
+
+    private static ExecutionContext newContext(AionAddress destination) {
+        return ExecutionContext.from(new byte[32], destination, randomAddress(), randomAddress(), 1L, 500_000L, BigInteger.ZERO, new byte[0], 0, TransactionKind.CALL, 0, randomAddress(), 0L, 0L, 15_000_000L, FvmDataWord.fromLong(0L));
+    }
+
+    private static AionAddress randomAddress() {
+        byte[] bytes = RandomUtils.nextBytes(AionAddress.LENGTH);
+        bytes[0] = (byte) 0xa0;
+        return new AionAddress(bytes);
+    }
+}
@@ -0,0 +1,73 @@
+package org.aion.fastvm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+/** Unit tests for the {@link StorageKeyAnalyzer} class. */
+public class StorageKeyAnalyzerUnitTest {
+    private static final byte PUSH1 = Instruction.PUSH1.code();
+    private static final byte PUSH2 = Instruction.PUSH2.code();
+    private static final byte PUSH17 = Instruction.PUSH17.code();
+    private static final byte DUP1 = Instruction.DUP1.code();
+    private static final byte SLOAD = Instruction.SLOAD.code();
+    private static final byte SSTORE = Instruction.SSTORE.code();
+    private static final byte ADD = Instruction.ADD.code();
+
+    @Test
+    public void testPushThenSload() {
+        byte[] code = new byte[] {PUSH1, 0x05, SLOAD};
+        assertEquals(Arrays.asList(FvmDataWord.fromInt(5)), StorageKeyAnalyzer.findConstantStorageKeys(code, 10));
+    }
+
+    @Test
+    public void testPushDupThenSload() {
+        byte[] code = new byte[] {PUSH2, 0x01, 0x02, DUP1, SLOAD};
+        assertEquals(Arrays.asList(FvmDataWord.fromInt(0x0102)), StorageKeyAnalyzer.findConstantStorageKeys(code, 10));
+    }
+
+    @Test
+    public void testPushNotFollowedBySloadIsIgnored() {
+        byte[] code = new byte[] {PUSH1, 0x05, ADD, SLOAD, PUSH1, 0x07, SSTORE};
+        assertTrue(StorageKeyAnalyzer.findConstantStorageKeys(code, 10).isEmpty());
+    }
+
+    @Test
+    public void testPushDataIsNotDecodedAsInstructions() {
+        // The SLOAD and PUSH1 bytes here are both push data, not instructions.
+        byte[] code = new byte[] {PUSH2, PUSH1, SLOAD, SLOAD};
+        List<FvmDataWord> keys = StorageKeyAnalyzer.findConstantStorageKeys(code, 10);
+        assertEquals(Arrays.asList(FvmDataWord.fromBytes(new byte[] {PUSH1, SLOAD})), keys);
+    }
+
+    @Test
+    public void testPushWiderThanDataWordIsIgnored() {
+        byte[] code = new byte[PUSH17 - PUSH1 + 3];
+        code[0] = PUSH17;
+        code[code.length - 1] = SLOAD;
+        assertTrue(StorageKeyAnalyzer.findConstantStorageKeys(code, 10).isEmpty());
+    }
+
+    @Test
+    public void testDuplicateKeysAreReportedOnce() {
+        byte[] code = new byte[] {PUSH1, 0x01, SLOAD, PUSH1, 0x02, SLOAD, PUSH1, 0x01, SLOAD};
+        assertEquals(
+                Arrays.asList(FvmDataWord.fromInt(1), FvmDataWord.fromInt(2)),
+                StorageKeyAnalyzer.findConstantStorageKeys(code, 10));
+    }
+
+    @Test
+    public void testLimitIsRespected() {
+        byte[] code = new byte[] {PUSH1, 0x01, SLOAD, PUSH1, 0x02, SLOAD, PUSH1, 0x03, SLOAD};
+        assertEquals(2, StorageKeyAnalyzer.findConstantStorageKeys(code, 2).size());
+    }
+
+    @Test
+    public void testTruncatedPushAtEndOfCode() {
+        byte[] code = new byte[] {PUSH1, 0x01, SLOAD, PUSH2, 0x01};
+        assertEquals(Arrays.asList(FvmDataWord.fromInt(1)), StorageKeyAnalyzer.findConstantStorageKeys(code, 10));
+    }
+}